@@ -0,0 +1,140 @@
+package org.thoughtcrime.securesms.backup
+
+import android.content.Context
+import android.net.Uri
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.lessThan
+import org.junit.After
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.StreamUtil
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.UriAttachment
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.database.AttachmentDatabase
+import org.thoughtcrime.securesms.database.MmsHelper
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.database.ThreadDatabase
+import org.thoughtcrime.securesms.database.model.StoryType
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.mms.OutgoingMediaMessage
+import org.thoughtcrime.securesms.providers.BlobProvider
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.util.MediaUtil
+import java.io.File
+import kotlin.random.Random
+
+/**
+ * Round trip of a full backup, a differential backup on top of it, and a restore of the differential one.
+ */
+@RunWith(AndroidJUnit4::class)
+class FullBackupImporterTest_differential {
+
+  private lateinit var context: Context
+  private lateinit var attachmentSecret: AttachmentSecret
+  private lateinit var directory: File
+
+  @Before
+  fun setup() {
+    context = ApplicationDependencies.getApplication()
+    attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret()
+    directory = File(context.cacheDir, "differential_backup_test")
+
+    directory.deleteRecursively()
+    directory.mkdirs()
+  }
+
+  @After
+  fun tearDown() {
+    directory.deleteRecursively()
+    BackupManifest.clear(context)
+  }
+
+  @Test
+  fun givenDifferentialBackup_whenIRestoreIt_thenItsAttachmentsComeFromTheBaseNextToIt() {
+    val attachmentId = insertMessageWithAttachment()
+    val full = File(directory, FULL)
+    val differential = File(directory, DIFFERENTIAL)
+
+    exportFullAndDifferential(full, differential)
+
+    FullBackupImporter.importFile(context, attachmentSecret, SignalDatabase.getBackupDatabase(), Uri.fromFile(differential), PASSPHRASE)
+
+    assertThat(readAttachment(attachmentId), `is`(DATA))
+  }
+
+  @Test
+  fun givenDifferentialBackupWithoutItsBase_whenIRestoreIt_thenItFailsAndLeavesTheDatabaseAlone() {
+    val attachmentId = insertMessageWithAttachment()
+    val full = File(directory, FULL)
+    val differential = File(directory, DIFFERENTIAL)
+
+    exportFullAndDifferential(full, differential)
+    full.delete()
+
+    try {
+      FullBackupImporter.importFile(context, attachmentSecret, SignalDatabase.getBackupDatabase(), Uri.fromFile(differential), PASSPHRASE)
+      fail("Restored a differential backup without its base")
+    } catch (e: FullBackupImporter.MissingBaseBackupException) {
+      assertThat(e.base, `is`(FULL))
+    }
+
+    assertThat(readAttachment(attachmentId), `is`(DATA))
+  }
+
+  private fun exportFullAndDifferential(full: File, differential: File) {
+    val manifest = BackupManifest.Builder(FULL, System.currentTimeMillis())
+
+    FullBackupExporter.export(context, attachmentSecret, SignalDatabase.getBackupDatabase(), full, PASSPHRASE, null, manifest) { false }
+    manifest.write(context, attachmentSecret)
+
+    FullBackupExporter.export(context, attachmentSecret, SignalDatabase.getBackupDatabase(), differential, PASSPHRASE, BackupManifest.read(context, attachmentSecret), null) { false }
+
+    assertThat("attachment was streamed again", differential.length(), lessThan(full.length() - DATA.size / 2))
+  }
+
+  private fun insertMessageWithAttachment(): AttachmentId {
+    val uri = BlobProvider.getInstance().forData(DATA).createForSingleSessionInMemory()
+    val attachment = UriAttachment(uri, MediaUtil.OCTET, AttachmentDatabase.TRANSFER_PROGRESS_DONE, DATA.size.toLong(), null, false, false, false, false, null, null, null, null, null)
+    val message = OutgoingMediaMessage(
+      Recipient.UNKNOWN,
+      "body",
+      listOf(attachment),
+      System.currentTimeMillis(),
+      -1,
+      0,
+      false,
+      ThreadDatabase.DistributionTypes.DEFAULT,
+      StoryType.NONE,
+      null,
+      false,
+      null,
+      emptyList(),
+      emptyList(),
+      emptyList(),
+      emptySet(),
+      emptySet()
+    )
+
+    val messageId = MmsHelper.insert(message = message, threadId = 1)
+
+    return SignalDatabase.attachments.getAttachmentsForMessage(messageId).first().attachmentId
+  }
+
+  private fun readAttachment(attachmentId: AttachmentId): ByteArray {
+    return SignalDatabase.attachments.getAttachmentStream(attachmentId, 0).use { StreamUtil.readFully(it) }
+  }
+
+  companion object {
+    private const val PASSPHRASE = "000000000000000000000000000000"
+    private const val FULL = "unfacd-2000-01-01-00-00-00.backup"
+    private const val DIFFERENTIAL = "unfacd-2000-01-02-00-00-00.backup"
+
+    private val DATA = Random(42).nextBytes(64 * 1024)
+  }
+}
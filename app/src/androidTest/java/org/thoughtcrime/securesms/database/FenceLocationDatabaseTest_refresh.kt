@@ -0,0 +1,165 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.contains
+import org.hamcrest.Matchers.containsInAnyOrder
+import org.hamcrest.Matchers.empty
+import org.hamcrest.Matchers.everyItem
+import org.hamcrest.Matchers.hasItem
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.not
+import org.hamcrest.Matchers.notNullValue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.database.FenceLocationDatabase.Tile
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FenceRecord
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.LocationRecord
+import java.util.concurrent.TimeUnit
+
+/**
+ * Refreshes tiles of the fence location index against the real database. Each test runs in a transaction that is
+ * rolled back.
+ */
+@RunWith(AndroidJUnit4::class)
+class FenceLocationDatabaseTest_refresh {
+
+  private lateinit var db: net.zetetic.database.sqlcipher.SQLiteDatabase
+  private lateinit var fenceLocations: FenceLocationDatabase
+
+  @Before
+  fun setUp() {
+    db = SignalDatabase.rawDatabase
+    db.beginTransaction()
+
+    db.delete(FenceLocationDatabase.TABLE_NAME, null, null)
+    db.delete(FenceLocationDatabase.TILES_TABLE_NAME, null, null)
+
+    fenceLocations = SignalDatabase.fenceLocations
+  }
+
+  @After
+  fun tearDown() {
+    db.endTransaction()
+  }
+
+  @Test
+  fun givenNewTile_whenIRefreshIt_thenEveryReportedFenceIsStored() {
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON), fence(2, LAT + 0.01, LON + 0.01)))
+
+    assertThat(fidsAroundTile(), containsInAnyOrder(1L, 2L))
+    assertThat(fenceLocations.getFencesWithin(LAT - 0.1, LON - 0.1, LAT + 0.1, LON + 0.1).map { it.fenceRecord }, everyItem(notNullValue()))
+  }
+
+  @Test
+  fun givenFenceNoLongerReported_whenIRefreshItsTile_thenItIsDropped() {
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON), fence(2, LAT, LON)))
+    fenceLocations.refreshTile(TILE, listOf(fence(2, LAT, LON)))
+
+    assertThat(fidsAroundTile(), contains(2L))
+  }
+
+  @Test
+  fun givenEmptyResponse_whenIRefreshATile_thenItsFencesAreDroppedAndItIsNoLongerStale() {
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON)))
+    fenceLocations.refreshTile(TILE, emptyList())
+
+    assertThat(fidsAroundTile(), empty())
+    assertThat(staleTiles(), not(hasItem(key(TILE))))
+  }
+
+  @Test
+  fun givenFenceOnlyKnownFromGroups_whenIRefreshItsTile_thenItIsKept() {
+    fenceLocations.updateLocation(3, LAT, LON)
+
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON)))
+
+    assertThat(fidsAroundTile(), containsInAnyOrder(1L, 3L))
+  }
+
+  @Test
+  fun givenFenceInNeighbouringTile_whenIRefreshATile_thenItIsKept() {
+    val neighbour = Tile.of(LAT, LON + FenceLocationDatabase.CELL_DEGREES)
+
+    fenceLocations.refreshTile(neighbour, listOf(fence(4, neighbour.centreLatitude, neighbour.centreLongitude)))
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON)))
+
+    assertThat(fidsAroundTile(), containsInAnyOrder(1L, 4L))
+  }
+
+  @Test
+  fun givenFenceThatMovedIntoAnotherTile_whenIRefreshItsOldTile_thenItIsKeptAtItsNewLocation() {
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT, LON)))
+    fenceLocations.refreshTile(TILE, listOf(fence(1, LAT + FenceLocationDatabase.CELL_DEGREES, LON)))
+
+    assertThat(fenceLocations.getFencesWithin(LAT - 0.01, LON - 0.01, LAT + 0.01, LON + 0.01), empty())
+    assertThat(fidsAroundTile(), contains(1L))
+  }
+
+  @Test
+  fun givenNothingFetched_whenIListStaleTiles_thenEveryTileInViewIsStale() {
+    assertThat(staleTiles().size, `is`(9))
+    assertThat(staleTiles().first(), `is`(key(TILE)))
+  }
+
+  @Test
+  fun givenRefreshedTile_whenIListStaleTiles_thenOnlyTheOthersAreStale() {
+    fenceLocations.refreshTile(TILE, emptyList())
+
+    val stale = staleTiles()
+
+    assertThat(stale.size, `is`(8))
+    assertThat(stale, not(hasItem(key(TILE))))
+  }
+
+  @Test
+  fun givenTileFetchedLongAgo_whenIListStaleTiles_thenItIsStaleAgain() {
+    fenceLocations.refreshTile(TILE, emptyList())
+
+    val expired = System.currentTimeMillis() - FenceLocationDatabase.TILE_TTL_MILLIS - TimeUnit.MINUTES.toMillis(1)
+    db.update(FenceLocationDatabase.TILES_TABLE_NAME, contentValuesOf("fetched_at" to expired), null, null)
+
+    assertThat(staleTiles().size, `is`(9))
+  }
+
+  @Test
+  fun givenManyStaleTiles_whenIListThemWithALimit_thenTheNearestAreReturned() {
+    val stale = fenceLocations.getStaleTiles(LAT - SPAN, LON - SPAN, LAT + SPAN, LON + SPAN, 1)
+
+    assertThat(stale.map { key(it) }, contains(key(TILE)))
+  }
+
+  private fun staleTiles(): List<Long> {
+    return fenceLocations.getStaleTiles(LAT - SPAN, LON - SPAN, LAT + SPAN, LON + SPAN, 100).map { key(it) }
+  }
+
+  private fun fidsAroundTile(): List<Long> {
+    return fenceLocations.getFencesWithin(LAT - 0.2, LON - 0.2, LAT + 0.2, LON + 0.2).map { it.fid }
+  }
+
+  private fun fence(fid: Long, latitude: Double, longitude: Double): FenceRecord {
+    return FenceRecord.newBuilder()
+      .setFid(fid)
+      .setLocation(
+        LocationRecord.newBuilder()
+          .setLatitude(latitude)
+          .setLongitude(longitude)
+          .setSource(LocationRecord.Source.SERVER)
+      )
+      .build()
+  }
+
+  private fun key(tile: Tile): Long = FenceLocationDatabase.tileOf(tile.centreLatitude, tile.centreLongitude)
+
+  companion object {
+    private val TILE = Tile.of(-33.86, 151.21)
+    private val LAT = TILE.centreLatitude
+    private val LON = TILE.centreLongitude
+
+    /** Reaches into the neighbouring cell on every side, but not beyond. */
+    private const val SPAN = FenceLocationDatabase.CELL_DEGREES
+  }
+}
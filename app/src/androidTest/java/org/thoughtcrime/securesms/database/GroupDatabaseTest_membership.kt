@@ -0,0 +1,156 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.containsInAnyOrder
+import org.hamcrest.Matchers.empty
+import org.hamcrest.Matchers.`is`
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.database.helpers.SignalDatabaseMigrations
+import java.util.UUID
+
+/**
+ * Runs the group_membership triggers and the migration that creates them against the bundled SQLCipher, which has to
+ * provide json_each() and json_valid() for them to work. Each test runs in a transaction that is rolled back.
+ */
+@RunWith(AndroidJUnit4::class)
+class GroupDatabaseTest_membership {
+
+  private lateinit var db: net.zetetic.database.sqlcipher.SQLiteDatabase
+
+  @Before
+  fun setUp() {
+    db = SignalDatabase.rawDatabase
+    db.beginTransaction()
+  }
+
+  @After
+  fun tearDown() {
+    db.endTransaction()
+  }
+
+  @Test
+  fun givenBundledSqlCipher_whenISplitAListWithJson1_thenEveryEntryComesBack() {
+    db.rawQuery("SELECT COUNT(*) FROM json_each(CASE WHEN json_valid('[\"a\",\"b\"]') THEN '[\"a\",\"b\"]' ELSE '[]' END)", null).use { cursor ->
+      cursor.moveToFirst()
+      assertThat(cursor.getInt(0), `is`(2))
+    }
+  }
+
+  @Test
+  fun givenNewGroup_whenIInsertIt_thenEveryListIsIndexedByRole() {
+    val group = insertGroup(members = "$A,$B", invited = C, blocked = D, requesting = E)
+
+    assertThat(membership(group), containsInAnyOrder(A to MEMBER, B to MEMBER, C to INVITED, D to BLOCKED, E to REQUESTING))
+  }
+
+  @Test
+  fun givenListWithSpacesAndEmptyEntries_whenIInsertIt_thenOnlyTrimmedEntriesAreIndexed() {
+    val group = insertGroup(members = " $A ,,$B,")
+
+    assertThat(membership(group), containsInAnyOrder(A to MEMBER, B to MEMBER))
+  }
+
+  @Test
+  fun givenGroup_whenIChangeItsMembers_thenOnlyThatRoleIsRewritten() {
+    val group = insertGroup(members = "$A,$B", invited = C)
+
+    db.update(GroupDatabase.TABLE_NAME, contentValuesOf("members" to "$B,$D"), "_id = ?", arrayOf(group.toString()))
+
+    assertThat(membership(group), containsInAnyOrder(B to MEMBER, D to MEMBER, C to INVITED))
+  }
+
+  @Test
+  fun givenGroup_whenIClearItsMembers_thenItsMemberRowsAreRemoved() {
+    val group = insertGroup(members = "$A,$B")
+
+    db.update(GroupDatabase.TABLE_NAME, contentValuesOf("members" to null), "_id = ?", arrayOf(group.toString()))
+
+    assertThat(membership(group), empty())
+  }
+
+  @Test
+  fun givenMemberThatCannotBeQuotedAsJson_whenIInsertTheGroup_thenTheWriteSucceedsWithoutThatList() {
+    val group = insertGroup(members = "$A,bad\"uid", invited = C)
+
+    assertThat(membership(group), containsInAnyOrder(C to INVITED))
+  }
+
+  @Test
+  fun givenGroup_whenIDeleteIt_thenItsMembershipIsDeleted() {
+    val group = insertGroup(members = "$A,$B")
+
+    db.delete(GroupDatabase.TABLE_NAME, "_id = ?", arrayOf(group.toString()))
+
+    assertThat(membership(group), empty())
+  }
+
+  @Test
+  fun givenGroupsFromBeforeTheMigration_whenIMigrate_thenMembershipIsBackfilledAndKeptInSync() {
+    db.execSQL("DROP TRIGGER group_membership_insert")
+    listOf("members", "invited_members", "blocked_members", "requesting_members").forEach { db.execSQL("DROP TRIGGER group_membership_update_$it") }
+    db.execSQL("DROP TABLE group_membership")
+
+    val first = insertGroup(members = "$A,$B", blocked = C)
+    val second = insertGroup(members = B, requesting = D)
+    val third = insertGroup()
+
+    SignalDatabaseMigrations.migrateGroupMembership(db)
+
+    assertThat(membership(first), containsInAnyOrder(A to MEMBER, B to MEMBER, C to BLOCKED))
+    assertThat(membership(second), containsInAnyOrder(B to MEMBER, D to REQUESTING))
+    assertThat(membership(third), empty())
+
+    db.update(GroupDatabase.TABLE_NAME, contentValuesOf("members" to A), "_id = ?", arrayOf(second.toString()))
+    val fourth = insertGroup(invited = E)
+
+    assertThat(membership(second), containsInAnyOrder(A to MEMBER, D to REQUESTING))
+    assertThat(membership(fourth), containsInAnyOrder(E to INVITED))
+  }
+
+  private fun insertGroup(members: String? = null, invited: String? = null, blocked: String? = null, requesting: String? = null): Long {
+    val name = UUID.randomUUID().toString()
+
+    return db.insert(
+      GroupDatabase.TABLE_NAME,
+      null,
+      contentValuesOf(
+        GroupDatabase.GROUP_ID to "__textsecure_group__!$name",
+        "cname" to name,
+        "members" to members,
+        "invited_members" to invited,
+        "blocked_members" to blocked,
+        "requesting_members" to requesting
+      )
+    )
+  }
+
+  private fun membership(group: Long): List<Pair<String, Int>> {
+    val rows = mutableListOf<Pair<String, Int>>()
+
+    db.rawQuery("SELECT member_uid, role FROM group_membership WHERE group_row = ?", arrayOf(group.toString())).use { cursor ->
+      while (cursor.moveToNext()) {
+        rows += cursor.getString(0) to cursor.getInt(1)
+      }
+    }
+
+    return rows
+  }
+
+  companion object {
+    private const val A = "0GV1QH2DZ0W8C8JKE7N1Q4XM2A"
+    private const val B = "01000000000000000000000001"
+    private const val C = "01000000000000000000000002"
+    private const val D = "01000000000000000000000003"
+    private const val E = "7ZZZZZZZZZZZZZZZZZZZZZZZZZ"
+
+    private const val MEMBER = GroupDatabase.MEMBERSHIP_ROLE_MEMBER
+    private const val INVITED = GroupDatabase.MEMBERSHIP_ROLE_INVITED
+    private const val BLOCKED = GroupDatabase.MEMBERSHIP_ROLE_BLOCKED
+    private const val REQUESTING = GroupDatabase.MEMBERSHIP_ROLE_REQUESTING
+  }
+}
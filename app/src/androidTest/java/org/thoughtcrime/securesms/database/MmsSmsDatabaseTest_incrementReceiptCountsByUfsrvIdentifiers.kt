@@ -0,0 +1,66 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.contains
+import org.hamcrest.Matchers.empty
+import org.hamcrest.Matchers.`is`
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.UfsrvReceipt
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@RunWith(AndroidJUnit4::class)
+class MmsSmsDatabaseTest_incrementReceiptCountsByUfsrvIdentifiers {
+
+  private lateinit var recipientId: RecipientId
+
+  @Before
+  fun setup() {
+    recipientId = SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID()))
+  }
+
+  @Test
+  fun givenReceiptArrivesBeforeGidIsStored_whenIApplyIt_thenItMatchesOnDateSent() {
+    val sent = System.currentTimeMillis()
+    val messageId = MmsHelper.insert(recipient = Recipient.resolved(recipientId), sentTimeMillis = sent)
+    val receipt = UfsrvReceipt.delivery(SyncMessageId(recipientId, sent, null, 1, GID, EID), sent + 1)
+
+    val unhandled = SignalDatabase.mmsSms.incrementReceiptCountsByUfsrvIdentifiers(listOf(receipt))
+
+    assertThat(unhandled, empty())
+    assertThat(SignalDatabase.mms.getMessageRecord(messageId).deliveryReceiptCount, `is`(1))
+  }
+
+  @Test
+  fun givenReadReceiptArrivesBeforeGidIsStored_whenIApplyIt_thenItMatchesOnDateSent() {
+    val sent = System.currentTimeMillis()
+    val messageId = MmsHelper.insert(recipient = Recipient.resolved(recipientId), sentTimeMillis = sent)
+    val receipt = UfsrvReceipt.read(SyncMessageId(recipientId, sent, null, 1, GID, EID), sent + 1)
+
+    val unhandled = SignalDatabase.mmsSms.incrementReceiptCountsByUfsrvIdentifiers(listOf(receipt))
+
+    assertThat(unhandled, empty())
+    assertThat(SignalDatabase.mms.getMessageRecord(messageId).readReceiptCount, `is`(1))
+  }
+
+  @Test
+  fun givenReceiptForMessageNotYetStored_whenIApplyIt_thenItIsReturnedUnhandled() {
+    val sent = System.currentTimeMillis()
+    val receipt = UfsrvReceipt.delivery(SyncMessageId(recipientId, sent, null, 1, GID, EID), sent + 1)
+
+    val unhandled = SignalDatabase.mmsSms.incrementReceiptCountsByUfsrvIdentifiers(listOf(receipt))
+
+    assertThat(unhandled, contains(receipt))
+  }
+
+  companion object {
+    private const val GID = 98765L
+    private const val EID = 4321L
+  }
+}
@@ -0,0 +1,300 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.`is`
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.database.helpers.SignalDatabaseMigrations
+import java.util.UUID
+import kotlin.random.Random
+
+/**
+ * Runs the thread_counters triggers, the migration that creates them and the rebuild against the real schema, checking
+ * the counters against a count of the thread and groups tables after every change. Each test runs in a transaction that
+ * is rolled back.
+ */
+@RunWith(AndroidJUnit4::class)
+class ThreadDatabaseTest_counters {
+
+  private lateinit var db: net.zetetic.database.sqlcipher.SQLiteDatabase
+
+  private var nextFid = Random.nextLong(1L shl 40, 1L shl 50)
+
+  @Before
+  fun setUp() {
+    db = SignalDatabase.rawDatabase
+    db.beginTransaction()
+    SignalDatabase.threads.rebuildCounters()
+  }
+
+  @After
+  fun tearDown() {
+    db.endTransaction()
+  }
+
+  @Test
+  fun givenOpenFence_whenIInsertAnUnreadThread_thenOnlyItsCounterGoesUp() {
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_JOIN_ACCEPTED)
+    val before = counters()
+
+    insertThread(fid, read = UNREAD)
+
+    assertThat(counters().toList(), `is`(before.also { it[OPEN * 8 + FLAG_UNREAD]++ }.toList()))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThread_whenIArchivePinAndReadIt_thenItMovesBetweenCounters() {
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_LINKJOIN_ACCEPTED)
+    val thread = insertThread(fid, read = UNREAD)
+    val base = counters()
+
+    updateThread(thread, "pinned" to 1)
+    assertThat(counters()[OPEN * 8 + FLAG_PINNED + FLAG_UNREAD], `is`(base[OPEN * 8 + FLAG_PINNED + FLAG_UNREAD] + 1))
+
+    updateThread(thread, "archived" to 1)
+    assertThat(counters()[OPEN * 8 + FLAG_ARCHIVED + FLAG_PINNED + FLAG_UNREAD], `is`(base[OPEN * 8 + FLAG_ARCHIVED + FLAG_PINNED + FLAG_UNREAD] + 1))
+
+    updateThread(thread, "read" to READ)
+    assertThat(counters()[OPEN * 8 + FLAG_ARCHIVED + FLAG_PINNED], `is`(base[OPEN * 8 + FLAG_ARCHIVED + FLAG_PINNED] + 1))
+    assertThat(counters()[OPEN * 8 + FLAG_UNREAD], `is`(base[OPEN * 8 + FLAG_UNREAD] - 1))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThreadOfAnUnknownFence_whenTheFenceArrives_thenTheThreadIsCounted() {
+    val fid = nextFid++
+    val before = counters()
+
+    insertThread(fid)
+    assertThat(counters().toList(), `is`(before.toList()))
+
+    insertGroup(GroupDatabase.GROUP_MODE_INVITATION, fid)
+    assertThat(counters()[INVITED * 8], `is`(before[INVITED * 8] + 1))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThreadWithoutAFence_whenIInsertIt_thenNothingIsCounted() {
+    val before = counters()
+
+    insertThread(0, read = UNREAD)
+
+    assertThat(counters().toList(), `is`(before.toList()))
+  }
+
+  @Test
+  fun givenFenceWithThreads_whenItsModeChanges_thenAllItsThreadsMoveBucket() {
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_JOIN_ACCEPTED)
+    insertThread(fid)
+    insertThread(fid, read = UNREAD)
+    val before = counters()
+
+    db.update(GroupDatabase.TABLE_NAME, contentValuesOf(GroupDatabase.MODE to GroupDatabase.GROUP_MODE_LEAVE_ACCEPTED), "${GroupDatabase.FID} = ?", arrayOf(fid.toString()))
+
+    val after = counters()
+    assertThat(after[OPEN * 8], `is`(before[OPEN * 8] - 1))
+    assertThat(after[OPEN * 8 + FLAG_UNREAD], `is`(before[OPEN * 8 + FLAG_UNREAD] - 1))
+    assertThat(after[LEFT * 8], `is`(before[LEFT * 8] + 1))
+    assertThat(after[LEFT * 8 + FLAG_UNREAD], `is`(before[LEFT * 8 + FLAG_UNREAD] + 1))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenFenceWithThreads_whenItIsDeleted_thenItsThreadsAreNoLongerCounted() {
+    val before = counters()
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_GEOBASED_JOIN)
+    insertThread(fid)
+    insertThread(fid, archived = true)
+
+    db.delete(GroupDatabase.TABLE_NAME, "${GroupDatabase.FID} = ?", arrayOf(fid.toString()))
+
+    assertThat(counters().toList(), `is`(before.toList()))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThread_whenIDeleteIt_thenItsCounterGoesDown() {
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_LINKJOIN_REQUESTING)
+    val before = counters()
+    val thread = insertThread(fid, pinned = true)
+
+    db.delete(ThreadDatabase.TABLE_NAME, "_id = ?", arrayOf(thread.toString()))
+
+    assertThat(counters().toList(), `is`(before.toList()))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThread_whenItMovesToAnotherFence_thenItIsCountedUnderThatFencesBucket() {
+    val open = insertGroup(GroupDatabase.GROUP_MODE_JOIN_ACCEPTED)
+    val blocked = insertGroup(GroupDatabase.GROUP_MODE_BLOCKED)
+    val thread = insertThread(open)
+    val before = counters()
+
+    updateThread(thread, "ufsrv_fid" to blocked)
+
+    assertThat(counters()[OPEN * 8], `is`(before[OPEN * 8] - 1))
+    assertThat(counters()[LEFT * 8], `is`(before[LEFT * 8] + 1))
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenThreadsFromBeforeTheMigration_whenIMigrate_thenCountersAreBackfilledAndKeptInSync() {
+    listOf("thread_insert", "thread_delete", "thread_update", "group_insert", "group_delete", "group_update").forEach { db.execSQL("DROP TRIGGER thread_counters_$it") }
+    db.execSQL("DROP TABLE ${ThreadDatabase.COUNTERS_TABLE_NAME}")
+
+    val open = insertGroup(GroupDatabase.GROUP_MODE_JOIN_ACCEPTED)
+    val left = insertGroup(GroupDatabase.GROUP_MODE_LINKJOIN_REJECTED)
+    insertThread(open, read = UNREAD, pinned = true)
+    insertThread(left, archived = true)
+    insertThread(nextFid++)
+
+    SignalDatabaseMigrations.migrateThreadCounters(db)
+
+    assertThat(counterRows(), `is`(COUNTER_KEYS))
+    assertCountersMatchTables()
+
+    insertThread(left, read = UNREAD)
+    db.update(GroupDatabase.TABLE_NAME, contentValuesOf(GroupDatabase.MODE to GroupDatabase.GROUP_MODE_INVITATION), "${GroupDatabase.FID} = ?", arrayOf(open.toString()))
+
+    assertCountersMatchTables()
+  }
+
+  @Test
+  fun givenDriftedCounters_whenIRebuild_thenTheyMatchTheTablesAgain() {
+    val fid = insertGroup(GroupDatabase.GROUP_MODE_JOIN_SYNCED)
+    insertThread(fid, read = UNREAD)
+
+    db.execSQL("UPDATE ${ThreadDatabase.COUNTERS_TABLE_NAME} SET count = count - 5 WHERE counter_key = ${OPEN * 8 + FLAG_UNREAD}")
+    db.execSQL("DELETE FROM ${ThreadDatabase.COUNTERS_TABLE_NAME} WHERE counter_key = ${LEFT * 8}")
+
+    SignalDatabase.threads.rebuildCounters()
+
+    assertThat(counterRows(), `is`(COUNTER_KEYS))
+    assertCountersMatchTables()
+  }
+
+  private fun insertGroup(mode: Int, fid: Long = nextFid++): Long {
+    val name = UUID.randomUUID().toString()
+
+    db.insert(
+      GroupDatabase.TABLE_NAME,
+      null,
+      contentValuesOf(
+        GroupDatabase.GROUP_ID to "__textsecure_group__!$name",
+        "cname" to name,
+        GroupDatabase.FID to fid,
+        GroupDatabase.MODE to mode
+      )
+    )
+
+    return fid
+  }
+
+  private fun insertThread(fid: Long, read: Int = READ, archived: Boolean = false, pinned: Boolean = false): Long {
+    return db.insert(
+      ThreadDatabase.TABLE_NAME,
+      null,
+      contentValuesOf(
+        "ufsrv_fid" to fid,
+        "read" to read,
+        "archived" to if (archived) 1 else 0,
+        "pinned" to if (pinned) 1 else 0
+      )
+    )
+  }
+
+  private fun updateThread(thread: Long, value: Pair<String, Any>) {
+    db.update(ThreadDatabase.TABLE_NAME, contentValuesOf(value), "_id = ?", arrayOf(thread.toString()))
+  }
+
+  private fun counters(): IntArray {
+    val counters = IntArray(COUNTER_KEYS)
+
+    db.rawQuery("SELECT counter_key, count FROM ${ThreadDatabase.COUNTERS_TABLE_NAME}", null).use { cursor ->
+      while (cursor.moveToNext()) {
+        counters[cursor.getInt(0)] = cursor.getInt(1)
+      }
+    }
+
+    return counters
+  }
+
+  private fun counterRows(): Int {
+    db.rawQuery("SELECT COUNT(*) FROM ${ThreadDatabase.COUNTERS_TABLE_NAME}", null).use { cursor ->
+      cursor.moveToFirst()
+      return cursor.getInt(0)
+    }
+  }
+
+  /**
+   * Counts every fence thread straight from the tables, bucketing it the way the conversation tabs do.
+   */
+  private fun assertCountersMatchTables() {
+    val expected = IntArray(COUNTER_KEYS)
+
+    db.rawQuery(
+      "SELECT groups.mode, thread.archived, thread.pinned, thread.read FROM thread INNER JOIN groups ON groups.fid = thread.ufsrv_fid WHERE thread.ufsrv_fid > 0",
+      null
+    ).use { cursor ->
+      while (cursor.moveToNext()) {
+        val bucket = when (cursor.getInt(0)) {
+          in OPEN_MODES -> OPEN
+          in INVITED_MODES -> INVITED
+          in LEFT_MODES -> LEFT
+          else -> 0
+        }
+        val archived = if (cursor.getInt(1) != 0) FLAG_ARCHIVED else 0
+        val pinned = if (cursor.getInt(2) != 0) FLAG_PINNED else 0
+        val unread = if (!cursor.isNull(3) && cursor.getInt(3) == UNREAD) FLAG_UNREAD else 0
+
+        expected[bucket * 8 + archived + pinned + unread]++
+      }
+    }
+
+    assertThat(counters().toList(), `is`(expected.toList()))
+  }
+
+  companion object {
+    private const val COUNTER_KEYS = 32
+
+    private const val OPEN = 1
+    private const val INVITED = 2
+    private const val LEFT = 3
+
+    private const val FLAG_ARCHIVED = 4
+    private const val FLAG_PINNED = 2
+    private const val FLAG_UNREAD = 1
+
+    private val READ = ThreadDatabase.ReadStatus.READ.serialize()
+    private val UNREAD = ThreadDatabase.ReadStatus.UNREAD.serialize()
+
+    private val OPEN_MODES = setOf(
+      GroupDatabase.GROUP_MODE_JOIN_ACCEPTED,
+      GroupDatabase.GROUP_MODE_LINKJOIN_ACCEPTED,
+      GroupDatabase.GROUP_MODE_GEOBASED_JOIN,
+      GroupDatabase.GROUP_MODE_JOIN_SYNCED,
+      GroupDatabase.GROUP_MODE_INVITATION_JOIN_ACCEPTED,
+      GroupDatabase.GROUP_MODE_MAKE_NOT_CONFIRMED,
+      GroupDatabase.GROUP_MODE_LEAVE_NOT_CONFIRMED
+    )
+    private val INVITED_MODES = setOf(
+      GroupDatabase.GROUP_MODE_INVITATION,
+      GroupDatabase.GROUP_MODE_GEOBASED_INVITE,
+      GroupDatabase.GROUP_MODE_LINKJOIN_REQUESTING
+    )
+    private val LEFT_MODES = setOf(
+      GroupDatabase.GROUP_MODE_LEAVE_ACCEPTED,
+      GroupDatabase.GROUP_MODE_LEAVE_GEO_BASED,
+      GroupDatabase.GROUP_MODE_INVITATION_REJECTED,
+      GroupDatabase.GROUP_MODE_LEAVE_REJECTED,
+      GroupDatabase.GROUP_MODE_BLOCKED,
+      GroupDatabase.GROUP_MODE_LINKJOIN_REJECTED
+    )
+  }
+}
@@ -97,6 +97,7 @@ import org.whispersystems.signalservice.api.push.ACI;
 import org.whispersystems.signalservice.api.push.PNI;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
 
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -114,6 +115,8 @@ import io.reactivex.rxjava3.plugins.RxJavaPlugins;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import rxdogtag2.RxDogTag;
 
+import static org.thoughtcrime.securesms.util.AppStartup.after;//AA+
+
 
 /**
  * Will be called once when the TextSecure process is created.
@@ -178,17 +181,17 @@ public class ApplicationContext extends androidx.multidex.MultiDexApplication im
                               initializeLogging();
                               Log.i(TAG, "onCreate()");
                             })
+              .addBlockingInBackground("ring-rtc", after("logging"), this::initializeRingRtc)//AA+ off the main thread
               .addBlocking("crash-handling", this::initializeCrashHandling)
               .addBlocking("rx-init", this::initializeRx)
               .addBlocking("event-bus", () -> EventBus.builder().logNoSubscriberMessages(false).installDefaultEventBus())
               .addBlocking("app-dependencies", this::initializeAppDependencies)
-              .addBlocking("notification-channels", () -> NotificationChannels.create(this))
+              .addBlockingInBackground("notification-channels", after("app-dependencies"), () -> NotificationChannels.create(this))//AA+ off the main thread
               .addBlocking("first-launch", this::initializeFirstEverAppLaunch)
               .addBlocking("app-migrations", this::initializeApplicationMigrations)
-              .addBlocking("ring-rtc", this::initializeRingRtc)
               .addBlocking("mark-registration", () -> RegistrationUtil.maybeMarkRegistrationComplete(this))
               .addBlocking("lifecycle-observer", () -> ApplicationDependencies.getAppForegroundObserver().addListener(this))
-              .addBlocking("message-retriever", this::initializeMessageRetrieval)
+              .addBlocking("message-retriever", after("notification-channels"), this::initializeMessageRetrieval)//AA+ dependency
               .addBlocking("dynamic-theme", () -> DynamicTheme.setDefaultDayNightMode(this))
               .addBlocking("vector-compat", () -> {
                               if (Build.VERSION.SDK_INT < 21) {
@@ -201,7 +204,7 @@ public class ApplicationContext extends androidx.multidex.MultiDexApplication im
                                 Conscrypt.setUseEngineSocketByDefault(true);
                               }
                             })
-              .addBlocking("blob-provider", this::initializeBlobProvider)
+              .addBlockingInBackground("blob-provider", after("app-dependencies"), this::initializeBlobProvider)//AA+ off the main thread
               .addBlocking("feature-flags", FeatureFlags::init)
               .addBlocking("glide", () -> SignalGlideModule.setRegisterGlideComponents(new SignalGlideComponents()))
               .addNonBlocking(this::cleanAvatarStorage)
@@ -346,6 +349,9 @@ public class ApplicationContext extends androidx.multidex.MultiDexApplication im
   private void initializeLogging() {
     persistentLogger = new PersistentLogger(this);
     org.signal.core.util.logging.Log.initialize(FeatureFlags::internalUser, new AndroidLogger(), persistentLogger);
+    //AA+ per-frame logging on the message ingestion path
+    org.signal.core.util.logging.Log.setRateLimit(org.signal.core.util.logging.Log.tag(WebSocketConnection.class), 20);
+    org.signal.core.util.logging.Log.setRateLimit(org.signal.core.util.logging.Log.tag(UfsrvCommandParser.class), 20);
 
     SignalProtocolLoggerProvider.setProvider(new CustomSignalProtocolLogger());
 
@@ -22,7 +22,9 @@ import android.location.Address;
 import android.location.Location;
 import android.text.TextUtils;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.unfacd.android.data.json.JsonEntityPresenceInformationList;
 import com.unfacd.android.data.json.JsonEntityStateSync;
 import com.unfacd.android.jobs.LocationRefreshJob;
 import com.unfacd.android.location.JsonEntityLocation;
@@ -32,6 +34,9 @@ import com.unfacd.android.ufsrvcmd.events.LocationV1;
 import com.unfacd.android.ufsrvcmd.events.LocationV1SystemEvent;
 import com.unfacd.android.ufsrvcmd.events.StateSyncV1SystemEvent;
 import com.unfacd.android.ufsrvuid.UfsrvUid;
+import com.unfacd.android.utils.PresenceTable;
+import com.unfacd.android.utils.StateSyncVersions;
+import com.unfacd.android.utils.StateSyncVersions.Section;
 import com.unfacd.android.utils.UfsrvFenceUtils;
 import com.unfacd.android.utils.UserPrefsUtils;
 
@@ -108,13 +113,25 @@ public class UfsrvCommandParser
       put("/V1/Fence", (wsm) -> {
       });
 
+      //AA+ presence deltas for users sharing presence with us, same "presence" list as returned by the sync endpoint
+      put("/V1/Presence", (wsm) -> {
+        try {
+          JsonEntityPresenceInformationList presence = JsonUtil.fromJson(wsm.getRequest().getPath(), JsonEntityPresenceInformationList.class);
+          if (presence.getSharingList() != null) PresenceTable.getInstance().applyPushed(presence.getSharingList());
+        } catch (IOException ex) {
+          Log.d(TAG, ex.getMessage());
+        }
+      });
+
       put("/v1/StateSync", (wsm) -> {
         Context context = ApplicationContext.getInstance();
 
         try {
-          JsonEntityStateSync state = JsonUtil.fromJson(wsm.getRequest().getPath(), JsonEntityStateSync.class);
+          JsonNode            stateTree = JsonUtil.fromJson(wsm.getRequest().getPath(), JsonNode.class);
+          JsonEntityStateSync state     = JsonUtil.fromJson(stateTree, JsonEntityStateSync.class);
           if (state.getSessionState() >= 1) {
              Log.e(TAG, String.format(Locale. getDefault(), "/v1/StateSync: ERROR SessionState is set to: '%d', cookie:'%s'", state.getSessionState(), TextSecurePreferences.getUfsrvCookie(context)));
+            StateSyncVersions.reset();
             ApplicationContext.getInstance().getUfsrvcmdEvents().postSticky(new StateSyncV1SystemEvent(UfsrvEventsNames.EVENT_STATESYNC, state));
             return;
           }
@@ -189,10 +206,29 @@ public class UfsrvCommandParser
             }
           }
 
-          UfsrvFenceUtils.synchroniseFenceList(state.getFences());
-          UfsrvFenceUtils.synchroniseInvitedFenceList(state.getFencesInvited());
-          UserPrefsUtils.synchroniseUserPreferences(state.getUserPrefs());
-          UserPrefsUtils.synchroniseSharedLists(Optional.ofNullable(state.getShared_lists()));
+          StateSyncVersions.Token fencesToken = StateSyncVersions.checkSection(stateTree, Section.FENCES, state.getStateVersion(Section.FENCES.getKey()));
+          if (fencesToken != null && state.getFences() != null) {
+            UfsrvFenceUtils.synchroniseFenceList(state.getFences());
+            StateSyncVersions.markApplied(Section.FENCES, fencesToken);
+          }
+
+          StateSyncVersions.Token invitedToken = StateSyncVersions.checkSection(stateTree, Section.FENCES_INVITED, state.getStateVersion(Section.FENCES_INVITED.getKey()));
+          if (invitedToken != null && state.getFencesInvited() != null) {
+            UfsrvFenceUtils.synchroniseInvitedFenceList(state.getFencesInvited());
+            StateSyncVersions.markApplied(Section.FENCES_INVITED, invitedToken);
+          }
+
+          StateSyncVersions.Token userPrefsToken = StateSyncVersions.checkSection(stateTree, Section.USER_PREFS, state.getStateVersion(Section.USER_PREFS.getKey()));
+          if (userPrefsToken != null && state.getUserPrefs() != null) {
+            UserPrefsUtils.synchroniseUserPreferences(state.getUserPrefs());
+            StateSyncVersions.markApplied(Section.USER_PREFS, userPrefsToken);
+          }
+
+          StateSyncVersions.Token sharedListsToken = StateSyncVersions.checkSection(stateTree, Section.SHARED_LISTS, state.getStateVersion(Section.SHARED_LISTS.getKey()));
+          if (sharedListsToken != null) {
+            UserPrefsUtils.synchroniseSharedLists(Optional.ofNullable(state.getShared_lists()));
+            StateSyncVersions.markApplied(Section.SHARED_LISTS, sharedListsToken);
+          }
 
           ApplicationContext.getInstance().getUfsrvcmdEvents().post(new FenceV1(UfsrvEventsNames.EVENT_STATESYNC, wsm));
         } catch (IOException ex) {
@@ -205,7 +241,7 @@ public class UfsrvCommandParser
   public void invokeUfsrvCommandHandler(WebSocketProtos.WebSocketMessage wsm) throws InvalidProtocolBufferException
   {
     String ufsrvCommand = wsm.getCommand();
-    Log.w(TAG, "invokeUfsrvCommandHandler: retrieving parser for command: '"+ufsrvCommand+"'...");
+    Log.w(TAG, () -> "invokeUfsrvCommandHandler: retrieving parser for command: '"+ufsrvCommand+"'...");
 
     CommandParser p = ufsrvCommandParserMap.get(ufsrvCommand);
 
@@ -23,6 +23,7 @@ import com.unfacd.android.location.JsonEntityLocation;
 
 
 import java.util.List;
+import java.util.Map;
 
 public class JsonEntityStateSync
 {
@@ -84,6 +85,10 @@ public class JsonEntityStateSync
   @JsonProperty
   private List<JsonEntitySharedList> shared_lists;
 
+  //section -> server's state version, where the server tracks one. Sections the client already holds at that version may be omitted
+  @JsonProperty("state_versions")
+  private Map<String, Long> stateVersions;
+
   public List<FenceDescriptor> getFences()
   {
     return fences;
@@ -147,6 +152,15 @@ public class JsonEntityStateSync
     return shared_lists;
   }
 
+  /**
+   * @return the server's version for the given section, or -1 if it didn't report one.
+   */
+  public long getStateVersion(String section)
+  {
+    Long version = stateVersions != null ? stateVersions.get(section) : null;
+    return version != null ? version : -1;
+  }
+
   public JsonEntityStateSync() {
   }
 
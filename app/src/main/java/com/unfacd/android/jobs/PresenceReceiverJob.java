@@ -24,9 +24,9 @@ import android.os.PowerManager;
 import com.unfacd.android.data.json.JsonEntityPresenceInformation;
 import com.unfacd.android.data.model.UserIdList;
 import com.unfacd.android.ufsrvuid.UfsrvUid;
+import com.unfacd.android.utils.PresenceTable;
 
 import org.signal.core.util.logging.Log;
-import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobmanager.Data;
@@ -39,12 +39,16 @@ import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+/**
+ * Full presence sync for everyone sharing presence with us. Presence normally arrives as deltas pushed over the
+ * websocket (see UfsrvCommandParser), so this only runs as an infrequent safety net. Results go through
+ * {@link PresenceTable}, so unchanged entries cost no database writes.
+ */
 public class PresenceReceiverJob extends BaseJob {
   private static final String KEY_UFSRVUID = "uid";
 
@@ -100,10 +104,10 @@ public class PresenceReceiverJob extends BaseJob {
     try {
       wakeLock.acquire(TimeUnit.SECONDS.toMillis(60));
       if (recipient == null) {
-        LinkedList<Long> sharingUserList = getUsersWithPresenceShared(context);
+        List<Long> sharingUserList = SignalDatabase.recipients().getPresenceSharedUfsrvIds();
         if (!sharingUserList.isEmpty()) {
           List<JsonEntityPresenceInformation> presenceList =  ApplicationDependencies.getSignalServiceAccountManager().getPresenceUpdate(new UserIdList(sharingUserList));
-          processPresenceInformation(context, presenceList);
+          if (presenceList != null) PresenceTable.getInstance().applySynced(presenceList);
         }
       } else {
         //fetch presence for specific user
@@ -123,51 +127,6 @@ public class PresenceReceiverJob extends BaseJob {
   public void onFailure() {}
 
 
-  /**
-   * @param contex
-   * @return list of users who have flagged to share their presence information with us
-   */
-  LinkedList<Long> getUsersWithPresenceShared (Context contex)
-  {
-    LinkedList<Long> sharingUsersList = new LinkedList<>();
-    RecipientDatabase recipientDatabase = SignalDatabase.recipients();
-    RecipientDatabase.PresenceSharedReader reader   = recipientDatabase.readerForPresenceShared(recipientDatabase.getPresenceShared());
-
-    Recipient recipient;
-
-    while ((recipient = reader.getNext()) != null) {
-      if (!recipient.isGroup()) {
-        sharingUsersList.add(recipient.getUfsrvId());
-      }
-    }
-
-    reader.close();
-    return sharingUsersList;
-  }
-
-  void processPresenceInformation (Context context, List<JsonEntityPresenceInformation> presenceInformationList)
-  {
-    Recipient recipient;
-    RecipientDatabase recipientDatabase = SignalDatabase.recipients();
-
-    for (JsonEntityPresenceInformation presenceInformation: presenceInformationList) {
-      switch (presenceInformation.getStatus()) {
-        case 1:
-          recipient = Recipient.live(new UfsrvUid(presenceInformation.getUfsrvuid()).toString()).get();
-          recipientDatabase.setPresenceInformation(recipient, String.format(Locale.getDefault(), "%d,%d", presenceInformation.getStatus(), presenceInformation.getServiced()));
-          break;
-
-        case 2:
-          recipient = Recipient.live(new UfsrvUid(presenceInformation.getUfsrvuid()).toString()).get();
-          recipientDatabase.setPresenceInformation(recipient, String.format(Locale.getDefault(),"%d,%d", presenceInformation.getStatus(), presenceInformation.getSuspended()));
-          break;
-
-        case 0:
-          break;
-      }
-    }
-  }
-
   void JsonFormatSharingList (LinkedList<Long> sharingUsersList)
   {
     if (sharingUsersList.size()>0)
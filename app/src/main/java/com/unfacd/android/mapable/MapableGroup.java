@@ -42,7 +42,15 @@ public class MapableGroup extends MapableThing
   public MapableGroup(long fid)
   {
     GroupDatabase.GroupRecord group = SignalDatabase.groups().getGroupRecordByFid(fid);
-    if (group!=null)  this.groupRecord  = group;
+    if (group!=null) {
+      this.groupRecord  = group;
+      setPosition(new LatLng(group.getLatitude(), group.getLongitude()));
+      setName(group.getTitle());
+    }
+
+    if (defaultContactPhoto == null) {
+      setAvatar(defaultGroupIcon);
+    }
   }
 
   public MapableGroup(FenceRecord fenceRecord)
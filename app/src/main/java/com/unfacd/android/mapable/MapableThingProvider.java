@@ -22,11 +22,15 @@ import android.content.Context;
 import android.graphics.Bitmap;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.FenceLocationDatabase.FenceLocation;
+import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.util.FutureTaskListener;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.SoftHashMap;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
@@ -68,6 +72,38 @@ public class MapableThingProvider
     return mapableGroup;
   }
 
+  /**
+   * Serves fences within the given bounds from the local fence index, without going to the network. Fences only known
+   * from the groups table are built from their group record. Performs database reads, so must not be called on the main
+   * thread.
+   */
+  static public List<MapableThing> getMapbleGroupsWithin(Context context, double south, double west, double north, double east)
+  {
+    List<FenceLocation> fenceLocations = SignalDatabase.fenceLocations().getFencesWithin(south, west, north, east);
+    List<MapableThing>  mapableThings  = new ArrayList<>(fenceLocations.size());
+
+    for (FenceLocation fenceLocation : fenceLocations) {
+      if (fenceLocation.getFenceRecord() != null) {
+        mapableThings.add(getMapbleGroup(context, fenceLocation.getFenceRecord()));
+        continue;
+      }
+
+      MapableThing mapableThingCached = mapableThingCache.get(fenceLocation.getFid());
+      if (mapableThingCached != null) {
+        mapableThings.add(mapableThingCached);
+        continue;
+      }
+
+      MapableGroup mapableGroup = new MapableGroup(fenceLocation.getFid());
+      if (mapableGroup.getGroupRecord() == null) continue;
+
+      mapableThingCache.set(fenceLocation.getFid(), mapableGroup);
+      mapableThings.add(mapableGroup);
+    }
+
+    return mapableThings;
+  }
+
   static public Optional<MapableGroup> getMapbleGroup(long fid)
   {
     MapableThing mapableThingCached = mapableThingCache.get(fid);
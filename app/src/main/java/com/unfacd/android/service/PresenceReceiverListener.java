@@ -22,6 +22,7 @@ import android.content.Intent;
 
 import com.unfacd.android.ApplicationContext;
 import com.unfacd.android.jobs.PresenceReceiverJob;
+import com.unfacd.android.utils.PresenceTable;
 
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.service.PersistentAlarmManagerListener;
@@ -45,7 +46,9 @@ public class PresenceReceiverListener extends PersistentAlarmManagerListener
       ApplicationDependencies.getJobManager().add(new PresenceReceiverJob(null));
     }
 
-    long newTime = System.currentTimeMillis() + INTERVAL;
+    //AA once the server is seen pushing presence deltas the full sync is only a safety net for missed ones
+    long interval = PresenceTable.getInstance().isReceivingPushes() ? PresenceTable.PUSH_WINDOW_MILLIS : INTERVAL;
+    long newTime  = System.currentTimeMillis() + interval;
     TextSecurePreferences.setPresenceReceiveTime(context, newTime);
 
     return newTime;
@@ -17,30 +17,45 @@
 
 package com.unfacd.android.ufsrvuid;
 
-import android.text.TextUtils;
-
-import com.unfacd.android.utils.crockford32.Crockford32;
+import com.unfacd.android.utils.crockford32.Crockford32Fixed128;
 
 import org.signal.core.util.logging.Log;
 
 import java.io.Serializable;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
-import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+/**
+ * A ufsrv user id: a 128-bit value, held as two longs (most significant first), and exchanged either as its 16 raw
+ * bytes or as a 26-digit Crockford32 string.
+ *
+ * Prefer {@link #of(byte[])} and {@link #of(String)} on hot paths, as these return a shared instance for recently seen
+ * uids instead of decoding/encoding afresh.
+ */
 public final class UfsrvUid implements Serializable
 {
-  private String ufsrvUidEncoded;
-  private ByteBuffer ufsrvUidRaw;
+  private static final String TAG = Log.tag(UfsrvUid.class);
+
+  private final long   high;
+  private final long   low;
+  private final String ufsrvUidEncoded;
 
   final public static String UndefinedUfsrvUid  = "01000000000000000000000000";
   final public static String UndefinedUfsrvUidTruncated  = "0";
-  final public static int ufsrvUidEncodedLength = 26;
+  final public static int ufsrvUidEncodedLength = Crockford32Fixed128.ENCODED_LENGTH;
+
+  private static final long UNDEFINED_HIGH = 1L << 56;
+  private static final long UNDEFINED_LOW  = 0;
+
+  //direct-mapped: a colliding uid simply replaces the previous occupant of the slot. Entries are immutable, so racing
+  //writers are harmless. The second table indexes the same instances by their encoded form, so that string lookups
+  //don't need to decode
+  private static final int        INTERN_CACHE_SIZE  = 1024;
+  private static final UfsrvUid[] internCache        = new UfsrvUid[INTERN_CACHE_SIZE];
+  private static final UfsrvUid[] internCacheEncoded = new UfsrvUid[INTERN_CACHE_SIZE];
 
   public final static UfsrvUid undefinedUfsrvUid;
   static {
@@ -48,117 +63,157 @@ public final class UfsrvUid implements Serializable
   }
 
   public UfsrvUid (String ufsrvUidEncoded) {
-    this.ufsrvUidEncoded = ufsrvUidEncoded;
+    long    high;
+    long    low;
+    String  encoded = ufsrvUidEncoded;
 
     try {
-      byte[] ufsrvUidBytes = Crockford32.decode(ufsrvUidEncoded).toByteArray();
-      //This is necessary as BigInteger.toByteArray() returns sign bit, as a whole extra byte, in the most significant
-      //location, which is always 0 for positive numbers
-      if (ufsrvUidBytes[0] == 0) {
-        byte[] tmp = Arrays.copyOfRange(ufsrvUidBytes, 1, ufsrvUidBytes.length); //keep it at 16bytes
-        ufsrvUidBytes = tmp;
-      }
-      this.ufsrvUidRaw = ByteBuffer.wrap(ufsrvUidBytes).order(ByteOrder.LITTLE_ENDIAN);
+      high = Crockford32Fixed128.decodeHigh(ufsrvUidEncoded);
+      low  = Crockford32Fixed128.decodeLow(ufsrvUidEncoded);
     } catch (NumberFormatException x) {
-      Log.e("UfsrvUid", String.format("UfsrvUid ('%s'):  Bad encoded UfrsvUid provided...", ufsrvUidEncoded));
-      this.ufsrvUidEncoded = UndefinedUfsrvUid;
+      Log.e(TAG, String.format("UfsrvUid ('%s'):  Bad encoded UfrsvUid provided...", ufsrvUidEncoded));
+      high    = UNDEFINED_HIGH;
+      low     = UNDEFINED_LOW;
+      encoded = UndefinedUfsrvUid;
     }
 
-//    Log.d("UfsrvUid", String.format("UfsrvUid:  Rencoded: '%s'...", Crockford32.encode(new BigInteger(this.ufsrvUidRaw.array()))));
+    this.high            = high;
+    this.low             = low;
+    this.ufsrvUidEncoded = encoded;
   }
 
   public UfsrvUid (byte[] ufsrvUidBytes) {
+    this(highOf(ufsrvUidBytes), lowOf(ufsrvUidBytes));
+  }
+
+  private UfsrvUid (long high, long low) {
+    this.high            = high;
+    this.low             = low;
+    this.ufsrvUidEncoded = Crockford32Fixed128.encode(high, low);
+  }
+
+  /**
+   * Same as {@link #UfsrvUid(byte[])}, but returns a shared instance if the uid has been seen recently.
+   */
+  public static @NonNull UfsrvUid of (@NonNull byte[] ufsrvUidBytes) {
+    return intern(highOf(ufsrvUidBytes), lowOf(ufsrvUidBytes));
+  }
+
+  /**
+   * Same as {@link #UfsrvUid(String)}, but returns a shared instance if the uid has been seen recently. Only canonical
+   * encodings are shared; anything else is decoded as given, so that {@link #toString()} still returns the input.
+   */
+  public static @NonNull UfsrvUid of (@NonNull String ufsrvUidEncoded) {
+    int      slot   = encodedSlot(ufsrvUidEncoded);
+    UfsrvUid cached = internCacheEncoded[slot];
+
+    if (cached != null && cached.ufsrvUidEncoded.equals(ufsrvUidEncoded)) return cached;
+
+    if (!Crockford32Fixed128.isCanonical(ufsrvUidEncoded)) return new UfsrvUid(ufsrvUidEncoded);
+
+    UfsrvUid ufsrvUid = intern(Crockford32Fixed128.canonicalHigh(ufsrvUidEncoded), Crockford32Fixed128.canonicalLow(ufsrvUidEncoded));
+    internCacheEncoded[slot] = ufsrvUid;
+
+    return ufsrvUid;
+  }
+
+  private static @NonNull UfsrvUid intern (long high, long low) {
+    int      slot   = internSlot(high, low);
+    UfsrvUid cached = internCache[slot];
+
+    if (cached != null && cached.high == high && cached.low == low) return cached;
+
+    UfsrvUid ufsrvUid = new UfsrvUid(high, low);
+    internCache[slot] = ufsrvUid;
+
+    return ufsrvUid;
+  }
+
+  private static int encodedSlot (String ufsrvUidEncoded) {
+    int h = ufsrvUidEncoded.hashCode();
+    return (h ^ (h >>> 16)) & (INTERN_CACHE_SIZE - 1);
+  }
+
+  private static int internSlot (long high, long low) {
+    long h = high * 0x9E3779B97F4A7C15L ^ low;
+    h ^= h >>> 32;
+    h *= 0x9E3779B97F4A7C15L;
+
+    return (int) (h >>> 32) & (INTERN_CACHE_SIZE - 1);
+  }
+
+  /**
+   * Accepts the raw 16 bytes, optionally prefixed with a zero sign byte as produced by BigInteger. An empty array denotes
+   * the undefined uid.
+   */
+  private static void checkLength (byte[] ufsrvUidBytes) {
     int byteArrayLength = ufsrvUidBytes.length;
-    if (byteArrayLength < 16 || byteArrayLength > 17) {
-      if (ufsrvUidBytes.length == 0) {
-        ufsrvUidBytes = UfsrvUid.DecodeUfsrvUid(UndefinedUfsrvUid);
-      } else {
-        throw new AssertionError("Byte array for UfsrvUid invalid, or zero-size: " + byteArrayLength);
-      }
+    if ((byteArrayLength < 16 || byteArrayLength > 17) && byteArrayLength != 0) {
+      throw new AssertionError("Byte array for UfsrvUid invalid, or zero-size: " + byteArrayLength);
     }
+  }
 
-    if (byteArrayLength == 16) {
-      //add two's complement for BigInteger and leave first byte as '0' for signedness (ie always positive)
-      byte[] tmp = new byte[byteArrayLength +1];
-      System.arraycopy(ufsrvUidBytes, 0, tmp, 1, byteArrayLength);
-      this.ufsrvUidEncoded = Crockford32.encode(new BigInteger(tmp));
-    } else {
-      this.ufsrvUidEncoded = Crockford32.encode(new BigInteger(ufsrvUidBytes));
-    }
+  private static long highOf (byte[] ufsrvUidBytes) {
+    checkLength(ufsrvUidBytes);
+    if (ufsrvUidBytes.length == 0) return UNDEFINED_HIGH;
+
+    return bigEndianLong(ufsrvUidBytes, ufsrvUidBytes.length - 16);
+  }
 
-    if (this.ufsrvUidEncoded.length() == ufsrvUidEncodedLength - 1) this.ufsrvUidEncoded = "0" + this.ufsrvUidEncoded; //this is crude, BigInt strips leading '0'
+  private static long lowOf (byte[] ufsrvUidBytes) {
+    checkLength(ufsrvUidBytes);
+    if (ufsrvUidBytes.length == 0) return UNDEFINED_LOW;
 
-    this.ufsrvUidRaw = ByteBuffer.wrap(ufsrvUidBytes).order(ByteOrder.LITTLE_ENDIAN);
+    return bigEndianLong(ufsrvUidBytes, ufsrvUidBytes.length - 8);
   }
 
-  public long getUfsrvSequenceId () {
-    if (!this.ufsrvUidRaw.hasArray()) {
-      throw new IllegalStateException("ufsrvUidRaw undefined");
-    }
+  private static long bigEndianLong (byte[] b, int offset) {
+    return ((long) b[offset] << 56)
+            | ((long) b[offset + 1] & 0xff) << 48
+            | ((long) b[offset + 2] & 0xff) << 40
+            | ((long) b[offset + 3] & 0xff) << 32
+            | ((long) b[offset + 4] & 0xff) << 24
+            | ((long) b[offset + 5] & 0xff) << 16
+            | ((long) b[offset + 6] & 0xff) << 8
+            | ((long) b[offset + 7] & 0xff);
+  }
 
-    return toLong2();
-//    byte[] sequenceId = new byte[8];
-//    this.ufsrvUidRaw.position(8);
-//    this.ufsrvUidRaw.get(sequenceId, 0, 8);
-//    this.ufsrvUidRaw.rewind();
-//
-//    return ByteBuffer.wrap(sequenceId).order(ByteOrder.LITTLE_ENDIAN).getLong();
+  /**
+   * The sequence id occupies the last 8 bytes of the raw uid, in little-endian order.
+   */
+  public long getUfsrvSequenceId () {
+    return Long.reverseBytes(low);
   }
 
   private static final String    HEXES    = "0123456789ABCDEF";
 
   public String toHex() {
-    byte[] raw = this.ufsrvUidRaw.array();
-    final StringBuilder hex = new StringBuilder(2 * raw.length);
-    for (final byte b : raw) {
-      hex.append(HEXES.charAt((b & 0xF0) >> 4)).append(HEXES.charAt((b & 0x0F)));
-    }
+    final StringBuilder hex = new StringBuilder(32);
+    for (int shift = 60; shift >= 0; shift -= 4) hex.append(HEXES.charAt((int) (high >>> shift) & 0x0F));
+    for (int shift = 60; shift >= 0; shift -= 4) hex.append(HEXES.charAt((int) (low >>> shift) & 0x0F));
     return hex.toString();
   }
 
   public  final long toLong (int offset, int len)
   {
-    byte[] byteArray = this.ufsrvUidRaw.array();
     long val = 0;
     len = Math.min(len, 8);
     for (int i = (len - 1); i >= 0; i--)
     {
       val <<= 8;
-      val |= (byteArray [offset + i] & 0x00FF);
+      val |= byteAt(offset + i);
     }
     return val;
   }
 
   public  final long toLong2 ()
   {
-    byte[] b = this.ufsrvUidRaw.array();
-    long   l = 0;
-    try {
-      l =
-//            ((long) b[15] << 56)
-//            | ((long) b[14] & 0xff) << 48
-//            | ((long) b[13] & 0xff) << 40
-//            | ((long) b[12] & 0xff) << 32
-//            | ((long) b[11] & 0xff) << 24
-//            | ((long) b[10] & 0xff) << 16
-//            | ((long) b[9] & 0xff) << 8
-//            | ((long) b[8] & 0xff);
-
-              ((long) b[8] & 0xff)
-                      | ((long) b[9] & 0xff) << 8
-                      | ((long) b[10] & 0xff) << 16
-                      | ((long) b[11] & 0xff) << 24
-                      | ((long) b[12] & 0xff) << 32
-                      | ((long) b[13] & 0xff) << 40
-                      | ((long) b[14] & 0xff) << 48
-                      | ((long) b[15] << 56);
-
-      return l;
-    } catch (ArrayIndexOutOfBoundsException ex) {
-      Log.d("UfsrvUid", ex.getMessage());
-    }
+    return getUfsrvSequenceId();
+  }
 
-    return l;
+  private int byteAt (int index) {
+    long word = index < 8 ? high : low;
+    return (int) (word >>> (8 * (7 - (index & 7)))) & 0xFF;
   }
 
   public byte[] fromLong (long lng)
@@ -175,54 +230,53 @@ public final class UfsrvUid implements Serializable
     return b;
   }
 
+  long getHigh () {
+    return high;
+  }
+
+  long getLow () {
+    return low;
+  }
+
   public String getUfsrvUidEncoded () {
     return this.ufsrvUidEncoded;
   }
 
+  /**
+   * @return the 16 raw bytes, freshly allocated on each call.
+   */
+  public byte[] toBytes () {
+    byte[] bytes = new byte[16];
+    for (int i = 0; i < 16; i++) bytes[i] = (byte) byteAt(i);
+    return bytes;
+  }
+
+  /**
+   * @return the 16 raw bytes wrapped in a little-endian buffer, freshly allocated on each call.
+   */
   public ByteBuffer getUfsrvUidRaw () {
-    return this.ufsrvUidRaw;
+    return ByteBuffer.wrap(toBytes()).order(ByteOrder.LITTLE_ENDIAN);
   }
 
   public static long DecodeUfsrvSequenceId (byte[] ufsrvUidRaw) {
-    int byteArrayLength = ufsrvUidRaw.length;
-    if (byteArrayLength<16 || byteArrayLength>17) {
-      if (ufsrvUidRaw.length==0) {
-        ufsrvUidRaw = UfsrvUid.DecodeUfsrvUid(UndefinedUfsrvUid);
-      } else {
-        throw new AssertionError("Byte array for UfsrvUid invalid, or zero-size: " + byteArrayLength);
-      }
-    }
-
-    ByteBuffer ufsrvUidByteBuffer = ByteBuffer.wrap(ufsrvUidRaw).order(ByteOrder.LITTLE_ENDIAN);
-    byte[] sequenceId = new byte[8];
-
-    ufsrvUidByteBuffer.position(8);
-    ufsrvUidByteBuffer.get(sequenceId, 0, 8);
-
-    return ByteBuffer.wrap(sequenceId).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    return Long.reverseBytes(lowOf(ufsrvUidRaw));
   }
 
   public static String EncodedfromSerialisedBytes (byte[] ufsrvUidRaw)
   {
-    return new UfsrvUid(ufsrvUidRaw).toString();
+    return UfsrvUid.of(ufsrvUidRaw).toString();
   }
 
   public static UfsrvUid fromEncoded (String ufsrvUidEncoded)
   {
-    if (ufsrvUidEncoded != null) return new UfsrvUid(ufsrvUidEncoded);
+    if (ufsrvUidEncoded != null) return UfsrvUid.of(ufsrvUidEncoded);
 
     return null;
   }
 
   public static byte[] DecodeUfsrvUid (String ufsrvUidEncoded) {
     try {
-      byte[] ufsrvUidBytes = Crockford32.decode(ufsrvUidEncoded).toByteArray();
-      if (ufsrvUidBytes[0] == 0) {
-        byte[] tmp = Arrays.copyOfRange(ufsrvUidBytes, 1, ufsrvUidBytes.length);
-        ufsrvUidBytes = tmp;
-      }
-
-      return ufsrvUidBytes;
+      return new UfsrvUid(Crockford32Fixed128.decodeHigh(ufsrvUidEncoded), Crockford32Fixed128.decodeLow(ufsrvUidEncoded)).toBytes();
     } catch (NumberFormatException ex) {
       throw new UfsrvUidEncodingError(ufsrvUidEncoded);
     }
@@ -235,18 +289,32 @@ public final class UfsrvUid implements Serializable
 
   public boolean isUndefined ()
   {
-    return this.ufsrvUidEncoded.equals(UfsrvUid.UndefinedUfsrvUidTruncated) || this.ufsrvUidEncoded.equals(UfsrvUid.UndefinedUfsrvUid);
+    return (this.high == UNDEFINED_HIGH && this.low == UNDEFINED_LOW) || (this.high == 0 && this.low == 0);
   }
 
   public String toString () {
-    if (TextUtils.isEmpty(this.ufsrvUidEncoded)) return UndefinedUfsrvUid;
-    else return this.ufsrvUidEncoded;
+    return this.ufsrvUidEncoded;
+  }
+
+  @Override
+  public boolean equals (Object o) {
+    if (this == o) return true;
+    if (!(o instanceof UfsrvUid)) return false;
+
+    UfsrvUid other = (UfsrvUid) o;
+    return high == other.high && low == other.low;
+  }
+
+  @Override
+  public int hashCode () {
+    return Long.hashCode(high) * 31 + Long.hashCode(low);
   }
 
+  /**
+   * For repeated tests against the same list, parse it once into a {@link UfsrvUidMemberSet} instead.
+   */
   public static boolean serializedListContains(@NonNull String serialized, @NonNull String ufsrvUid) {
-    return Pattern.compile("\\b" + ufsrvUid + "\\b")
-            .matcher(serialized)
-            .find();
+    return UfsrvUidMemberSet.serializedListContains(serialized, ufsrvUid);
   }
 
   public static class UfsrvUidEncodingError extends AssertionError {
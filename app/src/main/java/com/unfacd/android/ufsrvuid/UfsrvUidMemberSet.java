@@ -0,0 +1,171 @@
+/**
+ * Copyright (C) 2015-2019 unfacd works
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.unfacd.android.ufsrvuid;
+
+import com.unfacd.android.utils.crockford32.Crockford32Fixed128;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable set of ufsrvuids, parsed once from a group's serialized member list, for repeated membership tests.
+ * Members are held as sorted 128-bit values, so lookups are a binary search over a flat long[]; entries which aren't
+ * valid ufsrvuids are kept aside as strings and matched exactly.
+ */
+public final class UfsrvUidMemberSet
+{
+  public static final UfsrvUidMemberSet EMPTY = new UfsrvUidMemberSet(new long[0], new String[0]);
+
+  private final long[]   uids;   //(high, low) pairs in ascending order
+  private final String[] others; //sorted
+
+  private UfsrvUidMemberSet(long[] uids, String[] others)
+  {
+    this.uids   = uids;
+    this.others = others;
+  }
+
+  public static @NonNull UfsrvUidMemberSet fromSerializedList(@Nullable String serialized, char delimiter)
+  {
+    if (serialized == null || serialized.isEmpty()) return EMPTY;
+
+    List<String> tokens = new ArrayList<>();
+    int          start  = 0;
+
+    for (int i = 0; i <= serialized.length(); i++) {
+      if (i == serialized.length() || serialized.charAt(i) == delimiter) {
+        if (i > start) tokens.add(serialized.substring(start, i));
+        start = i + 1;
+      }
+    }
+
+    return fromTokens(tokens);
+  }
+
+  public static @NonNull UfsrvUidMemberSet fromTokens(@NonNull List<String> tokens)
+  {
+    if (tokens.isEmpty()) return EMPTY;
+
+    long[][]     pairs  = new long[tokens.size()][];
+    int          count  = 0;
+    List<String> others = new ArrayList<>(0);
+
+    for (String token : tokens) {
+      if (Crockford32Fixed128.isCanonical(token)) {
+        pairs[count++] = new long[] { Crockford32Fixed128.canonicalHigh(token), Crockford32Fixed128.canonicalLow(token) };
+      } else {
+        others.add(token);
+      }
+    }
+
+    Arrays.sort(pairs, 0, count, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+    long[] uids   = new long[count * 2];
+    int    unique = 0;
+
+    for (int i = 0; i < count; i++) {
+      if (unique > 0 && uids[unique * 2 - 2] == pairs[i][0] && uids[unique * 2 - 1] == pairs[i][1]) continue;
+
+      uids[unique * 2]     = pairs[i][0];
+      uids[unique * 2 + 1] = pairs[i][1];
+      unique++;
+    }
+
+    Collections.sort(others);
+
+    return new UfsrvUidMemberSet(Arrays.copyOf(uids, unique * 2), others.toArray(new String[0]));
+  }
+
+  public boolean contains(@NonNull UfsrvUid ufsrvUid)
+  {
+    return indexOf(ufsrvUid.getHigh(), ufsrvUid.getLow()) >= 0;
+  }
+
+  public boolean contains(@Nullable String ufsrvUid)
+  {
+    if (ufsrvUid == null) return false;
+
+    if (Crockford32Fixed128.isCanonical(ufsrvUid)) {
+      return indexOf(Crockford32Fixed128.canonicalHigh(ufsrvUid), Crockford32Fixed128.canonicalLow(ufsrvUid)) >= 0;
+    }
+
+    return Arrays.binarySearch(others, ufsrvUid) >= 0;
+  }
+
+  public int size()
+  {
+    return uids.length / 2 + others.length;
+  }
+
+  public boolean isEmpty()
+  {
+    return size() == 0;
+  }
+
+  private int indexOf(long high, long low)
+  {
+    int lo = 0;
+    int hi = uids.length / 2 - 1;
+
+    while (lo <= hi) {
+      int  mid     = (lo + hi) >>> 1;
+      long midHigh = uids[mid * 2];
+      long midLow  = uids[mid * 2 + 1];
+      int  cmp     = midHigh != high ? Long.compare(midHigh, high) : Long.compare(midLow, low);
+
+      if      (cmp < 0) lo = mid + 1;
+      else if (cmp > 0) hi = mid - 1;
+      else              return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Regex-free equivalent of matching {@code "\\b" + token + "\\b"} against a serialized list: true if token occurs in
+   * serialized, bounded on either side by a non-word character or the ends of the string. Doesn't allocate, so is
+   * suited to one-off tests against rows as they're read, where parsing the whole list would cost more than it saves.
+   */
+  public static boolean serializedListContains(@NonNull String serialized, @NonNull String token)
+  {
+    int length = token.length();
+    if (length == 0) return false;
+
+    for (int from = 0; ; ) {
+      int index = serialized.indexOf(token, from);
+      if (index < 0) return false;
+
+      int end = index + length;
+      if ((index == 0 || !isWordChar(serialized.charAt(index - 1))) && (end == serialized.length() || !isWordChar(serialized.charAt(end)))) {
+        return true;
+      }
+
+      from = index + 1;
+    }
+  }
+
+  private static boolean isWordChar(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+  }
+}
@@ -73,15 +73,18 @@ import com.unfacd.android.mapable.MapableGroup;
 import com.unfacd.android.mapable.MapableThing;
 import com.unfacd.android.mapable.MapableThingProvider;
 import com.unfacd.android.ui.components.CollapsingFenceMap.ItemPagerAdapter;
+import com.unfacd.android.ui.components.CollapsingFenceMap.search.FenceSearchController;
 import com.unfacd.android.ui.components.CollapsingFenceMap.search.FenceSearchResultSuggestion;
 import com.unfacd.android.ui.components.MultiDrawable;
 import com.unfacd.android.utils.FencesNearByReceiver;
 import com.unfacd.android.utils.IntentServiceGetFencesNearBy;
-import com.unfacd.android.utils.IntentServiceReceiver;
-import com.unfacd.android.utils.IntentServiceSearchFences;
 
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.FenceLocationDatabase;
 import org.thoughtcrime.securesms.database.GroupDatabase;
+import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.mms.GlideApp;
 import org.thoughtcrime.securesms.permissions.Permissions;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -89,12 +92,12 @@ import org.whispersystems.signalservice.internal.push.SignalServiceProtos;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
@@ -115,12 +118,15 @@ public class FenceMapActivity extends     AppCompatActivity
 {
   private static final String TAG = Log.tag(FenceMapActivity.class);
 
+  private static final int MAX_TILE_REFRESHES = 9;//AA+ per camera move, nearest the centre first
+
   private FloatingActionButton fab;
   private FencesNearByReceiver fencesNearByReceiver;
-  private IntentServiceReceiver fencesSearchReceiver;
+  private FenceSearchController fenceSearchController;
   private SupportMapFragment mMapFragment;
   private GoogleMap mMap;
   private ClusterManager<MapableThing> mClusterManager;
+  private final Map<Long, MapableThing> mapableThingsByFid = new HashMap<>(); //AA+ what's currently on the cluster manager
   private LatLng  mPosition;
   private float mZoom;
   private CameraPosition cameraPosition;
@@ -165,7 +171,14 @@ public class FenceMapActivity extends     AppCompatActivity
     initialiseSearchResources();
 
     setupFencesNearByServiceReceiver();
-    setupFencesSearchServiceReceiver();
+    setupFenceSearchController();
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+
+    if (fenceSearchController != null) fenceSearchController.cancel();
   }
 
   @Override
@@ -250,27 +263,20 @@ public class FenceMapActivity extends     AppCompatActivity
     });
   }
 
-  public void setupFencesSearchServiceReceiver() {
-    fencesSearchReceiver = new IntentServiceReceiver(new Handler(Looper.getMainLooper()));
+  public void setupFenceSearchController() {
+    fenceSearchController = new FenceSearchController(new FenceSearchController.Listener() {
+      @Override
+      public void onFencesFound(@NonNull String query, @NonNull SignalServiceProtos.FencesSearch fencesSearch) {
+        List<FenceSearchResultSuggestion> searchResults=adaptSearchResults(fencesSearch);
+        mSearchView.swapSuggestions(searchResults);
+        mSearchView.hideProgress();
+      }
 
-    fencesSearchReceiver.setReceiver((resultCode, resultData) -> {
-        if (resultCode == IntentServiceSearchFences.RESULT_CODE) {
-          byte[] fencesSearchyRaw = resultData.getByteArray(IntentServiceSearchFences.RESULT_RAW_RESPONSE_EXTRA);
-          if (fencesSearchyRaw != null) {
-            try {
-              SignalServiceProtos.FencesSearch fencesSearch = SignalServiceProtos.FencesSearch.parseFrom(fencesSearchyRaw);
-              List<FenceSearchResultSuggestion> searchResults=adaptSearchResults(fencesSearch);
-              mSearchView.swapSuggestions(searchResults);
-              mSearchView.hideProgress();
-            } catch (InvalidProtocolBufferException ex) {
-              Log.d(TAG, "onReceiveResult: "+ex.getMessage());
-            }
-          } else {
-            Log.e(TAG, String.format("onReceiveResult: received null object"));
-          }
-        } else if (resultCode == IntentServiceGetFencesNearBy.EMPTYSET_CODE) {
-          Log.e(TAG, String.format("onReceiveResult: received EMPTY SET"));
-        }
+      @Override
+      public void onSearchFailed(@NonNull String query) {
+        Log.w(TAG, "onSearchFailed: search request failed");
+        mSearchView.hideProgress();
+      }
     });
   }
 
@@ -290,19 +296,29 @@ public class FenceMapActivity extends     AppCompatActivity
     TextSecurePreferences.setFenceMapLastPositionLong(FenceMapActivity.this, (float)updatedLatLng.longitude);
     TextSecurePreferences.setFenceMapLastPositionLat(FenceMapActivity.this, (float)updatedLatLng.latitude);
 
-    Timer timer = new Timer();
-    timer.schedule(new TimerTask() {
-      @Override
-      public void run() {
+    //AA+ serve what's already known for the visible bounds from the local index, and only ask the server about the tiles in view that are stale
+    final LatLngBounds bounds = mMap != null ? mMap.getProjection().getVisibleRegion().latLngBounds : null;
+
+    SignalExecutors.BOUNDED.execute(() -> {
+      List<MapableThing> mapableThings = bounds != null ? MapableThingProvider.getMapbleGroupsWithin(this, bounds.southwest.latitude, bounds.southwest.longitude, bounds.northeast.latitude, bounds.northeast.longitude)
+                                                        : new ArrayList<>();
+
+      ThreadUtil.runOnMain(() -> {
+        if (!isFinishing() && !isDestroyed()) addMarkers(mapableThings);
+      });
+
+      LatLng southWest = bounds != null ? bounds.southwest : updatedLatLng;
+      LatLng northEast = bounds != null ? bounds.northeast : updatedLatLng;
+
+      for (FenceLocationDatabase.Tile tile : SignalDatabase.fenceLocations().getStaleTiles(southWest.latitude, southWest.longitude, northEast.latitude, northEast.longitude, MAX_TILE_REFRESHES)) {
         Intent intent = new Intent((FenceMapActivity.this), IntentServiceGetFencesNearBy.class);
-        intent.putExtra(IntentServiceGetFencesNearBy.LONGITUDE_EXTRA, updatedLatLng.longitude);
-        intent.putExtra(IntentServiceGetFencesNearBy.LATITUDE_EXTRA, updatedLatLng.latitude);
+        intent.putExtra(IntentServiceGetFencesNearBy.LONGITUDE_EXTRA, tile.getCentreLongitude());
+        intent.putExtra(IntentServiceGetFencesNearBy.LATITUDE_EXTRA, tile.getCentreLatitude());
 
         intent.putExtra(IntentServiceGetFencesNearBy.PENDING_RESULT_EXTRA, fencesNearByReceiver);//result carrier object
         FenceMapActivity.this.startService(intent);
       }
-
-    }, 1000);//one sec
+    });
 
     displayModel  = new BottomSheetDisplayModel(new LatLng(updatedLatLng.latitude, updatedLatLng.longitude));
     updateBottomSheetDisplayModel (null);
@@ -495,6 +511,7 @@ public class FenceMapActivity extends     AppCompatActivity
       public void onSearchTextChanged(String oldQuery, final String newQuery) {
 
         if (!oldQuery.equals("") && newQuery.equals("")) {
+          fenceSearchController.cancel();
           mSearchView.clearSuggestions();
         }
         else
@@ -503,18 +520,7 @@ public class FenceMapActivity extends     AppCompatActivity
           //it makes sense to do it when loading something in the background.
           // mSearchView.showProgress();
 
-          Timer timer = new Timer();
-          timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-              Intent intent = new Intent((FenceMapActivity.this), IntentServiceSearchFences.class);
-              intent.putExtra(IntentServiceSearchFences.SEARCHTEXT_EXTRA, newQuery);
-
-              intent.putExtra(IntentServiceGetFencesNearBy.PENDING_RESULT_EXTRA, fencesSearchReceiver);
-              FenceMapActivity.this.startService(intent);
-            }
-
-          }, 1000);//one sec
+          fenceSearchController.search(newQuery);
         }
 
         Log.d(TAG, "onSearchTextChanged()");
@@ -552,19 +558,7 @@ public class FenceMapActivity extends     AppCompatActivity
       @Override
       public void onSearchAction(String query) {
 //        mLastQuery = query;
-        final String userQuery=query;
-        Timer timer = new Timer();
-          timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-              Intent intent = new Intent((FenceMapActivity.this), IntentServiceSearchFences.class);
-              intent.putExtra(IntentServiceSearchFences.SEARCHTEXT_EXTRA, userQuery);
-
-              intent.putExtra(IntentServiceGetFencesNearBy.PENDING_RESULT_EXTRA, fencesSearchReceiver);//result carrier object
-              FenceMapActivity.this.startService(intent);
-            }
-
-          }, 1000);//one sec
+        fenceSearchController.search(query);
         Log.d(TAG, "onSearchAction()");
       }
     });
@@ -807,17 +801,44 @@ public class FenceMapActivity extends     AppCompatActivity
         //mMap.clear();
       }
 
+      List<MapableThing> mapableThings = new ArrayList<>(fencesNearBy.getFencesCount());
+
       for (SignalServiceProtos.FenceRecord fenceRecord: fencesNearBy.getFencesList()) {
         if (fenceRecord.hasAvatar())  Log.d(TAG, String.format(Locale.getDefault(), "loadMarkers (fid:'%d'): FOUND AVATAR '%s'...", fenceRecord.getFid(), fenceRecord.getAvatar().getId()));
 
-        MapableThing mapableThing = MapableThingProvider.getMapbleGroup(this, fenceRecord);
-        mClusterManager.addItem(mapableThing);
-        mapableThing.addListener(this);
+        mapableThings.add(MapableThingProvider.getMapbleGroup(this, fenceRecord));
       }
-      mClusterManager.cluster();
+
+      addMarkers(mapableThings);
     }
   }
 
+  //AA+ a fence already on the map is only replaced if a newer version of it came along
+  private void addMarkers(List<MapableThing> mapableThings)
+  {
+    if (mClusterManager == null || mapableThings.isEmpty()) return;
+
+    boolean changed = false;
+
+    for (MapableThing mapableThing : mapableThings) {
+      long         fid      = ((MapableGroup) mapableThing).getGroupRecord().getFid();
+      MapableThing existing = mapableThingsByFid.put(fid, mapableThing);
+
+      if (existing == mapableThing) continue;
+
+      if (existing != null) {
+        mClusterManager.removeItem(existing);
+        existing.removeListener(this);
+      }
+
+      mClusterManager.addItem(mapableThing);
+      mapableThing.addListener(this);
+      changed = true;
+    }
+
+    if (changed) mClusterManager.cluster();
+  }
+
   private LatLng getLocation(SignalServiceProtos.LocationRecord locationRecord)
   {
     return new LatLng(locationRecord.getLatitude(), locationRecord.getLongitude());
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2015-2019 unfacd works
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.unfacd.android.ui.components.CollapsingFenceMap.search;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.unfacd.android.data.json.JsonEntityFencesNearBy;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.util.LRUCache;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FencesSearch;
+import org.whispersystems.signalservice.internal.util.Base64;
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Fence name search as the user types. Keystrokes are debounced, and a query superseded by a later one is dropped
+ * before it goes out, or its result discarded if it already had. Queries go out one at a time over the app's shared
+ * {@link org.whispersystems.signalservice.api.SignalServiceAccountManager}, so they reuse its connection pool.
+ *
+ * Results are kept in a process-wide LRU keyed by query. A query that extends a cached one is answered by filtering the
+ * cached result locally, provided that result was small enough not to have been truncated by the server.
+ */
+public final class FenceSearchController
+{
+  private static final String TAG = Log.tag(FenceSearchController.class);
+
+  static final long DEBOUNCE_MILLIS = 300;
+  static final int  CACHE_SIZE      = 32;
+
+  /** A result at least this big may have been cut short by the server, so can't stand in for longer queries. */
+  static final int COMPLETE_RESULT_LIMIT = 25;
+
+  private static final Map<String, FencesSearch> cache          = new LRUCache<>(CACHE_SIZE);
+  private static final ExecutorService           sharedExecutor = SignalExecutors.newCachedSingleThreadExecutor("unfacd-fence-search");
+
+  private final Handler  handler = new Handler(Looper.getMainLooper());
+  private final Listener listener;
+  private final Executor executor;
+  private final Fetcher  fetcher;
+
+  private volatile long generation;
+  private          Runnable pending;
+
+  public FenceSearchController(@NonNull Listener listener)
+  {
+    this(listener, sharedExecutor, FenceSearchController::fetch);
+  }
+
+  @VisibleForTesting
+  FenceSearchController(@NonNull Listener listener, @NonNull Executor executor, @NonNull Fetcher fetcher)
+  {
+    this.listener = listener;
+    this.executor = executor;
+    this.fetcher  = fetcher;
+  }
+
+  /**
+   * Supersedes any search in progress. Results are delivered on the main thread, and only for the latest query.
+   */
+  @MainThread
+  public void search(@NonNull String query)
+  {
+    cancel();
+
+    String normalised = normalise(query);
+    if (normalised.isEmpty()) return;
+
+    long current = generation;
+
+    FencesSearch cached = fromCache(normalised);
+    if (cached != null) {
+      listener.onFencesFound(query, cached);
+      return;
+    }
+
+    pending = () -> executor.execute(() -> {
+      if (current != generation) return;
+
+      FencesSearch result = fromCache(normalised);
+      if (result == null) {
+        result = fetcher.fetch(query.trim());
+        if (result != null) {
+          synchronized (cache) {
+            cache.put(normalised, result);
+          }
+        }
+      }
+
+      FencesSearch found = result;
+      handler.post(() -> {
+        if (current != generation) return;
+
+        if (found != null) listener.onFencesFound(query, found);
+        else               listener.onSearchFailed(query);
+      });
+    });
+
+    handler.postDelayed(pending, DEBOUNCE_MILLIS);
+  }
+
+  @MainThread
+  public void cancel()
+  {
+    generation++;
+
+    if (pending != null) {
+      handler.removeCallbacks(pending);
+      pending = null;
+    }
+  }
+
+  private static @Nullable FencesSearch fromCache(@NonNull String query)
+  {
+    synchronized (cache) {
+      FencesSearch exact = cache.remove(query);
+      if (exact != null) {
+        cache.put(query, exact); //keep recently used entries at the young end
+        return exact;
+      }
+
+      for (int length = query.length() - 1; length > 0; length--) {
+        FencesSearch shorter = cache.get(query.substring(0, length));
+        if (shorter != null && shorter.getRawResultsCount() < COMPLETE_RESULT_LIMIT) {
+          FencesSearch filtered = filter(shorter, query);
+          cache.put(query, filtered);
+          return filtered;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  static @NonNull FencesSearch filter(@NonNull FencesSearch fencesSearch, @NonNull String query)
+  {
+    FencesSearch.Builder builder = fencesSearch.toBuilder().clearRawResults().clearResult();
+
+    for (FencesSearch.RawResultRecord record : fencesSearch.getRawResultsList()) {
+      if (matches(record.getRawPayload(), query)) builder.addRawResults(record);
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Matches against the name fields of the raw ':' delimited record, see {@link FenceSearchResultSuggestion.ResultTokens}.
+   */
+  static boolean matches(@NonNull String rawPayload, @NonNull String query)
+  {
+    String[] tokens = rawPayload.split(":", -1);
+
+    return contains(tokens, FenceSearchResultSuggestion.ResultTokens.NORMALISED_NAME, query) ||
+           contains(tokens, FenceSearchResultSuggestion.ResultTokens.FNAME, query)           ||
+           contains(tokens, FenceSearchResultSuggestion.ResultTokens.LOCALITY, query);
+  }
+
+  private static boolean contains(@NonNull String[] tokens, @NonNull FenceSearchResultSuggestion.ResultTokens token, @NonNull String query)
+  {
+    return token.getValue() < tokens.length && normalise(tokens[token.getValue()]).contains(query);
+  }
+
+  private static @NonNull String normalise(@Nullable String query)
+  {
+    return query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+  }
+
+  @VisibleForTesting
+  static void clearCache()
+  {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private static @Nullable FencesSearch fetch(@NonNull String query)
+  {
+    try {
+      String jsonResponse = ApplicationDependencies.getSignalServiceAccountManager().searchFencesByName(query);
+      if (jsonResponse == null) return null;
+
+      JsonEntityFencesNearBy jsonEntity = JsonUtil.fromJson(jsonResponse, JsonEntityFencesNearBy.class);
+      if (jsonEntity.getSuccess() <= 0) return FencesSearch.getDefaultInstance();
+
+      FencesSearch fencesSearch = FencesSearch.parseFrom(Base64.decode(jsonEntity.getPayload()));
+      Log.d(TAG, String.format(Locale.getDefault(), "fetch: Received '%d' results", fencesSearch.getRawResultsCount()));
+
+      return fencesSearch;
+    } catch (IOException e) {
+      Log.w(TAG, "fetch: Search failed", e);
+      return null;
+    }
+  }
+
+  @VisibleForTesting
+  interface Fetcher
+  {
+    @Nullable FencesSearch fetch(@NonNull String query);
+  }
+
+  public interface Listener
+  {
+    void onFencesFound(@NonNull String query, @NonNull FencesSearch fencesSearch);
+
+    void onSearchFailed(@NonNull String query);
+  }
+}
@@ -22,15 +22,8 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.os.ResultReceiver;
 
-import com.unfacd.android.ApplicationContext;
-import com.unfacd.android.BuildConfig;
-
 import org.signal.core.util.logging.Log;
-import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
-import org.thoughtcrime.securesms.util.FeatureFlags;
-import org.whispersystems.signalservice.api.push.SignalServiceAddress;
-import org.whispersystems.signalservice.internal.push.PushServiceSocket;
-import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 
 
 /**
@@ -54,7 +47,6 @@ public class IntentServiceCheckNicknameAvailability extends IntentService {
   public static final int INVALID_URL_CODE = 1;
   public static final int ERROR_CODE = 2;
 
-  private PushServiceSocket socket;
   private String nickname;
   private boolean isNicknameAvailable = false;
 
@@ -66,17 +58,11 @@ public class IntentServiceCheckNicknameAvailability extends IntentService {
   protected void onHandleIntent(Intent intent) {
     ResultReceiver  resultReceiver  = intent.getParcelableExtra(PENDING_RESULT_EXTRA);
 
-    ApplicationContext.DynamicCredentialsProvider creds = new ApplicationContext.DynamicCredentialsProvider();
-    SignalServiceNetworkAccess networkAccess = new SignalServiceNetworkAccess(ApplicationContext.getInstance());
-
     try {
       try {
-        socket = new PushServiceSocket(networkAccess.getConfiguration(),
-                                       new StaticCredentialsProvider(null, null, creds.getUser(), SignalServiceAddress.DEFAULT_DEVICE_ID, creds.getPassword(), null), BuildConfig.USER_AGENT, null, FeatureFlags.okHttpAutomaticRetry());
-
         nickname = intent.getStringExtra(NICKNAME_EXTRA);
 
-        if (socket.isNicknamekAvailable(nickname))  isNicknameAvailable = true;
+        if (ApplicationDependencies.getSignalServiceAccountManager().isNicknameAvailable(nickname))  isNicknameAvailable = true;
         else  isNicknameAvailable = false;
 
         Bundle bundle = new Bundle();
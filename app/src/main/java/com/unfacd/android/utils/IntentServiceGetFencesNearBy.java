@@ -23,21 +23,18 @@ import android.os.Bundle;
 import android.support.v4.os.ResultReceiver;
 
 import com.ning.compress.lzf.LZFDecoder;
-import com.unfacd.android.ApplicationContext;
-import com.unfacd.android.BuildConfig;
 import com.unfacd.android.data.json.JsonEntityFencesNearBy;
 
 import org.signal.core.util.logging.Log;
-import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
-import org.thoughtcrime.securesms.util.FeatureFlags;
-import org.whispersystems.signalservice.api.push.SignalServiceAddress;
-import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.thoughtcrime.securesms.database.FenceLocationDatabase;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FencesNearBy;
 import org.whispersystems.signalservice.internal.util.Base64;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
-import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 
 import java.io.IOException;
+import java.util.Collections;
 
 
 /**
@@ -65,7 +62,6 @@ public class IntentServiceGetFencesNearBy extends IntentService {
 
   private double longitude;
   private double latitude;
-  private PushServiceSocket socket;
   private String nickname;
   private boolean isNicknameAvailable=false;
 
@@ -85,20 +81,14 @@ public class IntentServiceGetFencesNearBy extends IntentService {
     longitude = intent.getDoubleExtra(LONGITUDE_EXTRA, 0);
     latitude = intent.getDoubleExtra(LATITUDE_EXTRA, 0);
 
-    ApplicationContext.DynamicCredentialsProvider creds=new ApplicationContext.DynamicCredentialsProvider();
-    SignalServiceNetworkAccess networkAccess= new SignalServiceNetworkAccess(ApplicationContext.getInstance());
-
     try {
       try {
-        socket = new PushServiceSocket(networkAccess.getConfiguration(),
-                                       new StaticCredentialsProvider(null, null, creds.getUser(), SignalServiceAddress.DEFAULT_DEVICE_ID, creds.getPassword(), null), BuildConfig.USER_AGENT, null, FeatureFlags.okHttpAutomaticRetry());
-
         Bundle bundle = new Bundle();
         String jsonResponse;
         JsonEntityFencesNearBy fencesNearBy=new JsonEntityFencesNearBy(longitude, latitude, 100, 100);
         String request=JsonUtil.toJson(fencesNearBy);
 
-        if ((jsonResponse=socket.fencesNearBy(request))!=null)
+        if ((jsonResponse=ApplicationDependencies.getSignalServiceAccountManager().fencesNearBy(request))!=null)
         {
           JsonEntityFencesNearBy jsonEntityFencesNearBy = JsonUtil.fromJson(jsonResponse, JsonEntityFencesNearBy.class);
           if (jsonEntityFencesNearBy.getSuccess()>0)
@@ -125,20 +115,21 @@ public class IntentServiceGetFencesNearBy extends IntentService {
             {
               byte[] fencesNearByRawBytes = b64DecodeResponse(jsonEntityFencesNearBy.getPayload());
 
-              //test block
-              {
+              if (fencesNearByRawBytes != null) {
                 FencesNearBy fencesNearByResponse = FencesNearBy.parseFrom(fencesNearByRawBytes);
-                if (fencesNearByResponse != null)
-                  Log.d(TAG, String.format("Inflated proto: SUCCESS TEST B64DECODING/PROTO_INFLATING: fences:'%d'", fencesNearByResponse.getFencesCount()));
-              }
+                Log.d(TAG, String.format("Inflated proto: fences:'%d'", fencesNearByResponse.getFencesCount()));
+
+                SignalDatabase.fenceLocations().refreshTile(FenceLocationDatabase.Tile.of(latitude, longitude), fencesNearByResponse.getFencesList());
 
-              if (fencesNearByRawBytes != null)
                 bundle.putByteArray(RESULT_RAW_RESPONSE_EXTRA, fencesNearByRawBytes);
-              else
+              } else
                 resultCode = ERROR_CODE;
             }
           }
-          else resultCode = EMPTYSET_CODE;
+          else {
+            SignalDatabase.fenceLocations().refreshTile(FenceLocationDatabase.Tile.of(latitude, longitude), Collections.emptyList());
+            resultCode = EMPTYSET_CODE;
+          }
         }
         else  resultCode=ERROR_CODE;
 
@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2015-2019 unfacd works
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.unfacd.android.utils;
+
+import android.os.Handler;
+
+import com.unfacd.android.data.json.JsonEntityPresenceInformation;
+import com.unfacd.android.ufsrvuid.UfsrvUid;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.recipients.Recipient;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Authoritative, in-memory view of the presence of users who share it with us, keyed by ufsrv sequence id. Entries are
+ * packed into a single long (status in the top byte, timestamp in seconds below) and held in an open-addressed table, so
+ * a delta from the server costs a probe and a store, with no boxing, and UI reads never touch the database.
+ *
+ * Changes are written behind to the recipient table, coalesced over {@link #WRITE_BEHIND_MILLIS}: only entries that
+ * actually changed are written, in one transaction per flush.
+ *
+ * An entry is dropped as soon as its user stops sharing presence with us, and is no longer served once the server has
+ * not confirmed it for {@link #ENTRY_TTL_MILLIS}, ie. across several full syncs.
+ */
+public final class PresenceTable
+{
+  private static final String TAG = Log.tag(PresenceTable.class);
+
+  static final long WRITE_BEHIND_MILLIS = 2000;
+
+  /** How recently a pushed delta must have been seen for the periodic full sync to be relaxed. */
+  public static final long PUSH_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  static final long ENTRY_TTL_MILLIS = 3 * PUSH_WINDOW_MILLIS;
+
+  public static final long ABSENT = -1;
+
+  private static final int  STATUS_SHIFT   = 56;
+  private static final long DIRTY          = 1L << 55;
+  private static final long TIMESTAMP_MASK = (1L << 48) - 1;
+
+  private static final int INITIAL_CAPACITY = 256; //power of two
+
+  private static volatile PresenceTable instance;
+
+  private final @Nullable Handler handler;
+
+  private long[]  keys        = new long[INITIAL_CAPACITY]; //0 marks an empty slot; sequence ids start at 1
+  private long[]  values      = new long[INITIAL_CAPACITY];
+  private long[]  confirmedAt = new long[INITIAL_CAPACITY];
+  private int     size;
+  private boolean flushScheduled;
+
+  private volatile long lastPushAt;
+
+  /**
+   * @param handler where write-behind flushes run; null keeps the table in memory only
+   */
+  @VisibleForTesting
+  PresenceTable(@Nullable Handler handler)
+  {
+    this.handler = handler;
+  }
+
+  public static @NonNull PresenceTable getInstance()
+  {
+    if (instance == null) {
+      synchronized (PresenceTable.class) {
+        if (instance == null) instance = new PresenceTable(new Handler(SignalExecutors.getAndStartHandlerThread("ufsrv-presence").getLooper()));
+      }
+    }
+
+    return instance;
+  }
+
+  /**
+   * Applies presence deltas pushed by the server over the websocket.
+   */
+  public void applyPushed(@NonNull List<JsonEntityPresenceInformation> presenceInformationList)
+  {
+    lastPushAt = System.currentTimeMillis();
+    apply(presenceInformationList, lastPushAt);
+  }
+
+  /**
+   * Applies presence returned by a full sync, then drops entries the server has stopped confirming.
+   */
+  public void applySynced(@NonNull List<JsonEntityPresenceInformation> presenceInformationList)
+  {
+    long now = System.currentTimeMillis();
+
+    apply(presenceInformationList, now);
+    evictExpired(now);
+  }
+
+  /**
+   * @return true if the server has pushed presence deltas recently enough that the full sync is only a safety net
+   */
+  public boolean isReceivingPushes()
+  {
+    return isReceivingPushes(System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  boolean isReceivingPushes(long now)
+  {
+    long pushedAt = lastPushAt;
+
+    return pushedAt > 0 && now >= pushedAt && now - pushedAt < PUSH_WINDOW_MILLIS;
+  }
+
+  @VisibleForTesting
+  void setLastPushAt(long pushedAt)
+  {
+    lastPushAt = pushedAt;
+  }
+
+  private void apply(@NonNull List<JsonEntityPresenceInformation> presenceInformationList, long now)
+  {
+    boolean changed = false;
+
+    for (JsonEntityPresenceInformation presenceInformation : presenceInformationList) {
+      Long timestamp;
+
+      if      (presenceInformation.getStatus() == Recipient.PresenceType.ONLINE.getValue())  timestamp = presenceInformation.getServiced();
+      else if (presenceInformation.getStatus() == Recipient.PresenceType.OFFLINE.getValue()) timestamp = presenceInformation.getSuspended();
+      else continue;
+
+      if (presenceInformation.getUfsrvuid() == null) continue;
+
+      long sequenceId = UfsrvUid.of(presenceInformation.getUfsrvuid()).getUfsrvSequenceId();
+      changed |= put(sequenceId, presenceInformation.getStatus(), timestamp != null ? timestamp : 0, now);
+    }
+
+    if (changed) scheduleFlush();
+  }
+
+  /**
+   * @return the packed presence for the given user, or {@link #ABSENT}. Unpack with {@link #status(long)} and
+   *         {@link #timestamp(long)}.
+   */
+  public long get(long sequenceId)
+  {
+    return get(sequenceId, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  synchronized long get(long sequenceId, long now)
+  {
+    int slot = slotOf(keys, sequenceId);
+
+    if (keys[slot] != sequenceId || isExpired(confirmedAt[slot], now)) return ABSENT;
+
+    return values[slot] & ~DIRTY;
+  }
+
+  /**
+   * Forgets the given user, eg. once they stop sharing presence with us. Pending writes for them are dropped too.
+   */
+  public synchronized void remove(long sequenceId)
+  {
+    int slot = slotOf(keys, sequenceId);
+
+    if (keys[slot] == sequenceId) removeSlot(slot);
+  }
+
+  /**
+   * @return presence in the "status,timestamp" form stored in the recipient table, or null if none is known.
+   */
+  public @Nullable String getPresenceInformation(long sequenceId)
+  {
+    long packed = get(sequenceId);
+
+    return packed != ABSENT ? format(packed) : null;
+  }
+
+  public static int status(long packed)
+  {
+    return (int) (packed >>> STATUS_SHIFT);
+  }
+
+  public static long timestamp(long packed)
+  {
+    return packed & TIMESTAMP_MASK;
+  }
+
+  /**
+   * @return true if the stored presence changed, ie. a write is now pending
+   */
+  @VisibleForTesting
+  synchronized boolean put(long sequenceId, int status, long timestamp, long now)
+  {
+    if (sequenceId <= 0) return false;
+
+    long packed = ((long) status << STATUS_SHIFT) | (timestamp & TIMESTAMP_MASK);
+    int  slot   = slotOf(keys, sequenceId);
+
+    confirmedAt[slot] = now;
+
+    if (keys[slot] == sequenceId) {
+      if ((values[slot] & ~DIRTY) == packed) return false;
+
+      values[slot] = packed | DIRTY;
+      return true;
+    }
+
+    keys[slot]   = sequenceId;
+    values[slot] = packed | DIRTY;
+
+    if (++size * 4 > keys.length * 3) grow();
+
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized void evictExpired(long now)
+  {
+    int slot = 0;
+
+    while (slot < keys.length) {
+      //removal may shift a later entry back into this slot, so only advance once it holds a live entry or none
+      if (keys[slot] != 0 && isExpired(confirmedAt[slot], now)) removeSlot(slot);
+      else                                                        slot++;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int size()
+  {
+    return size;
+  }
+
+  @VisibleForTesting
+  synchronized int capacity()
+  {
+    return keys.length;
+  }
+
+  private static boolean isExpired(long confirmedAt, long now)
+  {
+    return now - confirmedAt >= ENTRY_TTL_MILLIS;
+  }
+
+  /**
+   * Backward-shift deletion: entries further along the probe run are moved into the hole when their home slot does not
+   * lie between the hole and where they are now, so no lookup ever stops short at the freed slot.
+   */
+  private void removeSlot(int hole)
+  {
+    int mask = keys.length - 1;
+    int next = (hole + 1) & mask;
+
+    while (keys[next] != 0) {
+      int home = homeOf(keys[next], mask);
+
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole]        = keys[next];
+        values[hole]      = values[next];
+        confirmedAt[hole] = confirmedAt[next];
+        hole              = next;
+      }
+
+      next = (next + 1) & mask;
+    }
+
+    keys[hole]        = 0;
+    values[hole]      = 0;
+    confirmedAt[hole] = 0;
+    size--;
+  }
+
+  private void grow()
+  {
+    long[] oldKeys        = keys;
+    long[] oldValues      = values;
+    long[] oldConfirmedAt = confirmedAt;
+
+    keys        = new long[oldKeys.length * 2];
+    values      = new long[oldValues.length * 2];
+    confirmedAt = new long[oldConfirmedAt.length * 2];
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == 0) continue;
+
+      int slot = slotOf(keys, oldKeys[i]);
+      keys[slot]        = oldKeys[i];
+      values[slot]      = oldValues[i];
+      confirmedAt[slot] = oldConfirmedAt[i];
+    }
+  }
+
+  /** Linear probe: the slot holding key, or the empty slot where it would go. */
+  private static int slotOf(long[] keys, long key)
+  {
+    int mask = keys.length - 1;
+    int slot = homeOf(key, mask);
+
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+
+    return slot;
+  }
+
+  @VisibleForTesting
+  static int homeOf(long key, int mask)
+  {
+    return (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+  }
+
+  private synchronized void scheduleFlush()
+  {
+    if (flushScheduled || handler == null) return;
+
+    flushScheduled = true;
+    handler.postDelayed(this::flush, WRITE_BEHIND_MILLIS);
+  }
+
+  private void flush()
+  {
+    Map<Long, String> dirty = new HashMap<>();
+
+    synchronized (this) {
+      flushScheduled = false;
+
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] != 0 && (values[i] & DIRTY) != 0) {
+          values[i] &= ~DIRTY;
+          dirty.put(keys[i], format(values[i]));
+        }
+      }
+    }
+
+    if (dirty.isEmpty()) return;
+
+    SignalDatabase.recipients().setPresenceInformation(dirty);
+
+    Log.d(TAG, String.format(Locale.getDefault(), "flush: Wrote presence for '%d' users", dirty.size()));
+  }
+
+  private static @NonNull String format(long packed)
+  {
+    return status(packed) + "," + timestamp(packed);
+  }
+}
@@ -0,0 +1,247 @@
+package com.unfacd.android.utils;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.unfacd.android.ApplicationContext;
+
+import org.signal.core.util.Hex;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Remembers, per section of /v1/StateSync, the server's state version (where the server reports one) and a digest of the
+ * section as last applied, so that sections which haven't changed since can be skipped instead of being reconciled
+ * against the database on every reconnect.
+ *
+ * The stored versions are sent to the server on connect (see {@link #asHeaderValue()}), so a server that supports it
+ * can omit unchanged sections altogether. A full reconciliation is still forced every {@link #FULL_SYNC_INTERVAL}, as
+ * StateSync also heals local state that has drifted from the server's view.
+ */
+public final class StateSyncVersions
+{
+  private static final String TAG = Log.tag(StateSyncVersions.class);
+
+  static final long FULL_SYNC_INTERVAL = TimeUnit.HOURS.toMillis(6);
+
+  private static final String PREF_PREFIX = "pref_ufsrv_statesync_section_";
+
+  public enum Section
+  {
+    FENCES("fences"),
+    FENCES_INVITED("fences_invited"),
+    USER_PREFS("user_prefs"),
+    SHARED_LISTS("shared_lists");
+
+    private final String key;
+
+    Section(String key)
+    {
+      this.key = key;
+    }
+
+    public String getKey()
+    {
+      return key;
+    }
+  }
+
+  private StateSyncVersions() {}
+
+  /**
+   * @param stateSync the raw StateSync document
+   * @param serverVersion the section's version as reported by the server, or -1 if it didn't report one
+   * @return a token describing the section as received, to be handed to {@link #markApplied(Section, Token)} once it
+   *         has been applied, or null if the section must be skipped: either it is unchanged since it was last applied,
+   *         or the server left it out. An absent section is never applied, as the synchronise functions would take it
+   *         for an empty list and tear down local state.
+   */
+  static public @Nullable Token checkSection(@NonNull JsonNode stateSync, @NonNull Section section, long serverVersion)
+  {
+    return checkSection(stateSync, section, serverVersion, Stored.load(section), System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  static @Nullable Token checkSection(@NonNull JsonNode stateSync, @NonNull Section section, long serverVersion, @Nullable Stored stored, long now)
+  {
+    JsonNode node = stateSync.get(section.getKey());
+
+    if (node == null || node.isNull()) {
+      if (stored != null && stored.version >= 0) {
+        Log.d(TAG, String.format(Locale.getDefault(), "checkSection (%s, version:'%d'): omitted by server as unchanged: skipping...", section.getKey(), stored.version));
+      } else {
+        Log.w(TAG, String.format(Locale.getDefault(), "checkSection (%s): omitted by server without a known version: skipping...", section.getKey()));
+      }
+
+      return null;
+    }
+
+    String digest = digest(node.toString());
+
+    if (isFresh(stored, now) && digest.equals(stored.digest)) {
+      Log.d(TAG, String.format(Locale.getDefault(), "checkSection (%s): unchanged since last applied: skipping...", section.getKey()));
+      return null;
+    }
+
+    return new Token(serverVersion, digest);
+  }
+
+  static public void markApplied(@NonNull Section section, @NonNull Token token)
+  {
+    token.appliedAt(System.currentTimeMillis()).save(section);
+  }
+
+  /**
+   * Forgets every stored section, so that the next StateSync is applied in full.
+   */
+  static public void reset()
+  {
+    Context context = ApplicationContext.getInstance();
+
+    for (Section section : Section.values()) {
+      TextSecurePreferences.setStringPreference(context, PREF_PREFIX + section.getKey(), null);
+    }
+  }
+
+  /**
+   * @return the stored server versions as "section:version" pairs, e.g. "fences:12,user_prefs:3", or null if none are
+   *         known, or if any section is due its periodic full reconciliation. In the latter case the server sends every
+   *         section in full.
+   */
+  static public @Nullable String asHeaderValue()
+  {
+    Map<Section, Stored> stored = new EnumMap<>(Section.class);
+
+    for (Section section : Section.values()) {
+      Stored entry = Stored.load(section);
+      if (entry != null) stored.put(section, entry);
+    }
+
+    return asHeaderValue(stored, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  static @Nullable String asHeaderValue(@NonNull Map<Section, Stored> stored, long now)
+  {
+    StringBuilder builder = new StringBuilder();
+
+    for (Section section : Section.values()) {
+      Stored entry = stored.get(section);
+
+      if (entry == null || entry.version < 0) continue;
+
+      if (!isFresh(entry, now)) {
+        Log.d(TAG, String.format(Locale.getDefault(), "asHeaderValue (%s): full sync due: not advertising versions", section.getKey()));
+        return null;
+      }
+
+      if (builder.length() > 0) builder.append(',');
+      builder.append(section.getKey()).append(':').append(entry.version);
+    }
+
+    return builder.length() > 0 ? builder.toString() : null;
+  }
+
+  private static boolean isFresh(@Nullable Stored stored, long now)
+  {
+    return stored != null && now >= stored.appliedAt && now - stored.appliedAt < FULL_SYNC_INTERVAL;
+  }
+
+  @VisibleForTesting
+  static @NonNull String digest(@NonNull String canonical)
+  {
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+      return Hex.toStringCondensed(messageDigest.digest(canonical.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public static final class Token
+  {
+    private final long   serverVersion;
+    private final String digest;
+
+    private Token(long serverVersion, @Nullable String digest)
+    {
+      this.serverVersion = serverVersion;
+      this.digest        = digest;
+    }
+
+    @VisibleForTesting
+    @NonNull Stored appliedAt(long now)
+    {
+      return new Stored(serverVersion, now, digest);
+    }
+  }
+
+  /**
+   * Persisted as "version:appliedAt:digest".
+   */
+  @VisibleForTesting
+  static final class Stored
+  {
+    private final long   version;
+    private final long   appliedAt;
+    private final String digest;
+
+    @VisibleForTesting
+    Stored(long version, long appliedAt, @Nullable String digest)
+    {
+      this.version   = version;
+      this.appliedAt = appliedAt;
+      this.digest    = digest;
+    }
+
+    static @Nullable Stored load(@NonNull Section section)
+    {
+      String serialized = TextSecurePreferences.getStringPreference(ApplicationContext.getInstance(), PREF_PREFIX + section.getKey(), null);
+      Stored stored     = parse(serialized);
+
+      if (stored == null && !TextUtils.isEmpty(serialized)) {
+        Log.w(TAG, "Discarding malformed StateSync section state for " + section.getKey());
+      }
+
+      return stored;
+    }
+
+    void save(@NonNull Section section)
+    {
+      TextSecurePreferences.setStringPreference(ApplicationContext.getInstance(), PREF_PREFIX + section.getKey(), serialize());
+    }
+
+    @VisibleForTesting
+    static @Nullable Stored parse(@Nullable String serialized)
+    {
+      if (TextUtils.isEmpty(serialized)) return null;
+
+      String[] parts = serialized.split(":", 3);
+
+      try {
+        return new Stored(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts.length > 2 && !parts[2].isEmpty() ? parts[2] : null);
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        return null;
+      }
+    }
+
+    @VisibleForTesting
+    @NonNull String serialize()
+    {
+      return version + ":" + appliedAt + ":" + (digest != null ? digest : "");
+    }
+  }
+}
@@ -75,6 +75,7 @@ import org.whispersystems.signalservice.internal.push.SignalServiceProtos.UfsrvC
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -83,6 +84,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -394,98 +396,83 @@ public class UfsrvFenceUtils
 
   /**
    * Resolve the FencesList provided by the server in its StateSync message. Epic.
+   * Local state (threads, invited threads and groups) is loaded once into fid-keyed maps and diffed against the server's
+   * list in memory. Local changes are applied in a single transaction; commands destined for the server are only sent
+   * once that has committed.
    * @param fences Json list
    */
-  static public void synchroniseFenceList(List<FenceDescriptor> fences)
+  static public void synchroniseFenceList(@NonNull List<FenceDescriptor> fences)
   {
-    if (fences == null)  fences = new LinkedList<>();
+    //an absent list is not an empty one: reconciling against it would tear down every local fence
+    if (fences == null) {
+      Log.w(TAG, "synchroniseFenceList: no fence list to reconcile against: skipping...");
+      return;
+    }
 
-    Cursor                          cursor,
-                                    cursorInvited;
-    HashMap<Long, FenceDescriptor>  missing;
-    HashMap<Long, FenceDescriptor>  processed;
-    Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>>           done          = null;
+    final List<ThreadRecord>                    threads;
+    final HashMap<Long, ThreadRecord>           fidToInvitedMap;
+    final HashMap<Long, FenceDescriptor>        missing;
+    final HashMap<Long, FenceDescriptor>        processed;
+    final Set<Long>                             serverFids    = fidsOf(fences);
+    final Map<Long, GroupDatabase.GroupRecord>  fidToGroupMap = SignalDatabase.groups().getGroupRecordsByFid();
+    final List<Runnable>                        outbound      = new LinkedList<>();
+
+    try (Cursor cursor = SignalDatabase.threads().getConversationList(); Cursor cursorInvited = SignalDatabase.threads().getInvitedConversationListAll(0, 0)) {
+      threads         = readThreadRecords(cursor);
+      fidToInvitedMap = indexThreadRecordsByFid(readThreadRecords(cursorInvited));
+    }
 
-    cursor = SignalDatabase.threads().getConversationList();
-    cursorInvited = SignalDatabase.threads().getInvitedConversationListAll(0, 0);
-    HashMap<Long, ThreadRecord> fidToInvitedMap = invitedCursorToFidMap(cursorInvited);
+    Log.d(TAG, String.format("synchroniseFenceList: Processing Internal ThreadList size:%d'. Internal InvitedList: '%d', FenceList size: '%d'.", threads.size(), fidToInvitedMap.size(), fences.size()));
 
-    Log.d(TAG, String.format("synchroniseFenceList: Processing Internal ThreadList size:%d'. Internal InvitedList: '%d', FenceList size: '%d'.", cursor.getCount(), cursorInvited.getCount(), fences.size()));
+    Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>> done = resolveServerFenceList(indexThreadRecordsByFid(threads), fidToGroupMap, fences);
+    processed = done.first();
+    missing   = done.second();
 
-    try {
-      done = resolveServerFenceList(cursor, fences);
-      processed = done.first();
-      missing   = done.second();
-
-      Log.d(TAG, String.format("synchroniseFenceList:  FOUND %d locally referenced fences. Found: '%d' StateSyenc fences that were NOT referenced in ThreadList...", processed.size(), missing.size()));
-
-      resolveProcessedServerFenceList(processed, fidToInvitedMap);
-      resolveMissingServerFenceList(processed, missing);
-      resolveUnreferencedThreadListEntries(cursor, processed);
-    } finally {
-      if (cursor != null)       cursor.close();
-      if (cursorInvited != null)  cursorInvited.close();
+    Log.d(TAG, String.format("synchroniseFenceList:  FOUND %d locally referenced fences. Found: '%d' StateSyenc fences that were NOT referenced in ThreadList...", processed.size(), missing.size()));
+
+    SignalDatabase.runInTransaction(() -> {
+      resolveProcessedServerFenceList(processed, fidToInvitedMap, fidToGroupMap, outbound);
+      resolveUnreferencedThreadListEntries(threads, serverFids, fidToGroupMap, outbound);
+    });
+
+    for (Runnable command : outbound) {
+      command.run();
     }
 
+    resolveMissingServerFenceList(processed, missing);
   }
 
   /**
    * Using the provided FenceList by the server, mark entries which have a corresponding match in the internal ThreadsList (processed)
-   * Missing list will contain the list of fence entries which are not present in the internal ThreadsList.
+   * Missing list will contain the list of fence entries which are not present in the internal ThreadsList, or which are
+   * but have no corresponding group record.
    *
+   * @param fidToThreadRecordMap internal ThreadsList keyed on fid
+   * @param fidToGroupMap internal groups keyed on fid
    * @param fences List of fences originating from servers StateSync in its original raw json format
    *
    * @return  Pair of HashMaps keyed on fid with values from the Server's FenceList
    */
   static private Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>>
-  resolveServerFenceList(Cursor cursor, List<FenceDescriptor> fences)
+  resolveServerFenceList(@NonNull Map<Long, ThreadRecord> fidToThreadRecordMap, @NonNull Map<Long, GroupDatabase.GroupRecord> fidToGroupMap, @NonNull List<FenceDescriptor> fences)
   {
-    final GroupDatabase             groupDatabase =SignalDatabase.groups();
     HashMap<Long, FenceDescriptor>  missing       = new HashMap<>();
     HashMap<Long, FenceDescriptor>  processed     = new HashMap<>();
 
     for (FenceDescriptor f : fences) {
-      Log.d(TAG, String.format("ResolveServerFenceList: Server View -> FenceList: CLIENT IS MEMBER OF '%s'. fid:'%d'", f.getFcname(), f.getFid()));
-
-      //check presence of fence in our internal records
-      if (cursor != null && cursor.getCount() > 0) {
-        cursor.moveToFirst();
-
-        while (cursor != null && !cursor.isAfterLast()) {
-          ThreadRecord rec = SignalDatabase.threads().readerFor(cursor).getCurrent();
-
-          if (f.getFid() == rec.getUfsrvFid()) {
-            GroupDatabase.GroupRecord localCopyFence = groupDatabase.getGroupRecordByFid(f.getFid());
-
-            if (localCopyFence != null) {
-              Log.d(TAG, String.format("ResolveServerFenceList:  Client View -> FOUND reference for FENCE ID: '%d' fcname:'%s' in ThreadList ", f.getFid(), localCopyFence.getCname()));
-              if (processed.get(f.getFid()) != null) {
-                Log.d(TAG, String.format("ResolveServerFenceList:  ERROR: DATA INTEGRITY: MULTIPLE REFERENCES OF id:'%d' when processing threadId:'%d' ", f.getFid(), rec.getThreadId()));
-                cursor.moveToNext();
-                continue;
-              }
-
-              //success case
-              processed.put(f.getFid(), f);
-              missing.remove(f.getFid());//it might have been added when fences did not match, id-wise
-            } else {
-              Log.e(TAG, String.format("ResolveServerFenceList:  ERROR: DATA INTEGRITY: fid:'%d is referenced in ThreadRecord threadId:'%d', but HAS NO CORRESPONDING GROUP RECORD", rec.getUfsrvFid(), rec.getThreadId()));
-              //todo: heal yourself remove threadId from system
-            }
-            break;//dont traverse the list further
-          } else {
-            missing.put(f.getFid(), f);
-          }
+      ThreadRecord rec = fidToThreadRecordMap.get(f.getFid());
 
-          cursor.moveToNext();
-        }
+      if (rec == null) {
+        missing.put(f.getFid(), f);
+      } else if (fidToGroupMap.containsKey(f.getFid())) {
+        processed.put(f.getFid(), f);
       } else {
-        Log.e(TAG, String.format("ResolveServerFenceList:  ERROR: DATA INTEGRITY: fid:'%d is referenced in Sever's List, but local ThreadList is empty", f.getFid()));
+        Log.e(TAG, String.format("ResolveServerFenceList:  ERROR: DATA INTEGRITY: fid:'%d is referenced in ThreadRecord threadId:'%d', but HAS NO CORRESPONDING GROUP RECORD", rec.getUfsrvFid(), rec.getThreadId()));
         missing.put(f.getFid(), f);
       }
     }
 
-    return new Pair(processed, missing);
+    return new Pair<>(processed, missing);
   }
 
   /**
@@ -493,53 +480,46 @@ public class UfsrvFenceUtils
    * Some threads maybe inactive. The default action is to request a StateSync message from the server and where group is inactive to activate it.
    *
    * @param processed
+   * @param outbound collects commands for the server, to be sent once local changes are committed
    */
 
   static private void
-  resolveProcessedServerFenceList(@NonNull HashMap<Long, FenceDescriptor> processed, @NonNull HashMap<Long, ThreadRecord> fidToThreadRecordMap)
+  resolveProcessedServerFenceList(@NonNull HashMap<Long, FenceDescriptor> processed, @NonNull HashMap<Long, ThreadRecord> fidToThreadRecordMap,
+                                  @NonNull Map<Long, GroupDatabase.GroupRecord> fidToGroupMap, @NonNull List<Runnable> outbound)
   {
-    final GroupDatabase         groupDatabase   =SignalDatabase.groups();
-    GroupDatabase.GroupRecord   groupRecord     = null;
+    final GroupDatabase groupDatabase = SignalDatabase.groups();
 
     if (processed.size() > 0) {
       Log.d(TAG, String.format("resolveProcessedServerFenceList:  PROCESSing %d fences that were referenced in ThreadList...", processed.size()));
 
-      ThreadRecord threadRecordInvited;
-      Set<Long> keySet = processed.keySet();
-      Iterator<Long> keySetIterator = keySet.iterator();
-      while (keySetIterator.hasNext()) {
-        Long fid = keySetIterator.next();
-        Recipient groupRecipient = Recipient.live(fid).get();
-        Long eid = groupRecipient.getEid();
+      for (Map.Entry<Long, FenceDescriptor> entry : processed.entrySet()) {
+        final long                fid         = entry.getKey();
+        FenceDescriptor           fence       = entry.getValue();
+        GroupDatabase.GroupRecord groupRecord = fidToGroupMap.get(fid);
+        long                      eid         = Recipient.live(fid).get().getEid();
 
-        if ((threadRecordInvited = fidToThreadRecordMap.get(Long.valueOf(fid))) != null) {
-          groupRecord = groupDatabase.getGroupRecordByFid(fid);
+        if (fidToThreadRecordMap.remove(fid) != null) {
           Log.e(TAG, String.format("resolveProcessedServerFenceList (fid:'%d', mode:'%d'): FOUND INVITED FENCE IN LIST: SHIFTING TO OPEN...", fid, groupRecord.getMode(), groupRecord.getCname()));
 
           //reassign group mode to indicate open/active
           if      (groupRecord.getMode() == GroupDatabase.GROUP_MODE_INVITATION)        groupDatabase.markGroupMode(fid, GroupDatabase.GROUP_MODE_INVITATION_JOIN_ACCEPTED);
           else if (groupRecord.getMode() == GroupDatabase.GROUP_MODE_GEOBASED_INVITE)   groupDatabase.markGroupMode(fid, GroupDatabase.GROUP_MODE_INVITATION_JOIN_ACCEPTED);//we may assign diferent mode for geo based invites
-          fidToThreadRecordMap.remove(Long.valueOf(fid));
           //continue through
         }
 
-        if (groupRecord == null) groupRecord = groupDatabase.getGroupRecordByFid(fid);
-
-        if (processed.get(fid).getEid() != eid) {
-          Log.d(TAG, String.format("resolveProcessedServerFenceList (internal_eid:'%d', server_eid:'%d'):  PROCESSing fid:'%d', cname:'%s. Active status: '%b'...", eid, processed.get(fid).getEid(), fid, groupRecord.getCname(), groupRecord.isActive()));
+        if (fence.getEid() != eid) {
+          Log.d(TAG, String.format("resolveProcessedServerFenceList (internal_eid:'%d', server_eid:'%d'):  PROCESSing fid:'%d', cname:'%s. Active status: '%b'...", eid, fence.getEid(), fid, groupRecord.getCname(), groupRecord.isActive()));
 
           if (!groupRecord.isActive()) groupDatabase.setActive(groupRecord.getId(), true);
 
-          sendStateSyncForGroup(fid);
-        } else  Log.d(TAG, String.format("resolveProcessedServerFenceList (fid:'%d', internal_eid:'%d', server_eid:'%d':  NOT PROCESSing EID uptodate ", fid, eid, processed.get(fid).getEid()));
+          outbound.add(() -> sendStateSyncForGroup(fid));
+        }
 
         //self-healing...
         if (groupRecord.getMode() < 0) {
           Log.e(TAG, String.format("resolveProcessedServerFenceList (fid:'%d', GroupDatabase.cname:'%s'): ERROR: GROUP MODE HAD INVALID VALUE: Reassigning mode to default JOIN_ACCEPTED (it could have been INVITED)", groupRecord.getFid(), groupRecord.getCname()));
           groupDatabase.markGroupMode(groupRecord.getFid(), GroupDatabase.GROUP_MODE_JOIN_ACCEPTED);
         }
-
-        groupRecord = null;
       }
     }
   }
@@ -624,149 +604,135 @@ public class UfsrvFenceUtils
    * Process Fences which are internally referenced in ThreadList but the server doesn't appear to know of. Default action is to sync join from client side, unless the
    * thread belongs to inactive group
    *
-   * @param cursor ThreadDatabase sourced result set
-   * @param processed List of fences, reflecting server's view obtained via StetSync
+   * @param threads ThreadDatabase sourced records
+   * @param serverFids fids of every fence in the server's StateSync view
+   * @param outbound collects commands for the server, to be sent once local changes are committed
    */
-  static private void resolveUnreferencedThreadListEntries(Cursor cursor, @NonNull HashMap<Long, FenceDescriptor> processed)
+  static private void resolveUnreferencedThreadListEntries(@NonNull List<ThreadRecord> threads, @NonNull Set<Long> serverFids,
+                                                           @NonNull Map<Long, GroupDatabase.GroupRecord> fidToGroupMap, @NonNull List<Runnable> outbound)
   {
     GroupDatabase   groupDatabase   =SignalDatabase.groups();
     ThreadDatabase  threadDatabase  = SignalDatabase.threads();
 
-    if (cursor != null && cursor.getCount() > 0) {
-      cursor.moveToFirst();
-
-      while (cursor != null &&  !cursor.isAfterLast()) {
-        ThreadRecord rec = SignalDatabase.threads().readerFor(cursor).getCurrent();
-//        GroupDatabase.GroupRecord groupRecord = groupDatabase.getGroupRecordByFid(rec.getUfsrvFid());
-
-        //record not in the processed list
-        if (rec != null && processed.get(rec.getUfsrvFid()) == null) {
-          GroupDatabase.GroupRecord groupRecord = groupDatabase.getGroupRecordByFid(rec.getUfsrvFid());
-          if (groupRecord != null) {
-            boolean isGroupActive = groupDatabase.isActive(groupRecord.getId());
-            Log.d(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId(), isGroupActive));
-            if (!groupDatabase.isActive(groupRecord.getId())) {
-              Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  FOUND INACTIVE Fence {fid:'%d', cname:'%s' threadid:'%d'}: (NOT)INSTRUCTING SERVER TO DELETE...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId()));
-              //sendServerCommandFenceLeave (masterSecret, groupRecord.getFid());//this would be confusing
-              //fallthrough below and advance cursor
-            } else if (threadDatabase.isThreadForJoinInvitation(rec.getThreadId())) {
-              Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Invitation Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId(), isGroupActive));
-            } else {
-              //fence in threadlist, not invitation, has corresponsing group.. process based on active status
-              if (isGroupActive) {
-                Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Server-absent Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync: ACTIVE GROUP: SEND JOIN/SYNCED REQUEST...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId(), isGroupActive));
-                sendStateSyncJoinForExistingGroup(rec.getUfsrvFid());
-              } else {
-                Log.e(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Server-absent Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync: GROUP NOT ACTIVE: DELETING THRED...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId(), isGroupActive));
-                SignalDatabase.threads().deleteConversation(rec.getThreadId());
-              }
-            }
-          } else {
-            Recipient recipient = threadDatabase.getRecipientForThreadId(rec.getThreadId());
-            if (!recipient.isReleaseNotes()) {
-              if (rec.getUfsrvFid() == 0 || !groupDatabase.isGuardian(rec.getRecipient().getGroupId().get())) {
-                Log.e(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  ERROR: DATA INTEGRITY: Fence {fid:'%d', threadid:'%d'} doesn't have a corresponding Group: DELETING...", rec.getUfsrvFid(), rec.getThreadId()));
-                SignalDatabase.threads().deleteConversation(rec.getThreadId());
-              }
-            }
+    for (ThreadRecord rec : threads) {
+      //record not in the server's list
+      if (serverFids.contains(rec.getUfsrvFid())) {
+        continue;
+      }
+
+      final long                fid         = rec.getUfsrvFid();
+      GroupDatabase.GroupRecord groupRecord = fidToGroupMap.get(fid);
+
+      if (groupRecord != null) {
+        boolean isGroupActive = groupRecord.isActive();
+        Log.d(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync...", fid, groupRecord.getCname(), rec.getThreadId(), isGroupActive));
+        if (!isGroupActive) {
+          Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  FOUND INACTIVE Fence {fid:'%d', cname:'%s' threadid:'%d'}: (NOT)INSTRUCTING SERVER TO DELETE...", fid, groupRecord.getCname(), rec.getThreadId()));
+          //sendServerCommandFenceLeave (masterSecret, groupRecord.getFid());//this would be confusing
+        } else if (threadDatabase.isThreadForJoinInvitation(rec.getThreadId())) {
+          Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Invitation Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync...", fid, groupRecord.getCname(), rec.getThreadId(), isGroupActive));
+        } else {
+          //fence in threadlist, not invitation, has corresponsing active group
+          Log.w(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  PROCESSing ThreadList Server-absent Fence {fid:'%d', cname:'%s', threadid:'%d', active:'%b'} that wasn't in StateSync: ACTIVE GROUP: SEND JOIN/SYNCED REQUEST...", fid, groupRecord.getCname(), rec.getThreadId(), isGroupActive));
+          outbound.add(() -> sendStateSyncJoinForExistingGroup(fid));
+        }
+      } else {
+        Recipient recipient = threadDatabase.getRecipientForThreadId(rec.getThreadId());
+        if (!recipient.isReleaseNotes()) {
+          if (fid == 0 || !groupDatabase.isGuardian(rec.getRecipient().getGroupId().get())) {
+            Log.e(TAG, String.format(Locale.getDefault(), "resolveUnreferencedThreadListEntries:  ERROR: DATA INTEGRITY: Fence {fid:'%d', threadid:'%d'} doesn't have a corresponding Group: DELETING...", fid, rec.getThreadId()));
+            threadDatabase.deleteConversation(rec.getThreadId());
           }
         }
-
-        cursor.moveToNext();
       }
     }
   }
 
   /**
-   * Resolve the FencesList provided by the server in its StateSync message. Epic.
+   * Resolve the invited FencesList provided by the server in its StateSync message, along the same lines as
+   * {@link #synchroniseFenceList(List)}.
    * @param fences Json list
    */
-  static public void synchroniseInvitedFenceList(List<FenceDescriptor> fences)
+  static public void synchroniseInvitedFenceList(@NonNull List<FenceDescriptor> fences)
   {
-    if (fences == null)  fences = new LinkedList<>();
+    if (fences == null) {
+      Log.w(TAG, "synchroniseInvitedFenceList: no fence list to reconcile against: skipping...");
+      return;
+    }
 
-    Cursor                          cursor,
-    cursorInvited;
-    HashMap<Long, FenceDescriptor>  missing;
-    HashMap<Long, FenceDescriptor>  processed;
-    Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>>           done;
+    final List<ThreadRecord>                    invitedThreads;
+    final HashMap<Long, FenceDescriptor>        missing;
+    final HashMap<Long, FenceDescriptor>        processed;
+    final Set<Long>                             serverFids    = fidsOf(fences);
+    final Map<Long, GroupDatabase.GroupRecord>  fidToGroupMap = SignalDatabase.groups().getGroupRecordsByFid();
 
-    cursorInvited = SignalDatabase.threads().getInvitedConversationListAll(0, 0);
-    HashMap<Long, ThreadRecord> fidToInvitedMap = invitedCursorToFidMap(cursorInvited);
+    try (Cursor cursorInvited = SignalDatabase.threads().getInvitedConversationListAll(0, 0)) {
+      invitedThreads = readThreadRecords(cursorInvited);
+    }
 
-    Log.d(TAG, String.format(Locale.getDefault(), "synchroniseInvitedFenceList: Processing Internal InvitedList: '%d', FenceList size: '%d'.", cursorInvited.getCount(), fences.size()));
+    HashMap<Long, ThreadRecord> fidToInvitedMap = indexThreadRecordsByFid(invitedThreads);
 
-      done = resolveServerInvitedFenceList(cursorInvited, fences);
-      processed = done.first();
-      missing   = done.second();
+    Log.d(TAG, String.format(Locale.getDefault(), "synchroniseInvitedFenceList: Processing Internal InvitedList: '%d', FenceList size: '%d'.", invitedThreads.size(), fences.size()));
 
-      Log.d(TAG, String.format(Locale.getDefault(), "synchroniseInvitedFenceList:  FOUND %d locally referenced invited fences. Found: '%d' StateSyenc invited fences that were NOT referenced in ThreadList...", processed.size(), missing.size()));
+    Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>> done = resolveServerFenceList(fidToInvitedMap, fidToGroupMap, fences);
+    processed = done.first();
+    missing   = done.second();
 
-      resolveProcessedServerInvitedFenceList(processed, fidToInvitedMap);
-      resolveMissingServerInvitedFenceList(processed, missing);
-      resolveUnreferencedInvitedThreadListEntries(cursorInvited, processed);
+    Log.d(TAG, String.format(Locale.getDefault(), "synchroniseInvitedFenceList:  FOUND %d locally referenced invited fences. Found: '%d' StateSyenc invited fences that were NOT referenced in ThreadList...", processed.size(), missing.size()));
 
-      if (cursorInvited != null)  cursorInvited.close();
+    resolveProcessedServerInvitedFenceList(processed, fidToInvitedMap);
+    SignalDatabase.runInTransaction(() -> resolveUnreferencedInvitedThreadListEntries(invitedThreads, serverFids, fidToGroupMap));
+    resolveMissingServerInvitedFenceList(processed, missing);
+  }
+
+  private static @NonNull Set<Long> fidsOf(@NonNull List<FenceDescriptor> fences)
+  {
+    Set<Long> fids = new HashSet<>(fences.size());
 
+    for (FenceDescriptor f : fences) {
+      fids.add(f.getFid());
+    }
+
+    return fids;
   }
 
   /**
-   * Using the provided invited FenceList by the server, mark entries which have a corresponding match in the internalThreadsList (processed)
-   * Missing list will contain the list of fence entries which are not present in the internal ThreadsList.
-   *
-   * @param fences List of fences originating from servers StateSync in its original raw json format
-   *
-   * @return  Pair of HashMaps keyed on fid with values from the Server's FenceList
+   * Reads every row of a ThreadDatabase cursor in one pass.
    */
-  static private Pair<HashMap<Long, FenceDescriptor>, HashMap<Long, FenceDescriptor>>
-  resolveServerInvitedFenceList(Cursor cursor, List<FenceDescriptor> fences)
+  private static @NonNull List<ThreadRecord> readThreadRecords(@Nullable Cursor cursor)
   {
-    final GroupDatabase             groupDatabase =SignalDatabase.groups();
-    HashMap<Long, FenceDescriptor>  missing       = new HashMap<>();
-    HashMap<Long, FenceDescriptor>  processed     = new HashMap<>();
+    List<ThreadRecord> records = new LinkedList<>();
 
-    for (FenceDescriptor f : fences) {
-      Log.d(TAG, String.format(Locale.getDefault(), "resolveServerInvitedFenceList: Server View: FenceList: CLIENT IS INVITED TO '%s'. fid:'%d'", f.getFcname(), f.getFid()));
-
-      //check presence of fence in our internal records
-      if (cursor != null && cursor.getCount() > 0) {
-        cursor.moveToFirst();
-
-        while (cursor != null && !cursor.isAfterLast()) {
-          ThreadRecord rec = SignalDatabase.threads().readerFor(cursor).getCurrent();
-
-          if (f.getFid() == rec.getUfsrvFid()) {
-            GroupDatabase.GroupRecord localCopyFence = groupDatabase.getGroupRecordByFid(f.getFid());
-
-            if (localCopyFence != null) {
-              Log.d(TAG, String.format(Locale.getDefault(), "resolveServerInvitedFenceList:  Client View: FOUND reference for FENCE ID: '%d' fcname:'%s' in ThreadList ", f.getFid(), localCopyFence.getCname()));
-              if (processed.get(f.getFid()) != null) {
-                Log.e(TAG, String.format(Locale.getDefault(), "resolveServerInvitedFenceList:  ERROR: DATA INTEGRITY: MULTIPLE REFERENCES OF id:'%d' when processing threadId:'%d' ", f.getFid(), rec.getThreadId()));
-                cursor.moveToNext();
-                continue;
-              }
-
-              //success case
-              processed.put(f.getFid(), f);
-              missing.remove(f.getFid());//it might have been added when fences did not match, id-wise
-            } else {
-              Log.e(TAG, String.format(Locale.getDefault(), "resolveServerInvitedFenceList:  ERROR: DATA INTEGRITY: fid:'%d is referenced in ThreadRecord threadId:'%d', but HAS NO CORRESPONDING GROUP RECORD", rec.getUfsrvFid(), rec.getThreadId()));
-              //todo: heal yourself remove threadId from system
-            }
-            break;//dont traverse the list further
-          } else {
-            missing.put(f.getFid(), f);
-          }
+    if (cursor == null) return records;
 
-          cursor.moveToNext();
-        }
-      } else {
-        Log.e(TAG, String.format(Locale.getDefault(), "resolveServerInvitedFenceList:  ERROR: DATA INTEGRITY: fid:'%d is referenced in Sever's List, but local ThreadList is empty", f.getFid()));
-        missing.put(f.getFid(), f);
+    ThreadDatabase.Reader reader = SignalDatabase.threads().readerFor(cursor);
+    cursor.moveToPosition(-1);
+
+    while (cursor.moveToNext()) {
+      ThreadRecord rec = reader.getCurrent();
+      if (rec != null) records.add(rec);
+    }
+
+    return records;
+  }
+
+  private static @NonNull HashMap<Long, ThreadRecord> indexThreadRecordsByFid(@NonNull List<ThreadRecord> records)
+  {
+    HashMap<Long, ThreadRecord> fidToThreadRecord = new HashMap<>(records.size());
+
+    for (ThreadRecord rec : records) {
+      if (rec.getUfsrvFid() <= 0) continue;
+
+      ThreadRecord existing = fidToThreadRecord.get(rec.getUfsrvFid());
+      if (existing != null) {
+        Log.e(TAG, String.format(Locale.getDefault(), "indexThreadRecordsByFid:  ERROR: DATA INTEGRITY: MULTIPLE REFERENCES OF id:'%d' (threadIds:'%d', '%d')", rec.getUfsrvFid(), existing.getThreadId(), rec.getThreadId()));
+        continue;
       }
+
+      fidToThreadRecord.put(rec.getUfsrvFid(), rec);
     }
 
-    return new Pair(processed, missing);
+    return fidToThreadRecord;
   }
 
   static private void
@@ -854,34 +820,28 @@ public class UfsrvFenceUtils
   /**
    * Process invited Fences which are internally referenced in ThreadList but the server doesn't appear to know of. Default action remove locally.
    *
-   * @param cursor ThreadDatabase sourced result set
-   * @param processed List of fences, reflecting server's view obtained via StetSync
+   * @param invitedThreads ThreadDatabase sourced records
+   * @param serverFids fids of every invited fence in the server's StateSync view
    */
-  static private void resolveUnreferencedInvitedThreadListEntries(Cursor cursor, @NonNull HashMap<Long, FenceDescriptor> processed)
+  static private void resolveUnreferencedInvitedThreadListEntries(@NonNull List<ThreadRecord> invitedThreads, @NonNull Set<Long> serverFids, @NonNull Map<Long, GroupDatabase.GroupRecord> fidToGroupMap)
   {
     GroupDatabase   groupDatabase   =SignalDatabase.groups();
-    ThreadDatabase  threadDatabase  = SignalDatabase.threads();
 
-    if (cursor != null && cursor.getCount() > 0) {
-      cursor.moveToFirst();
-
-      while (cursor != null &&  !cursor.isAfterLast()) {
-        ThreadRecord rec = SignalDatabase.threads().readerFor(cursor).getCurrent();
-        GroupDatabase.GroupRecord groupRecord = groupDatabase.getGroupRecordByFid(rec.getUfsrvFid());
-
-        //record not in the processed list
-        if (processed.get(rec.getUfsrvFid()) == null) {
-          if (groupRecord != null) {
-            Log.d(TAG, String.format(Locale.getDefault(), "resolveUnreferencedInvitedThreadListEntries:  DELETING ThreadList Invited Fence {fid:'%d', cname:'%s', threadid:'%d'} that wasn't in StateSync...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId()));
-            groupDatabase.cleanUpGroup(groupRecord.getId(), rec.getThreadId());
-          } else {
-            //todo: perhaps prompt the user
-            Log.e(TAG, String.format(Locale.getDefault(), "resolveUnreferencedInvitedThreadListEntries:  ERROR: DATA INTEGRITY: Fence {fid:'%d', threadid:'%d'} doesn't have a corresponding Group: DELETING...", rec.getUfsrvFid(), rec.getThreadId()));
-            SignalDatabase.threads().deleteConversation(rec.getThreadId());
-          }
-        }
+    for (ThreadRecord rec : invitedThreads) {
+      //record not in the server's list
+      if (serverFids.contains(rec.getUfsrvFid())) {
+        continue;
+      }
+
+      GroupDatabase.GroupRecord groupRecord = fidToGroupMap.get(rec.getUfsrvFid());
 
-        cursor.moveToNext();
+      if (groupRecord != null) {
+        Log.d(TAG, String.format(Locale.getDefault(), "resolveUnreferencedInvitedThreadListEntries:  DELETING ThreadList Invited Fence {fid:'%d', cname:'%s', threadid:'%d'} that wasn't in StateSync...", rec.getUfsrvFid(), groupRecord.getCname(), rec.getThreadId()));
+        groupDatabase.cleanUpGroup(groupRecord.getId(), rec.getThreadId());
+      } else {
+        //todo: perhaps prompt the user
+        Log.e(TAG, String.format(Locale.getDefault(), "resolveUnreferencedInvitedThreadListEntries:  ERROR: DATA INTEGRITY: Fence {fid:'%d', threadid:'%d'} doesn't have a corresponding Group: DELETING...", rec.getUfsrvFid(), rec.getThreadId()));
+        SignalDatabase.threads().deleteConversation(rec.getThreadId());
       }
     }
   }
@@ -1142,41 +1102,48 @@ public class UfsrvFenceUtils
     return !TextUtils.isEmpty(avatarUfsrvId) && avatarUfsrvId.length() > 1;
   }
 
-  private static HashMap<Long, ThreadRecord>invitedCursorToFidMap(Cursor cursor)
+  static void updateAndDownloadAvatarForUser(@NonNull Context context, Recipient recipient, SignalServiceProtos.UserRecord userRecord)
   {
-    HashMap fidToThreadRecord = new HashMap();
-    cursor.moveToFirst();
+    ProfileAvatarDownloadJob avatarJob = updateProfileForUser(recipient, userRecord, needsAvatarDownload(context, recipient, userRecord));//AA+
 
-    while (cursor != null && !cursor.isAfterLast()) {
-      ThreadRecord rec = SignalDatabase.threads().getThreadRecord (cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.ID)));
-      fidToThreadRecord.put(cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.UFSRV_FID)), rec);
-      cursor.moveToNext();
+    if (avatarJob != null) {
+      ApplicationDependencies.getJobManager().add(avatarJob);
     }
-
-    return fidToThreadRecord;
   }
 
-  static void updateAndDownloadAvatarForUser(@NonNull Context context, Recipient recipient, SignalServiceProtos.UserRecord userRecord)
+  //AA+ database writes only, so callers can batch them in one transaction. Returns the avatar download to enqueue, if any.
+  static private @Nullable ProfileAvatarDownloadJob updateProfileForUser(Recipient recipient, SignalServiceProtos.UserRecord userRecord, boolean downloadAvatar)
   {
     SignalDatabase.recipients().setProfileSharing(recipient, true);
     try {
       SignalDatabase.recipients().setProfileKey(recipient.getId(), new ProfileKey(userRecord.getProfileKey().toByteArray()));
     } catch (InvalidInputException x) {
       Log.d(TAG, x);
-      return;
+      return null;
     }
 
-    if (!TextUtils.isEmpty(userRecord.getAvatar().getId())) {
-      if (!TextUtils.equals(userRecord.getAvatar().getId(), recipient.getAvatarUfsrvId()) || !AvatarHelper.avatarExists(context, recipient.getId())) {
-        SignalDatabase.recipients().setAvatarUfId(recipient, userRecord.getAvatar().getId());
-        ApplicationDependencies.getJobManager().add(new ProfileAvatarDownloadJob(recipient.getUfsrvUid(), userRecord.getAvatar().getId(), userRecord.getAvatar().getKey().toByteArray()));
-      }
-      else {
-        Log.d(TAG, String.format(Locale.getDefault(), "updateAndDownloadAvatarForUser (%d, uid:'%d', nick:'%s'): NOT UPDATING AVATAR: IDENTICAL", Thread.currentThread().getId(), recipient.getUfsrvId(), userRecord.getAvatar().getId()));
-      }
-    } else {
+    if (downloadAvatar) {
+      SignalDatabase.recipients().setAvatarUfId(recipient, userRecord.getAvatar().getId());
+      return new ProfileAvatarDownloadJob(recipient.getUfsrvUid(), userRecord.getAvatar().getId(), userRecord.getAvatar().getKey().toByteArray());
+    }
+
+    return null;
+  }
+
+  //AA+
+  static private boolean needsAvatarDownload(@NonNull Context context, Recipient recipient, SignalServiceProtos.UserRecord userRecord)
+  {
+    if (TextUtils.isEmpty(userRecord.getAvatar().getId())) {
       Log.d(TAG, String.format(Locale.getDefault(), "updateAndDownloadAvatarForUser (uid:'%d'): NO avatar ufid defined", recipient.getUfsrvId()));
+      return false;
     }
+
+    if (TextUtils.equals(userRecord.getAvatar().getId(), recipient.getAvatarUfsrvId()) && AvatarHelper.avatarExists(context, recipient.getId())) {
+      Log.d(TAG, String.format(Locale.getDefault(), "updateAndDownloadAvatarForUser (%d, uid:'%d', nick:'%s'): NOT UPDATING AVATAR: IDENTICAL", Thread.currentThread().getId(), recipient.getUfsrvId(), userRecord.getAvatar().getId()));
+      return false;
+    }
+
+    return true;
   }
 
   static void updateEidForUserIfNecessary(Recipient recipient, long eidProvided)
@@ -1217,29 +1184,60 @@ public class UfsrvFenceUtils
 
   public static void updateProfileKeyForFenceMembers(@NonNull Context context, @NonNull  List<SignalServiceProtos.UserRecord> userRecords, Optional<List<String>>excludedUsers)
   {
-    Recipient recipient;
+    Set<String>         excluded = excludedUsers.isPresent() ? new HashSet<>(excludedUsers.get()) : Collections.emptySet();//AA+ set lookup
+    List<ProfileUpdate> updates  = new LinkedList<>();
 
-    if (excludedUsers.isPresent()) {
-      String ufsrvUid;
+    //AA+ resolve recipients and check avatars on disk before the transaction; members already up to date cost no writes
+    for (SignalServiceProtos.UserRecord record : userRecords) {
+      String ufsrvUid = UfsrvUid.of(record.getUfsrvuid().toByteArray()).toString();
 
-      for (SignalServiceProtos.UserRecord record : userRecords) {
-        ufsrvUid = UfsrvUid.EncodedfromSerialisedBytes(record.getUfsrvuid().toByteArray());
-        if (!excludedUsers.get().contains(ufsrvUid) && record.hasProfileKey()) {
-          recipient = Recipient.live(new UfsrvUid(record.getUfsrvuid().toByteArray()).toString()).get();
-          updateAndDownloadAvatarForUser(context, recipient, record);
-        }
-        else {
-          Log.d(TAG, String.format(Locale.getDefault(), "UserRecordsToNumbersList: Found excluded member :'%s'", ufsrvUid));
+      if (excluded.contains(ufsrvUid)) {
+        Log.d(TAG, String.format(Locale.getDefault(), "UserRecordsToNumbersList: Found excluded member :'%s'", ufsrvUid));
+        continue;
+      }
+
+      if (record.hasProfileKey()) {
+        Recipient recipient      = Recipient.live(ufsrvUid).get();
+        boolean   downloadAvatar = needsAvatarDownload(context, recipient, record);
+
+        if (downloadAvatar || !recipient.isProfileSharing() || !Arrays.equals(recipient.getProfileKey(), record.getProfileKey().toByteArray())) {
+          updates.add(new ProfileUpdate(recipient, record, downloadAvatar));
         }
       }
     }
-    else {
-      for (SignalServiceProtos.UserRecord record : userRecords) {
-        if (record.hasProfileKey()) {
-          recipient = Recipient.live(new UfsrvUid(record.getUfsrvuid().toByteArray()).toString()).get();
-          updateAndDownloadAvatarForUser(context, recipient, record);
+
+    if (updates.isEmpty()) return;
+
+    //AA+ only the writes share the transaction; avatar downloads are enqueued once it has committed
+    List<ProfileAvatarDownloadJob> avatarJobs = new LinkedList<>();
+
+    SignalDatabase.runInTransaction(() -> {
+      for (ProfileUpdate update : updates) {
+        ProfileAvatarDownloadJob avatarJob = updateProfileForUser(update.recipient, update.userRecord, update.downloadAvatar);
+
+        if (avatarJob != null) {
+          avatarJobs.add(avatarJob);
         }
       }
+    });
+
+    if (!avatarJobs.isEmpty()) {
+      ApplicationDependencies.getJobManager().addAll(avatarJobs);
+    }
+  }
+
+  //AA+
+  private static final class ProfileUpdate
+  {
+    private final Recipient                       recipient;
+    private final SignalServiceProtos.UserRecord  userRecord;
+    private final boolean                         downloadAvatar;
+
+    private ProfileUpdate(@NonNull Recipient recipient, @NonNull SignalServiceProtos.UserRecord userRecord, boolean downloadAvatar)
+    {
+      this.recipient      = recipient;
+      this.userRecord     = userRecord;
+      this.downloadAvatar = downloadAvatar;
     }
   }
 
@@ -1745,7 +1745,7 @@ public class UfsrvMessageUtils
 
   static public Recipient recipientFromMessageCommandOriginator(MessageCommand messageCommand, boolean async)
   {
-    return Recipient.live(new UfsrvUid(messageCommand.getOriginator().getUfsrvuid().toByteArray()).toString()).get();
+    return Recipient.live(UfsrvUid.of(messageCommand.getOriginator().getUfsrvuid().toByteArray()).toString()).get();
   }
 
   static public Recipient recipientFromIntroCommandOriginator(MessageCommand messageCommand, boolean async)
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2015-2019 unfacd works
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.unfacd.android.utils;
+
+import android.os.Handler;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.UfsrvReceipt;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobs.PushProcessEarlyMessagesJob;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Buffers delivery, read and viewed receipts received from ufsrv for a short window and applies them together through
+ * {@link org.thoughtcrime.securesms.database.MmsSmsDatabase#incrementReceiptCountsByUfsrvIdentifiers(List)}, so a
+ * storm of receipts from a busy fence costs one transaction, and one round of thread updates and notifications, rather
+ * than one per receipt.
+ *
+ * Receipts are only held in memory: anything pending when the process dies within the window is lost, which costs a
+ * stale receipt count, not a message.
+ */
+public final class UfsrvReceiptCoalescer
+{
+  private static final String TAG = Log.tag(UfsrvReceiptCoalescer.class);
+
+  static final long WINDOW_MILLIS  = 250;
+  static final int  MAX_BATCH_SIZE = 500;
+
+  private static volatile UfsrvReceiptCoalescer instance;
+
+  private final Handler       handler;
+  private final List<Pending> pending = new ArrayList<>();
+
+  private boolean flushScheduled;
+
+  private UfsrvReceiptCoalescer()
+  {
+    this.handler = new Handler(SignalExecutors.getAndStartHandlerThread("ufsrv-receipts").getLooper());
+  }
+
+  public static @NonNull UfsrvReceiptCoalescer getInstance()
+  {
+    if (instance == null) {
+      synchronized (UfsrvReceiptCoalescer.class) {
+        if (instance == null) instance = new UfsrvReceiptCoalescer();
+      }
+    }
+
+    return instance;
+  }
+
+  /**
+   * @param content if set, receipts that can't be matched are parked in the early message cache with it, so they are
+   *                retried once the message they refer to arrives.
+   */
+  public void add(@NonNull List<UfsrvReceipt> receipts, @Nullable SignalServiceContent content)
+  {
+    if (receipts.isEmpty()) return;
+
+    boolean flushNow;
+
+    synchronized (pending) {
+      for (UfsrvReceipt receipt : receipts) {
+        pending.add(new Pending(receipt, content));
+      }
+
+      flushNow = pending.size() >= MAX_BATCH_SIZE;
+
+      if (!flushNow && !flushScheduled) {
+        flushScheduled = true;
+        handler.postDelayed(this::flush, WINDOW_MILLIS);
+      }
+    }
+
+    if (flushNow) {
+      handler.post(this::flush);
+    }
+  }
+
+  private void flush()
+  {
+    List<Pending> batch;
+
+    synchronized (pending) {
+      flushScheduled = false;
+      if (pending.isEmpty()) return;
+
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+
+    List<UfsrvReceipt>                     receipts = new ArrayList<>(batch.size());
+    Map<UfsrvReceipt, SignalServiceContent> contents = new IdentityHashMap<>();
+
+    for (Pending item : batch) {
+      receipts.add(item.receipt);
+      if (item.content != null) contents.put(item.receipt, item.content);
+    }
+
+    Collection<UfsrvReceipt> unhandled = SignalDatabase.mmsSms().incrementReceiptCountsByUfsrvIdentifiers(receipts);
+
+    for (UfsrvReceipt receipt : unhandled) {
+      SignalServiceContent content = contents.get(receipt);
+
+      Log.w(TAG, String.format(Locale.getDefault(), "flush: Could not find matching message (timestamp:'%d', author:'%s', eid:'%d', fid:'%d')", receipt.getSyncMessageId().getTimetamp(), receipt.getSyncMessageId().getRecipientId(), receipt.getSyncMessageId().getEid(), receipt.getSyncMessageId().getFid()));
+
+      if (content != null) {
+        ApplicationDependencies.getEarlyMessageCache().store(receipt.getSyncMessageId().getRecipientId(), receipt.getSyncMessageId().getTimetamp(), content);
+      }
+    }
+
+    if (!unhandled.isEmpty()) {
+      PushProcessEarlyMessagesJob.enqueue();
+    }
+
+    Log.d(TAG, String.format(Locale.getDefault(), "flush: Applied a batch of '%d' receipts ('%d' unhandled)", receipts.size(), unhandled.size()));
+  }
+
+  private static final class Pending
+  {
+    private final UfsrvReceipt         receipt;
+    private final SignalServiceContent content;
+
+    private Pending(@NonNull UfsrvReceipt receipt, @Nullable SignalServiceContent content)
+    {
+      this.receipt = receipt;
+      this.content = content;
+    }
+  }
+}
@@ -24,11 +24,11 @@ import com.unfacd.android.ufsrvuid.UfsrvUid;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.MessageDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
-import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
-import org.thoughtcrime.securesms.jobs.PushProcessEarlyMessagesJob;
 import org.thoughtcrime.securesms.mms.MmsException;
 import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.sms.MessageSender;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
@@ -37,18 +37,16 @@ import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.messages.SignalServiceReceiptMessage;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.ReceiptCommand;
 
-import java.util.Collection;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import static com.android.mms.LogTag.warn;
-
 
 public class UfsrvReceiptUtils
 {
@@ -101,7 +99,7 @@ public class UfsrvReceiptUtils
     }
 
     long        groupId               = receiptCommand.getFid();
-    Recipient   recipientOriginator   = Recipient.live(new UfsrvUid(receiptCommand.getUidOriginator().toByteArray()).toString()).get();
+    Recipient   recipientOriginator   = Recipient.live(UfsrvUid.of(receiptCommand.getUidOriginator().toByteArray()).toString()).get();
     Log.d(TAG, String.format("processUfsrvReceiptCommand: ReceiptCommand Received (fence:'%d', originatorUid:'%s')", groupId, receiptCommand.getUidOriginator()));
 
     switch (receiptCommand.getHeader().getCommand())
@@ -150,23 +148,13 @@ public class UfsrvReceiptUtils
                                         @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
-      List<MessageDatabase.SyncMessageId>msgIds = new LinkedList<>();
-
-      for (UfsrvMessageUtils.UfsrvMessageIdentifier messageIdentifier : message.getUfsrvMessageIdentifiers()) {
-        Recipient recipient = Recipient.live(new UfsrvUid(messageIdentifier.uidOriginator).toString()).get();
-        Log.w(TAG, String.format("Received encrypted read receipt: (XXXXX, %d, eid:'%d', fid:'%d')", messageIdentifier.timestamp, messageIdentifier.eid, messageIdentifier.fid));
-        msgIds.add(new MessageDatabase.SyncMessageId(recipient.getId(), messageIdentifier.timestamp, messageIdentifier.uidOriginator, messageIdentifier.fid, messageIdentifier.gid, messageIdentifier.eid));
-        Collection<MessageDatabase.SyncMessageId> unhandled = SignalDatabase.mmsSms().incrementReadReceiptCounts(msgIds, envelope.getTimestamp());
-
-        for (MessageDatabase.SyncMessageId id : unhandled) {
-          warn(TAG, String.valueOf(content.getTimestamp()), "[handleReadReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + "  author: " + id.getRecipientId());
-          ApplicationDependencies.getEarlyMessageCache().store(id.getRecipientId(), id.getTimetamp(), content);
-        }
-
-        if (unhandled.size() > 0) {
-          PushProcessEarlyMessagesJob.enqueue();
-        }
+      List<MmsSmsDatabase.UfsrvReceipt> receipts = new LinkedList<>();
+
+      for (MessageDatabase.SyncMessageId id : toSyncMessageIds(message, "read")) {
+        receipts.add(MmsSmsDatabase.UfsrvReceipt.read(id, envelope.getTimestamp()));
       }
+
+      UfsrvReceiptCoalescer.getInstance().add(receipts, content);
     }
   }
 
@@ -198,24 +186,13 @@ public class UfsrvReceiptUtils
                                           @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
-      List<MessageDatabase.SyncMessageId>msgIds = new LinkedList<>();
-
-      for (UfsrvMessageUtils.UfsrvMessageIdentifier messageIdentifier : message.getUfsrvMessageIdentifiers()) {
-        Recipient recipient = Recipient.live(new UfsrvUid(messageIdentifier.uidOriginator).toString()).get();
-        Log.w(TAG, String.format("Received encrypted viewed receipt: (XXXXX, %d, eid:'%d', fid:'%d')", messageIdentifier.timestamp, messageIdentifier.eid, messageIdentifier.fid));
-        msgIds.add(new MessageDatabase.SyncMessageId(recipient.getId(), messageIdentifier.timestamp, messageIdentifier.uidOriginator, messageIdentifier.fid, messageIdentifier.gid, messageIdentifier.eid));
-        Collection<MessageDatabase.SyncMessageId> unhandled = SignalDatabase.mmsSms()
-                                                                            .incrementViewedReceiptCounts(msgIds, envelope.getTimestamp());
-
-        for (MessageDatabase.SyncMessageId id : unhandled) {
-          warn(TAG, String.valueOf(content.getTimestamp()), "[handleViewedReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + "  author: " + id.getRecipientId());
-          ApplicationDependencies.getEarlyMessageCache().store(id.getRecipientId(), id.getTimetamp(), content);
-        }
-
-        if (unhandled.size() > 0) {
-          PushProcessEarlyMessagesJob.enqueue();
-        }
+      List<MmsSmsDatabase.UfsrvReceipt> receipts = new LinkedList<>();
+
+      for (MessageDatabase.SyncMessageId id : toSyncMessageIds(message, "viewed")) {
+        receipts.add(MmsSmsDatabase.UfsrvReceipt.viewed(id, envelope.getTimestamp()));
       }
+
+      UfsrvReceiptCoalescer.getInstance().add(receipts, content);
     }
   }
 
@@ -223,22 +200,36 @@ public class UfsrvReceiptUtils
   static private void handleDeliveryReceipt(@NonNull Context context,
                                             @NonNull SignalServiceEnvelope envelope,
                                             @NonNull SignalServiceReceiptMessage message) {
-    List<MessageDatabase.SyncMessageId>msgIds = new LinkedList<>();
-    Collection<MessageDatabase.SyncMessageId> unhandled = Collections.emptyList();
+    List<MmsSmsDatabase.UfsrvReceipt> receipts     = new LinkedList<>();
+    Set<RecipientId>                  recipientIds = new HashSet<>();
+    long                              timestamp    = System.currentTimeMillis();
 
-    for (UfsrvMessageUtils.UfsrvMessageIdentifier messageIdentifier : message.getUfsrvMessageIdentifiers()) {
-      Recipient recipient = Recipient.live(new UfsrvUid(messageIdentifier.uidOriginator).toString()).get();
-      Log.w(TAG, String.format(Locale.getDefault(), "Received encrypted delivery receipt: (XXXXX, %d, eid:'%d', fid:'%d')", messageIdentifier.timestamp, messageIdentifier.eid, messageIdentifier.fid));
-      msgIds.add(new MessageDatabase.SyncMessageId(recipient.getId(), messageIdentifier.timestamp, messageIdentifier.uidOriginator, messageIdentifier.fid, messageIdentifier.gid, messageIdentifier.eid));
-      unhandled = SignalDatabase.mmsSms().incrementDeliveryReceiptCounts(msgIds, System.currentTimeMillis());
-      SignalDatabase.messageLog().deleteEntriesForRecipient(message.getTimestamps(), recipient.getId(), 1);//getSenderDevice()); //todo AA get device
+    for (MessageDatabase.SyncMessageId id : toSyncMessageIds(message, "delivery")) {
+      receipts.add(MmsSmsDatabase.UfsrvReceipt.delivery(id, timestamp));
+      recipientIds.add(id.getRecipientId());
+    }
+
+    for (RecipientId recipientId : recipientIds) {
+      SignalDatabase.messageLog().deleteEntriesForRecipient(message.getTimestamps(), recipientId, 1);//getSenderDevice()); //todo AA get device
     }
 
-    if (unhandled.size() > 0) {// TODO: 24/07/2024 return is overwriten in the for loop --> refactor
-      PushProcessEarlyMessagesJob.enqueue();
+    UfsrvReceiptCoalescer.getInstance().add(receipts, null);
+  }
+
+  /**
+   * One SyncMessageId per message the receipt refers to, keyed by its ufsrv identifiers.
+   */
+  static private @NonNull List<MessageDatabase.SyncMessageId> toSyncMessageIds(@NonNull SignalServiceReceiptMessage message, @NonNull String kind)
+  {
+    List<MessageDatabase.SyncMessageId> ids = new LinkedList<>();
+
+    for (UfsrvMessageUtils.UfsrvMessageIdentifier messageIdentifier : message.getUfsrvMessageIdentifiers()) {
+      Recipient recipient = Recipient.live(UfsrvUid.of(messageIdentifier.uidOriginator).toString()).get();
+      Log.w(TAG, String.format(Locale.getDefault(), "Received encrypted %s receipt: (XXXXX, %d, eid:'%d', fid:'%d')", kind, messageIdentifier.timestamp, messageIdentifier.eid, messageIdentifier.fid));
+      ids.add(new MessageDatabase.SyncMessageId(recipient.getId(), messageIdentifier.timestamp, messageIdentifier.uidOriginator, messageIdentifier.fid, messageIdentifier.gid, messageIdentifier.eid));
     }
-    
-//    SignalDatabase.messageLog().deleteEntriesForRecipient(message.getTimestamps(), senderRecipient.getId(), content.getSenderDevice()); // TODO: 24/07/2024  to be ported
+
+    return ids;
   }
 
   //AA: this is a stub: not implemented
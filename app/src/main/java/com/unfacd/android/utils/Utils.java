@@ -548,9 +548,13 @@ public class Utils
 
   public static CharSequence formatPresenceInformation (Context context, Recipient recipient)
   {
-    if (!TextUtils.isEmpty(recipient.getPresenceInformation())) {
+    //AA the in-memory table is ahead of the recipient record, which is only written behind
+    String presenceInformation = PresenceTable.getInstance().getPresenceInformation(recipient.getUfsrvId());
+    if (presenceInformation == null) presenceInformation = recipient.getPresenceInformation();
+
+    if (!TextUtils.isEmpty(presenceInformation)) {
       Splitter rawPresenceInformation = Splitter.on(',');
-      Iterable<String> resultTokens = rawPresenceInformation.split(recipient.getPresenceInformation());
+      Iterable<String> resultTokens = rawPresenceInformation.split(presenceInformation);
       Recipient.PresenceType presenceType = Recipient.PresenceType.values()[Integer.valueOf(Iterables.get(resultTokens, 0))];
       Long timestamp = Long.valueOf(Iterables.get(resultTokens, 1));
 
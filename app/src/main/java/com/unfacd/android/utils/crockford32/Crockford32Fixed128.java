@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2015-2019 unfacd works
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.unfacd.android.utils.crockford32;
+
+import static com.unfacd.android.utils.crockford32.Constants.ALPHABET;
+import static com.unfacd.android.utils.crockford32.Constants.EQUIVALENTS;
+
+import java.util.Arrays;
+
+/**
+ * Table-driven Crockford32 codec for unsigned 128-bit values, held as two longs (most significant first). Unlike
+ * {@link Crockford32}, it doesn't go through {@link java.math.BigInteger}, and always encodes to a fixed
+ * {@link #ENCODED_LENGTH} digits, so leading zeros are preserved.
+ *
+ * Decoding accepts the same input as {@link Crockford32#decode(String)}: either case, the o/i/l equivalents and
+ * hyphens as separators.
+ */
+public final class Crockford32Fixed128 {
+
+  public static final int ENCODED_LENGTH = 26;
+
+  private static final char[] DIGITS = ALPHABET.toCharArray();
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+
+    for (int i = 0; i < DIGITS.length; i++) {
+      VALUES[DIGITS[i]]                        = (byte) i;
+      VALUES[Character.toLowerCase(DIGITS[i])] = (byte) i;
+    }
+
+    for (CodeMap equivalent : EQUIVALENTS) {
+      VALUES[equivalent.encodedDigit] = (byte) Character.digit(equivalent.javaDigit, Constants.RADIX);
+    }
+  }
+
+  private Crockford32Fixed128() {
+  }
+
+  public static String encode(final long high, final long low) {
+    final char[] encoded = new char[ENCODED_LENGTH];
+
+    //130 bits of output for 128 of input: the first digit only carries the top three bits
+    encoded[0] = DIGITS[(int) (high >>> 61)];
+
+    for (int i = 1, shift = 120; i < ENCODED_LENGTH; i++, shift -= 5) {
+      final long digit;
+      if (shift >= 64)      digit = high >>> (shift - 64);
+      else if (shift > 59)  digit = (high << (64 - shift)) | (low >>> shift);
+      else                  digit = low >>> shift;
+
+      encoded[i] = DIGITS[(int) (digit & 0x1F)];
+    }
+
+    return new String(encoded);
+  }
+
+  /**
+   * @return the most significant 64 bits of the decoded value.
+   * @throws NumberFormatException if the value cannot be decoded, or doesn't fit in 128 bits.
+   */
+  public static long decodeHigh(final CharSequence encoded) {
+    return decode(encoded, true);
+  }
+
+  /**
+   * @return the least significant 64 bits of the decoded value.
+   * @throws NumberFormatException if the value cannot be decoded, or doesn't fit in 128 bits.
+   */
+  public static long decodeLow(final CharSequence encoded) {
+    return decode(encoded, false);
+  }
+
+  /**
+   * @return true if the value is in canonical form, ie. exactly what {@link #encode(long, long)} produces for it.
+   */
+  public static boolean isCanonical(final CharSequence encoded) {
+    if (encoded.length() != ENCODED_LENGTH || encoded.charAt(0) > DIGITS[7]) return false;
+
+    for (int i = 0; i < ENCODED_LENGTH; i++) {
+      final char c = encoded.charAt(i);
+      if (c >= VALUES.length || VALUES[c] < 0 || DIGITS[VALUES[c]] != c) return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Fast path for input already checked with {@link #isCanonical(CharSequence)}: reads only the 14 digits which carry
+   * the most significant 64 bits.
+   */
+  public static long canonicalHigh(final CharSequence canonical) {
+    long value = 0;
+    for (int i = 0; i < 13; i++) value = (value << 5) | VALUES[canonical.charAt(i)];
+
+    return (value << 1) | (VALUES[canonical.charAt(13)] >>> 4);
+  }
+
+  /**
+   * Fast path for input already checked with {@link #isCanonical(CharSequence)}: reads only the 13 digits which carry
+   * the least significant 64 bits.
+   */
+  public static long canonicalLow(final CharSequence canonical) {
+    long value = VALUES[canonical.charAt(13)] & 0x0F;
+    for (int i = 14; i < ENCODED_LENGTH; i++) value = (value << 5) | VALUES[canonical.charAt(i)];
+
+    return value;
+  }
+
+  private static long decode(final CharSequence encoded, final boolean wantHigh) {
+    final int length  = encoded.length();
+    long      high    = 0;
+    long      low     = 0;
+    boolean   matched = false;
+
+    for (int i = 0; i < length; i++) {
+      final char c = encoded.charAt(i);
+      if (c == '-') continue;
+
+      final int value = c < VALUES.length ? VALUES[c] : -1;
+      if (value < 0) {
+        throw new NumberFormatException("Invalid Crockford32 digit '" + c + "' in: " + encoded);
+      }
+
+      if ((high >>> 59) != 0) {
+        throw new NumberFormatException("Value exceeds 128 bits: " + encoded);
+      }
+
+      high    = (high << 5) | (low >>> 59);
+      low     = (low << 5) | value;
+      matched = true;
+    }
+
+    if (!matched) throw new NumberFormatException("Empty Crockford32 value");
+
+    return wantHigh ? high : low;
+  }
+}
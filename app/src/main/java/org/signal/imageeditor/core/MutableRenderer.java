@@ -0,0 +1,15 @@
+package org.signal.imageeditor.core;
+
+/**
+ * A renderer whose parcelled state can change after it is created.
+ * <p>
+ * Renderers that do not implement this are taken to never change what they write to a parcel, which lets undo
+ * snapshots reuse the serialized state of their elements.
+ */
+public interface MutableRenderer extends Renderer {
+
+  /**
+   * @return a value that changes whenever what this renderer writes to a parcel may have changed.
+   */
+  int getRevision();
+}
@@ -8,9 +8,11 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.signal.imageeditor.core.MatrixUtils;
+import org.signal.imageeditor.core.MutableRenderer;
 import org.signal.imageeditor.core.Renderer;
 import org.signal.imageeditor.core.RendererContext;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -60,6 +62,17 @@ public final class EditorElement implements Parcelable {
   @NonNull
   private AlphaAnimation alphaAnimation = AlphaAnimation.NULL_1;
 
+  /**
+   * Last result of {@link #getNodeBytes()} and the state it was written from.
+   */
+  @Nullable
+  private       byte[]  node;
+  private       int     nodeFlags;
+  private       int     nodeChildCount;
+  private       int     nodeRendererRevision;
+  private final float[] nodeMatrixValues = new float[9];
+  private final float[] matrixValues     = new float[9];
+
   public EditorElement(@Nullable Renderer renderer) {
     this(renderer, 0);
   }
@@ -72,12 +85,18 @@ public final class EditorElement implements Parcelable {
   }
 
   private EditorElement(Parcel in) {
+    this(in, true);
+  }
+
+  private EditorElement(Parcel in, boolean withChildren) {
     id       = ParcelUtils.readUUID(in);
     flags    = new EditorFlags(in.readInt());
     ParcelUtils.readMatrix(localMatrix, in);
     renderer = in.readParcelable(Renderer.class.getClassLoader());
     zOrder   = in.readInt();
-    in.readTypedList(children, EditorElement.CREATOR);
+    if (withChildren) {
+      in.readTypedList(children, EditorElement.CREATOR);
+    }
   }
 
   UUID getId() {
@@ -393,11 +412,81 @@ public final class EditorElement implements Parcelable {
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
+    writeOwnState(dest, flags);
+    dest.writeTypedList(children);
+  }
+
+  private void writeOwnState(Parcel dest, int flags) {
     ParcelUtils.writeUUID(dest, id);
     dest.writeInt(this.flags.asInt());
     ParcelUtils.writeMatrix(dest, localMatrix);
     dest.writeParcelable(renderer, flags);
     dest.writeInt(zOrder);
-    dest.writeTypedList(children);
+  }
+
+  /**
+   * Serializes this element's own state and the number of its children, but not the children themselves.
+   * <p>
+   * Returns the same array as the last call if none of that state has changed since.
+   */
+  @NonNull byte[] getNodeBytes() {
+    localMatrix.getValues(matrixValues);
+
+    if (node != null &&
+        nodeFlags == flags.asInt() &&
+        nodeChildCount == children.size() &&
+        nodeRendererRevision == rendererRevision() &&
+        Arrays.equals(nodeMatrixValues, matrixValues)) {
+      return node;
+    }
+
+    Parcel parcel = Parcel.obtain();
+    try {
+      writeOwnState(parcel, 0);
+      parcel.writeInt(children.size());
+      setNode(parcel.marshall());
+      return node;
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  private void setNode(@NonNull byte[] node) {
+    this.node                 = node;
+    this.nodeFlags            = flags.asInt();
+    this.nodeChildCount       = children.size();
+    this.nodeRendererRevision = rendererRevision();
+    localMatrix.getValues(nodeMatrixValues);
+  }
+
+  private int rendererRevision() {
+    return renderer instanceof MutableRenderer ? ((MutableRenderer) renderer).getRevision() : 0;
+  }
+
+  /**
+   * Rebuilds a tree from {@link #getNodeBytes()} of each of its elements, in the order of {@link #forAllInTree}.
+   */
+  static @NonNull EditorElement fromNodes(@NonNull Iterator<byte[]> nodes) {
+    byte[]        node   = nodes.next();
+    Parcel        parcel = Parcel.obtain();
+    EditorElement element;
+    int           childCount;
+
+    try {
+      parcel.unmarshall(node, 0, node.length);
+      parcel.setDataPosition(0);
+      element    = new EditorElement(parcel, false);
+      childCount = parcel.readInt();
+    } finally {
+      parcel.recycle();
+    }
+
+    for (int i = 0; i < childCount; i++) {
+      element.children.add(fromNodes(nodes));
+    }
+
+    element.setNode(node);
+
+    return element;
   }
 }
\ No newline at end of file
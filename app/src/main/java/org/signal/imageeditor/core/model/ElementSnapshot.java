@@ -0,0 +1,116 @@
+package org.signal.imageeditor.core.model;
+
+import android.os.Parcel;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Immutable serialized state of an {@link EditorElement} tree, kept as one node per element rather than one blob.
+ * <p>
+ * Each node holds only that element's own state and the number of its children, in pre-order. When a snapshot is
+ * taken after another, nodes that have not changed reuse the earlier snapshot's arrays, so a history of snapshots
+ * only holds the elements that changed between them, and comparing two snapshots is mostly a reference check.
+ * <p>
+ * Elements hand back the same node array until their own state changes (see {@link EditorElement#getNodeBytes()}),
+ * so taking a snapshot of a tree where little changed marshals only the elements that did.
+ */
+final class ElementSnapshot {
+
+  private final UUID[]   ids;
+  private final byte[][] nodes;
+
+  @Nullable
+  private Map<UUID, byte[]> nodeMap;
+
+  private ElementSnapshot(@NonNull UUID[] ids, @NonNull byte[][] nodes) {
+    this.ids   = ids;
+    this.nodes = nodes;
+  }
+
+  /**
+   * @param previous earlier snapshot to share unchanged nodes with, if any.
+   */
+  static @NonNull ElementSnapshot of(@NonNull EditorElement root, @Nullable ElementSnapshot previous) {
+    final Map<UUID, byte[]> shared = previous != null ? previous.nodeMap() : null;
+    final List<UUID>        ids    = new ArrayList<>();
+    final List<byte[]>      nodes  = new ArrayList<>();
+
+    root.forAllInTree(element -> {
+      byte[] node  = element.getNodeBytes();
+      byte[] prior = shared != null ? shared.get(element.getId()) : null;
+
+      ids.add(element.getId());
+      nodes.add(prior != null && Arrays.equals(prior, node) ? prior : node);
+    });
+
+    return new ElementSnapshot(ids.toArray(new UUID[0]), nodes.toArray(new byte[0][]));
+  }
+
+  /**
+   * Reads a snapshot written by {@link #writeToParcel}, sharing unchanged nodes with the one read before it.
+   */
+  static @NonNull ElementSnapshot readFromParcel(@NonNull Parcel in, @Nullable ElementSnapshot previous) {
+    final Map<UUID, byte[]> shared = previous != null ? previous.nodeMap() : null;
+    final int               count  = in.readInt();
+    final UUID[]            ids    = new UUID[count];
+    final byte[][]          nodes  = new byte[count][];
+
+    for (int i = 0; i < count; i++) {
+      byte[] node  = in.createByteArray();
+      byte[] prior = null;
+
+      ids[i] = ParcelUtils.readUUID(in);
+
+      if (shared != null) {
+        prior = shared.get(ids[i]);
+      }
+
+      nodes[i] = prior != null && Arrays.equals(prior, node) ? prior : node;
+    }
+
+    return new ElementSnapshot(ids, nodes);
+  }
+
+  void writeToParcel(@NonNull Parcel dest) {
+    dest.writeInt(nodes.length);
+    for (int i = 0; i < nodes.length; i++) {
+      dest.writeByteArray(nodes[i]);
+      ParcelUtils.writeUUID(dest, ids[i]);
+    }
+  }
+
+  @NonNull EditorElement toElement() {
+    return EditorElement.fromNodes(Arrays.asList(nodes).iterator());
+  }
+
+  boolean sameAs(@NonNull ElementSnapshot other) {
+    if (other == this) return true;
+    if (other.nodes.length != nodes.length) return false;
+
+    for (int i = 0; i < nodes.length; i++) {
+      if (!Arrays.equals(nodes[i], other.nodes[i])) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private @NonNull Map<UUID, byte[]> nodeMap() {
+    if (nodeMap == null) {
+      Map<UUID, byte[]> map = new HashMap<>(ids.length * 2);
+      for (int i = 0; i < ids.length; i++) {
+        map.put(ids[i], nodes[i]);
+      }
+      nodeMap = map;
+    }
+    return nodeMap;
+  }
+}
@@ -5,13 +5,13 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.util.Arrays;
 import java.util.Stack;
 
 /**
  * Contains a stack of elements for undo and redo stacks.
  * <p>
- * Elements are mutable, so this stack serializes the element and keeps a stack of serialized data.
+ * Elements are mutable, so this stack keeps a stack of {@link ElementSnapshot}s. Each snapshot shares the nodes of
+ * elements that did not change with the one below it, so a push only adds the elements that were edited.
  * <p>
  * The stack has a {@link #limit} and if it exceeds that limit during a push the second to earliest item
  * is removed so that it can always go back to the first state. Effectively collapsing the history for
@@ -19,8 +19,8 @@ import java.util.Stack;
  */
 final class ElementStack implements Parcelable {
 
-  private final int           limit;
-  private final Stack<byte[]> stack = new Stack<>();
+  private final int                    limit;
+  private final Stack<ElementSnapshot> stack = new Stack<>();
 
   ElementStack(int limit) {
     this.limit = limit;
@@ -30,7 +30,7 @@ final class ElementStack implements Parcelable {
     this(in.readInt());
     final int count = in.readInt();
     for (int i = 0; i < count; i++) {
-      stack.add(i, in.createByteArray());
+      stack.add(i, ElementSnapshot.readFromParcel(in, i > 0 ? stack.get(i - 1) : null));
     }
   }
 
@@ -44,11 +44,11 @@ final class ElementStack implements Parcelable {
    * @return true iff the pushed item was different to the top item.
    */
   boolean tryPush(@NonNull EditorElement element) {
-    byte[]  bytes = getBytes(element);
-    boolean push  = stack.isEmpty() || !Arrays.equals(bytes, stack.peek());
+    ElementSnapshot snapshot = snapshot(element);
+    boolean         push     = stack.isEmpty() || !snapshot.sameAs(stack.peek());
 
     if (push) {
-      stack.push(bytes);
+      stack.push(snapshot);
       if (stack.size() > limit) {
         stack.remove(1);
       }
@@ -56,16 +56,11 @@ final class ElementStack implements Parcelable {
     return push;
   }
 
-  static byte[] getBytes(@NonNull Parcelable parcelable) {
-    Parcel parcel = Parcel.obtain();
-    byte[] bytes;
-    try {
-      parcel.writeParcelable(parcelable, 0);
-      bytes = parcel.marshall();
-    } finally {
-      parcel.recycle();
-    }
-    return bytes;
+  /**
+   * Snapshots the element, sharing unchanged nodes with the top of the stack.
+   */
+  private @NonNull ElementSnapshot snapshot(@NonNull EditorElement element) {
+    return ElementSnapshot.of(element, stack.isEmpty() ? null : stack.peek());
   }
 
   /**
@@ -74,27 +69,20 @@ final class ElementStack implements Parcelable {
   @Nullable EditorElement pop(@NonNull EditorElement element) {
     if (stack.empty()) return null;
 
-    byte[] elementBytes = getBytes(element);
-    byte[] stackData    = null;
+    ElementSnapshot current   = snapshot(element);
+    ElementSnapshot stackData = null;
 
     while (!stack.empty() && stackData == null) {
-      byte[] topData = stack.pop();
+      ElementSnapshot top = stack.pop();
 
-      if (!Arrays.equals(topData, elementBytes)) {
-        stackData = topData;
+      if (!top.sameAs(current)) {
+        stackData = top;
       }
     }
 
     if (stackData == null) return null;
 
-    Parcel parcel = Parcel.obtain();
-    try {
-      parcel.unmarshall(stackData, 0, stackData.length);
-      parcel.setDataPosition(0);
-      return parcel.readParcelable(EditorElement.class.getClassLoader());
-    } finally {
-      parcel.recycle();
-    }
+    return stackData.toElement();
   }
 
   void clear() {
@@ -124,21 +112,21 @@ final class ElementStack implements Parcelable {
     final int count = stack.size();
     dest.writeInt(count);
     for (int i = 0; i < count; i++) {
-      dest.writeByteArray(stack.get(i));
+      stack.get(i).writeToParcel(dest);
     }
   }
 
   boolean stackContainsStateDifferentFrom(@NonNull EditorElement element) {
     if (stack.isEmpty()) return false;
 
-    byte[] currentStateBytes = getBytes(element);
+    ElementSnapshot currentState = snapshot(element);
 
-    for (byte[] item : stack) {
-      if (!Arrays.equals(item, currentStateBytes)) {
+    for (ElementSnapshot item : stack) {
+      if (!item.sameAs(currentState)) {
         return true;
       }
     }
 
     return false;
   }
-}
\ No newline at end of file
+}
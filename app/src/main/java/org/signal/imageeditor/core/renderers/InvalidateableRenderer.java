@@ -2,18 +2,22 @@ package org.signal.imageeditor.core.renderers;
 
 import androidx.annotation.NonNull;
 
-import org.signal.imageeditor.core.Renderer;
+import org.signal.imageeditor.core.MutableRenderer;
 import org.signal.imageeditor.core.RendererContext;
 
 import java.lang.ref.WeakReference;
 
 /**
  * Maintains a weak reference to the an invalidate callback allowing future invalidation without memory leak risk.
+ * <p>
+ * Every change to what is drawn goes through {@link #invalidate()}, so it also moves the {@link #getRevision()}.
  */
-abstract class InvalidateableRenderer implements Renderer {
+abstract class InvalidateableRenderer implements MutableRenderer {
 
   private WeakReference<RendererContext.Invalidate> invalidate = new WeakReference<>(null);
 
+  private int revision;
+
   @Override
   public void render(@NonNull RendererContext rendererContext) {
     setInvalidate(rendererContext.invalidate);
@@ -25,7 +29,14 @@ abstract class InvalidateableRenderer implements Renderer {
     }
   }
 
+  @Override
+  public int getRevision() {
+    return revision;
+  }
+
   protected void invalidate() {
+    revision++;
+
     RendererContext.Invalidate invalidate = this.invalidate.get();
     if (invalidate != null) {
       invalidate.onInvalidate(this);
@@ -717,6 +717,8 @@ public class TBDRegistrationActivity extends BaseActivity implements Verificatio
               final String passphrase = prompt.getText().toString();
 
               new AsyncTask<Void, Void, BackupImportResult>() {
+                private String missingBase;//AA+
+
                 @Override
                 protected BackupImportResult doInBackground(Void... voids) {
                   try {
@@ -736,6 +738,10 @@ public class TBDRegistrationActivity extends BaseActivity implements Verificatio
                   } catch (FullBackupImporter.DatabaseDowngradeException e) {
                     Log.w(TAG, "Failed due to the backup being from a newer version of unfacd.", e);
                     return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+                  } catch (FullBackupImporter.MissingBaseBackupException e) {//AA+
+                    Log.w(TAG, "Failed due to the base of a differential backup being unavailable.", e);
+                    missingBase = e.getBase();
+                    return BackupImportResult.FAILURE_MISSING_BASE;
                   } catch (IOException e) {
                     Log.w(TAG, e);
                     return BackupImportResult.FAILURE_UNKNOWN;
@@ -755,6 +761,9 @@ public class TBDRegistrationActivity extends BaseActivity implements Verificatio
                     case FAILURE_VERSION_DOWNGRADE:
                       Toast.makeText(TBDRegistrationActivity.this, R.string.RegistrationActivity_backup_failure_downgrade, Toast.LENGTH_LONG).show();
                       break;
+                    case FAILURE_MISSING_BASE://AA+
+                      Toast.makeText(TBDRegistrationActivity.this, getString(R.string.RestoreBackupFragment__full_backup_s_not_found, missingBase), Toast.LENGTH_LONG).show();
+                      break;
                     case FAILURE_UNKNOWN:
                       Toast.makeText(TBDRegistrationActivity.this, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
                       break;
@@ -1742,6 +1751,6 @@ public class TBDRegistrationActivity extends BaseActivity implements Verificatio
   }
 
   private enum BackupImportResult {
-    SUCCESS, FAILURE_VERSION_DOWNGRADE, FAILURE_UNKNOWN
+    SUCCESS, FAILURE_VERSION_DOWNGRADE, FAILURE_MISSING_BASE, FAILURE_UNKNOWN
   }
 }
@@ -0,0 +1,337 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and writes backup frames in stages. Frames are handed over in order by the caller, a few workers encrypt and
+ * MAC them in parallel, reading attachment streams as they go, and a single writer puts them out in the order they were
+ * handed over.
+ *
+ * Every frame is encrypted under its own counter, assigned on hand over, so the output is byte for byte what encrypting
+ * the frames one after the other gives, and {@link FullBackupImporter} reads it as before.
+ *
+ * Queues between stages are bounded: the caller blocks once {@link #MAX_PENDING_FRAMES} frames are waiting to be
+ * written, and a stream runs at most {@link #MAX_PENDING_CHUNKS} chunks ahead of the writer. A failure in any stage
+ * stops the others, and is rethrown to the caller on its next call.
+ *
+ * The stages run on {@link SignalExecutors#UNBOUNDED}, as they block on each other and on attachment reads for as long
+ * as the export takes.
+ */
+final class BackupFramePipeline implements Closeable {
+
+  private static final String TAG = Log.tag(BackupFramePipeline.class);
+
+  private static final int  MAX_PENDING_FRAMES = 128;
+  private static final int  MAX_PENDING_CHUNKS = 8;
+  private static final int  CHUNK_SIZE         = 64 * 1024;
+  private static final int  MAC_LENGTH         = 10;
+  private static final long POLL_MILLIS        = 100;
+
+  private static final byte[] END_OF_FRAME = new byte[0];
+
+  private final OutputStream         output;
+  private final SecretKeySpec        cipherKey;
+  private final SecretKeySpec        macKey;
+  private final byte[]               iv;
+  private final BlockingQueue<Frame> pendingEncryption;
+  private final BlockingQueue<Frame> pendingWrite;
+  private final Future<?>[]          workers;
+  private final Future<?>            writer;
+
+  private int counter;
+
+  private volatile boolean   inputEnded;
+  private volatile Throwable failure;
+
+  BackupFramePipeline(@NonNull OutputStream output, @NonNull byte[] cipherKey, @NonNull byte[] macKey, @NonNull byte[] iv) {
+    this.output            = output;
+    this.cipherKey         = new SecretKeySpec(cipherKey, "AES");
+    this.macKey            = new SecretKeySpec(macKey, "HmacSHA256");
+    this.iv                = iv.clone();
+    this.counter           = Conversions.byteArrayToInt(iv);
+    this.pendingEncryption = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+    this.pendingWrite      = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+    this.workers           = new Future<?>[Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1))];
+
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = SignalExecutors.UNBOUNDED.submit(this::encrypt);
+    }
+
+    this.writer = SignalExecutors.UNBOUNDED.submit(this::writeInOrder);
+  }
+
+  /**
+   * Hands over a frame to be encrypted and written.
+   */
+  void write(@NonNull byte[] frame) throws IOException {
+    submit(new Frame(frame, counter++, null, 0, 0));
+  }
+
+  /**
+   * Hands over a frame followed by the stream it describes, which is read and closed by the pipeline. The stream must be
+   * exactly length bytes long.
+   */
+  void write(@NonNull byte[] frame, @NonNull InputStream stream, long length) throws IOException {
+    int frameCounter  = counter++;
+    int streamCounter = counter++;
+
+    submit(new Frame(frame, frameCounter, stream, length, streamCounter));
+  }
+
+  /**
+   * Waits for every frame handed over to be written and flushed.
+   */
+  void finish() throws IOException {
+    inputEnded = true;
+
+    join(writer);
+    for (Future<?> worker : workers) {
+      join(worker);
+    }
+
+    throwIfFailed();
+    output.flush();
+  }
+
+  /**
+   * Stops all stages, dropping frames not yet written and closing their streams. Doesn't close the output stream.
+   */
+  @Override
+  public void close() {
+    inputEnded = true;
+
+    if (!writer.isDone()) {
+      fail(new IOException("Backup pipeline closed before finishing"));
+    }
+
+    try {
+      join(writer);
+      for (Future<?> worker : workers) {
+        join(worker);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Interrupted stopping the pipeline", e);
+    }
+
+    // A frame stays in the encryption queue until a worker takes it and closes its stream, which also covers the frame
+    // the writer was waiting on when it stopped.
+    drain(pendingEncryption);
+    drain(pendingWrite);
+  }
+
+  private static void drain(@NonNull BlockingQueue<Frame> queue) {
+    Frame frame;
+    while ((frame = queue.poll()) != null) {
+      frame.closeStream();
+    }
+  }
+
+  private void submit(@NonNull Frame frame) throws IOException {
+    try {
+      offer(pendingWrite, frame);
+      offer(pendingEncryption, frame);
+    } catch (IOException e) {
+      frame.closeStream();
+      throw e;
+    }
+  }
+
+  private void encrypt() {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Mac    mac    = Mac.getInstance("HmacSHA256");
+
+      mac.init(macKey);
+
+      while (failure == null) {
+        Frame frame = pendingEncryption.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (frame == null) {
+          if (inputEnded && pendingEncryption.isEmpty()) return;
+          continue;
+        }
+
+        try {
+          encryptFrame(frame, cipher, mac);
+          if (frame.stream != null) {
+            encryptStream(frame, cipher, mac);
+          }
+          offer(frame.chunks, END_OF_FRAME);
+        } finally {
+          frame.closeStream();
+        }
+      }
+    } catch (Throwable t) {
+      fail(t);
+    }
+  }
+
+  private void encryptFrame(@NonNull Frame frame, @NonNull Cipher cipher, @NonNull Mac mac) throws IOException, GeneralSecurityException {
+    cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(ivFor(frame.counter)));
+
+    byte[] frameCiphertext = cipher.doFinal(frame.frame);
+    byte[] frameMac        = mac.doFinal(frameCiphertext);
+    byte[] chunk           = new byte[4 + frameCiphertext.length + MAC_LENGTH];
+
+    Conversions.intToByteArray(chunk, 0, frameCiphertext.length + MAC_LENGTH);
+    System.arraycopy(frameCiphertext, 0, chunk, 4, frameCiphertext.length);
+    System.arraycopy(frameMac, 0, chunk, 4 + frameCiphertext.length, MAC_LENGTH);
+
+    offer(frame.chunks, chunk);
+  }
+
+  private void encryptStream(@NonNull Frame frame, @NonNull Cipher cipher, @NonNull Mac mac) throws IOException, GeneralSecurityException {
+    byte[] streamIv = ivFor(frame.streamCounter);
+
+    cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(streamIv));
+    mac.update(streamIv);
+
+    byte[] buffer = new byte[CHUNK_SIZE];
+    long   total  = 0;
+    int    read;
+
+    while ((read = frame.stream.read(buffer)) != -1) {
+      byte[] ciphertext = cipher.update(buffer, 0, read);
+
+      if (ciphertext != null && ciphertext.length > 0) {
+        mac.update(ciphertext);
+        offer(frame.chunks, ciphertext);
+      }
+
+      total += read;
+    }
+
+    byte[] remainder = cipher.doFinal();
+    mac.update(remainder);
+
+    byte[] digest = mac.doFinal();
+    byte[] chunk  = new byte[remainder.length + MAC_LENGTH];
+
+    System.arraycopy(remainder, 0, chunk, 0, remainder.length);
+    System.arraycopy(digest, 0, chunk, remainder.length, MAC_LENGTH);
+
+    offer(frame.chunks, chunk);
+
+    if (total != frame.length) {
+      throw new IOException("Size mismatch!");
+    }
+  }
+
+  private void writeInOrder() {
+    try {
+      while (failure == null) {
+        Frame frame = pendingWrite.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (frame == null) {
+          if (inputEnded && pendingWrite.isEmpty()) return;
+          continue;
+        }
+
+        while (true) {
+          byte[] chunk = frame.chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+          if (chunk == END_OF_FRAME) break;
+          if (chunk != null)         output.write(chunk);
+          else if (failure != null)  return;
+        }
+      }
+    } catch (Throwable t) {
+      fail(t);
+    }
+  }
+
+  private @NonNull byte[] ivFor(int counter) {
+    byte[] frameIv = iv.clone();
+    Conversions.intToByteArray(frameIv, 0, counter);
+    return frameIv;
+  }
+
+  private <E> void offer(@NonNull BlockingQueue<E> queue, @NonNull E element) throws IOException {
+    try {
+      while (!queue.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        throwIfFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() throws IOException {
+    Throwable failure = this.failure;
+
+    if (failure == null)                return;
+    if (failure instanceof IOException) throw (IOException) failure;
+
+    throw new IOException(failure);
+  }
+
+  private synchronized void fail(@NonNull Throwable t) {
+    if (failure == null) {
+      Log.w(TAG, "Stopping backup pipeline", t);
+      failure = t;
+    }
+  }
+
+  /**
+   * Stages report their failures through {@link #fail(Throwable)}, so only an interrupt is thrown from here.
+   */
+  private static void join(@NonNull Future<?> stage) throws IOException {
+    try {
+      stage.get();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Log.w(TAG, "Stage stopped unexpectedly", e);
+    }
+  }
+
+  private static final class Frame {
+    private final byte[]                frame;
+    private final int                   counter;
+    private final InputStream           stream;
+    private final long                  length;
+    private final int                   streamCounter;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+
+    private Frame(@NonNull byte[] frame, int counter, @Nullable InputStream stream, long length, int streamCounter) {
+      this.frame         = frame;
+      this.counter       = counter;
+      this.stream        = stream;
+      this.length        = length;
+      this.streamCounter = streamCounter;
+    }
+
+    private void closeStream() {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+}
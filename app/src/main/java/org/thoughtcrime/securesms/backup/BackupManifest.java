@@ -0,0 +1,175 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.util.BackupUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The attachments written to the last full local backup, by row and content hash, so the backups that follow can leave
+ * out the ones that haven't changed and point at the full backup instead.
+ *
+ * Differential backups always build on a full one rather than on each other, so restoring one needs at most two files.
+ * Kept in private storage, encrypted with the attachment secret.
+ */
+public final class BackupManifest {
+
+  private static final String TAG = Log.tag(BackupManifest.class);
+
+  private static final String FILE_NAME = "backup_manifest";
+
+  /** How long differential backups keep building on the same full backup. */
+  private static final long FULL_BACKUP_INTERVAL = TimeUnit.DAYS.toMillis(7);
+
+  private final String              base;
+  private final long                timestamp;
+  private final Map<String, String> hashes;
+
+  private BackupManifest(@NonNull BackupProtos.BackupManifest manifest) {
+    this.base      = manifest.getBase();
+    this.timestamp = manifest.getTimestamp();
+    this.hashes    = new HashMap<>(manifest.getEntriesCount());
+
+    for (BackupProtos.BackupManifest.Entry entry : manifest.getEntriesList()) {
+      hashes.put(key(entry.getRowId(), entry.getAttachmentId(), entry.getLength()), entry.getDataHash());
+    }
+  }
+
+  /**
+   * @return the manifest of the full backup the next backup can build on, or null if the next one should be full.
+   */
+  public static @Nullable BackupManifest readCurrent(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, long now) {
+    BackupManifest manifest = read(context, attachmentSecret);
+
+    if (manifest == null || !manifest.isCurrent(now)) {
+      return null;
+    }
+
+    try {
+      if (BackupUtil.getBackupByName(manifest.getBase()) == null) {
+        Log.w(TAG, "Base backup " + manifest.getBase() + " is gone, next backup will be a full one");
+        return null;
+      }
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+
+    return manifest;
+  }
+
+  @VisibleForTesting
+  static @Nullable BackupManifest read(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret) {
+    File file = getFile(context);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (InputStream in = ModernDecryptingPartInputStream.createFor(attachmentSecret, file, 0)) {
+      return new BackupManifest(BackupProtos.BackupManifest.parseFrom(StreamUtil.readFully(in)));
+    } catch (IOException e) {
+      Log.w(TAG, "Unreadable manifest, next backup will be a full one", e);
+      return null;
+    }
+  }
+
+  public static void clear(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete manifest");
+    }
+  }
+
+  /**
+   * @return the file name of the full backup this manifest describes.
+   */
+  public @NonNull String getBase() {
+    return base;
+  }
+
+  private boolean isCurrent(long now) {
+    return now - timestamp < FULL_BACKUP_INTERVAL && now >= timestamp;
+  }
+
+  /**
+   * @return true if the base backup holds this attachment with the same content.
+   */
+  boolean contains(long rowId, long attachmentId, long length, @Nullable String dataHash) {
+    return dataHash != null && dataHash.equals(hashes.get(key(rowId, attachmentId, length)));
+  }
+
+  private static @NonNull String key(long rowId, long attachmentId, long length) {
+    return rowId + ":" + attachmentId + ":" + length;
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  /**
+   * Collects the attachments streamed into a full backup while it's being written.
+   */
+  public static final class Builder {
+
+    private final BackupProtos.BackupManifest.Builder manifest;
+
+    public Builder(@NonNull String base, long timestamp) {
+      this.manifest = BackupProtos.BackupManifest.newBuilder()
+                                                 .setBase(base)
+                                                 .setTimestamp(timestamp);
+    }
+
+    void add(long rowId, long attachmentId, long length, @Nullable String dataHash) {
+      if (dataHash != null) {
+        manifest.addEntries(BackupProtos.BackupManifest.Entry.newBuilder()
+                                                             .setRowId(rowId)
+                                                             .setAttachmentId(attachmentId)
+                                                             .setLength((int) length)
+                                                             .setDataHash(dataHash));
+      }
+    }
+
+    /**
+     * Replaces the stored manifest. Call once the backup it describes is in place. Should that fail, the stored one is
+     * dropped too, so the next backup is a full one.
+     */
+    public void write(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret) {
+      File file = getFile(context);
+      File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+      try {
+        try (OutputStream out = ModernEncryptingPartOutputStream.createFor(attachmentSecret, temp, true).second) {
+          manifest.build().writeTo(out);
+        }
+
+        if (!temp.renameTo(file)) {
+          throw new IOException("Failed to replace manifest");
+        }
+
+        Log.i(TAG, "Wrote manifest for " + manifest.getBase() + " with " + manifest.getEntriesCount() + " attachments");
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        clear(context);
+      }
+    }
+  }
+}
@@ -54,22 +54,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -84,6 +73,10 @@ public class FullBackupExporter extends FullBackupBase {
   private static final long IDENTITY_KEY_BACKUP_RECORD_COUNT = 2L;
   private static final long FINAL_MESSAGE_COUNT = 1L;
 
+  private static final long PROGRESS_INTERVAL_MILLIS = 250;//AA+
+
+  private static long lastProgressTime;//AA+
+
   private static final Set<String> BLACKLISTED_TABLES = SetUtil.newHashSet(
           SignedPreKeyDatabase.TABLE_NAME,
           OneTimePreKeyDatabase.TABLE_NAME,
@@ -102,11 +95,13 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull SQLiteDatabase input,
                             @NonNull File output,
                             @NonNull String passphrase,
+                            @Nullable BackupManifest base,//AA+
+                            @Nullable BackupManifest.Builder manifest,//AA+
                             @NonNull BackupCancellationSignal cancellationSignal)
           throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      internalExport(context, attachmentSecret, input, outputStream, passphrase, base, manifest, true, cancellationSignal);
     }
   }
 
@@ -116,11 +111,13 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull SQLiteDatabase input,
                             @NonNull DocumentFile output,
                             @NonNull String passphrase,
+                            @Nullable BackupManifest base,//AA+
+                            @Nullable BackupManifest.Builder manifest,//AA+
                             @NonNull BackupCancellationSignal cancellationSignal)
           throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      internalExport(context, attachmentSecret, input, outputStream, passphrase, base, manifest, true, cancellationSignal);
     }
   }
 
@@ -131,7 +128,7 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
           throws IOException
   {
-    internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false);
+    internalExport(context, attachmentSecret, input, outputStream, passphrase, null, null, false, () -> false);
   }
 
   private static void internalExport(@NonNull Context context,
@@ -139,11 +136,13 @@ public class FullBackupExporter extends FullBackupBase {
                                      @NonNull SQLiteDatabase input,
                                      @NonNull OutputStream fileOutputStream,
                                      @NonNull String passphrase,
+                                     @Nullable BackupManifest base,//AA+
+                                     @Nullable BackupManifest.Builder manifest,//AA+
                                      boolean closeOutputStream,
                                      @NonNull BackupCancellationSignal cancellationSignal)
           throws IOException
   {
-    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase);
+    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase, base != null ? base.getBase() : null);//AA+ base
     int                     count                 = 0;
     long                    estimatedCountOutside = 0L;
 
@@ -172,7 +171,7 @@ public class FullBackupExporter extends FullBackupBase {
         } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessageAndNotReleaseChannel(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessageAndNotReleaseChannel(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessageAndNotReleaseChannel(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, base, manifest, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (table.equals(StickerDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
@@ -183,7 +182,7 @@ public class FullBackupExporter extends FullBackupBase {
 
       for (BackupProtos.SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+        postProgress(++count, estimatedCount);
         outputStream.write(preference);
       }
 
@@ -196,7 +195,7 @@ public class FullBackupExporter extends FullBackupBase {
       for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+          postProgress(++count, estimatedCount);
           outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
         }
       }
@@ -208,6 +207,8 @@ public class FullBackupExporter extends FullBackupBase {
     } finally {
       if (closeOutputStream) {
         outputStream.close();
+      } else {
+        outputStream.stop();
       }
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count, estimatedCountOutside));
     }
@@ -301,21 +302,16 @@ public class FullBackupExporter extends FullBackupBase {
                                  @NonNull BackupCancellationSignal cancellationSignal)
           throws IOException
   {
-    String template = "INSERT INTO " + table + " VALUES ";
-
     try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+      String statement = cursor != null ? buildInsertTemplate(table, cursor.getColumnCount()) : null;
+
       while (cursor != null && cursor.moveToNext()) {
         throwIfCanceled(cancellationSignal);
 
         if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
           BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
 
-          statement.append('(');
-
           for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
             if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
               statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
             } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
@@ -329,16 +325,10 @@ public class FullBackupExporter extends FullBackupBase {
             } else {
               throw new AssertionError("unknown type?"  + cursor.getType(i));
             }
-
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
           }
 
-          statement.append(')');
-
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+          postProgress(++count, estimatedCount);
+          outputStream.write(statementBuilder.setStatement(statement).build());
 
           if (postProcess != null) {
             count = postProcess.postProcess(cursor, count);
@@ -350,7 +340,35 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, int count, long estimatedCount) {
+  /**
+   * The statement is the same for every row of a table, so it's built once per table.
+   */
+  private static @NonNull String buildInsertTemplate(@NonNull String table, int columnCount) {
+    StringBuilder statement = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+
+    for (int i = 0; i < columnCount; i++) {
+      statement.append(i == 0 ? "?" : ",?");
+    }
+
+    return statement.append(')').toString();
+  }
+
+  /**
+   * Progress is counted per frame, but only posted a few times a second, as each event redraws the progress UI.
+   */
+  private static void postProgress(int count, long estimatedCount) {
+    long now = System.currentTimeMillis();
+
+    if (now - lastProgressTime >= PROGRESS_INTERVAL_MILLIS) {
+      lastProgressTime = now;
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, estimatedCount));
+    }
+  }
+
+  /**
+   * Attachments the base backup already holds with the same content are only referenced, not streamed again.
+   */
+  private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream, @Nullable BackupManifest base, @Nullable BackupManifest.Builder manifest, int count, long estimatedCount) {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
       long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
@@ -359,7 +377,8 @@ public class FullBackupExporter extends FullBackupBase {
       String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
 
-      String ufId = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.UFID)); //AA+
+      String ufId     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.UFID)); //AA+
+      String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_HASH)); //AA+
 
       if (!TextUtils.isEmpty(data)) {
         long fileLength = new File(data).length();
@@ -371,14 +390,19 @@ public class FullBackupExporter extends FullBackupBase {
         }
       }
 
-      if (!TextUtils.isEmpty(data) && size > 0) {
+      if (!TextUtils.isEmpty(data) && size > 0 && base != null && base.contains(rowId, uniqueId, size, dataHash)) {//AA+
+        postProgress(++count, estimatedCount);
+        outputStream.writeInBase(new AttachmentId(rowId, uniqueId, ufId), size);
+      } else if (!TextUtils.isEmpty(data) && size > 0) {
         InputStream inputStream;
 
         if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
         else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
 
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+        postProgress(++count, estimatedCount);
         outputStream.write(new AttachmentId(rowId, uniqueId, ufId), inputStream, size); //AA+ ufid
+
+        if (manifest != null) manifest.add(rowId, uniqueId, size, dataHash);//AA+
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -396,7 +420,7 @@ public class FullBackupExporter extends FullBackupBase {
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_RANDOM));
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+        postProgress(++count, estimatedCount);
         InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
         outputStream.writeSticker(rowId, inputStream, size);
       }
@@ -468,7 +492,7 @@ public class FullBackupExporter extends FullBackupBase {
         throw new AssertionError("Unknown type: " + type);
       }
 
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+      postProgress(++count, estimatedCount);
       outputStream.write(builder.build());
     }
 
@@ -525,168 +549,123 @@ public class FullBackupExporter extends FullBackupBase {
     return releaseChannel == null || cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.RECIPIENT_ID)) != releaseChannel.toLong();
   }
 
+  /**
+   * Frames are handed to a {@link BackupFramePipeline}, which encrypts and writes them off the calling thread, so the
+   * next rows can be read while earlier ones are encrypted. Only the header is written directly.
+   */
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private final OutputStream        outputStream;
+    private final BackupFramePipeline pipeline;
 
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, @Nullable String base) throws IOException {
+      byte[]   salt    = Util.getSecretBytes(32);
+      byte[]   key     = getBackupKey(passphrase, salt);
+      byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+      byte[]   iv      = Util.getSecretBytes(16);
 
-    private byte[] iv;
-    private int    counter;
+      BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                     .setIv(ByteString.copyFrom(iv))
+                                                                     .setSalt(ByteString.copyFrom(salt));
 
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
+      if (base != null) headerBuilder.setBase(base);//AA+
 
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
+      byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
 
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
+      output.write(Conversions.intToByteArray(header.length));
+      output.write(header);
 
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                .setIv(ByteString.copyFrom(iv))
-                                                                                .setSalt(ByteString.copyFrom(salt)))
-                .build().toByteArray();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+      this.outputStream = output;
+      this.pipeline     = new BackupFramePipeline(output, split[0], split[1], iv);
     }
 
     public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+      write(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+      write(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
     }
 
     public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+      write(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-              .setAvatar(BackupProtos.Avatar.newBuilder()
-                                 .setRecipientId(avatarName)
-                                 .setLength(Util.toIntExact(size))
-                                 .build())
-              .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      pipeline.write(BackupProtos.BackupFrame.newBuilder()
+                                             .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                           .setRecipientId(avatarName)
+                                                                           .setLength(Util.toIntExact(size))
+                                                                           .build())
+                                             .build()
+                                             .toByteArray(), in, size);
     }
 
     public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
+      pipeline.write(BackupProtos.BackupFrame.newBuilder()
+                                             .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                                   .setRowId(attachmentId.getRowId())
+                                                                                   .setAttachmentId(attachmentId.getUniqueId())
+                                                                                   .setLength(Util.toIntExact(size))
+                                                                                   .setUfId(attachmentId.getUfId())//AA+
+                                                                                   .build())
+                                             .build()
+                                             .toByteArray(), in, size);
+    }
+
+    /**
+     * Writes the attachment's frame with no stream after it, its content being in the base backup.
+     */
+    public void writeInBase(@NonNull AttachmentId attachmentId, long size) throws IOException {//AA+
+      write(BackupProtos.BackupFrame.newBuilder()
               .setAttachment(BackupProtos.Attachment.newBuilder()
                                      .setRowId(attachmentId.getRowId())
                                      .setAttachmentId(attachmentId.getUniqueId())
                                      .setLength(Util.toIntExact(size))
-                                     .setUfId(attachmentId.getUfId())//AA+
+                                     .setUfId(attachmentId.getUfId())
+                                     .setInBase(true)
                                      .build())
               .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
     }
 
     public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-              .setSticker(BackupProtos.Sticker.newBuilder()
-                                  .setRowId(rowId)
-                                  .setLength(Util.toIntExact(size))
-                                  .build())
-              .build());
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      pipeline.write(BackupProtos.BackupFrame.newBuilder()
+                                             .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                             .setRowId(rowId)
+                                                                             .setLength(Util.toIntExact(size))
+                                                                             .build())
+                                             .build()
+                                             .toByteArray(), in, size);
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
+      write(BackupProtos.BackupFrame.newBuilder()
               .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
               .build());
     }
 
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
-    }
-
     /**
-     * @return The amount of data written from the provided InputStream.
+     * Writes the end frame and waits for everything before it to be written out.
      */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-
-          total += read;
-        }
-
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
-
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+    void writeEnd() throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      pipeline.finish();
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
-
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
+    private void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      pipeline.write(frame.toByteArray());
     }
 
+    /**
+     * Stops the pipeline without closing the underlying stream. Frames not yet written are dropped.
+     */
+    void stop() {
+      pipeline.close();
+    }
 
     public void close() throws IOException {
+      pipeline.close();
       outputStream.close();
     }
   }
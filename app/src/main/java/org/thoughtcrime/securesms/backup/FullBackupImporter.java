@@ -2,11 +2,13 @@ package org.thoughtcrime.securesms.backup;
 
 
 import android.annotation.SuppressLint;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.provider.DocumentsContract;
 import android.util.Pair;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
@@ -26,6 +28,7 @@ import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.EmojiSearchDatabase;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.StickerDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -49,9 +52,11 @@ import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import javax.crypto.BadPaddingException;
@@ -63,6 +68,8 @@ import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
 
 public class FullBackupImporter extends FullBackupBase {
 
@@ -83,9 +90,21 @@ public class FullBackupImporter extends FullBackupBase {
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
           throws IOException
+  {
+    importFile(context, attachmentSecret, db, uri, null, passphrase);//AA+
+  }
+
+  /**
+   * @param baseUri the full backup the given one builds on, if the user picked it. Otherwise it's looked for next to the
+   *                given file, then in the backup directory.
+   * @throws MissingBaseBackupException if the given backup is differential and its base can't be found or opened.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,//AA+
+                                @NonNull SQLiteDatabase db, @NonNull Uri uri, @Nullable Uri baseUri, @NonNull String passphrase)
+          throws IOException
   {
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importFile(context, attachmentSecret, db, is, uri, baseUri, passphrase);
     }
   }
 
@@ -93,7 +112,20 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
           throws IOException
   {
-    int count = 0;
+    importFile(context, attachmentSecret, db, is, null, null, passphrase);//AA+
+  }
+
+  /**
+   * A differential backup only references attachments its base backup holds. Those are restored from the base once
+   * everything else is in. Without a file to look next to, or when the base can't be opened, the whole import fails
+   * rather than leaving them missing.
+   */
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db,
+                                 @NonNull InputStream is, @Nullable Uri uri, @Nullable Uri baseUri, @NonNull String passphrase)
+          throws IOException
+  {
+    int                     count  = 0;
+    Map<String, Attachment> inBase = new HashMap<>();//AA+
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
@@ -114,6 +146,7 @@ public class FullBackupImporter extends FullBackupBase {
         if      (frame.hasVersion())    processVersion(db, frame.getVersion());
         else if (frame.hasStatement())  processStatement(db, frame.getStatement());
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
+        else if (frame.hasAttachment() && frame.getAttachment().getInBase()) inBase.put(getKey(frame.getAttachment()), frame.getAttachment());//AA+
         else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
         else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
         else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
@@ -121,6 +154,27 @@ public class FullBackupImporter extends FullBackupBase {
         else                            count--;
       }
 
+      //AA+
+      if (!inBase.isEmpty()) {
+        String base = inputStream.getBase();
+
+        if (base == null) {
+          throw new IOException("Backup references a base backup without naming it!");
+        }
+
+        if (uri == null) {
+          throw new MissingBaseBackupException(base);
+        }
+
+        restoreFromBase(context, attachmentSecret, db, findBase(context, uri, baseUri, base), base, passphrase, inBase);
+
+        for (Attachment attachment : inBase.values()) {
+          Log.w(TAG, "Attachment " + attachment.getAttachmentId() + " wasn't found in the base backup! Can't restore it.");
+          clearAttachmentData(db, attachment);
+        }
+      }
+      //
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -131,6 +185,116 @@ public class FullBackupImporter extends FullBackupBase {
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count, 0));
   }
 
+  /**
+   * @return the file name of the full backup the given one builds on, or null if it's a full backup itself.
+   */
+  public static @Nullable String getBaseName(@NonNull Context context, @NonNull Uri uri) throws IOException {//AA+
+    try (InputStream is = getInputStream(context, uri)) {
+      BackupProtos.Header header = readHeader(is);
+      return header.hasBase() ? header.getBase() : null;
+    }
+  }
+
+  /**
+   * @return the base backup to read, preferring the one the user picked, then a file of that name next to the given
+   *         backup, then the one in the backup directory.
+   */
+  private static @NonNull Uri findBase(@NonNull Context context, @NonNull Uri uri, @Nullable Uri baseUri, @NonNull String base)//AA+
+          throws MissingBaseBackupException
+  {
+    if (baseUri != null) {
+      String name = ContentResolver.SCHEME_FILE.equals(baseUri.getScheme()) ? new File(Objects.requireNonNull(baseUri.getPath())).getName()
+                                                                             : Objects.requireNonNull(DocumentFile.fromSingleUri(context, baseUri)).getName();
+
+      if (name == null || BackupUtil.getBackupTimestamp(name) != BackupUtil.getBackupTimestamp(base)) {
+        Log.w(TAG, "Picked " + name + " while looking for base backup " + base);
+        throw new MissingBaseBackupException(base);
+      }
+
+      return baseUri;
+    }
+
+    Uri sibling = getSibling(context, uri, base);
+
+    if (sibling != null) {
+      return sibling;
+    }
+
+    try {
+      BackupUtil.BackupInfo backup = BackupUtil.getBackupByName(base);
+
+      if (backup != null) {
+        return backup.getUri();
+      }
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, e);
+    }
+
+    Log.w(TAG, "Base backup " + base + " not found!");
+    throw new MissingBaseBackupException(base);
+  }
+
+  /**
+   * A file picked on its own grants no access to the rest of its folder, so only plain files and documents under a
+   * granted tree can have their siblings looked up.
+   */
+  private static @Nullable Uri getSibling(@NonNull Context context, @NonNull Uri uri, @NonNull String name) {//AA+
+    if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+      File sibling = new File(new File(Objects.requireNonNull(uri.getPath())).getParentFile(), name);
+      return sibling.exists() ? Uri.fromFile(sibling) : null;
+    }
+
+    if (DocumentsContract.isTreeUri(uri)) {
+      Uri          tree    = DocumentsContract.buildTreeDocumentUri(uri.getAuthority(), DocumentsContract.getTreeDocumentId(uri));
+      DocumentFile sibling = Objects.requireNonNull(DocumentFile.fromTreeUri(context, tree)).findFile(name);
+
+      return sibling != null ? sibling.getUri() : null;
+    }
+
+    return null;
+  }
+
+  /**
+   * Reads through the base backup for the given attachments, removing each one restored from the map. Nothing else in
+   * the base is applied.
+   */
+  private static void restoreFromBase(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db,
+                                      @NonNull Uri baseUri, @NonNull String base, @NonNull String passphrase,
+                                      @NonNull Map<String, Attachment> inBase)
+          throws IOException
+  {
+    Log.i(TAG, "Restoring " + inBase.size() + " attachments from base backup " + base);
+
+    InputStream is;
+
+    try {
+      is = getInputStream(context, baseUri);
+    } catch (IOException | SecurityException e) {
+      throw new MissingBaseBackupException(base, e);
+    }
+
+    try (InputStream in = is) {
+      BackupRecordInputStream inputStream = new BackupRecordInputStream(in, passphrase);
+      BackupFrame             frame;
+
+      while (!inBase.isEmpty() && !(frame = inputStream.readFrame()).getEnd()) {
+        if (frame.hasAttachment() && inBase.remove(getKey(frame.getAttachment())) != null) {
+          processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+        } else if (frame.hasAttachment()) {
+          inputStream.skipAttachment(frame.getAttachment().getLength());
+        } else if (frame.hasSticker()) {
+          inputStream.skipAttachment(frame.getSticker().getLength());
+        } else if (frame.hasAvatar()) {
+          inputStream.skipAttachment(frame.getAvatar().getLength());
+        }
+      }
+    }
+  }
+
+  private static @NonNull String getKey(@NonNull Attachment attachment) {
+    return attachment.getRowId() + ":" + attachment.getAttachmentId();
+  }
+
   private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
@@ -191,6 +355,18 @@ public class FullBackupImporter extends FullBackupBase {
       contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
     }
 
+    updateAttachment(db, attachment, contentValues);//AA+
+  }
+
+  private static void clearAttachmentData(@NonNull SQLiteDatabase db, @NonNull Attachment attachment) {//AA+
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(AttachmentDatabase.DATA, (String) null);
+    contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+
+    updateAttachment(db, attachment, contentValues);
+  }
+
+  private static void updateAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @NonNull ContentValues contentValues) {//AA+
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ? AND " + AttachmentDatabase.UFID + " = ?", //AA+
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId()), attachment.getUfId()}); //AA+ Ufid
@@ -311,26 +487,16 @@ public class FullBackupImporter extends FullBackupBase {
     private byte[] iv;
     private int    counter;
 
+    private final String base;//AA+
+
     private BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
       try {
         this.in = in;
 
-        byte[] headerLengthBytes = new byte[4];
-        StreamUtil.readFully(in, headerLengthBytes);
-
-        int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-        byte[] headerFrame = new byte[headerLength];
-        StreamUtil.readFully(in, headerFrame);
+        BackupProtos.Header header = readHeader(in);//AA+
 
-        BackupFrame frame = BackupFrame.parseFrom(headerFrame);
-
-        if (!frame.hasHeader()) {
-          throw new IOException("Backup stream does not start with header!");
-        }
-
-        BackupProtos.Header header = frame.getHeader();
-
-        this.iv = header.getIv().toByteArray();
+        this.iv   = header.getIv().toByteArray();
+        this.base = header.hasBase() ? header.getBase() : null;//AA+
 
         if (iv.length != 16) {
           throw new IOException("Invalid IV length!");
@@ -357,6 +523,30 @@ public class FullBackupImporter extends FullBackupBase {
       return readFrame(in);
     }
 
+    @Nullable String getBase() {//AA+
+      return base;
+    }
+
+    /**
+     * Moves past a stream without decrypting it, so without checking its MAC.
+     */
+    void skipAttachment(int length) throws IOException {//AA+
+      counter++;
+
+      long remaining = length + 10L;
+
+      while (remaining > 0) {
+        long skipped = in.skip(remaining);
+
+        if (skipped <= 0) {
+          if (in.read() == -1) throw new IOException("File ended early!");
+          skipped = 1;
+        }
+
+        remaining -= skipped;
+      }
+    }
+
     void readAttachmentTo(OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
@@ -435,8 +625,46 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  private static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {//AA+
+    byte[] headerLengthBytes = new byte[4];
+    StreamUtil.readFully(in, headerLengthBytes);
+
+    int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
+    byte[] headerFrame = new byte[headerLength];
+    StreamUtil.readFully(in, headerFrame);
+
+    BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+
+    if (!frame.hasHeader()) {
+      throw new IOException("Backup stream does not start with header!");
+    }
+
+    return frame.getHeader();
+  }
+
   private static class BadMacException extends IOException {}
 
+  /**
+   * The backup is differential and the full backup it builds on, named by {@link #getBase()}, couldn't be read.
+   */
+  public static class MissingBaseBackupException extends IOException {//AA+
+    private final String base;
+
+    MissingBaseBackupException(@NonNull String base) {
+      super("Base backup " + base + " is missing");
+      this.base = base;
+    }
+
+    MissingBaseBackupException(@NonNull String base, @NonNull Throwable cause) {
+      super("Base backup " + base + " couldn't be opened", cause);
+      this.base = base;
+    }
+
+    public @NonNull String getBase() {
+      return base;
+    }
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
@@ -116,7 +116,7 @@ public class AttachmentDatabase extends Database {
   static final String WIDTH                  = "width";
   static final String HEIGHT                 = "height";
   static final String CAPTION                = "caption";
-  static final String DATA_HASH              = "data_hash";
+  public  static final String DATA_HASH              = "data_hash";//AA+ public
   static final String VISUAL_HASH            = "blur_hash";
   static final String TRANSFORM_PROPERTIES   = "transform_properties";
   static final String DISPLAY_ORDER          = "display_order";
@@ -915,6 +915,11 @@ public class AttachmentDatabase extends Database {
     return transferFile;
   }
 
+  //AA+
+  public @Nullable File getTransferFile(@NonNull AttachmentId attachmentId) {
+    return getTransferFile(databaseHelper.getSignalReadableDatabase(), attachmentId);
+  }
+
   private @Nullable static File getTransferFile(@NonNull SQLiteDatabase db, @NonNull AttachmentId attachmentId) {
     try (Cursor cursor = db.query(TABLE_NAME, new String[] { TRANSFER_FILE }, PART_ID_WHERE, attachmentId.toStrings(), null, null, "1")) {
       if (cursor != null && cursor.moveToFirst()) {
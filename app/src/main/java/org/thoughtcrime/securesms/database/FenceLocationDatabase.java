@@ -0,0 +1,369 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.signal.core.util.CursorUtil;
+import org.signal.core.util.SqlUtil;
+import org.signal.core.util.logging.Log;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FenceRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Local spatial index over known fences, so the map can be populated for the visible bounds without a round trip.
+ * Fences are bucketed on a fixed lat/lon grid of {@link #CELL_DEGREES} cells, geohash style: a bounds query becomes a
+ * range scan over the (cell_lat, cell_lon) index, refined by the exact coordinates.
+ *
+ * Rows come from two sources: {@link FenceRecord}s returned by nearby-fence queries, held with the record itself so the
+ * fence can be rendered offline, and location updates to fences in the groups table, which carry only a position. The
+ * same grid doubles as the unit of staleness for server queries, tracked in {@link #TILES_TABLE_NAME}.
+ */
+public class FenceLocationDatabase extends Database {
+
+  private static final String TAG = Log.tag(FenceLocationDatabase.class);
+
+  public  static final String TABLE_NAME       = "fence_locations";
+  public  static final String TILES_TABLE_NAME = "fence_location_tiles";
+
+  private static final String FID          = "fid";
+  private static final String LATITUDE     = "latitude";
+  private static final String LONGITUDE    = "longitude";
+  private static final String CELL_LAT     = "cell_lat";
+  private static final String CELL_LON     = "cell_lon";
+  private static final String FENCE_RECORD = "fence_record";
+  private static final String UPDATED      = "updated";
+
+  private static final String TILE       = "tile";
+  private static final String FETCHED_AT = "fetched_at";
+
+  /** About 5.5km of latitude, roughly the span of a single nearby-fences query. */
+  static final double CELL_DEGREES = 0.05;
+
+  static final long TILE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+  /** How many tiles out from the centre of the visible bounds are considered for refreshing, so at most 11x11. */
+  static final int MAX_TILE_REACH = 5;
+
+  /** Caps what a zoomed out map pulls in at once; clustering makes more than this unreadable anyway. */
+  private static final int MAX_RESULTS = 1000;
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" +
+                                            FID + " INTEGER PRIMARY KEY, " +
+                                            LATITUDE + " REAL NOT NULL, " +
+                                            LONGITUDE + " REAL NOT NULL, " +
+                                            CELL_LAT + " INTEGER NOT NULL, " +
+                                            CELL_LON + " INTEGER NOT NULL, " +
+                                            FENCE_RECORD + " BLOB DEFAULT NULL, " +
+                                            UPDATED + " INTEGER DEFAULT 0" +
+                                            ");";
+
+  public static final String CREATE_TILES_TABLE = "CREATE TABLE " + TILES_TABLE_NAME + " (" +
+                                                  TILE + " INTEGER PRIMARY KEY, " +
+                                                  FETCHED_AT + " INTEGER NOT NULL" +
+                                                  ");";
+
+  public static final String[] CREATE_INDEXS = new String[] {
+      "CREATE INDEX IF NOT EXISTS fence_locations_cell_index ON " + TABLE_NAME + " (" + CELL_LAT + ", " + CELL_LON + ");",
+  };
+
+  public FenceLocationDatabase(Context context, SignalDatabase databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Stores fences returned by a nearby-fences query centred on the given tile, and marks the tile fetched. Fences
+   * previously returned for that tile which the server no longer reports are dropped; fences only known from the groups
+   * table are kept.
+   */
+  public void refreshTile(@NonNull Tile tile, @NonNull List<FenceRecord> fenceRecords) {
+    SQLiteDatabase db       = databaseHelper.getSignalWritableDatabase();
+    long           now      = System.currentTimeMillis();
+    Set<Long>      reported = new HashSet<>(fenceRecords.size());
+
+    db.beginTransaction();
+    try {
+      for (FenceRecord fenceRecord : fenceRecords) {
+        if (!fenceRecord.hasLocation()) continue;
+
+        ContentValues values = toContentValues(fenceRecord.getLocation().getLatitude(), fenceRecord.getLocation().getLongitude(), now);
+        values.put(FID, fenceRecord.getFid());
+        values.put(FENCE_RECORD, fenceRecord.toByteArray());
+
+        db.replace(TABLE_NAME, null, values);
+        reported.add(fenceRecord.getFid());
+      }
+
+      List<Long> dropped = new ArrayList<>();
+
+      try (Cursor cursor = db.query(TABLE_NAME, new String[] { FID }, CELL_LAT + " = ? AND " + CELL_LON + " = ? AND " + FENCE_RECORD + " NOT NULL", SqlUtil.buildArgs(tile.cellLat, tile.cellLon), null, null, null)) {
+        while (cursor.moveToNext()) {
+          long fid = cursor.getLong(0);
+          if (!reported.contains(fid)) dropped.add(fid);
+        }
+      }
+
+      for (long fid : dropped) {
+        db.delete(TABLE_NAME, FID + " = ?", SqlUtil.buildArgs(fid));
+      }
+
+      if (!dropped.isEmpty()) Log.d(TAG, "refreshTile: Dropped " + dropped.size() + " fences no longer reported for tile: " + tile.id);
+
+      ContentValues values = new ContentValues(2);
+      values.put(TILE, tile.id);
+      values.put(FETCHED_AT, now);
+
+      db.replace(TILES_TABLE_NAME, null, values);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Records the position of a fence known to the groups table. A previously stored {@link FenceRecord} is kept.
+   */
+  public void updateLocation(long fid, double latitude, double longitude) {
+    if (fid <= 0 || !isValidLocation(latitude, longitude)) return;
+
+    SQLiteDatabase db     = databaseHelper.getSignalWritableDatabase();
+    ContentValues  values = toContentValues(latitude, longitude, System.currentTimeMillis());
+
+    if (db.update(TABLE_NAME, values, FID + " = ?", SqlUtil.buildArgs(fid)) == 0) {
+      values.put(FID, fid);
+      db.insert(TABLE_NAME, null, values);
+    }
+  }
+
+  /**
+   * @return fences within the given bounds, which may straddle the antimeridian (west > east).
+   */
+  public @NonNull List<FenceLocation> getFencesWithin(double south, double west, double north, double east) {
+    List<FenceLocation> results = new ArrayList<>();
+
+    if (west > east) {
+      queryFencesWithin(south, west, north, 180, results);
+      queryFencesWithin(south, -180, north, east, results);
+    } else {
+      queryFencesWithin(south, west, north, east, results);
+    }
+
+    return results;
+  }
+
+  private void queryFencesWithin(double south, double west, double north, double east, @NonNull List<FenceLocation> results) {
+    if (results.size() >= MAX_RESULTS) return;
+
+    SQLiteDatabase db    = databaseHelper.getSignalReadableDatabase();
+    String         query = CELL_LAT + " BETWEEN ? AND ? AND " + CELL_LON + " BETWEEN ? AND ? AND " +
+                           LATITUDE + " BETWEEN ? AND ? AND " + LONGITUDE + " BETWEEN ? AND ?";
+    String[]       args  = SqlUtil.buildArgs(cellLat(south), cellLat(north), cellLon(west), cellLon(east), south, north, west, east);
+    String         limit = String.valueOf(MAX_RESULTS - results.size());
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { FID, LATITUDE, LONGITUDE, FENCE_RECORD }, query, args, null, null, null, limit)) {
+      while (cursor.moveToNext()) {
+        long   fid    = CursorUtil.requireLong(cursor, FID);
+        byte[] record = CursorUtil.requireBlob(cursor, FENCE_RECORD);
+
+        FenceRecord fenceRecord = null;
+        if (record != null) {
+          try {
+            fenceRecord = FenceRecord.parseFrom(record);
+          } catch (InvalidProtocolBufferException e) {
+            Log.w(TAG, "queryFencesWithin: Dropping unparseable record for fid: " + fid, e);
+          }
+        }
+
+        results.add(new FenceLocation(fid, cursor.getDouble(cursor.getColumnIndexOrThrow(LATITUDE)), cursor.getDouble(cursor.getColumnIndexOrThrow(LONGITUDE)), fenceRecord));
+      }
+    }
+  }
+
+  /**
+   * @return tiles covering the given bounds that the server hasn't been asked about within {@link #TILE_TTL_MILLIS},
+   *         nearest the centre of the bounds first and at most {@code limit} of them.
+   */
+  public @NonNull List<Tile> getStaleTiles(double south, double west, double north, double east, int limit) {
+    List<Tile> tiles = tilesWithin(south, west, north, east);
+    if (tiles.isEmpty()) return tiles;
+
+    Map<Long, Long> fetched = new HashMap<>(tiles.size());
+    List<Long>      ids     = new ArrayList<>(tiles.size());
+
+    for (Tile tile : tiles) {
+      ids.add(tile.id);
+    }
+
+    SqlUtil.Query query = SqlUtil.buildCollectionQuery(TILE, ids);
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TILES_TABLE_NAME, new String[] { TILE, FETCHED_AT }, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+      while (cursor.moveToNext()) {
+        fetched.put(cursor.getLong(0), cursor.getLong(1));
+      }
+    }
+
+    List<Tile> stale = new ArrayList<>(Math.min(limit, tiles.size()));
+    long       now   = System.currentTimeMillis();
+
+    for (Tile tile : tiles) {
+      if (stale.size() >= limit) break;
+
+      Long fetchedAt = fetched.get(tile.id);
+      if (fetchedAt == null || now - fetchedAt > TILE_TTL_MILLIS) {
+        stale.add(tile);
+      }
+    }
+
+    return stale;
+  }
+
+  /**
+   * @return the tiles covering the given bounds, which may straddle the antimeridian (west > east), ordered by distance
+   *         from the centre tile. A zoomed out map is trimmed to the tiles within {@link #MAX_TILE_REACH} of the centre.
+   */
+  static @NonNull List<Tile> tilesWithin(double south, double west, double north, double east) {
+    int   latFrom  = cellLat(south);
+    int   latTo    = cellLat(north);
+    int   lastLon  = cellLon(180) - 1; // longitude 180 is the western edge of cell 0
+    int[] lonCells = west > east ? concat(cellRange(cellLon(west), lastLon), cellRange(0, cellLon(east)))
+                                 : cellRange(cellLon(west), Math.min(lastLon, cellLon(east)));
+
+    int latCentre = (latFrom + latTo) / 2;
+    int lonCentre = lonCells.length / 2;
+
+    List<Tile> tiles = new ArrayList<>();
+
+    for (int reach = 0; reach <= MAX_TILE_REACH; reach++) {
+      for (int cellLat = Math.max(latFrom, latCentre - reach); cellLat <= Math.min(latTo, latCentre + reach); cellLat++) {
+        for (int i = Math.max(0, lonCentre - reach); i <= Math.min(lonCells.length - 1, lonCentre + reach); i++) {
+          if (Math.max(Math.abs(cellLat - latCentre), Math.abs(i - lonCentre)) == reach) {
+            tiles.add(new Tile(cellLat, lonCells[i]));
+          }
+        }
+      }
+    }
+
+    return tiles;
+  }
+
+  private static @NonNull int[] cellRange(int from, int to) {
+    int[] cells = new int[Math.max(0, to - from + 1)];
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = from + i;
+    }
+    return cells;
+  }
+
+  private static @NonNull int[] concat(@NonNull int[] first, @NonNull int[] second) {
+    int[] cells = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, cells, first.length, second.length);
+    return cells;
+  }
+
+  private static @NonNull ContentValues toContentValues(double latitude, double longitude, long updated) {
+    ContentValues values = new ContentValues(7);
+    values.put(LATITUDE, latitude);
+    values.put(LONGITUDE, longitude);
+    values.put(CELL_LAT, cellLat(latitude));
+    values.put(CELL_LON, cellLon(longitude));
+    values.put(UPDATED, updated);
+
+    return values;
+  }
+
+  /** Cells are counted from the south pole and antimeridian, so are never negative; matches the migration backfill. */
+  static int cellLat(double latitude) {
+    return (int) ((Math.max(-90, Math.min(90, latitude)) + 90) / CELL_DEGREES);
+  }
+
+  static int cellLon(double longitude) {
+    return (int) ((Math.max(-180, Math.min(180, longitude)) + 180) / CELL_DEGREES);
+  }
+
+  static long tileOf(double latitude, double longitude) {
+    return tileOf(cellLat(latitude), cellLon(longitude));
+  }
+
+  private static long tileOf(int cellLat, int cellLon) {
+    return (long) cellLat * 10_000 + cellLon;
+  }
+
+  /** Fences at exactly 0,0 are taken to be ones whose location was never set. */
+  static boolean isValidLocation(double latitude, double longitude) {
+    return (latitude != 0 || longitude != 0) && Math.abs(latitude) <= 90 && Math.abs(longitude) <= 180;
+  }
+
+  public static final class FenceLocation {
+    private final long        fid;
+    private final double      latitude;
+    private final double      longitude;
+    private final FenceRecord fenceRecord;
+
+    FenceLocation(long fid, double latitude, double longitude, @Nullable FenceRecord fenceRecord) {
+      this.fid         = fid;
+      this.latitude    = latitude;
+      this.longitude   = longitude;
+      this.fenceRecord = fenceRecord;
+    }
+
+    public long getFid() {
+      return fid;
+    }
+
+    public double getLatitude() {
+      return latitude;
+    }
+
+    public double getLongitude() {
+      return longitude;
+    }
+
+    /**
+     * @return the record as last returned by the server, or null for fences only known from the groups table.
+     */
+    public @Nullable FenceRecord getFenceRecord() {
+      return fenceRecord;
+    }
+  }
+
+  /**
+   * One {@link #CELL_DEGREES} cell of the grid, the unit in which the server is asked for nearby fences.
+   */
+  public static final class Tile {
+    private final long id;
+    private final int  cellLat;
+    private final int  cellLon;
+
+    Tile(int cellLat, int cellLon) {
+      this.id      = tileOf(cellLat, cellLon);
+      this.cellLat = cellLat;
+      this.cellLon = cellLon;
+    }
+
+    public static @NonNull Tile of(double latitude, double longitude) {
+      return new Tile(cellLat(latitude), cellLon(longitude));
+    }
+
+    public double getCentreLatitude() {
+      return (cellLat + 0.5) * CELL_DEGREES - 90;
+    }
+
+    public double getCentreLongitude() {
+      return (cellLon + 0.5) * CELL_DEGREES - 180;
+    }
+  }
+}
@@ -15,6 +15,7 @@ import com.unfacd.android.locallyaddressable.LocallyAddressableUfsrvUid;
 import com.unfacd.android.location.ufLocation;
 import com.unfacd.android.ufsrvuid.RecipientUfsrvId;
 import com.unfacd.android.ufsrvuid.UfsrvUid;
+import com.unfacd.android.ufsrvuid.UfsrvUidMemberSet;
 import com.unfacd.android.ui.components.PairedGroupName;
 
 import org.signal.core.util.logging.Log;
@@ -117,8 +118,8 @@ public class GroupDatabase extends Database {
   private static final String LATITUDE            = "latitude";
   private static final String MAXMEMBERS          = "maxmembers";
   private static final String TTL                 = "ttl";
-  private static final String MODE                = "mode"; //should renamned to status
-  private static final String FID                 = "fid";
+          static final String MODE                = "mode"; //should renamned to status
+          static final String FID                 = "fid";
   private static final String INVITED_MEMBERS     = "invited_members";
   private static final String BLOCKED_MEMBERS     = "blocked_members";
   private static final String REQUESTING_MEMBERS  = "requesting_members";
@@ -303,6 +304,68 @@ public class GroupDatabase extends Database {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_cname_index ON " + TABLE_NAME + " (" + CNAME + ");",
   };
 
+  //AA+ normalised copy of the serialised member lists, one row per (group, role, member), so "which groups contain X"
+  //is an index lookup instead of a LIKE scan. Kept in sync by triggers on the member columns, whatever the write path.
+  static final String         MEMBERSHIP_TABLE_NAME = "group_membership";
+  private static final String MEMBERSHIP_GROUP_ROW  = "group_row";
+  private static final String MEMBERSHIP_MEMBER     = "member_uid";
+  private static final String MEMBERSHIP_ROLE       = "role";
+
+  public static final int MEMBERSHIP_ROLE_MEMBER     = 0;
+  public static final int MEMBERSHIP_ROLE_INVITED    = 1;
+  public static final int MEMBERSHIP_ROLE_BLOCKED    = 2;
+  public static final int MEMBERSHIP_ROLE_REQUESTING = 3;
+
+  public static final String CREATE_MEMBERSHIP_TABLE =
+      "CREATE TABLE " + MEMBERSHIP_TABLE_NAME + " (" +
+          MEMBERSHIP_GROUP_ROW + " INTEGER NOT NULL REFERENCES " + TABLE_NAME + " (" + ID + ") ON DELETE CASCADE, " +
+          MEMBERSHIP_MEMBER + " TEXT NOT NULL, " +
+          MEMBERSHIP_ROLE + " INTEGER NOT NULL, " +
+          "UNIQUE(" + MEMBERSHIP_GROUP_ROW + ", " + MEMBERSHIP_ROLE + ", " + MEMBERSHIP_MEMBER + ") ON CONFLICT IGNORE" +
+          ");";
+
+  //the unique constraint doubles as the group -> members index
+  public static final String[] CREATE_MEMBERSHIP_INDEXES = {
+      "CREATE INDEX IF NOT EXISTS group_membership_member_index ON " + MEMBERSHIP_TABLE_NAME + " (" + MEMBERSHIP_MEMBER + ", " + MEMBERSHIP_ROLE + ", " + MEMBERSHIP_GROUP_ROW + ");",
+  };
+
+  public static final String[] CREATE_MEMBERSHIP_TRIGGERS = {
+      "CREATE TRIGGER group_membership_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+          insertMembershipSql(MEMBERS, MEMBERSHIP_ROLE_MEMBER) +
+          insertMembershipSql(INVITED_MEMBERS, MEMBERSHIP_ROLE_INVITED) +
+          insertMembershipSql(BLOCKED_MEMBERS, MEMBERSHIP_ROLE_BLOCKED) +
+          insertMembershipSql(REQUESTING_MEMBERS, MEMBERSHIP_ROLE_REQUESTING) +
+          "END;",
+      updateMembershipTriggerSql(MEMBERS, MEMBERSHIP_ROLE_MEMBER),
+      updateMembershipTriggerSql(INVITED_MEMBERS, MEMBERSHIP_ROLE_INVITED),
+      updateMembershipTriggerSql(BLOCKED_MEMBERS, MEMBERSHIP_ROLE_BLOCKED),
+      updateMembershipTriggerSql(REQUESTING_MEMBERS, MEMBERSHIP_ROLE_REQUESTING),
+  };
+
+  /**
+   * Splits new.column on {@link #DELIMITER} by way of json_each(), as triggers can't use recursive CTEs. A list which isn't
+   * valid JSON once quoted (ie. a member containing a quote or backslash) is skipped rather than failing the write.
+   */
+  private static String insertMembershipSql(String column, int role) {
+    String asJson = "'[\"' || replace(new." + column + ", '" + DELIMITER + "', '\",\"') || '\"]'";
+
+    return "INSERT INTO " + MEMBERSHIP_TABLE_NAME + " (" + MEMBERSHIP_GROUP_ROW + ", " + MEMBERSHIP_MEMBER + ", " + MEMBERSHIP_ROLE + ") " +
+           "SELECT new." + ID + ", trim(value), " + role + " FROM json_each(CASE WHEN json_valid(" + asJson + ") THEN " + asJson + " ELSE '[]' END) " +
+           "WHERE trim(value) != ''; ";
+  }
+
+  private static String updateMembershipTriggerSql(String column, int role) {
+    return "CREATE TRIGGER group_membership_update_" + column + " AFTER UPDATE OF " + column + " ON " + TABLE_NAME + " " +
+           "WHEN new." + column + " IS NOT old." + column + " BEGIN " +
+           "DELETE FROM " + MEMBERSHIP_TABLE_NAME + " WHERE " + MEMBERSHIP_GROUP_ROW + " = old." + ID + " AND " + MEMBERSHIP_ROLE + " = " + role + "; " +
+           insertMembershipSql(column, role) +
+           "END;";
+  }
+
+  private static final String MEMBER_OF_QUERY = TABLE_NAME + "." + ID + " IN (SELECT " + MEMBERSHIP_GROUP_ROW + " FROM " + MEMBERSHIP_TABLE_NAME +
+                                                " WHERE " + MEMBERSHIP_MEMBER + " = ? AND " + MEMBERSHIP_ROLE + " = " + MEMBERSHIP_ROLE_MEMBER + ")";
+  //
+
   private static final String[] GROUP_PROJECTION = {
           GROUP_ID,  RECIPIENT_ID, TITLE, MEMBERS, AVATAR_ID, AVATAR_KEY, AVATAR_CONTENT_TYPE, AVATAR_RELAY, AVATAR_DIGEST,
           TIMESTAMP, ACTIVE, MMS, V2_MASTER_KEY, V2_REVISION, V2_DECRYPTED_GROUP,
@@ -436,6 +499,27 @@ public class GroupDatabase extends Database {
     return record;
   }
 
+  //AA+
+  /**
+   * Loads every group that carries a ufsrv fid in a single query, keyed on fid. For bulk reconciliation (e.g. StateSync),
+   * where a {@link #getGroupRecordByFid(long)} lookup per fence would be a query per fence.
+   */
+  public @NonNull Map<Long, GroupRecord> getGroupRecordsByFid()
+  {
+    Map<Long, GroupRecord> groupsByFid = new HashMap<>();
+
+    try (Reader reader = new Reader(databaseHelper.getSignalReadableDatabase().query(TABLE_NAME, null, FID + " > 0", null, null, null, null))) {
+      while (reader.cursor != null && reader.cursor.moveToNext()) {
+        GroupRecord record = reader.getCurrent();
+        if (record != null) {
+          groupsByFid.put(record.getFid(), record);
+        }
+      }
+    }
+
+    return groupsByFid;
+  }
+
   public Optional<GroupRecord> getGroup(RecipientId recipientId) {
     try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TABLE_NAME, null, RECIPIENT_ID + " = ?", new String[] {recipientId.serialize()}, null, null, null)) {
       if (cursor != null && cursor.moveToNext()) {
@@ -605,7 +689,7 @@ public class GroupDatabase extends Database {
     }
 
     boolean noMetadata = !group.get().hasAvatar() && TextUtils.isEmpty(group.get().getTitle());
-    boolean noMembers  = group.get().getMembers().isEmpty() || (group.get().getMembers().size() == 1 && group.get().getMembers().contains(Recipient.self().getId()));
+    boolean noMembers  = group.get().getMembers().isEmpty() || (group.get().getMembers().size() == 1 && group.get().containsMember(Recipient.self()));//AA+ containsMember
 
     return noMetadata && noMembers;
   }
@@ -737,8 +821,8 @@ public class GroupDatabase extends Database {
   public @NonNull List<GroupRecord> getGroupsContainingMember(String ufsrvUid , boolean pushOnly, boolean includeInactive) {
     SQLiteDatabase database   = databaseHelper.getSignalReadableDatabase();
     String         table      = TABLE_NAME + " INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + TABLE_NAME + "." + RECIPIENT_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID;
-    String         query      = MEMBERS + " LIKE ?";
-    String[]       args       = SqlUtil.buildArgs("%" + ufsrvUid + "%");
+    String         query      = MEMBER_OF_QUERY;//AA+ was MEMBERS LIKE, filtered by regex
+    String[]       args       = SqlUtil.buildArgs(ufsrvUid);
     String         orderBy    = ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.DATE + " DESC";
 
     if (pushOnly) {
@@ -755,11 +839,7 @@ public class GroupDatabase extends Database {
 
     try (Cursor cursor = database.query(table, null, query, args, null, null, orderBy)) {
       while (cursor != null && cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-
-        if (UfsrvUid.serializedListContains(serializedMembers, ufsrvUid)) {
-          groups.add(new Reader(cursor).getCurrent());
-        }
+        groups.add(new Reader(cursor).getCurrent());
       }
     }
 
@@ -781,8 +861,8 @@ public class GroupDatabase extends Database {
   public @NonNull List<GroupRecord> getGroupsContainingMember(@NonNull RecipientId recipientId, boolean pushOnly, boolean includeInactive) {
     SQLiteDatabase database   = databaseHelper.getSignalReadableDatabase();
     String         table      = TABLE_NAME + " INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + TABLE_NAME + "." + RECIPIENT_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID;
-    String         query      = MEMBERS + " LIKE ?";
-    String[]       args       = SqlUtil.buildArgs("%" + recipientId.serialize() + "%");
+    String         query      = MEMBER_OF_QUERY;//AA+
+    String[]       args       = SqlUtil.buildArgs(recipientId.serialize());
     String         orderBy    = ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.DATE + " DESC";
 
     if (pushOnly) {
@@ -799,11 +879,7 @@ public class GroupDatabase extends Database {
 
     try (Cursor cursor = database.query(table, null, query, args, null, null, orderBy)) {
       while (cursor != null && cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-
-        if (RecipientId.serializedListContains(serializedMembers, recipientId)) {
-          groups.add(new Reader(cursor).getCurrent());
-        }
+        groups.add(new Reader(cursor).getCurrent());
       }
     }
 
@@ -1649,6 +1725,8 @@ public class GroupDatabase extends Database {
     databaseHelper.getSignalWritableDatabase().update(TABLE_NAME, contentValues, CNAME +  " = ?",
                                                       new String[] {fcname});
 
+    SignalDatabase.fenceLocations().updateLocation(fid, latitude, longitude);
+
     //Recipient.clearCache(context);
 //    notifyDatabaseListeners();
   }
@@ -2241,10 +2319,9 @@ public class GroupDatabase extends Database {
       if (groupRecord.active &&
           groupRecord.getMaxmembers()== 2 &&
           groupRecord.getPrivacyMode()== PrivacyMode.PRIVATE.getValue()) {
-        List<Address> members          = groupRecord.getMembers();
         List<Address> membersInvited   = groupRecord.getMembersInvited();
-        if ((members.contains(recipient.requireAddress()) || membersInvited.contains(recipient.requireAddress())) &&
-            (members.contains(recipientOther.requireAddress()) || membersInvited.contains(recipientOther.requireAddress()))) groups.add(groupRecord.fid);
+        if ((groupRecord.containsMember(recipient.requireAddress().serialize()) || membersInvited.contains(recipient.requireAddress())) &&
+            (groupRecord.containsMember(recipientOther.requireAddress().serialize()) || membersInvited.contains(recipientOther.requireAddress()))) groups.add(groupRecord.fid);
       }
     }
 
@@ -2269,8 +2346,7 @@ public class GroupDatabase extends Database {
               groupRecord.getMaxmembers() == 2 &&
               groupRecord.getPrivacyMode()== PrivacyMode.PRIVATE.getValue() &&
               groupRecord.getMembers().size() == 2) {
-        List<Address> members          = groupRecord.getMembers();
-        if (members.contains(Recipient.self().requireAddress()) && members.contains(recipientOther.requireAddress())) groupRecordOptional = Optional.of(groupRecord);
+        if (groupRecord.containsMember(Recipient.self().requireAddress().serialize()) && groupRecord.containsMember(recipientOther.requireAddress().serialize())) groupRecordOptional = Optional.of(groupRecord);
       }
     }
 
@@ -2752,6 +2828,7 @@ private static String serializeV2GroupMembersAsRecipients(@NonNull DecryptedGrou
     private  long                   eid;//this is currently not saved in this db
     private long                    ownerUserId;
     private final Optional<UfsrvUid> invitedBy;
+    private volatile UfsrvUidMemberSet memberSet;//AA+ built on first membership test
 
     public GroupRecord(@NonNull GroupId id, @NonNull RecipientId recipientId, String title, String members,
                        long avatarId, byte[] avatarKey, String avatarContentType,
@@ -2858,6 +2935,33 @@ private static String serializeV2GroupMembersAsRecipients(@NonNull DecryptedGrou
       return members;
     }
 
+    //AA+
+    public boolean containsMember(@Nullable String ufsrvUid) {
+      return getMemberSet().contains(ufsrvUid);
+    }
+
+    //AA+
+    public boolean containsMember(@NonNull Recipient recipient) {
+      return containsMember(recipient.getUfsrvUid());
+    }
+
+    //AA+
+    public boolean containsMember(@NonNull UfsrvUid ufsrvUid) {
+      return getMemberSet().contains(ufsrvUid);
+    }
+
+    //AA+
+    public @NonNull UfsrvUidMemberSet getMemberSet() {
+      UfsrvUidMemberSet memberSet = this.memberSet;
+
+      if (memberSet == null) {
+        memberSet      = UfsrvUidMemberSet.fromTokens(Stream.of(members).map(Address::serialize).toList());
+        this.memberSet = memberSet;
+      }
+
+      return memberSet;
+    }
+
     @WorkerThread
     public @NonNull List<Recipient> getAdmins() {
       return getAdmins(getMembersAsRecipient());//AA+
@@ -3062,7 +3166,7 @@ private static String serializeV2GroupMembersAsRecipients(@NonNull DecryptedGrou
     }
 
     public MemberLevel memberLevel(@NonNull Recipient recipient) {
-      return members.contains(Address.fromSerialized(recipient.getUfsrvUid())) ? MemberLevel.FULL_MEMBER :
+      return containsMember(recipient) ? MemberLevel.FULL_MEMBER :
                                                                                  membersInvited.contains(Address.fromSerialized(recipient.getUfsrvUid())) ?
                                                                                   MemberLevel.PENDING_MEMBER : membersLinkJoining.contains(Address.fromSerialized(recipient.getUfsrvUid())) ?
                                                                                                                 MemberLevel.LINKJOINING_MEMBER : MemberLevel.NOT_A_MEMBER;
@@ -78,6 +78,21 @@ public class GroupReceiptDatabase extends Database {
               new String[] {String.valueOf(mmsId), recipientId.serialize(), String.valueOf(status)});
   }
 
+  //AA+
+  public void update(@NonNull RecipientId recipientId, @NonNull Collection<Long> mmsIds, int status, long timestamp) {
+    if (mmsIds.isEmpty()) return;
+
+    SQLiteDatabase db     = databaseHelper.getSignalWritableDatabase();
+    ContentValues  values = new ContentValues(2);
+    values.put(STATUS, status);
+    values.put(TIMESTAMP, timestamp);
+
+    SqlUtil.Query query = SqlUtil.buildCollectionQuery(MMS_ID, mmsIds);
+
+    db.update(TABLE_NAME, values, query.getWhere() + " AND " + RECIPIENT_ID + " = ? AND " + STATUS + " < ?",
+              SqlUtil.appendArg(SqlUtil.appendArg(query.getWhereArgs(), recipientId.serialize()), String.valueOf(status)));
+  }
+
   public void setUnidentified(Collection<Pair<RecipientId, Boolean>> results, long mmsId) {
     SQLiteDatabase db  = databaseHelper.getSignalWritableDatabase();
 
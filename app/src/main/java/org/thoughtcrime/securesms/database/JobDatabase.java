@@ -5,6 +5,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -21,13 +22,14 @@ import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.signal.core.util.CursorUtil;
 
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 
 public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenHelper {
   private static final String TAG = Log.tag(JobDatabase.class);
 
-  private static final int    DATABASE_VERSION = 1;
+  private static final int    DATABASE_VERSION = 2;
   private static final String DATABASE_NAME    = "unfacd-jobmanager.db";//AA+
 
   private static final class Jobs {
@@ -54,8 +56,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
             RUN_ATTEMPT           + " INTEGER, " +
             MAX_ATTEMPTS          + " INTEGER, " +
             LIFESPAN              + " INTEGER, " +
-            SERIALIZED_DATA       + " TEXT, " +
-            SERIALIZED_INPUT_DATA + " TEXT DEFAULT NULL, " +
+            SERIALIZED_DATA       + " BLOB, " +
+            SERIALIZED_INPUT_DATA + " BLOB DEFAULT NULL, " +
             IS_RUNNING            + " INTEGER)";
   }
 
@@ -133,6 +135,10 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     Log.i(TAG, "onUpgrade(" + oldVersion + ", " + newVersion + ")");
+
+    if (oldVersion < 2) {
+      convertSerializedDataToBlobs(db);
+    }
   }
 
   @Override
@@ -193,7 +199,7 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
   }
 
-  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull byte[] serializedData) {
     ContentValues contentValues = new ContentValues();
     contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
     contentValues.put(Jobs.RUN_ATTEMPT, runAttempt);
@@ -317,6 +323,11 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     db.insertWithOnConflict(Jobs.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
   }
 
+  private static @Nullable byte[] getSerializedData(@NonNull Cursor cursor, @NonNull String column) {
+    int index = cursor.getColumnIndexOrThrow(column);
+    return cursor.isNull(index) ? null : cursor.getBlob(index);
+  }
+
   private void insertConstraintSpecs(@NonNull SQLiteDatabase db, @NonNull List<ConstraintSpec> constraints) {
     Stream.of(constraints)
             .filterNot(ConstraintSpec::isMemoryOnly)
@@ -348,8 +359,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.RUN_ATTEMPT)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.MAX_ATTEMPTS)),
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.LIFESPAN)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_INPUT_DATA)),
+                       getSerializedData(cursor, Jobs.SERIALIZED_DATA),
+                       getSerializedData(cursor, Jobs.SERIALIZED_INPUT_DATA),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1,
                        false);
   }
@@ -391,8 +402,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
         values.put(Jobs.RUN_ATTEMPT, CursorUtil.requireInt(cursor, "run_attempt"));
         values.put(Jobs.MAX_ATTEMPTS, CursorUtil.requireInt(cursor, "max_attempts"));
         values.put(Jobs.LIFESPAN, CursorUtil.requireLong(cursor, "lifespan"));
-        values.put(Jobs.SERIALIZED_DATA, CursorUtil.requireString(cursor, "serialized_data"));
-        values.put(Jobs.SERIALIZED_INPUT_DATA, CursorUtil.requireString(cursor, "serialized_input_data"));
+        values.put(Jobs.SERIALIZED_DATA, toUtf8(CursorUtil.requireString(cursor, "serialized_data")));
+        values.put(Jobs.SERIALIZED_INPUT_DATA, toUtf8(CursorUtil.requireString(cursor, "serialized_input_data")));
         values.put(Jobs.IS_RUNNING, CursorUtil.requireInt(cursor, "is_running"));
 
         newDb.insert(Jobs.TABLE_NAME, null, values);
@@ -400,6 +411,21 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     }
   }
 
+  private static @Nullable byte[] toUtf8(@Nullable String serialized) {
+    return serialized != null ? serialized.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Up to version 2 job payloads were JSON stored as TEXT. Rewriting them as their UTF-8 bytes lets every row be read
+   * with {@link Cursor#getBlob(int)}; the data serializer recognises the JSON and decodes it as before, and the job is
+   * written back in the binary format the next time it is persisted. BLOB values are left untouched by the cast.
+   */
+  private static void convertSerializedDataToBlobs(@NonNull SQLiteDatabase db) {
+    db.execSQL("UPDATE " + Jobs.TABLE_NAME + " SET " +
+               Jobs.SERIALIZED_DATA + " = CAST(" + Jobs.SERIALIZED_DATA + " AS BLOB), " +
+               Jobs.SERIALIZED_INPUT_DATA + " = CAST(" + Jobs.SERIALIZED_INPUT_DATA + " AS BLOB)");
+  }
+
   private static void migrateConstraintSpecsFromPreviousDatabase(@NonNull SQLiteDatabase oldDb, @NonNull SQLiteDatabase newDb) {
     try (Cursor cursor = oldDb.rawQuery("SELECT * FROM constraint_spec", null)) {
       while (cursor.moveToNext()) {
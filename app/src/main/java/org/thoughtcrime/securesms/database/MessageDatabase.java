@@ -122,6 +122,7 @@ public abstract class MessageDatabase extends Database implements MmsSmsColumns
   public abstract void markIncomingNotificationReceived(long threadId);
 
   public abstract Set<MessageUpdate> incrementReceiptCount(SyncMessageId messageId, long timestamp, @NonNull ReceiptType receiptType);
+  abstract void updateEarlyDeliveryReceiptCache(@NonNull SyncMessageId messageId, long timestamp, boolean matched);//AA+
   abstract @NonNull MmsSmsDatabase.TimestampReadResult setTimestampRead(SyncMessageId messageId, long proposedExpireStarted, @NonNull Map<Long, Long> threadToLatestRead);
   public abstract List<MarkedMessageInfo> setEntireThreadRead(long threadId);
   public abstract List<MarkedMessageInfo> setMessagesReadSince(long threadId, long timestamp);
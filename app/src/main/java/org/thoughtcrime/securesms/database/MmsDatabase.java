@@ -202,6 +202,7 @@ public class MmsDatabase extends MessageDatabase {
           "CREATE INDEX IF NOT EXISTS mms_parent_story_id_index ON " + TABLE_NAME + " (" + PARENT_STORY_ID + ");",
           "CREATE INDEX IF NOT EXISTS mms_thread_story_parent_story_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + "," + STORY_TYPE + "," + PARENT_STORY_ID + ");",
           "CREATE INDEX IF NOT EXISTS mms_gid_index ON " + TABLE_NAME + " (" + UFSRV_GID + ");", //AA+
+          "CREATE INDEX IF NOT EXISTS mms_thread_eid_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + UFSRV_EID + ");", //AA+
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -925,11 +926,29 @@ public class MmsDatabase extends MessageDatabase {
         }
       }
 
-      if (messageUpdates.size() > 0 && receiptType == ReceiptType.DELIVERY) {
-        earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId(), timestamp);
+      if (receiptType == ReceiptType.DELIVERY) {
+        updateEarlyDeliveryReceiptCache(messageId, timestamp, messageUpdates.size() > 0);//AA+
       }
     }
 
+    messageUpdates.addAll(incrementStoryReceiptCount(messageId, timestamp, receiptType));//AA+
+
+    return messageUpdates;
+  }
+
+  //AA+ also used by delivery receipts applied in bulk, see MmsSmsDatabase.incrementReceiptCountsByUfsrvIdentifiers()
+  @Override
+  void updateEarlyDeliveryReceiptCache(@NonNull SyncMessageId messageId, long timestamp, boolean matched) {
+    if (matched) {
+      earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId(), timestamp);
+    }
+  }
+
+  //AA+ split out of incrementReceiptCount(), for receipts applied in bulk
+  @NonNull Set<MessageUpdate> incrementStoryReceiptCount(SyncMessageId messageId, long timestamp, @NonNull ReceiptType receiptType) {
+    SQLiteDatabase     database       = databaseHelper.getSignalWritableDatabase();
+    Set<MessageUpdate> messageUpdates = new HashSet<>();
+
     String columnName = receiptType.getColumnName();
     for (MessageId storyMessageId : SignalDatabase.storySends().getStoryMessagesFor(messageId)) {
       database.execSQL("UPDATE " + TABLE_NAME + " SET " +
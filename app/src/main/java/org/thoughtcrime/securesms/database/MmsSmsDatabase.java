@@ -26,12 +26,14 @@ import net.zetetic.database.sqlcipher.SQLiteQueryBuilder;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.MessageDatabase.MessageUpdate;
 import org.thoughtcrime.securesms.database.MessageDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.notifications.v2.MessageNotifierV2;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.signal.core.util.CursorUtil;
+import org.signal.core.util.ListUtil;
 import org.signal.core.util.SqlUtil;
 import org.signal.libsignal.protocol.util.Pair;
 import org.whispersystems.signalservice.api.messages.multidevice.ReadMessage;
@@ -40,11 +42,14 @@ import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -59,6 +64,8 @@ public class MmsSmsDatabase extends Database {
   @SuppressWarnings("unused")
   private static final String TAG = Log.tag(MmsSmsDatabase.class);
 
+  private static final int MAX_IDS_PER_STATEMENT = 500;//AA+
+
   public static final String TRANSPORT     = "transport_type";
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
@@ -561,6 +568,330 @@ public class MmsSmsDatabase extends Database {
     return messageUpdates;
   }
 
+  //AA+
+  /**
+   * Set-based counterpart to {@link #incrementReceiptCounts(List, long, MessageDatabase.ReceiptType)} for receipts which
+   * carry ufsrv message identifiers, as delivered in bulk by ufsrv. Messages are resolved by gid, or else by eid within
+   * the fence's thread (outgoing rows don't carry their fid), and each table is updated with one statement per distinct
+   * increment instead of one per message. Receipts the identifiers don't resolve are matched on date sent, as before:
+   * those without identifiers, and those arriving before the message's gid and eid have been stored. Everything happens
+   * in a single transaction, with thread updates and notifications issued once per thread.
+   *
+   * @return All of the receipts that didn't result in updates.
+   */
+  public @NonNull Collection<UfsrvReceipt> incrementReceiptCountsByUfsrvIdentifiers(@NonNull List<UfsrvReceipt> receipts) {
+    SQLiteDatabase           db             = databaseHelper.getSignalWritableDatabase();
+    ThreadDatabase           threadDatabase = SignalDatabase.threads();
+    MessageDatabase          smsDatabase    = SignalDatabase.sms();
+    MmsDatabase              mmsDatabase    = SignalDatabase.mms();
+    Set<MessageUpdate>       messageUpdates = new HashSet<>();
+    Set<Long>                threadIds      = new HashSet<>();
+    Set<UfsrvReceipt>        matchedSms     = new HashSet<>();
+    Set<UfsrvReceipt>        matchedMms     = new HashSet<>();
+    Collection<UfsrvReceipt> unhandled      = new LinkedList<>();
+
+    if (receipts.isEmpty()) return unhandled;
+
+    db.beginTransaction();
+    try {
+      Map<Long, Long> threadIdsByFid = new HashMap<>();
+
+      messageUpdates.addAll(incrementUfsrvReceiptCounts(smsDatabase, false, receipts, threadIdsByFid, matchedSms));
+      messageUpdates.addAll(incrementUfsrvReceiptCounts(mmsDatabase, true, receipts, threadIdsByFid, matchedMms));
+
+      for (UfsrvReceipt receipt : receipts) {
+        SyncMessageId id = receipt.getSyncMessageId();
+
+        if (matchedSms.contains(receipt) || matchedMms.contains(receipt)) {
+          //the rest of what each table's incrementReceiptCount() does besides updating the counts
+          if (receipt.receiptType == MessageDatabase.ReceiptType.DELIVERY) {
+            smsDatabase.updateEarlyDeliveryReceiptCache(id, receipt.getTimestamp(), matchedSms.contains(receipt));
+            mmsDatabase.updateEarlyDeliveryReceiptCache(id, receipt.getTimestamp(), matchedMms.contains(receipt));
+          }
+
+          messageUpdates.addAll(mmsDatabase.incrementStoryReceiptCount(id, receipt.getTimestamp(), receipt.receiptType));
+          continue;
+        }
+
+        //outgoing gid and eid are only stored once ufsrv has acknowledged the send, so an early receipt can only match on date sent
+        Set<MessageUpdate> updates = incrementReceiptCountInternal(id, receipt.getTimestamp(), receipt.receiptType);
+
+        if (updates.size() > 0) {
+          messageUpdates.addAll(updates);
+        } else {
+          unhandled.add(receipt);
+        }
+      }
+
+      for (MessageUpdate update : messageUpdates) {
+        threadIds.add(update.getThreadId());
+      }
+
+      for (long threadId : threadIds) {
+        threadDatabase.updateSilently(threadId, false);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+
+      for (MessageUpdate update : messageUpdates) {
+        ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(update.getMessageId());
+      }
+
+      if (messageUpdates.size() > 0) {
+        ApplicationDependencies.getDatabaseObserver().notifyVerboseConversationListeners(threadIds);
+        notifyConversationListListeners();
+      }
+    }
+
+    Log.d(TAG, String.format(Locale.US, "incrementReceiptCountsByUfsrvIdentifiers: receipts:'%d', messages updated:'%d', threads:'%d', unhandled:'%d'", receipts.size(), messageUpdates.size(), threadIds.size(), unhandled.size()));
+
+    return unhandled;
+  }
+
+  /**
+   * Doesn't do any transactions or updates. Resolves the receipts against one message table, then applies them grouped by
+   * receipt type, increment and timestamp, so a storm of receipts against a handful of messages costs a few statements.
+   */
+  private @NonNull Set<MessageUpdate> incrementUfsrvReceiptCounts(@NonNull MessageDatabase table,
+                                                                  boolean mms,
+                                                                  @NonNull List<UfsrvReceipt> receipts,
+                                                                  @NonNull Map<Long, Long> threadIdsByFid,
+                                                                  @NonNull Set<UfsrvReceipt> matched)
+  {
+    SQLiteDatabase                           db          = databaseHelper.getSignalWritableDatabase();
+    Map<Long, List<UfsrvReceipt>>            byGid       = new HashMap<>();
+    Map<Long, Map<Long, List<UfsrvReceipt>>> byThreadEid = new HashMap<>();
+
+    for (UfsrvReceipt receipt : receipts) {
+      if (!mms && receipt.receiptType == MessageDatabase.ReceiptType.VIEWED) continue; //sms has no viewed receipts
+
+      SyncMessageId id = receipt.getSyncMessageId();
+
+      if (id.getGid() > 0) {
+        byGid.computeIfAbsent(id.getGid(), k -> new LinkedList<>()).add(receipt);
+      } else if (id.getFid() > 0 && id.getEid() > 0) {
+        Long threadId = threadIdsByFid.get(id.getFid());
+        if (threadId == null) {
+          threadId = SignalDatabase.threads().getThreadIdFor(null, id.getFid());
+          threadIdsByFid.put(id.getFid(), threadId);
+        }
+
+        if (threadId > 0) {
+          byThreadEid.computeIfAbsent(threadId, k -> new HashMap<>()).computeIfAbsent(id.getEid(), k -> new LinkedList<>()).add(receipt);
+        }
+      }
+    }
+
+    if (byGid.isEmpty() && byThreadEid.isEmpty()) return Collections.emptySet();
+
+    String[]                                               projection    = new String[] { MmsSmsColumns.ID, MmsSmsColumns.THREAD_ID, table.getTypeField(), MmsSmsColumns.RECIPIENT_ID, MmsSmsColumns.UFSRV_GID, MmsSmsColumns.UFSRV_EID };
+    Map<MessageDatabase.ReceiptType, Map<Long, Increment>> increments    = new EnumMap<>(MessageDatabase.ReceiptType.class);
+    Map<GroupReceiptBatch, List<Long>>                     groupReceipts = new HashMap<>();
+    Map<RecipientId, Boolean>                              isGroup       = new HashMap<>();
+
+    for (List<Long> gids : ListUtil.chunk(new ArrayList<>(byGid.keySet()), MAX_IDS_PER_STATEMENT)) {
+      SqlUtil.Query query = SqlUtil.buildCollectionQuery(MmsSmsColumns.UFSRV_GID, gids);
+
+      try (Cursor cursor = db.query(table.getTableName(), projection, query.getWhere(), query.getWhereArgs(), null, null, null)) {
+        while (cursor.moveToNext()) {
+          collectUfsrvReceipts(cursor, table, byGid.get(CursorUtil.requireLong(cursor, MmsSmsColumns.UFSRV_GID)), mms, isGroup, increments, groupReceipts, matched);
+        }
+      }
+    }
+
+    for (Map.Entry<Long, Map<Long, List<UfsrvReceipt>>> thread : byThreadEid.entrySet()) {
+      for (List<Long> eids : ListUtil.chunk(new ArrayList<>(thread.getValue().keySet()), MAX_IDS_PER_STATEMENT)) {
+        SqlUtil.Query query = SqlUtil.buildCollectionQuery(MmsSmsColumns.UFSRV_EID, eids);
+
+        try (Cursor cursor = db.query(table.getTableName(), projection, query.getWhere() + " AND " + MmsSmsColumns.THREAD_ID + " = ?", SqlUtil.appendArg(query.getWhereArgs(), String.valueOf(thread.getKey())), null, null, null)) {
+          while (cursor.moveToNext()) {
+            collectUfsrvReceipts(cursor, table, thread.getValue().get(CursorUtil.requireLong(cursor, MmsSmsColumns.UFSRV_EID)), mms, isGroup, increments, groupReceipts, matched);
+          }
+        }
+      }
+    }
+
+    Set<MessageUpdate> messageUpdates = new HashSet<>();
+
+    for (Map.Entry<MessageDatabase.ReceiptType, Map<Long, Increment>> entry : increments.entrySet()) {
+      String                          columnName = entry.getKey().getColumnName();
+      Map<IncrementBatch, List<Long>> batches    = new HashMap<>();
+
+      for (Map.Entry<Long, Increment> increment : entry.getValue().entrySet()) {
+        batches.computeIfAbsent(new IncrementBatch(increment.getValue().count, increment.getValue().timestamp), k -> new LinkedList<>()).add(increment.getKey());
+        messageUpdates.add(new MessageUpdate(increment.getValue().threadId, new MessageId(increment.getKey(), mms)));
+      }
+
+      for (Map.Entry<IncrementBatch, List<Long>> batch : batches.entrySet()) {
+        for (List<Long> ids : ListUtil.chunk(batch.getValue(), MAX_IDS_PER_STATEMENT)) {
+          SqlUtil.Query query = SqlUtil.buildCollectionQuery(MmsSmsColumns.ID, ids);
+
+          db.execSQL("UPDATE " + table.getTableName() + " SET " +
+                         columnName + " = " + columnName + " + " + batch.getKey().count + ", " +
+                         MmsSmsColumns.RECEIPT_TIMESTAMP + " = CASE " +
+                         "WHEN " + columnName + " = 0 THEN MAX(" + MmsSmsColumns.RECEIPT_TIMESTAMP + ", " + batch.getKey().timestamp + ") " +
+                         "ELSE " + MmsSmsColumns.RECEIPT_TIMESTAMP + " " +
+                         "END " +
+                         "WHERE " + query.getWhere(),
+                     query.getWhereArgs());
+        }
+      }
+    }
+
+    for (Map.Entry<GroupReceiptBatch, List<Long>> batch : groupReceipts.entrySet()) {
+      for (List<Long> ids : ListUtil.chunk(batch.getValue(), MAX_IDS_PER_STATEMENT)) {
+        SignalDatabase.groupReceipts().update(batch.getKey().recipientId, ids, batch.getKey().receiptType.getGroupStatus(), batch.getKey().timestamp);
+      }
+    }
+
+    return messageUpdates;
+  }
+
+  /**
+   * Matches the row under the cursor against the receipts resolved to it, using the same recipient rules as
+   * the table's own incrementReceiptCount().
+   */
+  private static void collectUfsrvReceipts(@NonNull Cursor cursor,
+                                           @NonNull MessageDatabase table,
+                                           @Nullable List<UfsrvReceipt> receipts,
+                                           boolean mms,
+                                           @NonNull Map<RecipientId, Boolean> isGroup,
+                                           @NonNull Map<MessageDatabase.ReceiptType, Map<Long, Increment>> increments,
+                                           @NonNull Map<GroupReceiptBatch, List<Long>> groupReceipts,
+                                           @NonNull Set<UfsrvReceipt> matched)
+  {
+    if (receipts == null || !MmsSmsColumns.Types.isOutgoingMessageType(CursorUtil.requireLong(cursor, table.getTypeField()))) return;
+
+    long        id               = CursorUtil.requireLong(cursor, MmsSmsColumns.ID);
+    long        threadId         = CursorUtil.requireLong(cursor, MmsSmsColumns.THREAD_ID);
+    RecipientId theirRecipientId = RecipientId.from(CursorUtil.requireLong(cursor, MmsSmsColumns.RECIPIENT_ID));
+
+    for (UfsrvReceipt receipt : receipts) {
+      RecipientId ourRecipientId = receipt.getSyncMessageId().getRecipientId();
+      boolean     applies        = ourRecipientId.equals(theirRecipientId) ||
+                                   (mms && isGroup.computeIfAbsent(theirRecipientId, r -> Recipient.resolved(r).isGroup()));
+
+      if (!applies) continue;
+
+      Increment increment = increments.computeIfAbsent(receipt.receiptType, k -> new HashMap<>()).get(id);
+      if (increment == null) {
+        increments.get(receipt.receiptType).put(id, new Increment(threadId, receipt.getTimestamp()));
+      } else {
+        increment.count++;
+      }
+
+      if (mms) {
+        groupReceipts.computeIfAbsent(new GroupReceiptBatch(receipt.receiptType, ourRecipientId, receipt.getTimestamp()), k -> new LinkedList<>()).add(id);
+      }
+
+      matched.add(receipt);
+    }
+  }
+
+  /**
+   * A receipt awaiting {@link #incrementReceiptCountsByUfsrvIdentifiers(List)}. Compared by identity.
+   */
+  public static final class UfsrvReceipt {
+    private final SyncMessageId               syncMessageId;
+    private final MessageDatabase.ReceiptType receiptType;
+    private final long                        timestamp;
+
+    private UfsrvReceipt(@NonNull SyncMessageId syncMessageId, @NonNull MessageDatabase.ReceiptType receiptType, long timestamp) {
+      this.syncMessageId = syncMessageId;
+      this.receiptType   = receiptType;
+      this.timestamp     = timestamp;
+    }
+
+    public static @NonNull UfsrvReceipt delivery(@NonNull SyncMessageId syncMessageId, long timestamp) {
+      return new UfsrvReceipt(syncMessageId, MessageDatabase.ReceiptType.DELIVERY, timestamp);
+    }
+
+    public static @NonNull UfsrvReceipt read(@NonNull SyncMessageId syncMessageId, long timestamp) {
+      return new UfsrvReceipt(syncMessageId, MessageDatabase.ReceiptType.READ, timestamp);
+    }
+
+    public static @NonNull UfsrvReceipt viewed(@NonNull SyncMessageId syncMessageId, long timestamp) {
+      return new UfsrvReceipt(syncMessageId, MessageDatabase.ReceiptType.VIEWED, timestamp);
+    }
+
+    public @NonNull SyncMessageId getSyncMessageId() {
+      return syncMessageId;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+  }
+
+  private static final class Increment {
+    private final long threadId;
+    private final long timestamp;
+    private       int  count = 1;
+
+    private Increment(long threadId, long timestamp) {
+      this.threadId  = threadId;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /**
+   * Message rows of one receipt type which can be updated by a single statement: same increment and timestamp.
+   */
+  private static final class IncrementBatch {
+    private final int  count;
+    private final long timestamp;
+
+    private IncrementBatch(int count, long timestamp) {
+      this.count     = count;
+      this.timestamp = timestamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      IncrementBatch that = (IncrementBatch) o;
+      return count == that.count && timestamp == that.timestamp;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(count, timestamp);
+    }
+  }
+
+  /**
+   * Group receipt rows which can be updated by a single statement: same recipient, receipt type and timestamp.
+   */
+  private static final class GroupReceiptBatch {
+    private final MessageDatabase.ReceiptType receiptType;
+    private final RecipientId                 recipientId;
+    private final long                        timestamp;
+
+    private GroupReceiptBatch(@NonNull MessageDatabase.ReceiptType receiptType, @NonNull RecipientId recipientId, long timestamp) {
+      this.receiptType = receiptType;
+      this.recipientId = recipientId;
+      this.timestamp   = timestamp;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      GroupReceiptBatch that = (GroupReceiptBatch) o;
+      return timestamp == that.timestamp && receiptType == that.receiptType && recipientId.equals(that.recipientId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(receiptType, recipientId, timestamp);
+    }
+  }
+  //
+
   //AA+
   public void setMessageStatus(long messageGid, int messageStatus)
   {
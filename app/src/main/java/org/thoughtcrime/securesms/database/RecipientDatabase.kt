@@ -20,6 +20,7 @@ import com.unfacd.android.locallyaddressable.LocallyAddressableUfsrvUid
 import com.unfacd.android.locallyaddressable.LocallyAddressableUndefined
 import com.unfacd.android.ufsrvuid.RecipientUfsrvId
 import com.unfacd.android.ufsrvuid.UfsrvUid
+import com.unfacd.android.utils.PresenceTable
 import net.zetetic.database.sqlcipher.SQLiteConstraintException
 import org.signal.core.util.Bitmask
 import org.signal.core.util.CursorUtil
@@ -3818,6 +3819,56 @@ open class RecipientDatabase(context: Context, databaseHelper: SignalDatabase) :
       null, null, null, null, null)
   }
 
+  //AA+
+  /**
+   * Ufsrv ids of the users who have shared their presence with us, read off the table without resolving a [Recipient] for each.
+   */
+  fun getPresenceSharedUfsrvIds(): List<Long> {
+    val ufsrvIds = ArrayList<Long>()
+
+    readableDatabase.query(TABLE_NAME, arrayOf(UFSRVID), "$SHARED_PRESENCE = 1 AND $GROUP_ID IS NULL", null, null, null, null).use { cursor ->
+      while (cursor.moveToNext()) {
+        ufsrvIds += cursor.requireLong(UFSRVID)
+      }
+    }
+
+    return ufsrvIds
+  }
+
+  //AA+
+  /**
+   * Writes presence for a batch of users, keyed by ufsrv id, in one transaction. Rows are located through the small set of users
+   * sharing presence with us, as [UFSRVID] isn't indexed, and only rows whose presence actually changed are written and notified.
+   */
+  fun setPresenceInformation(presence: Map<Long, String>) {
+    if (presence.isEmpty()) return
+
+    val db = writableDatabase
+    val changed = ArrayList<RecipientId>()
+
+    db.beginTransaction()
+    try {
+      db.query(TABLE_NAME, arrayOf(ID, UFSRVID), "$SHARED_PRESENCE = 1 AND $GROUP_ID IS NULL", null, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val presenceInfo = presence[cursor.requireLong(UFSRVID)] ?: continue
+          val id = RecipientId.from(cursor.requireLong(ID))
+
+          if (update(id, contentValuesOf(PRESENCE_INFO to presenceInfo))) {
+            changed += id
+          }
+        }
+      }
+
+      db.setTransactionSuccessful()
+    } finally {
+      db.endTransaction()
+    }
+
+    for (id in changed) {
+      ApplicationDependencies.getDatabaseObserver().notifyRecipientChanged(id)
+    }
+  }
+
   /**
    * Create a cursor-reader for presence-shared records.
    * @param cursor
@@ -3840,6 +3891,7 @@ open class RecipientDatabase(context: Context, databaseHelper: SignalDatabase) :
     val contentValues = ContentValues(1)
     contentValues.put(SHARED_PRESENCE, if (enabled) 1 else 0)
     update(recipient.id, contentValues)
+    if (!enabled) PresenceTable.getInstance().remove(recipient.ufsrvId) //AA+
     ApplicationDependencies.getDatabaseObserver().notifyRecipientChanged(recipient.id)
   }
 
@@ -74,6 +74,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
 
   //AA+
   val unfacdIntroContacts: UnfacdIntroContactsDatabase = UnfacdIntroContactsDatabase(context, this)
+  val fenceLocations: FenceLocationDatabase = FenceLocationDatabase(context, this)
 
   override fun onOpen(db: net.zetetic.database.sqlcipher.SQLiteDatabase) {
     db.enableWriteAheadLogging()
@@ -89,6 +90,9 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(DraftDatabase.CREATE_TABLE)
     db.execSQL(PushDatabase.CREATE_TABLE)
     db.execSQL(GroupDatabase.CREATE_TABLE)
+    db.execSQL(GroupDatabase.CREATE_MEMBERSHIP_TABLE) //AA+
+    db.execSQL(ThreadDatabase.CREATE_COUNTERS_TABLE) //AA+
+    db.execSQL(ThreadDatabase.SEED_COUNTERS) //AA+
     db.execSQL(RecipientDatabase.CREATE_TABLE)
     db.execSQL(GroupReceiptDatabase.CREATE_TABLE)
     db.execSQL(OneTimePreKeyDatabase.CREATE_TABLE)
@@ -110,6 +114,8 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(StorySendsDatabase.CREATE_TABLE)
 
     db.execSQL((UnfacdIntroContactsDatabase.CREATE_TABLE))//AA+
+    db.execSQL(FenceLocationDatabase.CREATE_TABLE) //AA+
+    db.execSQL(FenceLocationDatabase.CREATE_TILES_TABLE) //AA+
 
     executeStatements(db, SearchDatabase.CREATE_TABLE)
     executeStatements(db, RemappedRecordsDatabase.CREATE_TABLE)
@@ -124,6 +130,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     executeStatements(db, ThreadDatabase.CREATE_INDEXS)
     executeStatements(db, DraftDatabase.CREATE_INDEXS)
     executeStatements(db, GroupDatabase.CREATE_INDEXS)
+    executeStatements(db, GroupDatabase.CREATE_MEMBERSHIP_INDEXES) //AA+
     executeStatements(db, GroupReceiptDatabase.CREATE_INDEXES)
     executeStatements(db, StickerDatabase.CREATE_INDEXES)
     executeStatements(db, UnknownStorageIdDatabase.CREATE_INDEXES)
@@ -134,9 +141,12 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     executeStatements(db, NotificationProfileDatabase.CREATE_INDEXES)
     executeStatements(db, DonationReceiptDatabase.CREATE_INDEXS)
     db.execSQL(StorySendsDatabase.CREATE_INDEX)
+    executeStatements(db, FenceLocationDatabase.CREATE_INDEXS) //AA+
 
     executeStatements(db, MessageSendLogDatabase.CREATE_TRIGGERS)
     executeStatements(db, ReactionDatabase.CREATE_TRIGGERS)
+    executeStatements(db, GroupDatabase.CREATE_MEMBERSHIP_TRIGGERS) //AA+
+    executeStatements(db, ThreadDatabase.CREATE_COUNTERS_TRIGGERS) //AA+
 
     DistributionListDatabase.insertInitialDistributionListAtCreationTime(db)
 
@@ -500,5 +510,10 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     @get:JvmName("unfacdIntroContacts")
     val unfacdIntroContacts: UnfacdIntroContactsDatabase
       get() = instance!!.unfacdIntroContacts
+
+    @get:JvmStatic
+    @get:JvmName("fenceLocations")
+    val fenceLocations: FenceLocationDatabase
+      get() = instance!!.fenceLocations
   }
 }
\ No newline at end of file
@@ -150,7 +150,8 @@ public class SmsDatabase extends MessageDatabase {
           "CREATE INDEX IF NOT EXISTS sms_date_server_index ON " + TABLE_NAME + " (" + DATE_SERVER + ");",
           "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
           "CREATE INDEX IF NOT EXISTS sms_reactions_unread_index ON " + TABLE_NAME + " (" + REACTIONS_UNREAD + ");",
-          "CREATE INDEX IF NOT EXISTS sms_gid_index ON " + TABLE_NAME + " (" + UFSRV_GID + ");"
+          "CREATE INDEX IF NOT EXISTS sms_gid_index ON " + TABLE_NAME + " (" + UFSRV_GID + ");",
+          "CREATE INDEX IF NOT EXISTS sms_thread_eid_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + UFSRV_EID + ");" //AA+
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -532,14 +533,22 @@ public class SmsDatabase extends MessageDatabase {
         }
       }
 
-      if (messageUpdates.isEmpty() && receiptType == ReceiptType.DELIVERY) {
-        earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId(), timestamp);
+      if (receiptType == ReceiptType.DELIVERY) {
+        updateEarlyDeliveryReceiptCache(messageId, timestamp, !messageUpdates.isEmpty());//AA+
       }
 
       return messageUpdates;
     }
   }
 
+  //AA+ also used by delivery receipts applied in bulk, see MmsSmsDatabase.incrementReceiptCountsByUfsrvIdentifiers()
+  @Override
+  void updateEarlyDeliveryReceiptCache(@NonNull SyncMessageId messageId, long timestamp, boolean matched) {
+    if (!matched) {
+      earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId(), timestamp);
+    }
+  }
+
   @Override
   public List<MarkedMessageInfo> setEntireThreadRead(long threadId) {
     return setMessagesRead(THREAD_ID + " = ?", new String[] {String.valueOf(threadId)});
@@ -177,6 +177,64 @@ public class ThreadDatabase extends Database {
           "CREATE INDEX IF NOT EXISTS ufsrv_fid_index ON " + TABLE_NAME + " (" + UFSRV_FID + ");",
   };
 
+  //AA+ Per-tab conversation counts, kept current by triggers on thread and groups so the tabs never have to scan the
+  //thread table. Each fence thread lands in exactly one counter row, keyed by its tab bucket (see groups.mode) and its
+  //archived, pinned and unread flags. All keys are seeded up front, so triggers only ever update in place.
+  public  static final String COUNTERS_TABLE_NAME = "thread_counters";
+  private static final String COUNTER_KEY         = "counter_key";
+  private static final String COUNTER_COUNT       = "count";
+
+  private static final int BUCKET_OPEN    = 1;
+  private static final int BUCKET_INVITED = 2;
+  private static final int BUCKET_LEFT    = 3;
+
+  private static final int FLAG_ARCHIVED = 4;
+  private static final int FLAG_PINNED   = 2;
+  private static final int FLAG_UNREAD   = 1;
+
+  private static final int COUNTER_KEYS = (BUCKET_LEFT + 1) * 8;
+
+  private static final String OPEN_MODES    = joinModes(GROUP_MODE_JOIN_ACCEPTED, GROUP_MODE_LINKJOIN_ACCEPTED, GROUP_MODE_GEOBASED_JOIN, GROUP_MODE_JOIN_SYNCED, GROUP_MODE_INVITATION_JOIN_ACCEPTED, GROUP_MODE_MAKE_NOT_CONFIRMED, GROUP_MODE_LEAVE_NOT_CONFIRMED);
+  private static final String INVITED_MODES = joinModes(GROUP_MODE_INVITATION, GROUP_MODE_GEOBASED_INVITE, GROUP_MODE_LINKJOIN_REQUESTING);
+  private static final String LEFT_MODES    = joinModes(GROUP_MODE_LEAVE_ACCEPTED, GROUP_MODE_LEAVE_GEO_BASED, GROUP_MODE_INVITATION_REJECTED, GROUP_MODE_LEAVE_REJECTED, GROUP_MODE_BLOCKED, GROUP_MODE_LINKJOIN_REJECTED);
+
+  public static final String CREATE_COUNTERS_TABLE = "CREATE TABLE " + COUNTERS_TABLE_NAME + " (" +
+                                                     COUNTER_KEY + " INTEGER PRIMARY KEY, " +
+                                                     COUNTER_COUNT + " INTEGER NOT NULL DEFAULT 0" +
+                                                     ");";
+
+  public static final String SEED_COUNTERS = "WITH RECURSIVE keys(k) AS (SELECT 0 UNION ALL SELECT k + 1 FROM keys WHERE k + 1 < " + COUNTER_KEYS + ") " +
+                                             "INSERT OR IGNORE INTO " + COUNTERS_TABLE_NAME + " (" + COUNTER_KEY + ", " + COUNTER_COUNT + ") SELECT k, 0 FROM keys;";
+
+  public static final String[] CREATE_COUNTERS_TRIGGERS = {
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_thread_insert AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+            adjustCounterFor("new", "+ 1") +
+          " END;",
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_thread_delete AFTER DELETE ON " + TABLE_NAME + " BEGIN " +
+            adjustCounterFor("old", "- 1") +
+          " END;",
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_thread_update AFTER UPDATE OF " + ARCHIVED + ", " + PINNED + ", " + READ + ", " + UFSRV_FID + " ON " + TABLE_NAME +
+          " WHEN old." + ARCHIVED + " IS NOT new." + ARCHIVED + " OR old." + PINNED + " IS NOT new." + PINNED + " OR old." + READ + " IS NOT new." + READ + " OR old." + UFSRV_FID + " IS NOT new." + UFSRV_FID + " BEGIN " +
+            adjustCounterFor("old", "- 1") + " " + adjustCounterFor("new", "+ 1") +
+          " END;",
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_group_insert AFTER INSERT ON " + GroupDatabase.TABLE_NAME + " BEGIN " +
+            adjustCountersForGroup("new", "+") +
+          " END;",
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_group_delete AFTER DELETE ON " + GroupDatabase.TABLE_NAME + " BEGIN " +
+            adjustCountersForGroup("old", "-") +
+          " END;",
+          "CREATE TRIGGER IF NOT EXISTS thread_counters_group_update AFTER UPDATE OF " + GroupDatabase.MODE + ", " + GroupDatabase.FID + " ON " + GroupDatabase.TABLE_NAME +
+          " WHEN old." + GroupDatabase.MODE + " IS NOT new." + GroupDatabase.MODE + " OR old." + GroupDatabase.FID + " IS NOT new." + GroupDatabase.FID + " BEGIN " +
+            adjustCountersForGroup("old", "-") + " " + adjustCountersForGroup("new", "+") +
+          " END;",
+  };
+
+  private static final String REBUILD_COUNTERS = "UPDATE " + COUNTERS_TABLE_NAME + " SET " + COUNTER_COUNT + " = " +
+                                                 "(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + counterKeyLookup(TABLE_NAME) + " = " + COUNTERS_TABLE_NAME + "." + COUNTER_KEY + ")";
+
+  private volatile boolean countersVerified;
+  //
+
   private static final String[] THREAD_PROJECTION = {
           ID, DATE, MEANINGFUL_MESSAGES, RECIPIENT_ID, SNIPPET, SNIPPET_CHARSET, READ, UNREAD_COUNT, TYPE, ERROR, SNIPPET_TYPE,
           SNIPPET_URI, SNIPPET_CONTENT_TYPE, SNIPPET_EXTRAS, ARCHIVED, STATUS, DELIVERY_RECEIPT_COUNT, EXPIRES_IN, LAST_SEEN, READ_RECEIPT_COUNT, LAST_SCROLLED, PINNED,
@@ -198,6 +256,139 @@ public class ThreadDatabase extends Database {
     super(context, databaseHelper);
   }
 
+  //AA+
+  private static String joinModes(int... modes) {
+    StringBuilder builder = new StringBuilder();
+    for (int mode : modes) {
+      if (builder.length() > 0) builder.append(", ");
+      builder.append(mode);
+    }
+
+    return builder.toString();
+  }
+
+  /**
+   * @return SQL expression for the counter key of a thread row, given the mode of its fence.
+   */
+  private static String counterKeyOf(String thread, String mode) {
+    return "((CASE WHEN " + mode + " IN (" + OPEN_MODES + ") THEN " + BUCKET_OPEN +
+           " WHEN " + mode + " IN (" + INVITED_MODES + ") THEN " + BUCKET_INVITED +
+           " WHEN " + mode + " IN (" + LEFT_MODES + ") THEN " + BUCKET_LEFT +
+           " ELSE 0 END) * 8" +
+           " + (IFNULL(" + thread + "." + ARCHIVED + ", 0) != 0) * " + FLAG_ARCHIVED +
+           " + (IFNULL(" + thread + "." + PINNED + ", 0) != 0) * " + FLAG_PINNED +
+           " + (" + thread + "." + READ + " IS " + ReadStatus.UNREAD.serialize() + ") * " + FLAG_UNREAD + ")";
+  }
+
+  /**
+   * @return SQL expression for the counter key of a thread row, looked up through its fence; NULL if it has none.
+   */
+  private static String counterKeyLookup(String thread) {
+    return "(SELECT " + counterKeyOf(thread, GroupDatabase.TABLE_NAME + "." + GroupDatabase.MODE) + " FROM " + GroupDatabase.TABLE_NAME +
+           " WHERE " + GroupDatabase.TABLE_NAME + "." + GroupDatabase.FID + " = " + thread + "." + UFSRV_FID + " AND " + thread + "." + UFSRV_FID + " > 0)";
+  }
+
+  private static String adjustCounterFor(String thread, String delta) {
+    return "UPDATE " + COUNTERS_TABLE_NAME + " SET " + COUNTER_COUNT + " = " + COUNTER_COUNT + " " + delta +
+           " WHERE " + COUNTER_KEY + " = " + counterKeyLookup(thread) + ";";
+  }
+
+  /** Moves all threads of a fence in or out of the counters, as the fence row itself comes, goes or changes mode. */
+  private static String adjustCountersForGroup(String group, String sign) {
+    String threadsOfGroup = " FROM " + TABLE_NAME + " WHERE " + TABLE_NAME + "." + UFSRV_FID + " = " + group + "." + GroupDatabase.FID + " AND " + group + "." + GroupDatabase.FID + " > 0";
+    String keyOfThread    = counterKeyOf(TABLE_NAME, group + "." + GroupDatabase.MODE);
+
+    return "UPDATE " + COUNTERS_TABLE_NAME + " SET " + COUNTER_COUNT + " = " + COUNTER_COUNT + " " + sign +
+           " (SELECT COUNT(*)" + threadsOfGroup + " AND " + keyOfThread + " = " + COUNTERS_TABLE_NAME + "." + COUNTER_KEY + ")" +
+           " WHERE " + COUNTER_KEY + " IN (SELECT " + keyOfThread + threadsOfGroup + ");";
+  }
+
+  /**
+   * Recomputes every counter from the thread and groups tables. Only needed if the counters are found to have drifted.
+   */
+  public void rebuildCounters() {
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      db.execSQL(SEED_COUNTERS);
+      db.execSQL(REBUILD_COUNTERS);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return all counters, indexed by key. Verified against the tables once per process, and rebuilt if they disagree.
+   */
+  private @NonNull int[] getCounters() {
+    if (!countersVerified) {
+      countersVerified = true;
+      if (!countersAreConsistent()) {
+        Log.w(TAG, "getCounters: Thread counters drifted, rebuilding");
+        rebuildCounters();
+      }
+    }
+
+    int[] counters = readCounters();
+    for (int count : counters) {
+      if (count < 0) {
+        Log.w(TAG, "getCounters: Negative thread counter, rebuilding");
+        rebuildCounters();
+        return readCounters();
+      }
+    }
+
+    return counters;
+  }
+
+  private @NonNull int[] readCounters() {
+    int[]          counters = new int[COUNTER_KEYS];
+    SQLiteDatabase db       = databaseHelper.getSignalReadableDatabase();
+
+    try (Cursor cursor = db.query(COUNTERS_TABLE_NAME, new String[] { COUNTER_KEY, COUNTER_COUNT }, null, null, null, null, null)) {
+      while (cursor.moveToNext()) {
+        int key = cursor.getInt(0);
+        if (key >= 0 && key < COUNTER_KEYS) counters[key] = cursor.getInt(1);
+      }
+    }
+
+    return counters;
+  }
+
+  private boolean countersAreConsistent() {
+    SQLiteDatabase db = databaseHelper.getSignalReadableDatabase();
+
+    try (Cursor cursor = db.rawQuery("SELECT (SELECT COUNT(*) FROM " + COUNTERS_TABLE_NAME + "), " +
+                                     "(SELECT IFNULL(SUM(" + COUNTER_COUNT + "), 0) FROM " + COUNTERS_TABLE_NAME + "), " +
+                                     "(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + counterKeyLookup(TABLE_NAME) + " IS NOT NULL)", null))
+    {
+      return cursor.moveToFirst() && cursor.getInt(0) == COUNTER_KEYS && cursor.getLong(1) == cursor.getLong(2);
+    }
+  }
+
+  /**
+   * Sums the unarchived counters of a bucket.
+   * @param pinned  if non-null, only threads with this pinned state
+   * @param unread  if non-null, only threads with this unread state
+   */
+  private int sumCounters(int bucket, @Nullable Boolean pinned, @Nullable Boolean unread) {
+    int[] counters = getCounters();
+    int   sum      = 0;
+
+    for (int flags = 0; flags < 8; flags++) {
+      if ((flags & FLAG_ARCHIVED) != 0) continue;
+      if (pinned != null && pinned != ((flags & FLAG_PINNED) != 0)) continue;
+      if (unread != null && unread != ((flags & FLAG_UNREAD) != 0)) continue;
+
+      sum += counters[bucket * 8 + flags];
+    }
+
+    return sum;
+  }
+  //
+
   private long createThreadForRecipient(@NonNull RecipientId recipientId, boolean group, int distributionType) {
     if (recipientId.isUnknown()) {
       throw new AssertionError("Cannot create a thread for an unknown recipient!");
@@ -1431,30 +1622,11 @@ public class ThreadDatabase extends Database {
   }
 
   public int getInvitedConversationListCount(boolean pinned, boolean includingPins) {
-    String pinsQuery = includingPins ? String.format(" AND %s = %s ", PINNED, pinned ? "1" : "0") : " ";
-    String query = "SELECT t.*, g.mode FROM thread t INNER JOIN groups g ON t.ufsrv_fid = g.fid where (g.mode = ? OR  g.mode = ? OR  g.mode = ?) AND t.archived = 0 " +
-            pinsQuery +
-            "ORDER BY DATE DESC";
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = getInvitedConversationListAll(0, 0);db.rawQuery(query, new String[]{String.valueOf(GROUP_MODE_INVITATION), String.valueOf(GROUP_MODE_GEOBASED_INVITE), String.valueOf(GROUP_MODE_LINKJOIN_REQUESTING)});
-
-    int count = m.getCount();
-
-    m.close();
-    return count;
+    return sumCounters(BUCKET_INVITED, includingPins ? pinned : null, null);
   }
 
   public int getInvitedConversationListUnreadCount() {
-    String query = "SELECT t.*, g.mode FROM thread t INNER JOIN groups g ON t.ufsrv_fid = g.fid where (g.mode = ? OR  g.mode = ? OR  g.mode = ?) AND t.archived = 0 AND t.read = 0 " +
-                   "ORDER BY DATE DESC";
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = db.rawQuery(query, new String[]{String.valueOf(GROUP_MODE_INVITATION), String.valueOf(GROUP_MODE_GEOBASED_INVITE), String.valueOf(GROUP_MODE_LINKJOIN_REQUESTING)});
-
-    int count = m.getCount();
-
-    m.close();
-
-    return count;
+    return sumCounters(BUCKET_INVITED, null, true);
   }
   //
 
@@ -1487,36 +1659,11 @@ public class ThreadDatabase extends Database {
   }
 
   public int getLeftConversationListCount() {
-    /*SQLiteDatabase db      = databaseHelper.getReadableDatabase();
-    String[]       columns = new String[] { "COUNT(*)" };
-    String         query   = ARCHIVED + " = ? AND " + MESSAGE_COUNT + " != 0";
-    String[]       args    = new String[] { archived ? "1" : "0" };
-
-    try (Cursor cursor = db.query(TABLE_NAME, columns, query, args, null, null, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0);
-      }
-    }*/
-
-    final String MY_QUERY = "SELECT t.*, g.mode FROM thread t INNER JOIN groups g ON t.ufsrv_fid = g.fid where (g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ?) AND t.archived = 0 ORDER BY DATE DESC";
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = db.rawQuery(MY_QUERY, new String[]{String.valueOf(GROUP_MODE_LEAVE_ACCEPTED),  String.valueOf(GROUP_MODE_LEAVE_GEO_BASED), String.valueOf(GROUP_MODE_INVITATION_REJECTED), String.valueOf(GROUP_MODE_LEAVE_REJECTED), String.valueOf(GROUP_MODE_BLOCKED)});
-
-    int count = m.getCount();
-
-    m.close();
-    return count;
+    return sumCounters(BUCKET_LEFT, null, null);
   }
 
   public int getLeftConversationListUnreadCount () {
-    final String MY_QUERY = "SELECT t.*, g.mode FROM thread t INNER JOIN groups g ON t.ufsrv_fid = g.fid where (g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR  g.mode = ?) AND read = 0 AND t.archived = 0 ORDER BY DATE DESC";
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = db.rawQuery(MY_QUERY, new String[]{String.valueOf(GROUP_MODE_LEAVE_ACCEPTED), String.valueOf(GROUP_MODE_LEAVE_GEO_BASED), String.valueOf(GROUP_MODE_INVITATION_REJECTED), String.valueOf(GROUP_MODE_LEAVE_REJECTED), String.valueOf(GROUP_MODE_BLOCKED), String.valueOf(GROUP_MODE_LINKJOIN_REJECTED)});
-
-    int count = m.getCount();
-
-    m.close();
-    return count;
+    return sumCounters(BUCKET_LEFT, null, true);
   }
 
   public Cursor getGuardianConversationList() {
@@ -1648,31 +1795,11 @@ public class ThreadDatabase extends Database {
   }
 
   public int getUnarchivedOpenConversationListCount(boolean pinned, boolean includingPins) {
-    String pinsQuery = includingPins ? String.format(" AND %s %s ", PINNED, pinned ? " != 0 " : "= 0 ") : " ";
-    final String MY_QUERY = "SELECT t.*, g.mode FROM thread t " +
-                            "INNER JOIN groups g ON t.ufsrv_fid = g.fid " +
-                            "WHERE (g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ?) AND t.archived = 0 " +
-                            pinsQuery;
-
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = db.rawQuery(MY_QUERY,
-                           new String[]{String.valueOf(GROUP_MODE_JOIN_ACCEPTED), String.valueOf(GROUP_MODE_LINKJOIN_ACCEPTED), String.valueOf(GROUP_MODE_GEOBASED_JOIN), String.valueOf(GROUP_MODE_JOIN_SYNCED), String.valueOf(GROUP_MODE_INVITATION_JOIN_ACCEPTED), String.valueOf(GROUP_MODE_MAKE_NOT_CONFIRMED), String.valueOf(GROUP_MODE_LEAVE_NOT_CONFIRMED)});
-
-    int count = m.getCount();
-
-    m.close();
-    return count;
+    return sumCounters(BUCKET_OPEN, includingPins ? pinned : null, null);
   }
 
   public int getOpenConversationListUnreadCount () {
-    final String MY_QUERY = "SELECT t.*, g.mode FROM thread t INNER JOIN groups g ON t.thread_recipient_id = g.recipient_id where (g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ? OR g.mode = ?) AND read = 0 AND t.archived = 0 ORDER BY DATE DESC";
-    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
-    Cursor m = db.rawQuery(MY_QUERY, new String[]{String.valueOf(GROUP_MODE_JOIN_ACCEPTED), String.valueOf(GROUP_MODE_LINKJOIN_ACCEPTED), String.valueOf(GROUP_MODE_GEOBASED_JOIN), String.valueOf(GROUP_MODE_JOIN_SYNCED), String.valueOf(GROUP_MODE_INVITATION_JOIN_ACCEPTED), String.valueOf(GROUP_MODE_MAKE_NOT_CONFIRMED), String.valueOf(GROUP_MODE_LEAVE_NOT_CONFIRMED)});
-
-    int count = m.getCount();
-
-    m.close();
-    return count;
+    return sumCounters(BUCKET_OPEN, null, true);
   }
 
   @SuppressLint("Recycle")
@@ -10,6 +10,7 @@ import android.os.Build
 import android.os.SystemClock
 import android.preference.PreferenceManager
 import android.text.TextUtils
+import androidx.annotation.VisibleForTesting
 import androidx.core.content.contentValuesOf
 import com.annimon.stream.Stream
 import com.google.protobuf.InvalidProtocolBufferException
@@ -196,8 +197,12 @@ object SignalDatabaseMigrations {
   private const val GROUP_STORIES = 134
   private const val MMS_COUNT_INDEX = 135
   private const val STORY_SENDS = 136
+  private const val UFSRV_RECEIPT_INDEX = 137 //AA+
+  private const val GROUP_MEMBERSHIP = 138 //AA+
+  private const val FENCE_LOCATIONS = 139 //AA+
+  private const val THREAD_COUNTERS = 140 //AA+
 
-  const val DATABASE_VERSION = 136
+  const val DATABASE_VERSION = 140
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -2502,6 +2507,114 @@ object SignalDatabaseMigrations {
 
       db.execSQL("CREATE INDEX story_sends_recipient_id_sent_timestamp_allows_replies_index ON story_sends (recipient_id, sent_timestamp, allows_replies)")
     }
+
+    //AA+
+    if (oldVersion < UFSRV_RECEIPT_INDEX) {
+      db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_eid_index ON mms (thread_id, ufsrv_eid)")
+      db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_eid_index ON sms (thread_id, ufsrv_eid)")
+    }
+
+    //AA+
+    if (oldVersion < GROUP_MEMBERSHIP) {
+      migrateGroupMembership(db)
+    }
+
+    if (oldVersion < FENCE_LOCATIONS) {
+      db.execSQL("CREATE TABLE fence_locations (fid INTEGER PRIMARY KEY, latitude REAL NOT NULL, longitude REAL NOT NULL, cell_lat INTEGER NOT NULL, cell_lon INTEGER NOT NULL, fence_record BLOB DEFAULT NULL, updated INTEGER DEFAULT 0)")
+      db.execSQL("CREATE TABLE fence_location_tiles (tile INTEGER PRIMARY KEY, fetched_at INTEGER NOT NULL)")
+      db.execSQL("CREATE INDEX IF NOT EXISTS fence_locations_cell_index ON fence_locations (cell_lat, cell_lon)")
+      db.execSQL(
+        "INSERT OR IGNORE INTO fence_locations (fid, latitude, longitude, cell_lat, cell_lon) " +
+          "SELECT fid, latitude, longitude, CAST((latitude + 90) / 0.05 AS INTEGER), CAST((longitude + 180) / 0.05 AS INTEGER) FROM groups " +
+          "WHERE fid > 0 AND latitude IS NOT NULL AND longitude IS NOT NULL AND NOT (latitude = 0 AND longitude = 0) " +
+          "AND latitude BETWEEN -90 AND 90 AND longitude BETWEEN -180 AND 180"
+      )
+    }
+
+    if (oldVersion < THREAD_COUNTERS) {
+      migrateThreadCounters(db)
+    }
+  }
+
+  /**
+   * Creates group_membership with its index and triggers, and backfills it from the member lists already in groups.
+   */
+  @VisibleForTesting
+  @JvmStatic
+  fun migrateGroupMembership(db: SQLiteDatabase) {
+    db.execSQL("CREATE TABLE group_membership (group_row INTEGER NOT NULL REFERENCES groups (_id) ON DELETE CASCADE, member_uid TEXT NOT NULL, role INTEGER NOT NULL, UNIQUE(group_row, role, member_uid) ON CONFLICT IGNORE)")
+    db.execSQL("CREATE INDEX IF NOT EXISTS group_membership_member_index ON group_membership (member_uid, role, group_row)")
+
+    val roles = listOf("members" to 0, "invited_members" to 1, "blocked_members" to 2, "requesting_members" to 3)
+
+    // Splits the serialized list via json_each(), as triggers can't use recursive CTEs
+    fun membersOf(row: String, column: String, role: Int, from: String = ""): String {
+      val asJson = "'[\"' || replace($row.$column, ',', '\",\"') || '\"]'"
+      return "SELECT $row._id, trim(value), $role FROM ${from}json_each(CASE WHEN json_valid($asJson) THEN $asJson ELSE '[]' END) WHERE trim(value) != ''"
+    }
+
+    for ((column, role) in roles) {
+      db.execSQL("INSERT INTO group_membership (group_row, member_uid, role) ${membersOf("groups", column, role, from = "groups, ")}")
+    }
+
+    db.execSQL("CREATE TRIGGER group_membership_insert AFTER INSERT ON groups BEGIN ${roles.joinToString(separator = "") { (column, role) -> "INSERT INTO group_membership (group_row, member_uid, role) ${membersOf("new", column, role)}; " }}END;")
+
+    for ((column, role) in roles) {
+      db.execSQL(
+        "CREATE TRIGGER group_membership_update_$column AFTER UPDATE OF $column ON groups WHEN new.$column IS NOT old.$column BEGIN " +
+          "DELETE FROM group_membership WHERE group_row = old._id AND role = $role; " +
+          "INSERT INTO group_membership (group_row, member_uid, role) ${membersOf("new", column, role)}; " +
+          "END;"
+      )
+    }
+  }
+
+  /**
+   * Creates thread_counters with a row for every key and the triggers that keep it current, then counts the threads
+   * already there.
+   */
+  @VisibleForTesting
+  @JvmStatic
+  fun migrateThreadCounters(db: SQLiteDatabase) {
+    db.execSQL("CREATE TABLE thread_counters (counter_key INTEGER PRIMARY KEY, count INTEGER NOT NULL DEFAULT 0)")
+    db.execSQL("WITH RECURSIVE keys(k) AS (SELECT 0 UNION ALL SELECT k + 1 FROM keys WHERE k + 1 < 32) INSERT OR IGNORE INTO thread_counters (counter_key, count) SELECT k, 0 FROM keys")
+
+    // key = tab bucket * 8 + archived * 4 + pinned * 2 + unread, bucket being 1 open, 2 invited, 3 left, 0 anything else
+    fun keyOf(thread: String, mode: String): String {
+      return "((CASE WHEN $mode IN (10, 41, 12, 13, 11, 14, 22) THEN 1 WHEN $mode IN (1, 2, 40) THEN 2 WHEN $mode IN (20, 21, 15, 24, 16, 42) THEN 3 ELSE 0 END) * 8" +
+        " + (IFNULL($thread.archived, 0) != 0) * 4 + (IFNULL($thread.pinned, 0) != 0) * 2 + ($thread.read IS 0) * 1)"
+    }
+
+    fun keyLookup(thread: String): String {
+      return "(SELECT ${keyOf(thread, "groups.mode")} FROM groups WHERE groups.fid = $thread.ufsrv_fid AND $thread.ufsrv_fid > 0)"
+    }
+
+    fun adjustThread(thread: String, delta: String): String {
+      return "UPDATE thread_counters SET count = count $delta WHERE counter_key = ${keyLookup(thread)};"
+    }
+
+    fun adjustGroup(group: String, sign: String): String {
+      val threadsOfGroup = " FROM thread WHERE thread.ufsrv_fid = $group.fid AND $group.fid > 0"
+      val keyOfThread = keyOf("thread", "$group.mode")
+      return "UPDATE thread_counters SET count = count $sign (SELECT COUNT(*)$threadsOfGroup AND $keyOfThread = thread_counters.counter_key) WHERE counter_key IN (SELECT $keyOfThread$threadsOfGroup);"
+    }
+
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_counters_thread_insert AFTER INSERT ON thread BEGIN ${adjustThread("new", "+ 1")} END;")
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_counters_thread_delete AFTER DELETE ON thread BEGIN ${adjustThread("old", "- 1")} END;")
+    db.execSQL(
+      "CREATE TRIGGER IF NOT EXISTS thread_counters_thread_update AFTER UPDATE OF archived, pinned, read, ufsrv_fid ON thread " +
+        "WHEN old.archived IS NOT new.archived OR old.pinned IS NOT new.pinned OR old.read IS NOT new.read OR old.ufsrv_fid IS NOT new.ufsrv_fid " +
+        "BEGIN ${adjustThread("old", "- 1")} ${adjustThread("new", "+ 1")} END;"
+    )
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_counters_group_insert AFTER INSERT ON groups BEGIN ${adjustGroup("new", "+")} END;")
+    db.execSQL("CREATE TRIGGER IF NOT EXISTS thread_counters_group_delete AFTER DELETE ON groups BEGIN ${adjustGroup("old", "-")} END;")
+    db.execSQL(
+      "CREATE TRIGGER IF NOT EXISTS thread_counters_group_update AFTER UPDATE OF mode, fid ON groups " +
+        "WHEN old.mode IS NOT new.mode OR old.fid IS NOT new.fid " +
+        "BEGIN ${adjustGroup("old", "-")} ${adjustGroup("new", "+")} END;"
+    )
+
+    db.execSQL("UPDATE thread_counters SET count = (SELECT COUNT(*) FROM thread WHERE ${keyLookup("thread")} = thread_counters.counter_key)")
   }
 
   @JvmStatic
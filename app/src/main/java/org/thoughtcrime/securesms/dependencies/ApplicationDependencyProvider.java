@@ -7,6 +7,7 @@ import android.text.TextUtils;
 
 import com.unfacd.android.ApplicationContext;
 import com.unfacd.android.BuildConfig;
+import com.unfacd.android.utils.StateSyncVersions;
 
 import org.signal.core.util.concurrent.DeadlockDetector;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -24,10 +25,10 @@ import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptCache;
+import org.thoughtcrime.securesms.jobmanager.BinaryDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.JobMigrator;
 import org.thoughtcrime.securesms.jobmanager.impl.FactoryJobPredicate;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.FastJobStorage;
 import org.thoughtcrime.securesms.jobs.GroupCallUpdateSendJob;
@@ -167,7 +168,7 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
   @Override
   public @NonNull JobManager provideJobManager() {
     JobManager.Configuration config = new JobManager.Configuration.Builder()
-            .setDataSerializer(new JsonDataSerializer())
+            .setDataSerializer(new BinaryDataSerializer())
             .setJobFactories(JobManagerFactories.getJobFactories(context))
             .setConstraintFactories(JobManagerFactories.getConstraintFactories(context))
             .setConstraintObservers(JobManagerFactories.getConstraintObservers(context))
@@ -448,6 +449,11 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
     {
       //this.cookie=cookie;
     }
+
+    @Override
+    public String getStateSyncVersions() {
+      return StateSyncVersions.asHeaderValue();
+    }
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,472 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding of {@link Data}. Primitives and arrays are written directly (varints for
+ * integral values), so there is no reflection or text parsing when jobs are loaded or their state is persisted.
+ *
+ * Payloads start with {@link #MAGIC}, a byte that can never start a UTF-8 JSON document. Anything else is a legacy
+ * payload and is handed to {@link JsonDataSerializer}, so jobs persisted before the switch still load; they are
+ * rewritten in the binary format the next time the job is persisted.
+ */
+public final class BinaryDataSerializer implements Data.Serializer {
+
+  private static final String TAG = Log.tag(BinaryDataSerializer.class);
+
+  private static final byte MAGIC   = 0;
+  private static final int  VERSION = 1;
+
+  private static final int TAG_END            = 0;
+  private static final int TAG_STRINGS        = 1;
+  private static final int TAG_STRING_ARRAYS  = 2;
+  private static final int TAG_INTEGERS       = 3;
+  private static final int TAG_INTEGER_ARRAYS = 4;
+  private static final int TAG_LONGS          = 5;
+  private static final int TAG_LONG_ARRAYS    = 6;
+  private static final int TAG_FLOATS         = 7;
+  private static final int TAG_FLOAT_ARRAYS   = 8;
+  private static final int TAG_DOUBLES        = 9;
+  private static final int TAG_DOUBLE_ARRAYS  = 10;
+  private static final int TAG_BOOLEANS       = 11;
+  private static final int TAG_BOOLEAN_ARRAYS = 12;
+
+  private final JsonDataSerializer legacySerializer = new JsonDataSerializer();
+
+  @Override
+  public @NonNull byte[] serialize(@NonNull Data data) {
+    Writer writer = new Writer();
+
+    writer.writeByte(MAGIC);
+    writer.writeByte(VERSION);
+
+    Map<String, String> strings = data.getStrings();
+    if (!strings.isEmpty()) {
+      writer.writeHeader(TAG_STRINGS, strings.size());
+      for (Map.Entry<String, String> entry : strings.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeString(entry.getValue());
+      }
+    }
+
+    Map<String, String[]> stringArrays = data.getStringArrays();
+    if (!stringArrays.isEmpty()) {
+      writer.writeHeader(TAG_STRING_ARRAYS, stringArrays.size());
+      for (Map.Entry<String, String[]> entry : stringArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (String value : entry.getValue()) {
+          writer.writeString(value);
+        }
+      }
+    }
+
+    Map<String, Integer> integers = data.getIntegers();
+    if (!integers.isEmpty()) {
+      writer.writeHeader(TAG_INTEGERS, integers.size());
+      for (Map.Entry<String, Integer> entry : integers.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeSignedVarint(entry.getValue());
+      }
+    }
+
+    Map<String, int[]> integerArrays = data.getIntegerArrays();
+    if (!integerArrays.isEmpty()) {
+      writer.writeHeader(TAG_INTEGER_ARRAYS, integerArrays.size());
+      for (Map.Entry<String, int[]> entry : integerArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (int value : entry.getValue()) {
+          writer.writeSignedVarint(value);
+        }
+      }
+    }
+
+    Map<String, Long> longs = data.getLongs();
+    if (!longs.isEmpty()) {
+      writer.writeHeader(TAG_LONGS, longs.size());
+      for (Map.Entry<String, Long> entry : longs.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeSignedVarint(entry.getValue());
+      }
+    }
+
+    Map<String, long[]> longArrays = data.getLongArrays();
+    if (!longArrays.isEmpty()) {
+      writer.writeHeader(TAG_LONG_ARRAYS, longArrays.size());
+      for (Map.Entry<String, long[]> entry : longArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (long value : entry.getValue()) {
+          writer.writeSignedVarint(value);
+        }
+      }
+    }
+
+    Map<String, Float> floats = data.getFloats();
+    if (!floats.isEmpty()) {
+      writer.writeHeader(TAG_FLOATS, floats.size());
+      for (Map.Entry<String, Float> entry : floats.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeFixed32(Float.floatToIntBits(entry.getValue()));
+      }
+    }
+
+    Map<String, float[]> floatArrays = data.getFloatArrays();
+    if (!floatArrays.isEmpty()) {
+      writer.writeHeader(TAG_FLOAT_ARRAYS, floatArrays.size());
+      for (Map.Entry<String, float[]> entry : floatArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (float value : entry.getValue()) {
+          writer.writeFixed32(Float.floatToIntBits(value));
+        }
+      }
+    }
+
+    Map<String, Double> doubles = data.getDoubles();
+    if (!doubles.isEmpty()) {
+      writer.writeHeader(TAG_DOUBLES, doubles.size());
+      for (Map.Entry<String, Double> entry : doubles.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeFixed64(Double.doubleToLongBits(entry.getValue()));
+      }
+    }
+
+    Map<String, double[]> doubleArrays = data.getDoubleArrays();
+    if (!doubleArrays.isEmpty()) {
+      writer.writeHeader(TAG_DOUBLE_ARRAYS, doubleArrays.size());
+      for (Map.Entry<String, double[]> entry : doubleArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (double value : entry.getValue()) {
+          writer.writeFixed64(Double.doubleToLongBits(value));
+        }
+      }
+    }
+
+    Map<String, Boolean> booleans = data.getBooleans();
+    if (!booleans.isEmpty()) {
+      writer.writeHeader(TAG_BOOLEANS, booleans.size());
+      for (Map.Entry<String, Boolean> entry : booleans.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeByte(entry.getValue() ? 1 : 0);
+      }
+    }
+
+    Map<String, boolean[]> booleanArrays = data.getBooleanArrays();
+    if (!booleanArrays.isEmpty()) {
+      writer.writeHeader(TAG_BOOLEAN_ARRAYS, booleanArrays.size());
+      for (Map.Entry<String, boolean[]> entry : booleanArrays.entrySet()) {
+        writer.writeString(entry.getKey());
+        writer.writeVarint(entry.getValue().length);
+        for (boolean value : entry.getValue()) {
+          writer.writeByte(value ? 1 : 0);
+        }
+      }
+    }
+
+    writer.writeByte(TAG_END);
+
+    return writer.toByteArray();
+  }
+
+  @Override
+  public @NonNull Data deserialize(@NonNull byte[] serialized) {
+    if (serialized.length == 0 || serialized[0] != MAGIC) {
+      return legacySerializer.deserialize(serialized);
+    }
+
+    try {
+      return read(new Reader(serialized));
+    } catch (IndexOutOfBoundsException e) {
+      Log.e(TAG, "Truncated binary Data.", e);
+      throw new AssertionError(e);
+    }
+  }
+
+  private static @NonNull Data read(@NonNull Reader reader) {
+    reader.readByte();
+
+    int version = reader.readByte();
+    if (version != VERSION) {
+      throw new AssertionError("Unknown Data version: " + version);
+    }
+
+    Map<String, String>    strings       = Collections.emptyMap();
+    Map<String, String[]>  stringArrays  = Collections.emptyMap();
+    Map<String, Integer>   integers      = Collections.emptyMap();
+    Map<String, int[]>     integerArrays = Collections.emptyMap();
+    Map<String, Long>      longs         = Collections.emptyMap();
+    Map<String, long[]>    longArrays    = Collections.emptyMap();
+    Map<String, Float>     floats        = Collections.emptyMap();
+    Map<String, float[]>   floatArrays   = Collections.emptyMap();
+    Map<String, Double>    doubles       = Collections.emptyMap();
+    Map<String, double[]>  doubleArrays  = Collections.emptyMap();
+    Map<String, Boolean>   booleans      = Collections.emptyMap();
+    Map<String, boolean[]> booleanArrays = Collections.emptyMap();
+
+    int tag;
+
+    while ((tag = reader.readByte()) != TAG_END) {
+      int count = reader.readVarint();
+
+      switch (tag) {
+        case TAG_STRINGS:
+          strings = newMap(count);
+          for (int i = 0; i < count; i++) {
+            strings.put(reader.readString(), reader.readString());
+          }
+          break;
+        case TAG_STRING_ARRAYS:
+          stringArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String   key   = reader.readString();
+            String[] value = new String[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = reader.readString();
+            }
+            stringArrays.put(key, value);
+          }
+          break;
+        case TAG_INTEGERS:
+          integers = newMap(count);
+          for (int i = 0; i < count; i++) {
+            integers.put(reader.readString(), (int) reader.readSignedVarint());
+          }
+          break;
+        case TAG_INTEGER_ARRAYS:
+          integerArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String key   = reader.readString();
+            int[]  value = new int[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = (int) reader.readSignedVarint();
+            }
+            integerArrays.put(key, value);
+          }
+          break;
+        case TAG_LONGS:
+          longs = newMap(count);
+          for (int i = 0; i < count; i++) {
+            longs.put(reader.readString(), reader.readSignedVarint());
+          }
+          break;
+        case TAG_LONG_ARRAYS:
+          longArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String key   = reader.readString();
+            long[] value = new long[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = reader.readSignedVarint();
+            }
+            longArrays.put(key, value);
+          }
+          break;
+        case TAG_FLOATS:
+          floats = newMap(count);
+          for (int i = 0; i < count; i++) {
+            floats.put(reader.readString(), Float.intBitsToFloat(reader.readFixed32()));
+          }
+          break;
+        case TAG_FLOAT_ARRAYS:
+          floatArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String  key   = reader.readString();
+            float[] value = new float[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = Float.intBitsToFloat(reader.readFixed32());
+            }
+            floatArrays.put(key, value);
+          }
+          break;
+        case TAG_DOUBLES:
+          doubles = newMap(count);
+          for (int i = 0; i < count; i++) {
+            doubles.put(reader.readString(), Double.longBitsToDouble(reader.readFixed64()));
+          }
+          break;
+        case TAG_DOUBLE_ARRAYS:
+          doubleArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String   key   = reader.readString();
+            double[] value = new double[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = Double.longBitsToDouble(reader.readFixed64());
+            }
+            doubleArrays.put(key, value);
+          }
+          break;
+        case TAG_BOOLEANS:
+          booleans = newMap(count);
+          for (int i = 0; i < count; i++) {
+            booleans.put(reader.readString(), reader.readByte() != 0);
+          }
+          break;
+        case TAG_BOOLEAN_ARRAYS:
+          booleanArrays = newMap(count);
+          for (int i = 0; i < count; i++) {
+            String    key   = reader.readString();
+            boolean[] value = new boolean[reader.readVarint()];
+            for (int j = 0; j < value.length; j++) {
+              value[j] = reader.readByte() != 0;
+            }
+            booleanArrays.put(key, value);
+          }
+          break;
+        default:
+          throw new AssertionError("Unknown Data section: " + tag);
+      }
+    }
+
+    return new Data(strings, stringArrays, integers, integerArrays, longs, longArrays, floats, floatArrays, doubles, doubleArrays, booleans, booleanArrays);
+  }
+
+  private static <V> Map<String, V> newMap(int count) {
+    return new HashMap<>((int) (count / 0.75f) + 1);
+  }
+
+  private static final class Writer {
+    private byte[] buffer = new byte[128];
+    private int    length;
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      buffer[length++] = (byte) value;
+    }
+
+    void writeHeader(int tag, int count) {
+      writeByte(tag);
+      writeVarint(count);
+    }
+
+    void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[length++] = (byte) value;
+    }
+
+    void writeSignedVarint(long value) {
+      writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    void writeFixed32(int value) {
+      ensureCapacity(4);
+      for (int i = 0; i < 4; i++) {
+        buffer[length++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    void writeFixed64(long value) {
+      ensureCapacity(8);
+      for (int i = 0; i < 8; i++) {
+        buffer[length++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    /**
+     * Strings are written as varint(length + 1) followed by their UTF-8 bytes, with 0 standing in for null.
+     */
+    void writeString(@Nullable String value) {
+      if (value == null) {
+        writeVarint(0);
+        return;
+      }
+
+      byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+      writeVarint(utf8.length + 1);
+      ensureCapacity(utf8.length);
+      System.arraycopy(utf8, 0, buffer, length, utf8.length);
+      length += utf8.length;
+    }
+
+    @NonNull byte[] toByteArray() {
+      return Arrays.copyOf(buffer, length);
+    }
+
+    private void ensureCapacity(int extra) {
+      if (length + extra > buffer.length) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, length + extra)];
+        System.arraycopy(buffer, 0, grown, 0, length);
+        buffer = grown;
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final byte[] source;
+    private int          position;
+
+    Reader(@NonNull byte[] source) {
+      this.source = source;
+    }
+
+    int readByte() {
+      return source[position++] & 0xFF;
+    }
+
+    int readVarint() {
+      return (int) readVarintLong();
+    }
+
+    long readSignedVarint() {
+      long raw = readVarintLong();
+      return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    int readFixed32() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value |= readByte() << (8 * i);
+      }
+      return value;
+    }
+
+    long readFixed64() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value |= ((long) readByte()) << (8 * i);
+      }
+      return value;
+    }
+
+    @Nullable String readString() {
+      int length = readVarint() - 1;
+
+      if (length < 0) {
+        return null;
+      }
+
+      String value = new String(source, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    private long readVarintLong() {
+      long result = 0;
+      int  shift  = 0;
+      int  b;
+
+      do {
+        b       = readByte();
+        result |= ((long) (b & 0x7F)) << shift;
+        shift  += 7;
+      } while ((b & 0x80) != 0);
+
+      return result;
+    }
+  }
+}
@@ -10,6 +10,7 @@ import org.thoughtcrime.securesms.util.Base64;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,6 +60,55 @@ public class Data {
     this.booleanArrays = booleanArrays;
   }
 
+  // Read-only views for BinaryDataSerializer, which walks every entry rather than looking up known keys.
+  @NonNull Map<String, String> getStrings() {
+    return Collections.unmodifiableMap(strings);
+  }
+
+  @NonNull Map<String, String[]> getStringArrays() {
+    return Collections.unmodifiableMap(stringArrays);
+  }
+
+  @NonNull Map<String, Integer> getIntegers() {
+    return Collections.unmodifiableMap(integers);
+  }
+
+  @NonNull Map<String, int[]> getIntegerArrays() {
+    return Collections.unmodifiableMap(integerArrays);
+  }
+
+  @NonNull Map<String, Long> getLongs() {
+    return Collections.unmodifiableMap(longs);
+  }
+
+  @NonNull Map<String, long[]> getLongArrays() {
+    return Collections.unmodifiableMap(longArrays);
+  }
+
+  @NonNull Map<String, Float> getFloats() {
+    return Collections.unmodifiableMap(floats);
+  }
+
+  @NonNull Map<String, float[]> getFloatArrays() {
+    return Collections.unmodifiableMap(floatArrays);
+  }
+
+  @NonNull Map<String, Double> getDoubles() {
+    return Collections.unmodifiableMap(doubles);
+  }
+
+  @NonNull Map<String, double[]> getDoubleArrays() {
+    return Collections.unmodifiableMap(doubleArrays);
+  }
+
+  @NonNull Map<String, Boolean> getBooleans() {
+    return Collections.unmodifiableMap(booleans);
+  }
+
+  @NonNull Map<String, boolean[]> getBooleanArrays() {
+    return Collections.unmodifiableMap(booleanArrays);
+  }
+
   public boolean hasString(@NonNull String key) {
     return strings.containsKey(key);
   }
@@ -379,7 +429,7 @@ public class Data {
   }
 
   public interface Serializer {
-    @NonNull String serialize(@NonNull Data data);
-    @NonNull Data deserialize(@NonNull String serialized);
+    @NonNull byte[] serialize(@NonNull Data data);
+    @NonNull Data deserialize(@NonNull byte[] serialized);
   }
 }
\ No newline at end of file
@@ -7,7 +7,6 @@ import android.os.Build;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.jobmanager.impl.DefaultExecutorFactory;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.util.Debouncer;
@@ -154,6 +153,16 @@ public class JobManager implements ConstraintObserver.Notifier {
     new Chain(this, Collections.singletonList(job)).enqueue();
   }
 
+  /**
+   * Enqueues a set of independent jobs. They are persisted together in a single storage transaction, and jobs sharing
+   * a queue run in the order given.
+   */
+  public void addAll(@NonNull List<? extends Job> jobs) {
+    if (!jobs.isEmpty()) {
+      new Chain(this, jobs).enqueue();
+    }
+  }
+
   /**
    * Enqueues a single job that depends on a collection of job ID's.
    */
@@ -578,7 +587,7 @@ public class JobManager implements ConstraintObserver.Notifier {
       private Map<String, Job.Factory>        jobFactories        = new HashMap<>();
       private Map<String, Constraint.Factory> constraintFactories = new HashMap<>();
       private List<ConstraintObserver>        constraintObservers = new ArrayList<>();
-      private Data.Serializer                 dataSerializer      = new JsonDataSerializer();
+      private Data.Serializer                 dataSerializer      = new BinaryDataSerializer();
       private JobStorage                      jobStorage          = null;
       private JobMigrator                     jobMigrator         = null;
       private JobTracker                      jobTracker          = new JobTracker();
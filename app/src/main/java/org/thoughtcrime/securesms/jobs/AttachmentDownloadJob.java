@@ -34,6 +34,7 @@ import org.whispersystems.signalservice.api.push.exceptions.MissingConfiguration
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
 import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+import org.whispersystems.signalservice.internal.push.RangedDownload;
 
 import java.io.File;
 import java.io.IOException;
@@ -282,6 +283,12 @@ public final class AttachmentDownloadJob extends BaseJob {
     try {
       AttachmentDatabase database = SignalDatabase.attachments();
       database.setTransferProgressFailed(attachmentId, messageId);
+
+      //AA+ part files of a ranged download aren't tracked anywhere, unlike the transfer file a manual retry resumes from
+      File transferFile = database.getTransferFile(attachmentId);
+      if (transferFile != null) {
+        RangedDownload.deleteRangeFiles(transferFile);
+      }
     } catch (MmsException e) {
       Log.w(TAG, e);
     }
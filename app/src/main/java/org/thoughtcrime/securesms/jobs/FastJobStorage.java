@@ -3,7 +3,6 @@ package org.thoughtcrime.securesms.jobs;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
 import org.signal.core.util.logging.Log;
@@ -15,34 +14,63 @@ import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.util.Util;
-import java.util.Optional;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+
+/**
+ * An in-memory mirror of {@link JobDatabase} that keeps jobs indexed for scheduling:
+ * <ul>
+ *   <li>an id -> spec hash index, so lookups and updates don't scan every job,</li>
+ *   <li>per-queue sets ordered by create time, so the head of a queue is always at hand,</li>
+ *   <li>a create-time ordered set of queue heads that are ready to run (not running, no dependencies), which is all
+ *       that a scheduling pass has to look at,</li>
+ *   <li>a reverse dependency index, so deleting a job doesn't walk every other job's dependencies.</li>
+ * </ul>
+ * Jobs without a queue are treated as the sole member of a queue keyed by their id.
+ */
 public class FastJobStorage implements JobStorage {
 
   private static final String TAG = Log.tag(FastJobStorage.class);
 
+  private static final Comparator<QueueEntry> CREATED_ORDER = (a, b) -> {
+    int byCreateTime = Long.compare(a.createTime, b.createTime);
+    return byCreateTime != 0 ? byCreateTime : Long.compare(a.sequence, b.sequence);
+  };
+
   private final JobDatabase jobDatabase;
 
-  private final List<JobSpec>                     jobs;
-  private final Map<String, List<ConstraintSpec>> constraintsByJobId;
-  private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, JobSpec>                jobs;
+  private final Map<String, List<ConstraintSpec>>   constraintsByJobId;
+  private final Map<String, List<DependencySpec>>   dependenciesByJobId;
+  private final Map<String, Set<String>>            dependentsByJobId;
+  private final Map<String, QueueEntry>             entriesByJobId;
+  private final Map<String, TreeSet<QueueEntry>>    entriesByQueue;
+  private final Map<String, QueueEntry>             readyHeadsByQueue;
+  private final TreeSet<QueueEntry>                 readyHeads;
+
+  private long nextSequence;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
     this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
+    this.jobs                = new LinkedHashMap<>();
     this.constraintsByJobId  = new HashMap<>();
     this.dependenciesByJobId = new HashMap<>();
+    this.dependentsByJobId   = new HashMap<>();
+    this.entriesByJobId      = new HashMap<>();
+    this.entriesByQueue      = new HashMap<>();
+    this.readyHeadsByQueue   = new HashMap<>();
+    this.readyHeads          = new TreeSet<>(CREATED_ORDER);
   }
 
   @Override
@@ -51,7 +79,10 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
+    for (JobSpec jobSpec : jobSpecs) {
+      jobs.put(jobSpec.getId(), jobSpec);
+      addToQueue(jobSpec, nextSequence++);
+    }
 
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
@@ -60,10 +91,10 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (DependencySpec dependencySpec : dependencySpecs) {
-      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
-      jobDependencies.add(dependencySpec);
-      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependency(dependencySpec);
     }
+
+    refreshAllReadyHeads();
   }
 
   @Override
@@ -74,167 +105,156 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
-      constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+      JobSpec jobSpec = fullSpec.getJobSpec();
+
+      JobSpec previous = jobs.put(jobSpec.getId(), jobSpec);
+      if (previous != null) {
+        removeFromQueue(previous);
+      }
+
+      constraintsByJobId.put(jobSpec.getId(), fullSpec.getConstraintSpecs());
+      dependenciesByJobId.put(jobSpec.getId(), new LinkedList<>());
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependency(dependencySpec);
+      }
+
+      addToQueue(jobSpec, nextSequence++);
+      refreshReadyHead(queueKeyOf(jobSpec));
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobs.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobs.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    Optional<JobSpec> migrationJob = getMigrationJob();
+    JobSpec migrationJob = getMigrationJob();
 
-    if (migrationJob.isPresent() && !migrationJob.get().isRunning() && migrationJob.get().getNextRunAttemptTime() <= currentTime) {
-      return Collections.singletonList(migrationJob.get());
-    } else if (migrationJob.isPresent()) {
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
       return Collections.emptyList();
-    } else {
-      return Stream.of(jobs)
-              .groupBy(jobSpec -> {
-                String queueKey = jobSpec.getQueueKey();
-                if (queueKey != null) {
-                  return queueKey;
-                } else {
-                  return jobSpec.getId();
-                }
-              })
-              .map(byQueueKey ->
-                           Stream.of(byQueueKey.getValue()).sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                                   .findFirst()
-                                   .orElse(null)
-              )
-              .withoutNulls()
-              .filter(j -> {
-                List<DependencySpec> dependencies = dependenciesByJobId.get(j.getId());
-                return dependencies == null || dependencies.isEmpty();
-              })
-              .filterNot(JobSpec::isRunning)
-              .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-              .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-              .toList();
     }
+
+    List<JobSpec> pending = new LinkedList<>();
+
+    for (QueueEntry head : readyHeads) {
+      JobSpec jobSpec = jobs.get(head.id);
+      if (jobSpec != null && jobSpec.getNextRunAttemptTime() <= currentTime) {
+        pending.add(jobSpec);
+      }
+    }
+
+    return pending;
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
-    return Stream.of(jobs)
-            .filter(j -> queue.equals(j.getQueueKey()))
-            .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-            .toList();
-  }
+    TreeSet<QueueEntry> entries = entriesByQueue.get(queue);
 
-  private Optional<JobSpec> getMigrationJob() {
-    return Optional.ofNullable(Stream.of(jobs)
-                                         .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                         .filter(this::firstInQueue)
-                                         .findFirst()
-                                         .orElse(null));
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+
+    List<JobSpec> inQueue = new ArrayList<>(entries.size());
+    for (QueueEntry entry : entries) {
+      JobSpec jobSpec = jobs.get(entry.id);
+      if (jobSpec != null && queue.equals(jobSpec.getQueueKey())) {
+        inQueue.add(jobSpec);
+      }
+    }
+
+    return inQueue;
   }
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+  private @Nullable JobSpec getMigrationJob() {
+    TreeSet<QueueEntry> migrationQueue = entriesByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
+
+    if (migrationQueue == null || migrationQueue.isEmpty()) {
+      return null;
     }
 
-    return Stream.of(jobs)
-            .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-            .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-            .toList()
-            .get(0)
-            .equals(job);
+    return jobs.get(migrationQueue.first().id);
   }
 
   @Override
   public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobs.values())
             .filter(j -> j.getFactoryKey().equals(factoryKey))
             .count();
   }
 
   @Override
   public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
-    return (int) Stream.of(jobs)
-            .filter(j -> factoryKey.equals(j.getFactoryKey()) &&
-                    queueKey.equals(j.getQueueKey()))
+    return (int) Stream.of(getJobsInQueue(queueKey))
+            .filter(j -> factoryKey.equals(j.getFactoryKey()))
             .count();
   }
 
   @Override
-  public boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return Stream.of(jobs)
-            .noneMatch(j -> j.getQueueKey() != null && queueKeys.contains(j.getQueueKey()));
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (!getJobsInQueue(queueKey).isEmpty()) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    JobSpec job = getJobById(id);
-    if (job == null || !job.isMemoryOnly()) {
+    JobSpec existing = getJobById(id);
+    if (existing == null || !existing.isMemoryOnly()) {
       jobDatabase.updateJobRunningState(id, isRunning);
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      existing.getSerializedData(),
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (existing != null) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    existing.getSerializedData(),
+                                    existing.getSerializedInputData(),
+                                    isRunning,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
     }
   }
 
   @Override
-  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
-    JobSpec job = getJobById(id);
-    if (job == null || !job.isMemoryOnly()) {
+  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull byte[] serializedData) {
+    JobSpec existing = getJobById(id);
+    if (existing == null || !existing.isMemoryOnly()) {
       jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
     }
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      serializedData,
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+    if (existing != null) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    nextRunAttemptTime,
+                                    runAttempt,
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    serializedData,
+                                    existing.getSerializedInputData(),
+                                    isRunning,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
     }
   }
 
@@ -242,10 +262,8 @@ public class FastJobStorage implements JobStorage {
   public synchronized void updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending();
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
+    for (Map.Entry<String, JobSpec> entry : jobs.entrySet()) {
+      JobSpec existing = entry.getValue();
       JobSpec updated  = new JobSpec(existing.getId(),
                                      existing.getFactoryKey(),
                                      existing.getQueueKey(),
@@ -258,12 +276,14 @@ public class FastJobStorage implements JobStorage {
                                      existing.getSerializedInputData(),
                                      false,
                                      existing.isMemoryOnly());
-      iter.set(updated);
+      entry.setValue(updated);
     }
+
+    refreshAllReadyHeads();
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
     List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
     for (JobSpec update : jobSpecs) {
       JobSpec found = getJobById(update.getId());
@@ -276,15 +296,11 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.updateJobs(durable);
     }
 
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobs.get(update.getId());
 
-      if (update != null) {
-        iter.set(update);
+      if (existing != null) {
+        replaceJob(existing, update);
       }
     }
   }
@@ -308,29 +324,53 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.deleteJobs(durableIds);
     }
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    Set<String> affectedQueues = new LinkedHashSet<>();
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+    for (String jobId : jobIds) {
+      JobSpec removed = jobs.remove(jobId);
+      if (removed != null) {
+        removeFromQueue(removed);
+        affectedQueues.add(queueKeyOf(removed));
       }
-    }
 
-    for (String jobId : jobIds) {
       constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
+      List<DependencySpec> ownDependencies = dependenciesByJobId.remove(jobId);
+      if (ownDependencies != null) {
+        for (DependencySpec dependencySpec : ownDependencies) {
+          Set<String> dependents = dependentsByJobId.get(dependencySpec.getDependsOnJobId());
+          if (dependents != null) {
+            dependents.remove(jobId);
+          }
+        }
+      }
+
+      Set<String> dependents = dependentsByJobId.remove(jobId);
+      if (dependents != null) {
+        for (String dependentId : dependents) {
+          List<DependencySpec> dependencies = dependenciesByJobId.get(dependentId);
+          if (dependencies == null) {
+            continue;
+          }
 
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+          Iterator<DependencySpec> dependencyIter = dependencies.iterator();
+          while (dependencyIter.hasNext()) {
+            if (dependencyIter.next().getDependsOnJobId().equals(jobId)) {
+              dependencyIter.remove();
+            }
+          }
+
+          JobSpec dependent = jobs.get(dependentId);
+          if (dependent != null) {
+            affectedQueues.add(queueKeyOf(dependent));
           }
         }
       }
     }
+
+    for (String queueKey : affectedQueues) {
+      refreshReadyHead(queueKey);
+    }
   }
 
   @Override
@@ -354,7 +394,10 @@ public class FastJobStorage implements JobStorage {
     Set<String> activeJobIds;
 
     do {
-      activeJobIds = Stream.of(layer).map(DependencySpec::getJobId).collect(Collectors.toSet());
+      activeJobIds = new LinkedHashSet<>();
+      for (DependencySpec dependencySpec : layer) {
+        activeJobIds.add(dependencySpec.getJobId());
+      }
       layer.clear();
 
       for (String activeJobId : activeJobIds) {
@@ -368,15 +411,31 @@ public class FastJobStorage implements JobStorage {
   }
 
   private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-            .map(Map.Entry::getValue)
-            .flatMap(Stream::of)
-            .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
-            .toList();
+    Set<String> dependents = dependentsByJobId.get(jobSpecId);
+
+    if (dependents == null || dependents.isEmpty()) {
+      return new ArrayList<>();
+    }
+
+    List<DependencySpec> layer = new ArrayList<>(dependents.size());
+    for (String dependentId : dependents) {
+      List<DependencySpec> dependencies = dependenciesByJobId.get(dependentId);
+      if (dependencies == null) {
+        continue;
+      }
+
+      for (DependencySpec dependencySpec : dependencies) {
+        if (dependencySpec.getDependsOnJobId().equals(jobSpecId)) {
+          layer.add(dependencySpec);
+        }
+      }
+    }
+
+    return layer;
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
             .map(Map.Entry::getValue)
             .flatMap(Stream::of)
@@ -384,12 +443,133 @@ public class FastJobStorage implements JobStorage {
   }
 
   private JobSpec getJobById(@NonNull String id) {
-    for (JobSpec job : jobs) {
-      if (job.getId().equals(id)) {
-        return job;
+    JobSpec job = jobs.get(id);
+
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
+    }
+
+    return job;
+  }
+
+  private void addDependency(@NonNull DependencySpec dependencySpec) {
+    List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
+    jobDependencies.add(dependencySpec);
+    dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+
+    Set<String> dependents = Util.getOrDefault(dependentsByJobId, dependencySpec.getDependsOnJobId(), new LinkedHashSet<>());
+    dependents.add(dependencySpec.getJobId());
+    dependentsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+  }
+
+  /**
+   * Swaps in an updated spec for an existing job, moving it between queues if its queue or create time changed.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    jobs.put(updated.getId(), updated);
+
+    String existingQueue = queueKeyOf(existing);
+    String updatedQueue  = queueKeyOf(updated);
+
+    if (!existingQueue.equals(updatedQueue) || existing.getCreateTime() != updated.getCreateTime()) {
+      QueueEntry entry    = entriesByJobId.get(existing.getId());
+      long       sequence = entry != null ? entry.sequence : nextSequence++;
+
+      removeFromQueue(existing);
+      addToQueue(updated, sequence);
+      refreshReadyHead(existingQueue);
+    }
+
+    refreshReadyHead(updatedQueue);
+  }
+
+  private void addToQueue(@NonNull JobSpec jobSpec, long sequence) {
+    String              queueKey = queueKeyOf(jobSpec);
+    QueueEntry          entry    = new QueueEntry(jobSpec.getId(), queueKey, jobSpec.getCreateTime(), sequence);
+    TreeSet<QueueEntry> entries  = entriesByQueue.get(queueKey);
+
+    if (entries == null) {
+      entries = new TreeSet<>(CREATED_ORDER);
+      entriesByQueue.put(queueKey, entries);
+    }
+
+    entries.add(entry);
+    entriesByJobId.put(jobSpec.getId(), entry);
+  }
+
+  private void removeFromQueue(@NonNull JobSpec jobSpec) {
+    QueueEntry entry = entriesByJobId.remove(jobSpec.getId());
+
+    if (entry == null) {
+      return;
+    }
+
+    TreeSet<QueueEntry> entries = entriesByQueue.get(entry.queueKey);
+    if (entries != null) {
+      entries.remove(entry);
+      if (entries.isEmpty()) {
+        entriesByQueue.remove(entry.queueKey);
       }
     }
-    Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
-    return null;
+
+    refreshReadyHead(entry.queueKey);
+  }
+
+  /**
+   * Re-evaluates whether the head of the given queue may run, keeping {@link #readyHeads} in sync.
+   */
+  private void refreshReadyHead(@NonNull String queueKey) {
+    QueueEntry previous = readyHeadsByQueue.remove(queueKey);
+    if (previous != null) {
+      readyHeads.remove(previous);
+    }
+
+    TreeSet<QueueEntry> entries = entriesByQueue.get(queueKey);
+    if (entries == null || entries.isEmpty()) {
+      return;
+    }
+
+    QueueEntry head = entries.first();
+    if (isReady(head.id)) {
+      readyHeads.add(head);
+      readyHeadsByQueue.put(queueKey, head);
+    }
+  }
+
+  private void refreshAllReadyHeads() {
+    readyHeads.clear();
+    readyHeadsByQueue.clear();
+
+    for (String queueKey : entriesByQueue.keySet()) {
+      refreshReadyHead(queueKey);
+    }
+  }
+
+  private boolean isReady(@NonNull String jobId) {
+    JobSpec jobSpec = jobs.get(jobId);
+    if (jobSpec == null || jobSpec.isRunning()) {
+      return false;
+    }
+
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobId);
+    return dependencies == null || dependencies.isEmpty();
+  }
+
+  private static @NonNull String queueKeyOf(@NonNull JobSpec jobSpec) {
+    return jobSpec.getQueueKey() != null ? jobSpec.getQueueKey() : jobSpec.getId();
+  }
+
+  private static final class QueueEntry {
+    private final String id;
+    private final String queueKey;
+    private final long   createTime;
+    private final long   sequence;
+
+    private QueueEntry(@NonNull String id, @NonNull String queueKey, long createTime, long sequence) {
+      this.id         = id;
+      this.queueKey   = queueKey;
+      this.createTime = createTime;
+      this.sequence   = sequence;
+    }
   }
-}
\ No newline at end of file
+}
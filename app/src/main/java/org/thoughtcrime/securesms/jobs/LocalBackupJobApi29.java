@@ -10,9 +10,11 @@ import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.jobmanager.Data;
@@ -113,17 +115,27 @@ public final class LocalBackupJobApi29 extends BaseJob {
       }
 
       try {
+        AttachmentSecret       attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+        BackupManifest         base             = BackupManifest.readCurrent(context, attachmentSecret, System.currentTimeMillis());//AA+
+        BackupManifest.Builder manifest         = base == null ? new BackupManifest.Builder(fileName, System.currentTimeMillis()) : null;//AA+
+
+        Log.i(TAG, base != null ? "Writing differential backup on " + base.getBase() : "Writing full backup");
+
         FullBackupExporter.export(context,
-                                  AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                  attachmentSecret,
                                   SignalDatabase.getBackupDatabase(),
                                   temporaryFile,
                                   backupPassword,
+                                  base,
+                                  manifest,
                                   this::isCanceled);
 
         if (!temporaryFile.renameTo(fileName)) {
           Log.w(TAG, "Failed to rename temp file");
           throw new IOException("Renaming temporary backup file failed!");
         }
+
+        if (manifest != null) manifest.write(context, attachmentSecret);//AA+
       } catch (FullBackupExporter.BackupCanceledException e) {
         Log.w(TAG, "Backup cancelled");
         throw e;
@@ -141,7 +141,7 @@ public class ResendMessageJob extends BaseJob {
       if (!groupRecord.isPresent()) {
         Log.w(TAG, "Could not find a matching group for the distributionId! Skipping message send.");
         return;
-      } else if (!groupRecord.get().getMembers().contains(recipientId)) {
+      } else if (!groupRecord.get().containsMember(Recipient.resolved(recipientId))) {//AA+ containsMember
         Log.w(TAG, "The target user is no longer in the group! Skipping message send.");
         return;
       }
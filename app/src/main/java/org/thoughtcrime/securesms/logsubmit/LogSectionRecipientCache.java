@@ -0,0 +1,21 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+
+//AA+
+final class LogSectionRecipientCache implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "RECIPIENT CACHE";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return ApplicationDependencies.getRecipientCache().getStats().toString();
+  }
+}
@@ -0,0 +1,21 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import org.whispersystems.signalservice.internal.push.ServiceTransportMetrics;
+
+//AA+
+final class LogSectionServiceTransport implements LogSection {
+
+  @Override
+  public @NonNull String getTitle() {
+    return "SERVICE TRANSPORT";
+  }
+
+  @Override
+  public @NonNull CharSequence getContent(@NonNull Context context) {
+    return ServiceTransportMetrics.getInstance().toString();
+  }
+}
@@ -87,6 +87,8 @@ public class SubmitDebugLogRepository {
       add(new LogSectionSenderKey());
     }
     add(new LogSectionRemappedRecords());
+    add(new LogSectionRecipientCache());//AA+
+    add(new LogSectionServiceTransport());//AA+
     add(new LogSectionLogcat());
     add(new LogSectionLoggerHeader());
   }};
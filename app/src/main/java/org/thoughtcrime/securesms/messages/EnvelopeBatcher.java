@@ -0,0 +1,79 @@
+package org.thoughtcrime.securesms.messages;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.messages.IncomingMessageProcessor.Processor;
+import org.thoughtcrime.securesms.util.SignalLocalMetrics;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Collects envelopes drained off the websocket for a short window and hands them to
+ * {@link Processor#processEnvelopes(List)} together, so a reconnect backlog is persisted in a handful of transactions
+ * rather than one (or more) per envelope.
+ *
+ * Not thread safe: owned by the message retrieval thread.
+ */
+final class EnvelopeBatcher {
+
+  private static final String TAG = Log.tag(EnvelopeBatcher.class);
+
+  static final long WINDOW_MILLIS  = 250;
+  static final int  MAX_BATCH_SIZE = 200;
+
+  private final IncomingMessageProcessor    processor;
+  private final List<SignalServiceEnvelope> pending;
+
+  private long windowStart;
+
+  EnvelopeBatcher(@NonNull IncomingMessageProcessor processor) {
+    this.processor = processor;
+    this.pending   = new ArrayList<>(MAX_BATCH_SIZE);
+  }
+
+  /**
+   * Adds the envelope to the current batch, flushing it if it is full or its window has elapsed.
+   */
+  void add(@NonNull SignalServiceEnvelope envelope) {
+    if (pending.isEmpty()) {
+      windowStart = System.currentTimeMillis();
+    }
+
+    pending.add(envelope);
+
+    if (pending.size() >= MAX_BATCH_SIZE || getRemainingWindowMillis() == 0) {
+      flush();
+    }
+  }
+
+  boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * @return how much longer the reader may wait for more envelopes before the current batch must be flushed.
+   */
+  long getRemainingWindowMillis() {
+    return Math.max(0, WINDOW_MILLIS - (System.currentTimeMillis() - windowStart));
+  }
+
+  void flush() {
+    if (pending.isEmpty()) {
+      return;
+    }
+
+    int size = pending.size();
+
+    try (Processor batchProcessor = processor.acquire()) {
+      batchProcessor.processEnvelopes(pending);
+    } finally {
+      pending.clear();
+    }
+
+    Log.d(TAG, "Flushed a batch of " + size + " envelopes.");
+    SignalLocalMetrics.WebSocketDrain.onMessagesProcessed(size);
+  }
+}
@@ -0,0 +1,187 @@
+package org.thoughtcrime.securesms.messages;
+
+import com.unfacd.android.ufsrvuid.UfsrvUid;
+import com.unfacd.android.utils.UfsrvCommandUtils;
+import com.unfacd.android.utils.UfsrvFenceUtils;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.messages.IncomingMessageProcessor.Processor;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FenceRecord;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.UfsrvCommandWire;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Fans envelopes read off the websocket out over a fixed set of single-threaded lanes. Envelopes are partitioned by
+ * the fence they target (falling back to their originator), so unrelated fences are resolved and processed in parallel,
+ * while all envelopes for a given fence land on the same lane and keep their arrival order.
+ *
+ * The websocket read and protobuf parse stay on the caller's (retrieval) thread; recipient resolution and
+ * decryption/processing run on the lanes. Each lane is bounded, so a slow lane pushes back on the reader rather than
+ * buffering the whole backlog in memory.
+ */
+final class EnvelopePipeline {
+
+  private static final String TAG = Log.tag(EnvelopePipeline.class);
+
+  private static final int LANE_CAPACITY = 256;
+
+  private final IncomingMessageProcessor processor;
+  private final ThreadPoolExecutor[]     lanes;
+  private final AtomicInteger            inFlight;
+  private final Object                   idleLock;
+
+  EnvelopePipeline(@NonNull IncomingMessageProcessor processor) {
+    this(processor, defaultLaneCount());
+  }
+
+  EnvelopePipeline(@NonNull IncomingMessageProcessor processor, int laneCount) {
+    this.processor = processor;
+    this.lanes     = new ThreadPoolExecutor[laneCount];
+    this.inFlight  = new AtomicInteger(0);
+    this.idleLock  = new Object();
+
+    for (int i = 0; i < laneCount; i++) {
+      lanes[i] = newLane("envelope-lane-" + i);
+    }
+
+    Log.i(TAG, "Started with " + laneCount + " lanes.");
+  }
+
+  /**
+   * Hands the envelope to the lane owning its partition. Blocks while that lane is full.
+   */
+  void submit(@NonNull SignalServiceEnvelope envelope) {
+    submit(partitionKey(envelope.getUfsrvCommand()), () -> {
+      try (Processor laneProcessor = processor.acquireShared()) {
+        laneProcessor.processEnvelope(envelope);
+      } catch (Throwable t) {
+        Log.w(TAG, "Failed to process envelope " + envelope.getTimestamp() + " on " + Thread.currentThread().getName(), t);
+      }
+    });
+  }
+
+  /**
+   * Runs the work on the lane owning the partition, after anything submitted earlier for the same partition.
+   */
+  @VisibleForTesting
+  void submit(long partitionKey, @NonNull Runnable work) {
+    int lane = laneFor(partitionKey, lanes.length);
+
+    inFlight.incrementAndGet();
+    lanes[lane].execute(() -> {
+      try {
+        work.run();
+      } finally {
+        if (inFlight.decrementAndGet() == 0) {
+          synchronized (idleLock) {
+            idleLock.notifyAll();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until every submitted envelope has been processed. Used as a barrier before work that must observe all
+   * previously received envelopes, e.g. ufsrv control commands.
+   *
+   * @return true if the pipeline drained within the timeout.
+   */
+  boolean awaitIdle(long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    synchronized (idleLock) {
+      while (inFlight.get() > 0) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+
+        try {
+          idleLock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  /**
+   * Stops accepting work. Envelopes already queued on a lane are still processed.
+   */
+  void shutdown() {
+    for (ThreadPoolExecutor lane : lanes) {
+      lane.shutdown();
+    }
+  }
+
+  /**
+   * @return a key identifying the conversation an envelope belongs to: the target fence id where there is one, else
+   *         the originator's sequence id, else 0 (server-originated traffic, which is then kept on a single lane).
+   */
+  @VisibleForTesting
+  static long partitionKey(@Nullable UfsrvCommandWire command) {
+    if (command == null) {
+      return 0;
+    }
+
+    FenceRecord fence = UfsrvFenceUtils.getTargetFence(command);
+    if (fence != null && fence.getFid() > 0) {
+      return fence.getFid();
+    }
+
+    UfsrvUid originator = UfsrvCommandUtils.getOriginatorUfsrvUserId(command);
+    if (!originator.isUndefined()) {
+      //keep originator keys from colliding with fid keys
+      return ~originator.getUfsrvSequenceId();
+    }
+
+    return 0;
+  }
+
+  @VisibleForTesting
+  static int laneFor(long partitionKey, int laneCount) {
+    long mixed = partitionKey * 0x9E3779B97F4A7C15L;
+    return (int) ((mixed >>> 33) % laneCount);
+  }
+
+  private static int defaultLaneCount() {
+    return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+  }
+
+  private static @NonNull ThreadPoolExecutor newLane(@NonNull String name) {
+    ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(LANE_CAPACITY), r -> new Thread(r, name));
+    lane.allowCoreThreadTimeOut(true);
+    lane.setRejectedExecutionHandler((runnable, executor) -> {
+      if (executor.isShutdown()) {
+        Log.w(TAG, "Lane " + name + " is shut down, running envelope on the caller's thread.");
+        runnable.run();
+        return;
+      }
+
+      try {
+        executor.getQueue().put(runnable);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        runnable.run();
+      }
+    });
+    return lane;
+  }
+}
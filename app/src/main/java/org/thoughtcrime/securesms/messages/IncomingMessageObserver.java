@@ -36,6 +36,8 @@ import org.thoughtcrime.securesms.messages.IncomingMessageProcessor.Processor;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesms.util.AppForegroundObserver;
+import org.thoughtcrime.securesms.util.FeatureFlags;
+import org.thoughtcrime.securesms.util.SignalLocalMetrics;
 import org.whispersystems.signalservice.api.SignalWebSocket;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableException;
@@ -73,6 +75,7 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
 
   public static final  int  FOREGROUND_ID           = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES = 1;
+  private static final long PIPELINE_BARRIER_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
   private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger(0);
 
@@ -349,10 +352,19 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
   // ----------------------------- END OF LOCATION -----------------------------------------------------
 
   private class MessageRetrievalThread extends Thread implements Thread.UncaughtExceptionHandler {
+
+    private final @Nullable EnvelopePipeline envelopePipeline;
+    private final @Nullable EnvelopeBatcher  envelopeBatcher;
+
     MessageRetrievalThread() {
       super("MessageRetrievalService");
       Log.i(TAG, "Initializing! (" + this.hashCode() + ")");
       setUncaughtExceptionHandler(this);
+
+      this.envelopePipeline = FeatureFlags.pipelinedEnvelopeProcessing() ? new EnvelopePipeline(ApplicationDependencies.getIncomingMessageProcessor())
+                                                                         : null;
+      this.envelopeBatcher  = envelopePipeline == null && FeatureFlags.batchedEnvelopeDrain() ? new EnvelopeBatcher(ApplicationDependencies.getIncomingMessageProcessor())
+                                                                                             : null;
     }
 
     @Override
@@ -371,12 +383,17 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
         Log.i(TAG, "Making websocket connection....");
         SignalWebSocket signalWebSocket = ApplicationDependencies.getSignalWebSocket();
         signalWebSocket.connect();
+        SignalLocalMetrics.WebSocketDrain.start(envelopeBatcher != null);
 
         try {
           while (isConnectionNecessary()) {
+            boolean batchWindowRead = envelopeBatcher != null && envelopeBatcher.hasPending();
+
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = signalWebSocket.readOrEmpty(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), new MessageRetrievalThread.WebSocketCallback());//AA+ callback
+              long readTimeout = batchWindowRead ? Math.max(1, envelopeBatcher.getRemainingWindowMillis())
+                                                 : TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES);
+              Optional<SignalServiceEnvelope> result = signalWebSocket.readOrEmpty(readTimeout, new MessageRetrievalThread.WebSocketCallback());//AA+ callback
 
               attempts = 0;
 
@@ -389,7 +406,13 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
               Log.i(TAG, "Pipe unexpectedly unavailable, connecting");
               signalWebSocket.connect();
             } catch (TimeoutException e) {
-              Log.w(TAG, "Application level read timeout...");
+              if (batchWindowRead) {
+                //only the batch window ran out, the backlog may well carry on
+                envelopeBatcher.flush();
+              } else {
+                Log.w(TAG, "Application level read timeout...");
+                SignalLocalMetrics.WebSocketDrain.onDrained();
+              }
               attempts = 0;
             }
           }
@@ -398,12 +421,20 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
           Log.w(TAG, e);
         } finally {
           Log.w(TAG, "Shutting down pipe...");
+          if (envelopeBatcher != null) {
+            envelopeBatcher.flush();
+          }
+          SignalLocalMetrics.WebSocketDrain.cancel();
           disconnect();
         }
 
         Log.i(TAG, "Looping...");
       }
 
+      if (envelopePipeline != null) {
+        envelopePipeline.shutdown();
+      }
+
       Log.w(TAG, "Terminated! (" + this.hashCode() + ")");
     }
 
@@ -419,12 +450,23 @@ public class IncomingMessageObserver implements OnLocationUpdatedListener,
       public void onMessage(WebSocketProtos.WebSocketMessage wsm, SignalServiceEnvelope envelope) {
         callbackDone.set(false);
 
-        if (envelope != null) {
+        if (envelope != null && envelopePipeline != null) {
+          envelopePipeline.submit(envelope);
+        } else if (envelope != null && envelopeBatcher != null) {
+          envelopeBatcher.add(envelope);
+        } else if (envelope != null) {
           try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
             processor.processEnvelope(envelope);
           }
+          SignalLocalMetrics.WebSocketDrain.onMessagesProcessed(1);
         } else {
           Log.d(TAG, "onMessage: server control message: parsing command");
+          if (envelopePipeline != null && !envelopePipeline.awaitIdle(PIPELINE_BARRIER_MILLIS)) {
+            Log.w(TAG, "onMessage: pipeline did not drain before control message (" + envelopePipeline.getInFlightCount() + " in flight)");
+          }
+          if (envelopeBatcher != null) {
+            envelopeBatcher.flush();
+          }
           try {
             ufsrvParser.invokeUfsrvCommandHandler(wsm);
           } catch (InvalidProtocolBufferException e) {
@@ -37,7 +37,10 @@ import org.whispersystems.signalservice.api.push.ContactTokenDetails;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -50,12 +53,12 @@ public class IncomingMessageProcessor {
 
   private static final String TAG = Log.tag(IncomingMessageProcessor.class);
 
-  private final Application   context;
-  private final ReentrantLock lock;
+  private final Application            context;
+  private final ReentrantReadWriteLock lock;
 
   public IncomingMessageProcessor(@NonNull Application context) {
     this.context = context;
-    this.lock    = new ReentrantLock();
+    this.lock    = new ReentrantReadWriteLock();
   }
 
   /**
@@ -63,19 +66,32 @@ public class IncomingMessageProcessor {
    * way. Must be closed.
    */
   public Processor acquire() {
-    lock.lock();
+    return acquire(lock.writeLock());
+  }
+
+  /**
+   * Like {@link #acquire()}, but may be held concurrently by several threads. Callers are responsible for ordering
+   * between the envelopes they process, e.g. by partitioning envelopes per conversation as {@link EnvelopePipeline}
+   * does. Still excludes every holder of {@link #acquire()}.
+   */
+  public Processor acquireShared() {
+    return acquire(lock.readLock());
+  }
+
+  private Processor acquire(@NonNull Lock heldLock) {
+    heldLock.lock();
 
     Thread current = Thread.currentThread();
     Log.d(TAG, "Lock acquired by thread " + current.getId() + " (" + current.getName() + ")");
 
-    return new Processor(context);
+    return new Processor(context, heldLock);
   }
 
-  private void release() {
+  private void release(@NonNull Lock heldLock) {
     Thread current = Thread.currentThread();
     Log.d(TAG, "Lock about to be released by thread " + current.getId() + " (" + current.getName() + ")");
 
-    lock.unlock();
+    heldLock.unlock();
   }
 
   public class Processor implements Closeable {
@@ -83,11 +99,13 @@ public class IncomingMessageProcessor {
     private final Context           context;
     private final MmsSmsDatabase    mmsSmsDatabase;
     private final JobManager        jobManager;
+    private final Lock              heldLock;
 
-    private Processor(@NonNull Context context) {
+    private Processor(@NonNull Context context, @NonNull Lock heldLock) {
       this.context           = context;
       this.mmsSmsDatabase    = SignalDatabase.mmsSms();
       this.jobManager        = ApplicationDependencies.getJobManager();
+      this.heldLock          = heldLock;
     }
 
     /**
@@ -96,6 +114,65 @@ public class IncomingMessageProcessor {
      */
     public @Nullable
     String processEnvelope(@NonNull SignalServiceEnvelope envelope) {
+      registerOriginatorIfInactive(envelope);
+
+      if (envelope.isReceipt()) {
+        processReceipt(envelope);
+        return null;
+      } else if (envelope.isUfsrvMessage() || envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender() || envelope.isPlaintextContent()) {//AA+ isUsfrvMessage
+        return processMessage(envelope);
+      } else {
+        Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        return null;
+      }
+    }
+
+    /**
+     * Processes a batch of envelopes drained off the websocket. When decryption is deferred to jobs, recipient and
+     * receipt writes share one database transaction and all {@link PushDecryptMessageJob}s are persisted together in a
+     * single job storage transaction, instead of one write per envelope.
+     *
+     * @return The ids of the {@link PushDecryptMessageJob}s that were scheduled.
+     */
+    public @NonNull List<String> processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      List<String> jobIds = new ArrayList<>(envelopes.size());
+
+      if (FeatureFlags.internalUser()) {
+        for (SignalServiceEnvelope envelope : envelopes) {
+          String jobId = processEnvelope(envelope);
+          if (jobId != null) {
+            jobIds.add(jobId);
+          }
+        }
+        return jobIds;
+      }
+
+      List<Job> decryptJobs = new ArrayList<>(envelopes.size());
+
+      SignalDatabase.runInTransaction(() -> {
+        for (SignalServiceEnvelope envelope : envelopes) {
+          registerOriginatorIfInactive(envelope);
+
+          if (envelope.isReceipt()) {
+            processReceipt(envelope);
+          } else if (envelope.isUfsrvMessage() || envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender() || envelope.isPlaintextContent()) {
+            decryptJobs.add(new PushDecryptMessageJob(context, envelope));
+          } else {
+            Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+          }
+        }
+      });
+
+      jobManager.addAll(decryptJobs);
+
+      for (Job job : decryptJobs) {
+        jobIds.add(job.getId());
+      }
+
+      return jobIds;
+    }
+
+    private void registerOriginatorIfInactive(@NonNull SignalServiceEnvelope envelope) {
       UfsrvUid ufsrvUidSender = UfsrvCommandUtils.getOriginatorUfsrvUserId(envelope.getUfsrvCommand());
 
       if (!ufsrvUidSender.isUndefined()) { //AA+
@@ -110,16 +187,6 @@ public class IncomingMessageProcessor {
           ApplicationDependencies.getJobManager().add(new DirectoryRefreshJob(recipient, false, true));
         }
       }
-
-      if (envelope.isReceipt()) {
-        processReceipt(envelope);
-        return null;
-      } else if (envelope.isUfsrvMessage() || envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender() || envelope.isPlaintextContent()) {//AA+ isUsfrvMessage
-        return processMessage(envelope);
-      } else {
-        Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
-        return null;
-      }
     }
 
     private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
@@ -243,7 +310,7 @@ public class IncomingMessageProcessor {
 
     @Override
     public void close() {
-      release();
+      release(heldLock);
     }
   }
 }
\ No newline at end of file
@@ -486,7 +486,7 @@ public final class MessageContentProcessor {
 
     Optional<GroupRecord> groupRecord = groupDatabase.getGroup(groupId);
 
-    if (groupRecord.isPresent() && !groupRecord.get().getMembers().contains(senderRecipient.getId())) {
+    if (groupRecord.isPresent() && !groupRecord.get().containsMember(senderRecipient)) {//AA+ containsMember: members are Addresses, never RecipientIds
       log(String.valueOf(content.getTimestamp()), "Ignoring GV2 message from member not in group " + groupId + ". Sender: " + senderRecipient.getId() + " | " + senderRecipient.requireServiceId());
       return true;
     }
@@ -2214,7 +2214,7 @@ public final class MessageContentProcessor {
       SignalServiceProtos.CommandHeader header = message.getUfsrvCommand().getMsgCommand().getHeader();
       messageCommand = message.getUfsrvCommand().getMsgCommand();
 
-      UfsrvUid ufsrvUid = new UfsrvUid(message.getUfsrvCommand().getMsgCommand().getOriginator().getUfsrvuid().toByteArray());
+      UfsrvUid ufsrvUid = UfsrvUid.of(message.getUfsrvCommand().getMsgCommand().getOriginator().getUfsrvuid().toByteArray());
 
       if (ufsrvUid.isUndefined()) {//ufsrv originated msg
         Log.e(TAG, String.format("buildSyncMessageId: RECEIVED MSG COMMAND WITH ufsrv ORIGINATOR: gid: '%d' -- NO NEED FOR SYNC", header.getGid()));
@@ -2458,7 +2458,7 @@ public final class MessageContentProcessor {
         return;
       }
 
-      if (!groupRecord.get().getMembers().contains(requester.getId())) {
+      if (!groupRecord.get().containsMember(requester)) {//AA+ containsMember
         warn(content.getTimestamp(), "[RetryReceipt-SK] The requester is not in the group, so we cannot send them a SenderKeyDistributionMessage.");
         return;
       }
@@ -19,7 +19,6 @@ import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
@@ -28,50 +27,88 @@ import org.whispersystems.signalservice.api.push.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import androidx.annotation.AnyThread;
+import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
-
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * One {@link LiveRecipient} per recipient, whichever key it's looked up by. Entries are indexed primarily by
+ * {@link RecipientId}, with secondary indexes by ufsrvuid and {@link RecipientUfsrvId} pointing at the same entry.
+ *
+ * Lookups that hit are lock-free. Misses, index maintenance and eviction happen under the cache's lock, so only one
+ * {@link LiveRecipient} is created, and resolved, per key. A recipient first looked up by a ufsrv key isn't known by
+ * id until it resolves; at that point its keys are folded into the existing entry for that id, if there is one.
+ */
 public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
   private static final int CACHE_MAX              = 1000;
+  private static final int EVICTION_BATCH         = CACHE_MAX / 10;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
   private final Context                         context;
   private final RecipientDatabase               recipientDatabase;
-  private final Map<RecipientId, LiveRecipient> recipients;
   private final LiveRecipient                   unknown;
   private final Executor                        resolveExecutor;
 
-  private final Map<String, LiveRecipient>            recipientsUfsrvUid; //AA+
-  private final Map<RecipientUfsrvId, LiveRecipient>  recipientsUfsrvId; //AA+
+  //AA+ all guarded by this for writes; reads are lock-free
+  private final Map<RecipientId, Entry>       recipients;
+  private final Map<String, Entry>            recipientsUfsrvUid;
+  private final Map<RecipientUfsrvId, Entry>  recipientsUfsrvId;
+  private final Set<Entry>                    entries;
+  private volatile long                       accessClock;
+
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong resolves;
+  private final AtomicLong evictions;
+
   private final LiveRecipient                         ufsrvUnknown;
   private final LiveRecipient                         ufsrvSystemUser;
+  //
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
 
-  @SuppressLint("UseSparseArrays")
   public LiveRecipientCache(@NonNull Context context) {
+    this(context, ThreadUtil.trace(new FilteredExecutor(SignalExecutors.BOUNDED, () -> !SignalDatabase.inTransaction())));
+  }
+
+  //AA+
+  @VisibleForTesting
+  @SuppressLint("UseSparseArrays")
+  LiveRecipientCache(@NonNull Context context, @NonNull Executor resolveExecutor) {
     this.context           = context.getApplicationContext();
     this.recipientDatabase = SignalDatabase.recipients();
-    this.recipients        = new LRUCache<>(CACHE_MAX);
-    this.recipientsUfsrvUid= new LRUCache<>(CACHE_MAX);//AA+
-    this.recipientsUfsrvId = new LRUCache<>(CACHE_MAX);//AA+
+    this.recipients        = new ConcurrentHashMap<>();
+    this.recipientsUfsrvUid= new ConcurrentHashMap<>();//AA+
+    this.recipientsUfsrvId = new ConcurrentHashMap<>();//AA+
+    this.entries           = new HashSet<>();//AA+
+    this.hits              = new AtomicLong();//AA+
+    this.misses            = new AtomicLong();//AA+
+    this.resolves          = new AtomicLong();//AA+
+    this.evictions         = new AtomicLong();//AA+
     this.warmedUp          = new AtomicBoolean(false);
     this.localRecipientId  = new AtomicReference<>(null);
     this.ufsrvUnknown      = new LiveRecipient(context, Recipient.UFSRV);//AA+ denotes a user designated with an unknown ufrsvuid value
     this.ufsrvSystemUser   = new LiveRecipient(context, Recipient.UFSRV_SYSTEM_USER);//AA+ convenient recipient for ufsrv whole-of-network user
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
-    this.resolveExecutor   = ThreadUtil.trace(new FilteredExecutor(SignalExecutors.BOUNDED, () -> !SignalDatabase.inTransaction()));
+    this.resolveExecutor   = resolveExecutor;
   }
 
   @AnyThread
@@ -80,31 +117,34 @@ public final class LiveRecipientCache {
 
     if (id.isUfsrv()) return ufsrvUnknown;//AA+
 
+    Entry entry = lookup(recipients, id);
+    if (entry != null) return entry.live;
+
     LiveRecipient live;
-    boolean       needsResolve;
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    synchronized (this) {
+      entry = recipients.get(id);
 
-      if (live == null) {
-        live = new LiveRecipient(context, new Recipient(id));
-        recipients.put(id, live);
-        needsResolve = true;
+      if (entry == null) {
+        entry = newEntry(new LiveRecipient(context, new Recipient(id)));
+        entry.id = id;
+        recipients.put(id, entry);
       } else {
-        needsResolve = false;
+        return entry.live;
       }
-    }
 
-    if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+      live = entry.live;
     }
 
+    resolves.incrementAndGet();
+    resolveExecutor.execute(live::resolve);
+
     return live;
   }
 
   //AA+
   @AnyThread
-  synchronized @NonNull LiveRecipient getLiveUfsrvUid(@NonNull String ufsrvUid) {
+  @NonNull LiveRecipient getLiveUfsrvUid(@NonNull String ufsrvUid) {
     if (TextUtils.isEmpty(ufsrvUid) || UfsrvUid.UndefinedUfsrvUidTruncated.equals(ufsrvUid)) {
       Log.e(TAG, String.format("getLiveUfsrvUid: INVALID UfsrvUid: '%s''", ufsrvUid));
       return ufsrvUnknown;
@@ -114,83 +154,86 @@ public final class LiveRecipientCache {
       return ufsrvSystemUser;
     }
 
+    Entry entry = lookup(recipientsUfsrvUid, ufsrvUid);
+    if (entry != null) return entry.live;
+
     LiveRecipient live;
-    boolean       needsResolve;
 
-    synchronized (recipientsUfsrvUid) {
-      live = recipientsUfsrvUid.get(ufsrvUid);
+    synchronized (this) {
+      entry = recipientsUfsrvUid.get(ufsrvUid);
 
-      if (live == null) {
-         live = new LiveRecipient(context, new Recipient(ufsrvUid)); //marks Recipient as resolving
-        recipientsUfsrvUid.put(ufsrvUid, live);
-        needsResolve = true;
+      if (entry == null) {
+        entry = newEntry(new LiveRecipient(context, new Recipient(ufsrvUid))); //marks Recipient as resolving
+        entry.ufsrvUid = ufsrvUid;
+        recipientsUfsrvUid.put(ufsrvUid, entry);
       } else {
-        needsResolve = false;
+        return entry.live;
       }
+
+      live = entry.live;
     }
 
-    if (needsResolve) {
-      final LiveRecipient toResolve = live;
+    resolves.incrementAndGet();
 
-      MissingRecipientException prettyStackTraceError = new MissingRecipientException(ufsrvUid);
+    MissingRecipientException prettyStackTraceError = new MissingRecipientException(ufsrvUid);
+    resolveExecutor.execute(() -> {
+      try {
+        live.resolveUfsrvUid();
+      } catch (MissingRecipientException e) {
+        throw prettyStackTraceError;
+      }
+    });
+
+    return live;
+  }
+
+  @NonNull LiveRecipient getLiveUfsrvId(RecipientUfsrvId ufsrvId, boolean isSynchronous) {
+    if (ufsrvId.isUnknown()) return unknown;
+
+    Entry entry = lookup(recipientsUfsrvId, ufsrvId);
+    if (entry != null) return entry.live;
+
+    LiveRecipient live;
+
+    synchronized (this) {
+      entry = recipientsUfsrvId.get(ufsrvId);
+
+      if (entry == null) {
+        entry = newEntry(new LiveRecipient(context, new Recipient(ufsrvId))); //marks Recipient as resolving
+        entry.ufsrvId = ufsrvId;
+        recipientsUfsrvId.put(ufsrvId, entry);
+      } else {
+        return entry.live;
+      }
+
+      live = entry.live;
+    }
+
+    resolves.incrementAndGet();
+
+    MissingRecipientException prettyStackTraceError = new MissingRecipientException(ufsrvId);
+    if (!isSynchronous) {
       resolveExecutor.execute(() -> {
         try {
-          toResolve.resolveUfsrvUid();
-        } catch (MissingRecipientException e) {
+          live.resolveUfsrvId();
+        }
+        catch (MissingRecipientException e) {
           throw prettyStackTraceError;
         }
       });
+    } else {
+      try {
+        Log.w(TAG, String.format("getLiveUfsrvId ('%s'): Resolving synchronously...", ufsrvId.serialize()));
+        live.resolveUfsrvId();
+      }
+      catch (MissingRecipientException e) {
+        throw prettyStackTraceError;
+      }
     }
 
     return live;
   }
 
-   @NonNull LiveRecipient getLiveUfsrvId(RecipientUfsrvId ufsrvId, boolean isSynchronous) {
-    if (ufsrvId.isUnknown()) return unknown;
-
-     LiveRecipient live;
-     boolean       needsResolve;
-
-     synchronized (recipientsUfsrvId) {
-       live  = recipientsUfsrvId.get(ufsrvId);
-
-       if (live == null) {
-         live = new LiveRecipient(context, new Recipient(ufsrvId)); //marks Recipient as resolving
-         recipientsUfsrvId.put(ufsrvId, live);
-         needsResolve = true;
-       } else {
-         needsResolve = false;
-       }
-     }
-
-     if (needsResolve) {
-       final LiveRecipient toResolve = live;
-
-       MissingRecipientException prettyStackTraceError = new MissingRecipientException(ufsrvId);
-       if (!isSynchronous) {
-         resolveExecutor.execute(() -> {
-           try {
-             toResolve.resolveUfsrvId();
-           }
-           catch (MissingRecipientException e) {
-             throw prettyStackTraceError;
-           }
-         });
-       } else {
-         try {
-           Log.w(TAG, String.format("getLiveUfsrvId ('%s'): Resolving synchronously...", ufsrvId.serialize()));
-           toResolve.resolveUfsrvId();
-         }
-         catch (MissingRecipientException e) {
-           throw prettyStackTraceError;
-         }
-       }
-     }
-
-     return live;
-
-  }
-
   /**
    *
    * @param id the recipient id to kill
@@ -200,65 +243,174 @@ public final class LiveRecipientCache {
   synchronized @NonNull void killLive(@NonNull RecipientId id, Consumer<Pair<RecipientId, Recipient>> consumer) {
     if (id.isUnknown()) return;
 
-    LiveRecipient live = recipients.get(id);
+    Entry entry = recipients.get(id);
 
-    if (live != null) {
-      synchronisedRemove(live.get());
-      consumer.accept(new Pair(id, live.get()));
+    if (entry != null) {
+      removeEntry(entry);
+      consumer.accept(new Pair(id, entry.live.get()));
       //todo notify listeners?
     }
 
   }
 
   /**
-   * Necessary due to the multiple indexing of the same LiveRecipient. Only invoke if underlying recipient if fully resolved.
-   * @param liveRecipient
+   * Invoked once a {@link LiveRecipient} has resolved, whichever key it was looked up by, so that all of its keys point
+   * at one entry. If the recipient is already cached under its id, that entry is kept and the resolved recipient's
+   * keys are moved over to it.
    */
   synchronized void synchroniseUfsrvCache(LiveRecipient liveRecipient) {
     Recipient recipient = liveRecipient.get();
-    if (recipient.equals(Recipient.UNKNOWN)) return;
-    if (!TextUtils.isEmpty(recipient.getUfsrvUid())) recipientsUfsrvUid.put(recipient.getUfsrvUid(), liveRecipient);
-    if (recipient.getUfsrvId() > 0) recipientsUfsrvId.put(RecipientUfsrvId.from(recipient.getUfsrvId()), liveRecipient);
+    if (recipient.equals(Recipient.UNKNOWN) || recipient.getId().isUnknown() || recipient.getId().isUfsrv()) return;
+
+    Entry entry     = findEntry(liveRecipient);
+    Entry canonical = recipients.get(recipient.getId());
 
+    if (canonical == null) {
+      canonical = entry != null ? entry : newEntry(liveRecipient);
+    } else if (entry != null && entry != canonical) {
+      removeEntry(entry);
+      if (canonical.live.get().isResolving()) canonical.live.set(recipient);
+    }
+
+    index(canonical, recipient);
   }
 
   void synchronisedRemove(Recipient recipient) {
-    synchronized ( recipient) {
-      if (!TextUtils.isEmpty(recipient.getUfsrvUid())) recipientsUfsrvUid.remove(recipient.getUfsrvUid());
-      recipientsUfsrvId.remove(RecipientUfsrvId.from(recipient.getUfsrvId()));
-      recipients.remove(recipient.getId());
+    synchronized (this) {
+      Entry entry = recipients.get(recipient.getId());
+      if (entry == null && !TextUtils.isEmpty(recipient.getUfsrvUid())) entry = recipientsUfsrvUid.get(recipient.getUfsrvUid());
+      if (entry == null) entry = recipientsUfsrvId.get(RecipientUfsrvId.from(recipient.getUfsrvId()));
+
+      if (entry != null) removeEntry(entry);
     }
 
   }
 
-  synchronized void synchroniseUfsrvUidCache(LiveRecipient liveRecipient) {
-    Recipient recipient = liveRecipient.get();
-    if (recipient.equals(Recipient.UNKNOWN)) return;
-    recipients.put(recipient.getId(), liveRecipient);
-    if (!TextUtils.isEmpty(recipient.getUfsrvUid())) recipientsUfsrvUid.put(recipient.getUfsrvUid(), liveRecipient);
+  void synchroniseUfsrvUidCache(LiveRecipient liveRecipient) {
+    synchroniseUfsrvCache(liveRecipient);
+  }
 
+  void synchroniseUfsrvIdCache(LiveRecipient liveRecipient) {
+    synchroniseUfsrvCache(liveRecipient);
   }
 
-  synchronized void synchroniseUfsrvIdCache(LiveRecipient liveRecipient) {
-    Recipient recipient = liveRecipient.get();
-    if (recipient.equals(Recipient.UNKNOWN)) return;
-    recipients.put(recipient.getId(), liveRecipient);
-    if (recipient.getUfsrvId() > 0) recipientsUfsrvId.put(RecipientUfsrvId.from(recipient.getUfsrvId()), liveRecipient);
+  /**
+   * @return hit/miss/resolve/eviction counts since startup, for sizing {@link #CACHE_MAX}.
+   */
+  @AnyThread
+  public @NonNull Stats getStats() {
+    int size;
+    synchronized (this) {
+      size = entries.size();
+    }
 
+    return new Stats(size, hits.get(), misses.get(), resolves.get(), evictions.get());
   }
 
-  //
+  private @Nullable <K> Entry lookup(@NonNull Map<K, Entry> index, @NonNull K key) {
+    Entry entry = index.get(key);
+
+    if (entry != null) {
+      entry.lastAccess = accessClock;
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+
+    return entry;
+  }
+
+  @GuardedBy("this")
+  private @NonNull Entry newEntry(@NonNull LiveRecipient live) {
+    Entry entry = new Entry(live);
+
+    accessClock++;
+    entry.lastAccess = accessClock;
+    entries.add(entry);
+
+    if (entries.size() > CACHE_MAX) evict();
+
+    return entry;
+  }
+
+  @GuardedBy("this")
+  private @Nullable Entry findEntry(@NonNull LiveRecipient live) {
+    Recipient recipient = live.get();
+    Entry     entry;
+
+    if ((entry = recipients.get(recipient.getId())) != null && entry.live == live) return entry;
+    if (!TextUtils.isEmpty(recipient.getUfsrvUid()) && (entry = recipientsUfsrvUid.get(recipient.getUfsrvUid())) != null && entry.live == live) return entry;
+    if (recipient.getUfsrvId() > 0 && (entry = recipientsUfsrvId.get(RecipientUfsrvId.from(recipient.getUfsrvId()))) != null && entry.live == live) return entry;
+
+    //the key it was looked up by may be an alternative form of the one it resolved to
+    for (Entry candidate : entries) {
+      if (candidate.live == live) return candidate;
+    }
+
+    return null;
+  }
+
+  @GuardedBy("this")
+  private void index(@NonNull Entry entry, @NonNull Recipient recipient) {
+    if (!entries.contains(entry)) entries.add(entry);
+
+    entry.id = recipient.getId();
+    recipients.put(entry.id, entry);
+
+    if (!TextUtils.isEmpty(recipient.getUfsrvUid())) {
+      if (entry.ufsrvUid != null && !entry.ufsrvUid.equals(recipient.getUfsrvUid())) recipientsUfsrvUid.remove(entry.ufsrvUid, entry);
+      entry.ufsrvUid = recipient.getUfsrvUid();
+      recipientsUfsrvUid.put(entry.ufsrvUid, entry);
+    }
+
+    if (recipient.getUfsrvId() > 0) {
+      RecipientUfsrvId ufsrvId = RecipientUfsrvId.from(recipient.getUfsrvId());
+      if (entry.ufsrvId != null && !entry.ufsrvId.equals(ufsrvId)) recipientsUfsrvId.remove(entry.ufsrvId, entry);
+      entry.ufsrvId = ufsrvId;
+      recipientsUfsrvId.put(ufsrvId, entry);
+    }
+  }
+
+  @GuardedBy("this")
+  private void removeEntry(@NonNull Entry entry) {
+    entries.remove(entry);
+    if (entry.id != null)       recipients.remove(entry.id, entry);
+    if (entry.ufsrvUid != null) recipientsUfsrvUid.remove(entry.ufsrvUid, entry);
+    if (entry.ufsrvId != null)  recipientsUfsrvId.remove(entry.ufsrvId, entry);
+
+    if (entry.aliasIds != null) {
+      for (RecipientId aliasId : entry.aliasIds) recipients.remove(aliasId, entry);
+    }
+  }
+
+  /**
+   * Drops the least recently used tenth of the cache. Holders of an evicted {@link LiveRecipient} keep it; the cache
+   * just stops handing it out.
+   */
+  @GuardedBy("this")
+  private void evict() {
+    List<Entry> oldest = new ArrayList<>(entries);
+    Collections.sort(oldest, (a, b) -> Long.compare(a.lastAccess, b.lastAccess));
+
+    for (int i = 0; i < EVICTION_BATCH && i < oldest.size(); i++) {
+      removeEntry(oldest.get(i));
+    }
+
+    evictions.addAndGet(Math.min(EVICTION_BATCH, oldest.size()));
+  }
 
   /**
    * Handles remapping cache entries when recipients are merged.
    */
-  public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
-      } else {
-        recipients.remove(oldId);
-      }
+  public synchronized void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
+    Entry entry = recipients.get(newId);
+
+    if (entry != null) {
+      recipients.put(oldId, entry);
+      if (entry.aliasIds == null) entry.aliasIds = new ArrayList<>(1);
+      entry.aliasIds.add(oldId);
+    } else {
+      recipients.remove(oldId);
     }
   }
 
@@ -274,17 +426,26 @@ public final class LiveRecipientCache {
       LiveRecipient live;
       boolean       needsResolve;
 
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
-
-        if (live == null) {
-          live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
+      synchronized (this) {
+        Entry entry = recipients.get(recipient.getId());
+
+        if (entry == null) {
+          live  = new LiveRecipient(context, recipient);
+          entry = newEntry(live);
+          if (recipient.isResolving()) {
+            entry.id = recipient.getId();
+            recipients.put(entry.id, entry);
+          } else {
+            index(entry, recipient);
+          }
           needsResolve = recipient.isResolving();
-        } else if (live.get().isResolving() || !recipient.isResolving()) {
+        } else if (entry.live.get().isResolving() || !recipient.isResolving()) {
+          live = entry.live;
           live.set(recipient);
+          if (!recipient.isResolving()) index(entry, recipient);
           needsResolve = recipient.isResolving();
         } else {
+          live         = entry.live;
           needsResolve = false;
         }
       }
@@ -292,6 +453,8 @@ public final class LiveRecipientCache {
       if (needsResolve) {
         LiveRecipient toResolve = live;
 
+        resolves.incrementAndGet();
+
         MissingRecipientException prettyStackTraceError = new MissingRecipientException(toResolve.getId());
         resolveExecutor.execute(() -> {
           try {
@@ -392,6 +555,7 @@ public final class LiveRecipientCache {
       }
 
       stopwatch.stop(TAG);
+      Log.d(TAG, "Post warm-up: " + getStats());
     });
   }
 
@@ -404,8 +568,11 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
+    synchronized (this) {
       recipients.clear();
+      recipientsUfsrvUid.clear();
+      recipientsUfsrvId.clear();
+      entries.clear();
     }
   }
 
@@ -413,4 +580,59 @@ public final class LiveRecipientCache {
     return !recipient.getId().isUnknown() && (recipient.hasServiceId() || recipient.getGroupId().isPresent() || recipient.hasSmsAddress());
   }
 
-}
\ No newline at end of file
+  private static final class Entry {
+    private final LiveRecipient live;
+    private volatile long       lastAccess;
+
+    //guarded by the cache
+    private RecipientId       id;
+    private String            ufsrvUid;
+    private RecipientUfsrvId  ufsrvId;
+    private List<RecipientId> aliasIds; //remapped ids, see remap()
+
+    private Entry(@NonNull LiveRecipient live) {
+      this.live = live;
+    }
+  }
+
+  public static final class Stats {
+    private final int  size;
+    private final long hits;
+    private final long misses;
+    private final long resolves;
+    private final long evictions;
+
+    private Stats(int size, long hits, long misses, long resolves, long evictions) {
+      this.size      = size;
+      this.hits      = hits;
+      this.misses    = misses;
+      this.resolves  = resolves;
+      this.evictions = evictions;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getResolves() {
+      return resolves;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "size: " + size + "/" + CACHE_MAX + ", hits: " + hits + ", misses: " + misses + ", resolves: " + resolves + ", evictions: " + evictions;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.thoughtcrime.securesms.registration.fragments;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Canvas;
@@ -10,6 +11,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.provider.DocumentsContract;
 import android.text.Editable;
 import android.text.Spanned;
 import android.text.TextWatcher;
@@ -70,6 +72,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
   private static final String TAG                            = Log.tag(RestoreBackupFragment.class);
   private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE = 13782;
+  private static final short  OPEN_BASE_BACKUP_RESULT_CODE   = 13783;//AA+
 
   private TextView               restoreBackupSize;
   private TextView               restoreBackupTime;
@@ -78,6 +81,10 @@ public final class RestoreBackupFragment extends LoggingFragment {
   private View                   skipRestoreButton;
   private RegistrationViewModel  viewModel;
 
+  //AA+ the differential backup waiting on its base to be picked
+  private BackupUtil.BackupInfo  pendingBackup;
+  private String                 pendingPassphrase;
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
                            Bundle savedInstanceState) {
@@ -157,6 +164,11 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
       SafeNavigation.safeNavigate(Navigation.findNavController(requireView()),
                                   RestoreBackupFragmentDirections.actionBackupRestored());
+    } else if (requestCode == OPEN_BASE_BACKUP_RESULT_CODE && resultCode == Activity.RESULT_OK && data != null && data.getData() != null && pendingBackup != null) {//AA+
+      setSpinning(restoreButton);
+      skipRestoreButton.setVisibility(View.INVISIBLE);
+
+      restoreAsynchronously(requireContext(), pendingBackup, pendingPassphrase, data.getData());
     }
   }
 
@@ -266,7 +278,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
               String passphrase = prompt.getText().toString();
 
-              restoreAsynchronously(context, backup, passphrase);
+              restoreAsynchronously(context, backup, passphrase, null);
             })
             .setNegativeButton(android.R.string.cancel, null)
             .show();
@@ -277,9 +289,12 @@ public final class RestoreBackupFragment extends LoggingFragment {
   @SuppressLint("StaticFieldLeak")
   private void restoreAsynchronously(@NonNull Context context,
                                      @NonNull BackupUtil.BackupInfo backup,
-                                     @NonNull String passphrase)
+                                     @NonNull String passphrase,
+                                     @Nullable Uri baseUri)//AA+
   {
     new AsyncTask<Void, Void, BackupImportResult>() {
+      private String missingBase;//AA+
+
       @Override
       protected BackupImportResult doInBackground(Void... voids) {
         try {
@@ -292,6 +307,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
                                         AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                         database,
                                         backup.getUri(),
+                                        baseUri,//AA+
                                         passphrase);
 
           SignalDatabase.upgradeRestored(database);
@@ -306,6 +322,10 @@ public final class RestoreBackupFragment extends LoggingFragment {
         } catch (FullBackupImporter.DatabaseDowngradeException e) {
           Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
           return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (FullBackupImporter.MissingBaseBackupException e) {//AA+
+          Log.w(TAG, "Failed due to the base of a differential backup being unavailable.", e);
+          missingBase = e.getBase();
+          return BackupImportResult.FAILURE_MISSING_BASE;
         } catch (IOException e) {
           Log.w(TAG, e);
           return BackupImportResult.FAILURE_UNKNOWN;
@@ -314,7 +334,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
       @Override
       protected void onPostExecute(@NonNull BackupImportResult result) {
-        viewModel.markBackupCompleted();
+        if (result != BackupImportResult.FAILURE_MISSING_BASE) viewModel.markBackupCompleted();//AA+ not done yet while the base is being picked
         cancelSpinning(restoreButton);
         skipRestoreButton.setVisibility(View.VISIBLE);
 
@@ -327,6 +347,9 @@ public final class RestoreBackupFragment extends LoggingFragment {
           case FAILURE_VERSION_DOWNGRADE:
             Toast.makeText(context, R.string.RegistrationActivity_backup_failure_downgrade, Toast.LENGTH_LONG).show();
             break;
+          case FAILURE_MISSING_BASE://AA+
+            displayChooseBaseDialog(context, backup, passphrase, missingBase);
+            break;
           case FAILURE_UNKNOWN:
             Toast.makeText(context, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
             break;
@@ -335,6 +358,36 @@ public final class RestoreBackupFragment extends LoggingFragment {
     }.execute();
   }
 
+  /**
+   * A differential backup only holds what changed since its base, so the base has to be picked too when it isn't next
+   * to the chosen file.
+   */
+  private void displayChooseBaseDialog(@NonNull Context context, @NonNull BackupUtil.BackupInfo backup, @NonNull String passphrase, @NonNull String base) {//AA+
+    new AlertDialog.Builder(context)
+            .setTitle(R.string.RestoreBackupFragment__choose_full_backup)
+            .setMessage(getString(R.string.RestoreBackupFragment__this_backup_builds_on_s, base))
+            .setPositiveButton(R.string.RestoreBackupFragment__choose_backup, (dialog, which) -> {
+              Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+
+              intent.setType("application/octet-stream");
+              intent.addCategory(Intent.CATEGORY_OPENABLE);
+              intent.putExtra(Intent.EXTRA_LOCAL_ONLY, true);
+              intent.putExtra(DocumentsContract.EXTRA_INITIAL_URI, backup.getUri());
+
+              pendingBackup     = backup;
+              pendingPassphrase = passphrase;
+
+              try {
+                startActivityForResult(intent, OPEN_BASE_BACKUP_RESULT_CODE);
+              } catch (ActivityNotFoundException e) {
+                Toast.makeText(context, R.string.ChooseBackupFragment__no_file_browser_available, Toast.LENGTH_LONG).show();
+                Log.w(TAG, "No matching activity!", e);
+              }
+            })
+            .setNegativeButton(android.R.string.cancel, null)
+            .show();
+  }
+
   @Override
   public void onStart() {
     super.onStart();
@@ -418,6 +471,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
   private enum BackupImportResult {
     SUCCESS,
     FAILURE_VERSION_DOWNGRADE,
+    FAILURE_MISSING_BASE,//AA+
     FAILURE_UNKNOWN
   }
 
@@ -6,15 +6,27 @@ import android.os.Looper;
 
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 
 /**
  * Manages our app startup flow.
+ *
+ * Blocking tasks run on the main thread in the order they were added, except for those added with
+ * {@link #addBlockingInBackground(String, String[], Runnable)}: these run on a small pool as soon as
+ * the tasks they name have finished, alongside whatever else is going on. {@link #execute()} only
+ * returns once every blocking task has finished, so all of it is done before anything is rendered.
  */
 public final class AppStartup {
 
@@ -28,10 +40,14 @@ public final class AppStartup {
 
   private static final AppStartup INSTANCE = new AppStartup();
 
-  private final List<Task> blocking;
-  private final List<Task> nonBlocking;
-  private final List<Task> postRender;
-  private final Handler    postRenderHandler;
+  private static final Executor BACKGROUND_EXECUTOR = SignalExecutors.newCachedBoundedExecutor("unfacd-startup", 0, 3, 5);//AA+
+
+  private final List<Task>        blocking;
+  private final Map<String, Task> blockingByName;
+  private final List<Task>        nonBlocking;
+  private final List<Task>        postRender;
+  private final Handler           postRenderHandler;
+  private final Executor          backgroundExecutor;
 
   private int outstandingCriticalRenderEvents;
 
@@ -44,10 +60,17 @@ public final class AppStartup {
   }
 
   private AppStartup() {
-    this.blocking          = new LinkedList<>();
-    this.nonBlocking       = new LinkedList<>();
-    this.postRender        = new LinkedList<>();
-    this.postRenderHandler = new Handler(Looper.getMainLooper());
+    this(BACKGROUND_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  AppStartup(@NonNull Executor backgroundExecutor) {
+    this.blocking           = new LinkedList<>();
+    this.blockingByName     = new HashMap<>();
+    this.nonBlocking        = new LinkedList<>();
+    this.postRender         = new LinkedList<>();
+    this.postRenderHandler  = new Handler(Looper.getMainLooper());
+    this.backgroundExecutor = backgroundExecutor;
   }
 
   public void onApplicationCreate() {
@@ -59,17 +82,63 @@ public final class AppStartup {
    */
   @MainThread
   public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull Runnable task) {
-    blocking.add(new Task(name, task));
+    return addBlocking(name, after(), task);
+  }
+
+  /**
+   * As {@link #addBlocking(String, Runnable)}, additionally waiting for the named background tasks
+   * to finish before running.
+   */
+  @MainThread
+  public @NonNull AppStartup addBlocking(@NonNull String name, @NonNull String[] dependencies, @NonNull Runnable task) {
+    return addBlockingTask(new Task(name, task, false, resolve(name, dependencies)));
+  }
+
+  /**
+   * Schedules a task that must happen during app startup in a blocking fashion, but needn't run on
+   * the main thread. It runs as soon as the named tasks, which must have been added already, have
+   * finished. Relies on nothing else: anything it needs must be listed.
+   */
+  @MainThread
+  public @NonNull AppStartup addBlockingInBackground(@NonNull String name, @NonNull String[] dependencies, @NonNull Runnable task) {
+    return addBlockingTask(new Task(name, task, true, resolve(name, dependencies)));
+  }
+
+  public static @NonNull String[] after(@NonNull String... names) {
+    return names;
+  }
+
+  private @NonNull AppStartup addBlockingTask(@NonNull Task task) {
+    if (blockingByName.put(task.getName(), task) != null) {
+      throw new IllegalArgumentException("Duplicate startup task: " + task.getName());
+    }
+
+    blocking.add(task);
     return this;
   }
 
+  /** Dependencies must already be registered, which rules out cycles. */
+  private @NonNull List<Task> resolve(@NonNull String name, @NonNull String[] dependencies) {
+    List<Task> resolved = new LinkedList<>();
+
+    for (String dependency : dependencies) {
+      Task task = blockingByName.get(dependency);
+      if (task == null) {
+        throw new IllegalArgumentException("Startup task " + name + " depends on " + dependency + ", which hasn't been added before it.");
+      }
+      resolved.add(task);
+    }
+
+    return resolved;
+  }
+
   /**
    * Schedules a task that should not block app startup, but should still happen as quickly as
    * possible.
    */
   @MainThread
   public @NonNull AppStartup addNonBlocking(@NonNull Runnable task) {
-    nonBlocking.add(new Task("", task));
+    nonBlocking.add(new Task("", task, true));
     return this;
   }
 
@@ -82,7 +151,7 @@ public final class AppStartup {
    */
   @MainThread
   public @NonNull AppStartup addPostRender(@NonNull Runnable task) {
-    postRender.add(new Task("", task));
+    postRender.add(new Task("", task, true));
     return this;
   }
 
@@ -138,21 +207,20 @@ public final class AppStartup {
    */
   @MainThread
   public void execute() {
-    Stopwatch stopwatch = new Stopwatch("init");
+    long startTime = System.currentTimeMillis();
 
-    for (Task task : blocking) {
-      task.getRunnable().run();
-      stopwatch.split(task.getName());
-    }
-    blocking.clear();
+    executeBlocking();
+
+    long blockingTime = System.currentTimeMillis() - startTime;
 
     for (Task task : nonBlocking) {
       SignalExecutors.BOUNDED.execute(task.getRunnable());
     }
     nonBlocking.clear();
 
-    stopwatch.split("schedule-non-blocking");
-    stopwatch.stop(TAG);
+    logBlockingTimes(blockingTime, System.currentTimeMillis() - startTime);
+    blocking.clear();
+    blockingByName.clear();
 
     postRenderHandler.postDelayed(() -> {
       Log.i(TAG, "Assuming the application has started in the background. Running post-render tasks.");
@@ -160,6 +228,42 @@ public final class AppStartup {
     }, UI_WAIT_TIME);
   }
 
+  /**
+   * Runs every blocking task, returning once all of them have finished. The first failure is rethrown.
+   */
+  @VisibleForTesting
+  @MainThread
+  void executeBlocking() {
+    for (Task task : blocking) {
+      if (task.isBackground()) {
+        backgroundExecutor.execute(task::runBlocking);
+      } else {
+        task.runBlocking();
+        task.rethrowFailure();
+      }
+    }
+
+    for (Task task : blocking) {
+      task.awaitBlocking();
+      task.rethrowFailure();
+    }
+  }
+
+  private void logBlockingTimes(long blockingTime, long totalTime) {
+    Map<String, Long> durations = new LinkedHashMap<>();
+    StringBuilder     out       = new StringBuilder("[init] ");
+
+    for (Task task : blocking) {
+      durations.put(task.getName(), task.getDuration());
+      out.append(task.getName()).append(task.isBackground() ? " (bg)" : "").append(": ").append(task.getDuration()).append("  ");
+    }
+
+    out.append(String.format(Locale.US, "blocking: %d  total: %d", blockingTime, totalTime));
+    Log.d(TAG, out.toString());
+
+    SignalLocalMetrics.StartupTasks.onBlockingTasksFinished(durations, blockingTime);
+  }
+
   private void executePostRender() {
     for (Task task : postRender) {
       SignalExecutors.BOUNDED.execute(task.getRunnable());
@@ -168,12 +272,24 @@ public final class AppStartup {
   }
 
   private class Task {
-    private final String   name;
-    private final Runnable runnable;
+    private final String         name;
+    private final Runnable       runnable;
+    private final boolean        background;
+    private final List<Task>     dependencies;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile long      duration;
+    private volatile Throwable failure;
 
-    protected Task(@NonNull String name, @NonNull Runnable runnable) {
-      this.name = name;
-      this.runnable = runnable;
+    protected Task(@NonNull String name, @NonNull Runnable runnable, boolean background) {
+      this(name, runnable, background, new LinkedList<>());
+    }
+
+    protected Task(@NonNull String name, @NonNull Runnable runnable, boolean background, @NonNull List<Task> dependencies) {
+      this.name         = name;
+      this.runnable     = runnable;
+      this.background   = background;
+      this.dependencies = dependencies;
     }
 
     @NonNull String getName() {
@@ -183,5 +299,60 @@ public final class AppStartup {
     public @NonNull Runnable getRunnable() {
       return runnable;
     }
+
+    boolean isBackground() {
+      return background;
+    }
+
+    long getDuration() {
+      return duration;
+    }
+
+    /**
+     * Waits for dependencies, then runs the task. Failures are held on to, to be rethrown on the
+     * main thread, and are passed on to anything depending on this task, which then doesn't run.
+     */
+    void runBlocking() {
+      try {
+        for (Task dependency : dependencies) {
+          dependency.awaitBlocking();
+          if (dependency.failure != null) {
+            failure = dependency.failure;
+            return;
+          }
+        }
+
+        long start = System.currentTimeMillis();
+        runnable.run();
+        duration = System.currentTimeMillis() - start;
+      } catch (Throwable t) {
+        failure = t;
+      } finally {
+        finished.countDown();
+      }
+    }
+
+    void awaitBlocking() {
+      boolean interrupted = false;
+
+      while (true) {
+        try {
+          finished.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    void rethrowFailure() {
+      if (failure == null) return;
+
+      if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+      if (failure instanceof Error)            throw (Error) failure;
+      throw new AssertionError("Startup task " + name + " failed", failure);
+    }
   }
-}
\ No newline at end of file
+}
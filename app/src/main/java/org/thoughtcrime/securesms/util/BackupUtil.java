@@ -10,7 +10,9 @@ import android.os.Build;
 import com.unfacd.android.R;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
@@ -18,13 +20,16 @@ import org.thoughtcrime.securesms.permissions.Permissions;
 import org.signal.libsignal.protocol.util.ByteUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -88,24 +93,69 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * Keeps the two newest backups, and the full backups any of those build on.
+   */
   public static void deleteOldBackups() {
     Log.i(TAG, "Deleting older backups");
 
     try {
       List<BackupInfo> backups = getAllBackupsNewestFirst();
+      Set<Long>        bases   = new HashSet<>();//AA+
+
+      for (int i = 0; i < Math.min(2, backups.size()); i++) {
+        String base = getBaseName(backups.get(i));
+
+        if (base != null) {
+          bases.add(getBackupTimestamp(base));
+        }
+      }
 
       for (int i = 2; i < backups.size(); i++) {
-        backups.get(i).delete();
+        if (bases.contains(backups.get(i).getTimestamp())) {
+          Log.i(TAG, "Keeping base backup " + backups.get(i).getTimestamp());
+        } else {
+          backups.get(i).delete();
+        }
       }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
   }
 
+  /**
+   * @return the backup in the backup directory with the given file name, or null if there isn't one.
+   */
+  public static @Nullable BackupInfo getBackupByName(@NonNull String name) throws NoExternalStorageException {//AA+
+    long timestamp = getBackupTimestamp(name);
+
+    if (timestamp == -1) {
+      return null;
+    }
+
+    for (BackupInfo backup : getAllBackupsNewestFirst()) {
+      if (backup.getTimestamp() == timestamp) {
+        return backup;
+      }
+    }
+
+    return null;
+  }
+
+  private static @Nullable String getBaseName(@NonNull BackupInfo backup) {//AA+
+    try {
+      return FullBackupImporter.getBaseName(ApplicationDependencies.getApplication(), backup.getUri());
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't read backup header", e);
+      return null;
+    }
+  }
+
   public static void disableBackups(@NonNull Context context) {
     BackupPassphrase.set(context, null);
     SignalStore.settings().setBackupEnabled(false);
     BackupUtil.deleteAllBackups();
+    BackupManifest.clear(context);//AA+
 
     if (BackupUtil.isUserSelectionRequired(context)) {
       Uri backupLocationUri = SignalStore.settings().getSignalBackupDirectory();
@@ -240,7 +290,7 @@ public class BackupUtil {
     }
   }
 
-  private static long getBackupTimestamp(@NonNull String backupName) {
+  public static long getBackupTimestamp(@NonNull String backupName) {//AA+ public
     String[] prefixSuffix = backupName.split("[.]");
 
     if (prefixSuffix.length == 2) {
@@ -94,6 +94,8 @@ public final class FeatureFlags {
   private static final String USE_HARDWARE_AEC_IF_OLD           = "android.calling.useHardwareAecIfOlderThanApi29";
   private static final String USE_AEC3                          = "android.calling.useAec3";
   private static final String PAYMENTS_COUNTRY_BLOCKLIST        = "android.payments.blocklist";
+  private static final String PIPELINED_ENVELOPE_PROCESSING     = "android.ufsrv.pipelinedEnvelopeProcessing";
+  private static final String BATCHED_ENVELOPE_DRAIN            = "android.ufsrv.batchedEnvelopeDrain";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -142,7 +144,9 @@ public final class FeatureFlags {
       SOFTWARE_AEC_BLOCKLIST_MODELS,
       USE_HARDWARE_AEC_IF_OLD,
       USE_AEC3,
-      PAYMENTS_COUNTRY_BLOCKLIST
+      PAYMENTS_COUNTRY_BLOCKLIST,
+      PIPELINED_ENVELOPE_PROCESSING,
+      BATCHED_ENVELOPE_DRAIN
   );
 
   @VisibleForTesting
@@ -496,6 +500,16 @@ public final class FeatureFlags {
     return getBoolean(USE_AEC3, true);
   }
 
+  /** Whether websocket envelopes are processed on per-fence lanes rather than one at a time on the retrieval thread. */
+  public static boolean pipelinedEnvelopeProcessing() {
+    return getBoolean(PIPELINED_ENVELOPE_PROCESSING, false);
+  }
+
+  /** Whether envelopes drained off the websocket are collected briefly and persisted as a batch. */
+  public static boolean batchedEnvelopeDrain() {
+    return getBoolean(BATCHED_ENVELOPE_DRAIN, false);
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
@@ -124,12 +124,13 @@ public final class IdentityUtil {
     long            time          = System.currentTimeMillis();
     MessageDatabase smsDatabase   = SignalDatabase.sms();
     GroupDatabase   groupDatabase = SignalDatabase.groups();
+    Recipient       recipient     = Recipient.resolved(recipientId);//AA+
 
     try (GroupDatabase.Reader reader = groupDatabase.getGroups()) {
       GroupDatabase.GroupRecord groupRecord;
 
       while ((groupRecord = reader.getNext()) != null) {
-        if (groupRecord.getMembers().contains(recipientId) && groupRecord.isActive()) {
+        if (groupRecord.containsMember(recipient) && groupRecord.isActive()) {//AA+ containsMember
           IncomingTextMessage           incoming    = new IncomingTextMessage(recipientId, 1, time, time, time, null, Optional.of(groupRecord.getId()), 0, false, null, null);
           IncomingIdentityUpdateMessage groupUpdate = new IncomingIdentityUpdateMessage(incoming);
 
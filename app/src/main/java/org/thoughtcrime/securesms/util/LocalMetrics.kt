@@ -76,6 +76,21 @@ object LocalMetrics {
     }
   }
 
+  /**
+   * Marks a split for an event with a duration measured by the caller, for work that didn't run back to back with the
+   * previous split, e.g. tasks run in parallel. Does not move the reference point used by [split].
+   *
+   * If an event with the provided ID does not exist, this is effectively a no-op.
+   */
+  fun splitWithDuration(id: String, split: String, duration: Long) { //AA+
+    executor.execute {
+      val splitDoesNotExist: Boolean = eventsById[id]?.splits?.none { it.name == split } ?: true
+      if (splitDoesNotExist) {
+        eventsById[id]?.splits?.add(LocalMetricsSplit(split, duration))
+      }
+    }
+  }
+
   /**
    * Stop tracking an event you were previously tracking. All future calls to [split] and [end] will do nothing for this id.
    */
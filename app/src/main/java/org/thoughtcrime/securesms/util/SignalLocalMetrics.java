@@ -1,6 +1,9 @@
 package org.thoughtcrime.securesms.util;
 
+import org.signal.core.util.logging.Log;
+
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import androidx.annotation.MainThread;
@@ -12,6 +15,8 @@ import androidx.annotation.Nullable;
  */
 public final class SignalLocalMetrics {
 
+  private static final String TAG = Log.tag(SignalLocalMetrics.class);
+
   private SignalLocalMetrics() {}
 
   public static final class ColdStart {
@@ -69,6 +74,30 @@ public final class SignalLocalMetrics {
     }
   }
 
+  //AA+
+  /**
+   * Time taken by each of the blocking app startup tasks, which no longer add up to the total now that some run in parallel.
+   */
+  public static final class StartupTasks {
+    private static final String NAME = "app-startup-tasks";
+
+    private static final String SPLIT_BLOCKING = "blocking-total";
+
+    @MainThread
+    public static void onBlockingTasksFinished(@NonNull Map<String, Long> durations, long blockingTime) {
+      String id = NAME + "-" + System.currentTimeMillis();
+
+      LocalMetrics.getInstance().start(id, NAME);
+
+      for (Map.Entry<String, Long> entry : durations.entrySet()) {
+        LocalMetrics.getInstance().splitWithDuration(id, entry.getKey(), entry.getValue());
+      }
+
+      LocalMetrics.getInstance().splitWithDuration(id, SPLIT_BLOCKING, blockingTime);
+      LocalMetrics.getInstance().end(id);
+    }
+  }
+
   public static final class ConversationOpen {
     private static final String NAME = "conversation-open";
 
@@ -296,4 +325,71 @@ public final class SignalLocalMetrics {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Tracks how quickly the websocket backlog is drained after a (re)connect, split by the mode it was drained in so the
+   * batched and one-at-a-time paths can be compared. The throughput, measured up to the last message processed, is
+   * written to the log alongside the event.
+   */
+  public static final class WebSocketDrain {
+    private static final String NAME_BATCHED = "websocket-drain-batched";
+    private static final String NAME_SERIAL  = "websocket-drain-serial";
+
+    private static final String SPLIT_DRAINED = "drained";
+
+    private static String id;
+    private static String name;
+    private static long   startTime;
+    private static long   lastMessageTime;
+    private static int    messageCount;
+
+    public static synchronized void start(boolean batched) {
+      cancel();
+
+      name            = batched ? NAME_BATCHED : NAME_SERIAL;
+      id              = name + "-" + System.currentTimeMillis();
+      startTime       = System.currentTimeMillis();
+      lastMessageTime = startTime;
+      messageCount    = 0;
+
+      LocalMetrics.getInstance().start(id, name);
+    }
+
+    public static synchronized void onMessagesProcessed(int count) {
+      if (id != null) {
+        messageCount   += count;
+        lastMessageTime = System.currentTimeMillis();
+      }
+    }
+
+    /**
+     * Called once the websocket goes idle. Drains that didn't process anything are discarded.
+     */
+    public static synchronized void onDrained() {
+      if (id == null) {
+        return;
+      }
+
+      if (messageCount == 0) {
+        cancel();
+        return;
+      }
+
+      long   duration  = Math.max(1, lastMessageTime - startTime);
+      double perSecond = messageCount * 1000d / duration;
+
+      Log.i(TAG, String.format(Locale.US, "[%s] Drained %d messages in %d ms (%.1f messages/sec)", name, messageCount, duration, perSecond));
+
+      LocalMetrics.getInstance().split(id, SPLIT_DRAINED);
+      LocalMetrics.getInstance().end(id);
+      id = null;
+    }
+
+    public static synchronized void cancel() {
+      if (id != null) {
+        LocalMetrics.getInstance().cancel(id);
+        id = null;
+      }
+    }
+  }
+}
@@ -1121,6 +1121,24 @@ public class SignalServiceAccountManager
     return this.pushServiceSocket.getUfsrvProfile(ufsrvUid);
   }
 
+  //AA+
+  public String searchFencesByName(String searchText)
+  {
+    return this.pushServiceSocket.SearchfencesByName(searchText);
+  }
+
+  //AA+
+  public String fencesNearBy(String fenceLocation)
+  {
+    return this.pushServiceSocket.fencesNearBy(fenceLocation);
+  }
+
+  //AA+
+  public boolean isNicknameAvailable(String nickname)
+  {
+    return this.pushServiceSocket.isNicknamekAvailable(nickname);
+  }
+
   /**
    * @return The avatar URL path, if one was written.
    */
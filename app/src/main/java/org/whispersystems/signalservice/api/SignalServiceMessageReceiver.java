@@ -54,6 +54,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -192,7 +193,15 @@ public class SignalServiceMessageReceiver {
     if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
 
     Log.d(TAG, String.format("retrieveAttachment: retrieving attachment ufId: '%s'... key:'%s'", pointer.getUfId(), Base64.encodeBytes(pointer.getKey())));
-    socket.retrieveAttachmentUfsrv(pointer.getUfId(), destination, maxSizeBytes, listener);//AA+
+    byte[] digest = socket.retrieveAttachmentUfsrv(pointer.getUfId(), destination, maxSizeBytes, listener);//AA+
+
+    //AA+ a corrupt file would otherwise be resumed from on every retry
+    if (!MessageDigest.isEqual(digest, pointer.getDigest().get())) {
+      Log.w(TAG, "retrieveAttachment: digest mismatch, discarding " + destination.length() + " downloaded bytes");
+      if (!destination.delete()) Log.w(TAG, "retrieveAttachment: failed to delete download");
+      throw new InvalidMessageException("Digest doesn't match!");
+    }
+
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get());
     //return AttachmentCipherInputStream.createFor(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get());
   }
@@ -13,4 +13,9 @@ public interface CredentialsProvider {
   public String getCookie();//AA+
   public String getUser();//AA+
   public void setCookie(String cookie);//AA+
+
+  //AA+ per-section StateSync versions the client already holds, sent on connect so unchanged sections can be omitted
+  default String getStateSyncVersions() {
+    return null;
+  }
 }
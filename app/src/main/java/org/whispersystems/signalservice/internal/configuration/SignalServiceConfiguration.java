@@ -68,6 +68,12 @@ public final class SignalServiceConfiguration {
     return signalStorageUrls;
   }
 
+  //AA+
+  /**
+   * HTTP clients are shared process-wide and keyed on the class of each interceptor, not the instance. Interceptors must
+   * therefore hold no per-configuration state: an instance configured differently from one of the same class already
+   * in use is never installed.
+   */
   public List<Interceptor> getNetworkInterceptors() {
     return networkInterceptors;
   }
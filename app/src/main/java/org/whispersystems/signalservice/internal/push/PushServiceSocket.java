@@ -127,8 +127,6 @@ import org.whispersystems.signalservice.api.subscriptions.ActiveSubscription;
 import org.whispersystems.signalservice.api.subscriptions.SubscriptionClientSecret;
 import org.whispersystems.signalservice.api.subscriptions.SubscriptionLevels;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
-import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
 import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
 import org.whispersystems.signalservice.internal.configuration.SignalProxy;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
@@ -159,7 +157,6 @@ import org.whispersystems.signalservice.internal.storage.protos.StorageItems;
 import org.whispersystems.signalservice.internal.storage.protos.StorageManifest;
 import org.whispersystems.signalservice.internal.storage.protos.WriteOperation;
 import org.whispersystems.signalservice.internal.util.Base64;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -170,17 +167,12 @@ import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Collections;
@@ -196,16 +188,12 @@ import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import io.reactivex.rxjava3.core.Single;
 import okhttp3.Call;
 import okhttp3.Callback;
-import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
 import okhttp3.Dns;
@@ -218,10 +206,6 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
-import okio.Buffer;
-import okio.BufferedSink;
-import okio.BufferedSource;
-import okio.Okio;
 
 @SuppressLint("NewApi")
 
@@ -366,6 +350,23 @@ public class PushServiceSocket {
                                                                                        UF_VERIFY_ACCOUNTSTATUS
                                                                                        );
 
+  //AA+ service paths as reported in transport metrics; anything else is reported as "other"
+  private static final List<ServiceTransportMetrics.EndpointTemplate> ENDPOINT_TEMPLATES = ServiceTransportMetrics.templates(
+      UF_REQUEST_REGISTER_NONCE, UF_REGISTER, UF_VERIFY_ACCOUNT, UF_VERIFY_ACCOUNTSTATUS, UF_VOICE_VERIFY_ACCOUNT,
+      UF_ACCOUNT_KEYS, UF_ACCOUNT_KEYS_STATUS, UF_ACCOUNT_SIGNED_PREKEY, UF_ACCOUNT_KEYS_PREKEYS_DEV, UF_ACCOUNT_GCM,
+      UF_ACCOUNT_ATTACHEMENTS, UF_ACCOUNT_DEVICES, UF_ACCOUNT_SHARED_CONTACTS, UF_ACCOUNT_PROFILE, UF_REGISTRY_USER,
+      UF_REGISTRY_USERID, UF_USER_MESSAGE, UF_MESSAGE_GID, UF_USER_MESSAGE_NONE, UF_FENCE, UF_FENCE_DESCRIPTOR,
+      UF_FENCE_NEARBY, UF_FENCE_NAMESEARCH, UF_USER, UF_USER_PRESENCE, UF_CALL, UF_RECEIPT, UF_STATE, UF_SYNC,
+      UF_CALL_TURN, UF_NICKNAME, UF_BOOLPREFS, UF_BOOLPREFS_STICKYGEOGROUP, UF_BOOLPREFS_USER, UF_SENDER_CERTIFICATE_PATH,
+      UF_PROFILE_PATH, UFSRVCMD_LOCATION, REGISTRATION_LOCK_PATH, REGISTRATION_LOCK_VERIFY, KBS_FOR_UFSRV_PATH,
+      REQUEST_PUSH_CHALLENGE, GROUPSV2_CREDENTIAL, GROUPSV2_GROUP, GROUPSV2_GROUP_JOIN, SUBSCRIPTION_LEVELS, SUBSCRIPTION,
+      BOOST_AMOUNTS, BOOST_BADGES, REPORT_SPAM, ATTACHMENT_V2_PATH, ATTACHMENT_V3_PATH
+  );
+
+  //AA+ GETs handing out a fresh value per call, which must never be shared between callers
+  private static final Set<String> NON_COALESCED_PATHS = new HashSet<>(Arrays.asList(UF_REQUEST_REGISTER_NONCE, UF_USER_MESSAGE_NONE, String.format(UF_ACCOUNT_ATTACHEMENTS, "")));
+  //
+
   private static final long CDN2_RESUMABLE_LINK_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(7);
 
   private static final int MAX_FOLLOW_UPS = 20;
@@ -402,7 +403,7 @@ public class PushServiceSocket {
     this.storageClients            = createConnectionHolders(configuration.getSignalStorageUrls(), configuration.getNetworkInterceptors(), configuration.getDns(), configuration.getSignalProxy());
     this.random                    = new SecureRandom();
     this.clientZkProfileOperations = clientZkProfileOperations;
-    this.attachmentClient          = createAttachmentClient();//AA+
+    this.attachmentClient          = ServiceTransport.attachmentClient();//AA+
   }
 
   //AA+
@@ -1206,16 +1207,21 @@ public class PushServiceSocket {
   {
     String path = String.format(BuildConfig.UFSRVMEDIA_URL + UF_ACCOUNT_ATTACHEMENTS, ufId);
     Log.w(TAG, String.format("retrieveProfileAvatarUfsrv: Downloading from:'%s'", path));
-    downloadAttachment(path, destination, maxSizeBytes, null);
+    downloadAttachment(path, destination, maxSizeBytes, null, false);
   }
   //
 
-  public void retrieveAttachmentUfsrv(String ufId, File destination, long maxSizeBytes, ProgressListener listener) throws IOException {
+  /**
+   * Resumes from whatever destination already holds, fetching large attachments as several ranges at once.
+   *
+   * @return the SHA-256 digest of the downloaded attachment, to compare with the one in its pointer.
+   */
+  public byte[] retrieveAttachmentUfsrv(String ufId, File destination, long maxSizeBytes, ProgressListener listener) throws IOException {
 
     String path = String.format(BuildConfig.UFSRVMEDIA_URL + UF_ACCOUNT_ATTACHEMENTS, ufId);
-    Log.w(TAG, String.format("retrieveAttachmentUfsrv: Downloading from:'%s'", path));
+    Log.w(TAG, String.format("retrieveAttachmentUfsrv: Downloading from:'%s' with %d bytes on disk", path, destination.length()));
 
-    downloadAttachment(path, destination, maxSizeBytes, listener);
+    return downloadAttachment(path, destination, maxSizeBytes, listener, true);
   }
 
   public byte[] retrieveAttachmentBytes(String ufId, long maxSizeBytes, ProgressListener listener) throws IOException {
@@ -1815,147 +1821,51 @@ public class PushServiceSocket {
   }
 
   private byte[] downloadAttachmentBytes(String url, long maxSizeBytes, ProgressListener listener) throws PushNetworkException, NonSuccessfulResponseCodeException {
-    String b64 = org.thoughtcrime.securesms.util.Base64.encodeBytes((credentialsProvider.getUser() + ":" + credentialsProvider.getPassword()).getBytes());//AA+
-    Request request = new Request.Builder().url(url)
-                                           .addHeader("Content-Type", "application/octet-stream")
-                                           .addHeader("Authorization", "Basic " + b64)//AA+)
-                                           .addHeader("X-Ufsrv-Cookie", TextSecurePreferences.getUfsrvCookie(ApplicationContext.getInstance()))
-                                           .get()
-                                           .build();
-
-    Call    call   = attachmentClient.newBuilder()
-                                     .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                     .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                     .build()
-                                     .newCall(request);
-
-    synchronized (connections) {
-      connections.add(call);
-    }
-
-    Response     response;
-    ResponseBody body;
-
-    try {
-      response = call.execute();
-      body     = response.body();
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    } finally {
-      synchronized (connections) {
-        connections.remove(call);
-      }
-    }
-
-    if (!response.isSuccessful()) {
-      throw new NonSuccessfulResponseCodeException(response.code(), "Bad response: " + response.code());
-    }
-
-    if (body == null) {
-      throw new NonSuccessfulResponseCodeException(response.code(), "Response body is empty!");
-    }
-
-    try {
-      long offset = 0;
-      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-      if (body == null)                        throw new PushNetworkException("No response body!");
-      if (body.contentLength() > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
-
-      InputStream  in     = body.byteStream();
-      byte[]       buffer = new byte[8192];
-
-      int  read      = 0;
-      long totalRead = offset;
-
-      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
-        outputStream.write(buffer, 0, read);
-        if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
-
-        if (listener != null) {
-          listener.onAttachmentProgress(body.contentLength() + offset, totalRead);
-        }
-      }
-
-      body.close();
-      return outputStream.toByteArray();
-    } catch (FileNotFoundException e) {
-      throw new AssertionError(e);
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    }
+    return RangedDownload.toBytes(ufsrvMediaRequester(url), maxSizeBytes, listener);//AA+
   }
 
-  private void downloadAttachment(String url, File localDestination, long maxSizeBytes, ProgressListener listener) throws PushNetworkException, NonSuccessfulResponseCodeException {
-    String b64 = org.thoughtcrime.securesms.util.Base64.encodeBytes((credentialsProvider.getUser() + ":" + credentialsProvider.getPassword()).getBytes());//AA+
-    Request request = new Request.Builder().url(url)
-                                           .addHeader("Content-Type", "application/octet-stream")
-                                           .addHeader("Authorization", "Basic " + b64)//AA+)
-                                           .addHeader("X-Ufsrv-Cookie", TextSecurePreferences.getUfsrvCookie(ApplicationContext.getInstance()))
-                                           .get()
-                                           .build();
-
-    Call    call   = attachmentClient.newBuilder()
-                                     .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                     .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                     .build()
-                                     .newCall(request);
-
-    synchronized (connections) {
-      connections.add(call);
-    }
+  /**
+   * Resumes from whatever localDestination already holds.
+   *
+   * @return the SHA-256 digest of the complete file.
+   */
+  private byte[] downloadAttachment(String url, File localDestination, long maxSizeBytes, ProgressListener listener, boolean parallel) throws PushNetworkException, NonSuccessfulResponseCodeException {
+    return RangedDownload.toFile(ufsrvMediaRequester(url), localDestination, maxSizeBytes, listener, parallel);//AA+
+  }
 
-    Response     response;
-    ResponseBody body;
+  //AA+
+  private RangedDownload.Requester ufsrvMediaRequester(String url) {
+    String       b64    = org.thoughtcrime.securesms.util.Base64.encodeBytes((credentialsProvider.getUser() + ":" + credentialsProvider.getPassword()).getBytes());
+    OkHttpClient client = attachmentClient.newBuilder()
+                                          .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                          .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
+                                          .build();
+
+    return (start, end) -> {
+      Request request = new Request.Builder().url(url)
+                                             .addHeader("Content-Type", "application/octet-stream")
+                                             .addHeader("Authorization", "Basic " + b64)
+                                             .addHeader("X-Ufsrv-Cookie", TextSecurePreferences.getUfsrvCookie(ApplicationContext.getInstance()))
+                                             .addHeader("Range", "bytes=" + start + "-" + (end == -1 ? "" : String.valueOf(end - 1)))
+                                             .get()
+                                             .build();
+
+      Call call = client.newCall(request);
 
-    try {
-      response = call.execute();
-      body     = response.body();
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    } finally {
       synchronized (connections) {
-        connections.remove(call);
-      }
-    }
-
-    if (!response.isSuccessful()) {
-      throw new NonSuccessfulResponseCodeException(response.code(), "Bad response: " + response.code());
-    }
-
-    if (body == null) {
-      throw new NonSuccessfulResponseCodeException(response.code(), "Response body is empty!");
-    }
-
-    try {
-      long           contentLength = body.contentLength();
-      BufferedSource source        = body.source();
-      BufferedSink   sink          = Okio.buffer(Okio.sink(localDestination));
-      Buffer         sinkBuffer    = sink.buffer();
-
-      if (contentLength > maxSizeBytes) {
-        throw new NonSuccessfulResponseCodeException(response.code(), "File exceeds maximum size.");
+        connections.add(call);
       }
 
-      long totalBytesRead = 0;
-
-      for (long readCount; (readCount = source.read(sinkBuffer, 8192)) != -1; ) {
-        totalBytesRead += readCount;
-        sink.emitCompleteSegments();
-
-        if (listener != null) {
-          listener.onAttachmentProgress(contentLength, totalBytesRead);
+      try {
+        return call.execute();
+      } catch (IOException e) {
+        throw new PushNetworkException(e);
+      } finally {
+        synchronized (connections) {
+          connections.remove(call);
         }
       }
-
-      sink.flush();
-      sink.close();
-      body.close();
-    } catch (FileNotFoundException e) {
-      throw new AssertionError(e);
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    }
+    };
   }
 
   public Pair<Long, byte[]> uploadAttachment(PushAttachmentData attachment, AttachmentV2UploadAttributes uploadAttributes)
@@ -2369,6 +2279,26 @@ public class PushServiceSocket {
   //AA+ clients
   private String makeServiceRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey, ConnectionHolder[]  clients)
           throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException
+  {
+    //AA+ plain GETs read the same for every caller with the same credentials, so identical ones in flight are made once
+    if (responseCodeHandler == NO_HANDLER && !unidentifiedAccessKey.isPresent() && isCoalescable(urlFragment, method, jsonBody, headers)) {
+      return ServiceTransport.coalesce(credentialsProvider.getUser() + " " + urlFragment,
+                                       ServiceTransportMetrics.endpointOf(urlFragment, ENDPOINT_TEMPLATES),
+                                       () -> readServiceRequest(urlFragment, method, null, headers, responseCodeHandler, unidentifiedAccessKey, clients));
+    }
+
+    return readServiceRequest(urlFragment, method, jsonBody, headers, responseCodeHandler, unidentifiedAccessKey, clients);
+  }
+
+  //AA+
+  @VisibleForTesting
+  static boolean isCoalescable(String urlFragment, String method, String jsonBody, Map<String, String> headers) {
+    return "GET".equals(method) && jsonBody == null && headers.isEmpty() && !NON_COALESCED_PATHS.contains(urlFragment);
+  }
+
+  //AA+
+  private String readServiceRequest(String urlFragment, String method, String jsonBody, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey, ConnectionHolder[]  clients)
+          throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException
   {
     ResponseBody responseBody = makeServiceBodyRequest(urlFragment, method, jsonRequestBody(jsonBody), headers, responseCodeHandler, unidentifiedAccessKey, clients);
     try {
@@ -2555,11 +2485,7 @@ public class PushServiceSocket {
     ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
     OkHttpClient            baseClient       = unidentified ? connectionHolder.getUnidentifiedClient() : connectionHolder.getClient();
 
-    return baseClient.newBuilder()
-                     .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                     .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                     .retryOnConnectionFailure(automaticNetworkRetry)
-                     .build();
+    return ServiceTransport.withTimeouts(baseClient, soTimeoutMillis, automaticNetworkRetry);//AA+ shared
   }
 
   private Request buildServiceRequest(String urlFragment,
@@ -2576,6 +2502,7 @@ public class PushServiceSocket {
     Request.Builder request = new Request.Builder();
     request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment).replaceAll("\\+", "%2B"));//AA+ replaceAll
     request.method(method, body);
+    ServiceTransportMetrics.tag(request, ServiceTransportMetrics.endpointOf(urlFragment, ENDPOINT_TEMPLATES));//AA+
 
     for (Map.Entry<String, String> header : headers.entrySet()) {
       request.addHeader(header.getKey(), header.getValue());
@@ -2968,7 +2895,7 @@ public class PushServiceSocket {
 
     for (SignalUrl url : urls) {
       serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url, interceptors, dns, proxy),
-                                                               createConnectionClient(url, interceptors, dns, proxy),
+                                                               ServiceTransport.clientFor(url, interceptors, dns, proxy, true),//AA+
                                                                url.getUrl(), url.getHostHeader()));
     }
 
@@ -3004,54 +2931,9 @@ public class PushServiceSocket {
     return connectionHolders.toArray(new ConnectionHolder[0]);
   }
 
+  //AA+ clients are shared process-wide, along with their connection pools and TLS sessions
   private static OkHttpClient createConnectionClient(SignalUrl url, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy) {
-    try {
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
-
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
-
-      OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                                                     .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-                                                     .connectionSpecs(url.getConnectionSpecs().orElse(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-                                                     .dns(dns.orElse(Dns.SYSTEM));
-
-      if (proxy.isPresent()) {
-        builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
-      }
-
-      builder.sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-              .connectionSpecs(url.getConnectionSpecs().orElse(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-              .build();
-
-      builder.connectionPool(new ConnectionPool(5, 45, TimeUnit.SECONDS));
-
-      for (Interceptor interceptor : interceptors) {
-        builder.addInterceptor(interceptor);
-      }
-
-      return builder.build();
-    } catch (NoSuchAlgorithmException | KeyManagementException e) {
-      throw new AssertionError(e);
-    }
-  }
-
-  private OkHttpClient createAttachmentClient() {
-    try {
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, null, null);
-
-      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      trustManagerFactory.init((KeyStore)null);
-
-      return new OkHttpClient.Builder()
-                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()),
-                                               (X509TrustManager)trustManagerFactory.getTrustManagers()[0])
-                             .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
-                             .build();
-    } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
-      throw new AssertionError(e);
-    }
+    return ServiceTransport.clientFor(url, interceptors, dns, proxy, false);
   }
 
   private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
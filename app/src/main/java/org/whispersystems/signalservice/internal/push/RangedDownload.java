@@ -0,0 +1,478 @@
+package org.whispersystems.signalservice.internal.push;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads ufsrv media with byte ranges, so an interrupted download carries on from what is already on disk instead of
+ * starting over, both within one call and across retries of the job that owns the destination file.
+ * <p>
+ * Large media is fetched as several ranges at once. The first range goes straight into the destination, the others
+ * into part files next to it, which are appended in order once all are in. As every range resumes from its own file,
+ * whatever was fetched before an interruption is kept.
+ */
+public final class RangedDownload {
+
+  private static final String TAG = Log.tag(RangedDownload.class);
+
+  private static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+  private static final int  PARALLEL_RANGES    = 4;
+  private static final int  MAX_RESUMES        = 3;
+  private static final int  BUFFER_SIZE        = 32768;
+
+  /**
+   * Issues a request for the media.
+   */
+  interface Requester {
+    /**
+     * Requests the bytes from start to before end, or to the end of the media when end is -1, with a Range header.
+     */
+    @NonNull Response execute(long start, long end) throws PushNetworkException;
+  }
+
+  private final Requester          requester;
+  private final long               maxSizeBytes;
+  private final ProgressListener   listener;
+  private final List<ResponseBody> openBodies = new ArrayList<>();
+  private final AtomicLong         progress   = new AtomicLong();
+
+  private volatile long    total;
+  private volatile boolean rangesSupported;
+  private          boolean closed;
+
+  private RangedDownload(@NonNull Requester requester, long maxSizeBytes, @Nullable ProgressListener listener) {
+    this.requester    = requester;
+    this.maxSizeBytes = maxSizeBytes;
+    this.listener     = listener;
+  }
+
+  /**
+   * Downloads into the destination, resuming from its current length.
+   *
+   * @param parallel whether large media may be fetched as several ranges at once.
+   * @return the SHA-256 digest of the complete file, computed as it's written.
+   */
+  static @NonNull byte[] toFile(@NonNull Requester requester, @NonNull File destination, long maxSizeBytes, @Nullable ProgressListener listener, boolean parallel)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    RangedDownload download = new RangedDownload(requester, maxSizeBytes, listener);
+    int            resumes  = 0;
+
+    while (true) {
+      long before = download.bytesOnDisk(destination);
+
+      download.reset();
+
+      try {
+        return download.attemptToFile(destination, parallel);
+      } catch (RangeException e) {
+        deleteRangeFiles(destination);
+        throw e;
+      } catch (PushNetworkException e) {
+        long after = download.bytesOnDisk(destination);
+
+        if (after <= before || resumes++ >= MAX_RESUMES) {
+          throw e;
+        }
+
+        Log.w(TAG, "Download interrupted with " + after + " bytes on disk, resuming", e);
+      }
+    }
+  }
+
+  /**
+   * Downloads into memory, resuming from what was read so far should the connection drop.
+   */
+  static @NonNull byte[] toBytes(@NonNull Requester requester, long maxSizeBytes, @Nullable ProgressListener listener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    RangedDownload        download = new RangedDownload(requester, maxSizeBytes, listener);
+    ByteArrayOutputStream output   = new ByteArrayOutputStream();
+    int                   resumes  = 0;
+
+    while (true) {
+      int before = output.size();
+
+      download.reset();
+
+      try {
+        Response response = download.request(before, -1);
+
+        if (response.code() == 200 && before > 0) {
+          Log.w(TAG, "Server ignored the range, starting over from " + before + " bytes");
+          output.reset();
+          download.progress.set(0);
+          before = 0;
+        }
+
+        ResponseBody body = download.register(response);
+
+        download.total = body.contentLength() >= 0 ? before + body.contentLength() : -1;
+        download.copy(body.byteStream(), output, Long.MAX_VALUE);
+        download.closeAll();
+
+        return output.toByteArray();
+      } catch (PushNetworkException e) {
+        download.closeAll();
+
+        if (output.size() <= before || resumes++ >= MAX_RESUMES) {
+          throw e;
+        }
+
+        Log.w(TAG, "Download interrupted after " + output.size() + " bytes, resuming", e);
+      }
+    }
+  }
+
+  private @NonNull byte[] attemptToFile(@NonNull File destination, boolean parallel)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    long            offset = destination.length();
+    ResponseBody    body   = open(offset, -1);
+    List<Future<?>> ranges = new ArrayList<>();
+
+    try {
+      long remaining = body.contentLength();
+
+      total = remaining >= 0 ? offset + remaining : -1;
+
+      if (total > maxSizeBytes) {
+        throw new PushNetworkException("Response exceeds max size!");
+      }
+
+      int  count   = parallel && rangesSupported && total >= PARALLEL_THRESHOLD ? PARALLEL_RANGES : 1;
+      long segment = count > 1 ? (total + count - 1) / count : Long.MAX_VALUE;
+
+      if (count == 1) {
+        deleteRangeFiles(destination);
+      } else {
+        Log.i(TAG, "Downloading " + total + " bytes in " + count + " ranges from " + offset);
+      }
+
+      progress.set(uniqueBytesOnDisk(destination, offset, segment, count));
+
+      for (int i = 1; i < count; i++) {
+        long start = i * segment;
+        long end   = Math.min(total, start + segment);
+        File file  = rangeFile(destination, i);
+
+        if (offset < end) {
+          ranges.add(SignalExecutors.UNBOUNDED.submit(() -> {
+            downloadRange(file, start, end);
+            return null;
+          }));
+        }
+      }
+
+      MessageDigest digest = digestOf(destination, offset);
+
+      try (OutputStream out = new DigestOutputStream(new FileOutputStream(destination, true), digest)) {
+        long position = offset;
+
+        if (offset < segment) {
+          position += copy(body.byteStream(), out, segment - offset);
+          body.close();
+
+          if (count > 1 && position != segment) {
+            throw new PushNetworkException("First range ended early at " + position);
+          }
+        }
+
+        awaitRanges(ranges);
+
+        for (int i = 1; i < count; i++) {
+          long start = i * segment;
+          long end   = Math.min(total, start + segment);
+
+          if (position < end) {
+            appendRange(rangeFile(destination, i), position - start, out);
+            position = end;
+          }
+        }
+      } catch (IOException e) {
+        if (e instanceof PushNetworkException) throw (PushNetworkException) e;
+        if (e instanceof NonSuccessfulResponseCodeException) throw (NonSuccessfulResponseCodeException) e;
+        throw new PushNetworkException(e);
+      }
+
+      if (total >= 0 && destination.length() != total) {
+        throw new PushNetworkException("Downloaded " + destination.length() + " of " + total + " bytes");
+      }
+
+      deleteRangeFiles(destination);
+
+      return digest.digest();
+    } finally {
+      closeAll();
+
+      for (Future<?> range : ranges) {
+        try {
+          range.get();
+        } catch (ExecutionException | InterruptedException e) {
+          // Already reported
+        }
+      }
+    }
+  }
+
+  /**
+   * Fetches one of the later ranges into its own file, resuming from that file's length.
+   */
+  private void downloadRange(@NonNull File file, long start, long end) throws IOException {
+    long length = end - start;
+    long have   = file.length();
+
+    if (have > length) {
+      if (!file.delete()) throw new IOException("Failed to reset range file");
+      have = 0;
+    }
+
+    if (have >= length) return;
+
+    ResponseBody body = open(start + have, end);
+
+    try (OutputStream out = new FileOutputStream(file, true)) {
+      long read = copy(body.byteStream(), out, length - have);
+
+      if (have + read != length) {
+        throw new PushNetworkException("Range from " + start + " ended early");
+      }
+    }
+  }
+
+  private void awaitRanges(@NonNull List<Future<?>> ranges) throws IOException {
+    for (Future<?> range : ranges) {
+      try {
+        range.get();
+      } catch (InterruptedException e) {
+        throw new PushNetworkException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        throw new PushNetworkException(e);
+      }
+    }
+  }
+
+  private static void appendRange(@NonNull File file, long skip, @NonNull OutputStream out) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      if (in.skip(skip) != skip) {
+        throw new IOException("Range file too short");
+      }
+
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int    read;
+
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    }
+  }
+
+  /**
+   * A server ignoring the Range header is only of use when asked for everything from the start. Asked for anything
+   * else, a {@link RangeException} has the owner of the destination start over.
+   */
+  private @NonNull ResponseBody open(long start, long end) throws PushNetworkException, NonSuccessfulResponseCodeException {
+    Response response = request(start, end);
+
+    if (response.code() == 200 && (start > 0 || end != -1)) {
+      response.close();
+      throw new RangeException(start);
+    }
+
+    return register(response);
+  }
+
+  /**
+   * @return a successful response, which is a 200 with the whole media if the server ignored the range.
+   */
+  private @NonNull Response request(long start, long end) throws PushNetworkException, NonSuccessfulResponseCodeException {
+    Response response = requester.execute(start, end);
+
+    if (response.code() == 416) {
+      response.close();
+      throw new RangeException(start);
+    }
+
+    if (!response.isSuccessful()) {
+      response.close();
+      throw new NonSuccessfulResponseCodeException(response.code(), "Bad response: " + response.code());
+    }
+
+    return response;
+  }
+
+  private @NonNull ResponseBody register(@NonNull Response response) throws PushNetworkException, NonSuccessfulResponseCodeException {
+    ResponseBody body = response.body();
+
+    if (body == null) {
+      throw new NonSuccessfulResponseCodeException(response.code(), "Response body is empty!");
+    }
+
+    synchronized (openBodies) {
+      if (closed) {
+        body.close();
+        throw new PushNetworkException("Download stopped");
+      }
+
+      openBodies.add(body);
+    }
+
+    if (response.code() == 206) {
+      rangesSupported = true;
+    }
+
+    return body;
+  }
+
+  private void reset() {
+    synchronized (openBodies) {
+      closed = false;
+    }
+  }
+
+  /**
+   * Closes every response still being read, which also stops the threads reading them.
+   */
+  private void closeAll() {
+    synchronized (openBodies) {
+      closed = true;
+
+      for (ResponseBody body : openBodies) {
+        body.close();
+      }
+      openBodies.clear();
+    }
+  }
+
+  private long copy(@NonNull InputStream in, @NonNull OutputStream out, long limit) throws PushNetworkException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    long   copied = 0;
+
+    try {
+      while (copied < limit) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied));
+
+        if (read == -1) break;
+
+        out.write(buffer, 0, read);
+        copied += read;
+
+        long done = progress.addAndGet(read);
+
+        if (done > maxSizeBytes) {
+          throw new PushNetworkException("Response exceeded max size!");
+        }
+
+        if (listener != null) {
+          listener.onAttachmentProgress(total, done);
+        }
+      }
+    } catch (PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+
+    return copied;
+  }
+
+  private long bytesOnDisk(@NonNull File destination) {
+    long bytes = destination.length();
+
+    for (int i = 1; i < PARALLEL_RANGES; i++) {
+      bytes += rangeFile(destination, i).length();
+    }
+
+    return bytes;
+  }
+
+  /**
+   * Counts what the destination and the part files hold, leaving out the start of any part file that was already
+   * appended to the destination before the download was interrupted.
+   */
+  private long uniqueBytesOnDisk(@NonNull File destination, long offset, long segment, int count) {
+    long bytes = offset;
+
+    for (int i = 1; i < count; i++) {
+      long start = i * segment;
+      long end   = Math.min(total, start + segment);
+      long have  = Math.min(rangeFile(destination, i).length(), end - start);
+
+      bytes += Math.max(0, start + have - Math.max(offset, start));
+    }
+
+    return bytes;
+  }
+
+  /**
+   * @return a digest over the first length bytes of the file, to carry on with as the rest is appended.
+   */
+  private static @NonNull MessageDigest digestOf(@NonNull File file, long length) throws PushNetworkException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+      if (length > 0) {
+        try (InputStream in = new FileInputStream(file)) {
+          byte[] buffer    = new byte[BUFFER_SIZE];
+          long   remaining = length;
+          int    read;
+
+          while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            digest.update(buffer, 0, read);
+            remaining -= read;
+          }
+        }
+      }
+
+      return digest;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  private static @NonNull File rangeFile(@NonNull File destination, int index) {
+    return new File(destination.getParentFile(), destination.getName() + ".range" + index);
+  }
+
+  /**
+   * Removes the part files of a ranged download into destination, for when it won't be resumed.
+   */
+  public static void deleteRangeFiles(@NonNull File destination) {
+    for (int i = 1; i < PARALLEL_RANGES; i++) {
+      File file = rangeFile(destination, i);
+
+      if (file.exists() && !file.delete()) {
+        Log.w(TAG, "Failed to delete " + file.getName());
+      }
+    }
+  }
+}
@@ -0,0 +1,375 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.signal.core.util.logging.Log;
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.api.push.exceptions.MalformedResponseException;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
+import org.whispersystems.signalservice.api.util.TlsProxySocketFactory;
+import org.whispersystems.signalservice.internal.configuration.SignalProxy;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.InterruptedIOException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide HTTP transport behind every {@link PushServiceSocket}.
+ *
+ * Sockets are made freely, often for a single request, so what is expensive to set up lives here instead. Clients are
+ * cached per url and configuration, and every client on the same route shares one connection pool, so a connection
+ * (multiplexed over HTTP/2 where the server offers it) outlives the socket that opened it. An SSLContext is kept per
+ * trust store, which lets TLS sessions resume, and keeps pooled connections eligible for reuse across clients.
+ *
+ * Identical GETs in flight at the same time are made once, see {@link #coalesce(String, String, ServiceCall)}, and all
+ * calls are timed per endpoint by {@link ServiceTransportMetrics}.
+ */
+public final class ServiceTransport {
+
+  private static final String TAG = Log.tag(ServiceTransport.class);
+
+  private static final int  MAX_IDLE_CONNECTIONS = 5;
+  private static final long KEEP_ALIVE_SECONDS   = 45;
+
+  private static final List<Protocol> PROTOCOLS = Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1);
+
+  private static final Map<String, TlsContext>       tlsContexts    = new HashMap<>();
+  private static final Map<String, ConnectionPool>   pools          = new HashMap<>();
+  private static final Map<ClientKey, OkHttpClient>  clients        = new HashMap<>();
+  private static final Map<TimeoutKey, OkHttpClient> timeoutClients = new HashMap<>();
+  private static final Map<String, InFlight<?>>      inFlight       = new HashMap<>();
+
+  private static volatile OkHttpClient attachmentClient;
+
+  private ServiceTransport() {}
+
+  /**
+   * @param unidentified Unidentified requests get a pool of their own, so they never share a connection with requests
+   *                     carrying credentials.
+   */
+  static OkHttpClient clientFor(SignalUrl url, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy, boolean unidentified) {
+    ClientKey key = new ClientKey(url, interceptors, dns.orElse(Dns.SYSTEM), proxy, unidentified);
+
+    synchronized (clients) {
+      OkHttpClient client = clients.get(key);
+
+      if (client == null) {
+        client = createClient(url, interceptors, dns, proxy, unidentified);
+        clients.put(key, client);
+      }
+
+      return client;
+    }
+  }
+
+  /**
+   * @return a client trusting the system's certificate authorities, for uploads to third party storage.
+   */
+  static OkHttpClient attachmentClient() {
+    if (attachmentClient == null) {
+      synchronized (ServiceTransport.class) {
+        if (attachmentClient == null) {
+          try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init((KeyStore) null);
+
+            attachmentClient = new OkHttpClient.Builder()
+                                               .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()),
+                                                                 (X509TrustManager) trustManagerFactory.getTrustManagers()[0])
+                                               .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
+                                               .connectionPool(poolFor(Optional.empty(), false))
+                                               .eventListenerFactory(ServiceTransportMetrics.getInstance())
+                                               .build();
+          } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
+            throw new AssertionError(e);
+          }
+        }
+      }
+    }
+
+    return attachmentClient;
+  }
+
+  /**
+   * Timeouts are set per socket, but deriving a client for each call is wasteful: derived clients are kept, and share
+   * the pool and dispatcher of the client they derive from.
+   */
+  static OkHttpClient withTimeouts(OkHttpClient baseClient, long timeoutMillis, boolean retryOnConnectionFailure) {
+    TimeoutKey key = new TimeoutKey(baseClient, timeoutMillis, retryOnConnectionFailure);
+
+    synchronized (timeoutClients) {
+      OkHttpClient client = timeoutClients.get(key);
+
+      if (client == null) {
+        client = baseClient.newBuilder()
+                           .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                           .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                           .retryOnConnectionFailure(retryOnConnectionFailure)
+                           .build();
+        timeoutClients.put(key, client);
+      }
+
+      return client;
+    }
+  }
+
+  /**
+   * Runs the call, unless one with the same key is already in flight, in which case this waits for and returns its
+   * result instead. Only suitable for requests without side effects whose result is the same for every caller, i.e.
+   * GETs made with the same credentials. Nothing is cached once a call completes.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> T coalesce(String key, String endpoint, ServiceCall<T> call)
+      throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException
+  {
+    InFlight<T> flight;
+    boolean     leader;
+
+    synchronized (inFlight) {
+      flight = (InFlight<T>) inFlight.get(key);
+      leader = flight == null;
+
+      if (leader) {
+        flight = new InFlight<>();
+        inFlight.put(key, flight);
+      }
+    }
+
+    if (!leader) {
+      ServiceTransportMetrics.getInstance().onCoalesced(endpoint);
+      return flight.await();
+    }
+
+    try {
+      flight.result = call.execute();
+      return flight.result;
+    } catch (Throwable t) {
+      flight.failure = t;
+      throw t;
+    } finally {
+      synchronized (inFlight) {
+        inFlight.remove(key);
+      }
+      flight.done.countDown();
+    }
+  }
+
+  private static OkHttpClient createClient(SignalUrl url, List<Interceptor> interceptors, Optional<Dns> dns, Optional<SignalProxy> proxy, boolean unidentified) {
+    TlsContext tlsContext = tlsContextFor(url.getTrustStore());
+
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                                                   .sslSocketFactory(tlsContext.socketFactory, tlsContext.trustManager)
+                                                   .connectionSpecs(url.getConnectionSpecs().orElse(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                                                   .protocols(PROTOCOLS)
+                                                   .dns(dns.orElse(Dns.SYSTEM))
+                                                   .connectionPool(poolFor(proxy, unidentified))
+                                                   .eventListenerFactory(ServiceTransportMetrics.getInstance());
+
+    if (proxy.isPresent()) {
+      builder.socketFactory(new TlsProxySocketFactory(proxy.get().getHost(), proxy.get().getPort(), dns));
+    }
+
+    for (Interceptor interceptor : interceptors) {
+      builder.addInterceptor(interceptor);
+    }
+
+    Log.d(TAG, "createClient: " + url.getUrl() + (proxy.isPresent() ? " (proxied)" : "") + (unidentified ? " (unidentified)" : ""));
+
+    return builder.build();
+  }
+
+  /**
+   * Pooled connections are matched on address, which doesn't take the socket factory into account: proxied and direct
+   * connections must not share a pool, or a connection made before a proxy was turned on could carry on being used.
+   */
+  private static ConnectionPool poolFor(Optional<SignalProxy> proxy, boolean unidentified) {
+    String key = (proxy.isPresent() ? proxy.get().getHost() + ":" + proxy.get().getPort() : "direct") + (unidentified ? "/unidentified" : "");
+
+    synchronized (pools) {
+      ConnectionPool pool = pools.get(key);
+
+      if (pool == null) {
+        pool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        pools.put(key, pool);
+      }
+
+      return pool;
+    }
+  }
+
+  /**
+   * Trust stores are stateless wrappers around a bundled key store, so one context per type is enough.
+   */
+  private static TlsContext tlsContextFor(TrustStore trustStore) {
+    String key = trustStore.getClass().getName();
+
+    synchronized (tlsContexts) {
+      TlsContext tlsContext = tlsContexts.get(key);
+
+      if (tlsContext == null) {
+        try {
+          TrustManager[] trustManagers = BlacklistingTrustManager.createFor(trustStore);
+
+          SSLContext context = SSLContext.getInstance("TLS");
+          context.init(null, trustManagers, null);
+
+          tlsContext = new TlsContext(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager) trustManagers[0]);
+          tlsContexts.put(key, tlsContext);
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      return tlsContext;
+    }
+  }
+
+  interface ServiceCall<T> {
+    T execute() throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException;
+  }
+
+  private static final class InFlight<T> {
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile T         result;
+    private volatile Throwable failure;
+
+    T await() throws NonSuccessfulResponseCodeException, PushNetworkException, MalformedResponseException {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PushNetworkException(new InterruptedIOException("Interrupted waiting for a coalesced request"));
+      }
+
+      if (failure == null)                                       return result;
+      if (failure instanceof NonSuccessfulResponseCodeException) throw (NonSuccessfulResponseCodeException) failure;
+      if (failure instanceof PushNetworkException)               throw (PushNetworkException) failure;
+      if (failure instanceof MalformedResponseException)         throw (MalformedResponseException) failure;
+      if (failure instanceof RuntimeException)                   throw (RuntimeException) failure;
+      if (failure instanceof Error)                              throw (Error) failure;
+
+      throw new AssertionError(failure);
+    }
+  }
+
+  private static final class TlsContext {
+    private final Tls12SocketFactory socketFactory;
+    private final X509TrustManager   trustManager;
+
+    private TlsContext(Tls12SocketFactory socketFactory, X509TrustManager trustManager) {
+      this.socketFactory = socketFactory;
+      this.trustManager  = trustManager;
+    }
+  }
+
+  /**
+   * Configurations are rebuilt freely, with fresh trust store and interceptor instances, so clients are keyed on what
+   * those amount to rather than on identity. Dns is kept by identity, being a single long-lived instance.
+   *
+   * Interceptors are identified by class only: a client built with one instance keeps being handed out for any other
+   * instance of the same class, whatever state it holds. See
+   * {@link org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration#getNetworkInterceptors()}.
+   */
+  private static final class ClientKey {
+    private final String               url;
+    private final String               hostHeader;
+    private final String               trustStore;
+    private final List<ConnectionSpec> connectionSpecs;
+    private final List<Class<?>>       interceptors;
+    private final Dns                  dns;
+    private final String               proxy;
+    private final boolean              unidentified;
+
+    private ClientKey(SignalUrl url, List<Interceptor> interceptors, Dns dns, Optional<SignalProxy> proxy, boolean unidentified) {
+      this.url             = url.getUrl();
+      this.hostHeader      = url.getHostHeader().orElse(null);
+      this.trustStore      = url.getTrustStore().getClass().getName();
+      this.connectionSpecs = url.getConnectionSpecs().orElse(null);
+      this.interceptors    = new ArrayList<>(interceptors.size());
+      this.dns             = dns;
+      this.proxy           = proxy.isPresent() ? proxy.get().getHost() + ":" + proxy.get().getPort() : null;
+      this.unidentified    = unidentified;
+
+      for (Interceptor interceptor : interceptors) {
+        this.interceptors.add(interceptor.getClass());
+      }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      ClientKey other = (ClientKey) o;
+      return unidentified == other.unidentified                      &&
+             dns == other.dns                                        &&
+             url.equals(other.url)                                   &&
+             trustStore.equals(other.trustStore)                     &&
+             interceptors.equals(other.interceptors)                 &&
+             Objects.equals(hostHeader, other.hostHeader)            &&
+             Objects.equals(connectionSpecs, other.connectionSpecs)  &&
+             Objects.equals(proxy, other.proxy);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(url, hostHeader, trustStore, connectionSpecs, interceptors, System.identityHashCode(dns), proxy, unidentified);
+    }
+  }
+
+  private static final class TimeoutKey {
+    private final OkHttpClient baseClient;
+    private final long         timeoutMillis;
+    private final boolean      retryOnConnectionFailure;
+
+    private TimeoutKey(OkHttpClient baseClient, long timeoutMillis, boolean retryOnConnectionFailure) {
+      this.baseClient               = baseClient;
+      this.timeoutMillis            = timeoutMillis;
+      this.retryOnConnectionFailure = retryOnConnectionFailure;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      TimeoutKey other = (TimeoutKey) o;
+      return baseClient == other.baseClient && timeoutMillis == other.timeoutMillis && retryOnConnectionFailure == other.retryOnConnectionFailure;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(baseClient), timeoutMillis, retryOnConnectionFailure);
+    }
+  }
+}
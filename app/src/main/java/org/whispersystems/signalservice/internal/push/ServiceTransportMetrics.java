@@ -0,0 +1,242 @@
+package org.whispersystems.signalservice.internal.push;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+import okhttp3.Request;
+
+/**
+ * Per endpoint latency and connection reuse for calls made over {@link ServiceTransport}. Calls are attributed to the
+ * endpoint they were tagged with via {@link #tag(Request.Builder, String)}, with untagged calls grouped by host. Paths
+ * are reduced to their template, so nothing identifying ends up in the stats.
+ */
+public final class ServiceTransportMetrics implements EventListener.Factory {
+
+  private static final ServiceTransportMetrics INSTANCE = new ServiceTransportMetrics();
+
+  private static final String OTHER = "other";
+
+  /** Latencies kept per endpoint for percentiles. */
+  private static final int SAMPLES = 64;
+
+  private final Map<String, Stats> statsByEndpoint = new TreeMap<>();
+
+  private ServiceTransportMetrics() {}
+
+  public static ServiceTransportMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  static void tag(Request.Builder request, String endpoint) {
+    request.tag(Endpoint.class, new Endpoint(endpoint));
+  }
+
+  /**
+   * @return the template the path was formatted from, e.g. "/V1/Fence/%d", or "other" if it isn't one of the given.
+   */
+  static String endpointOf(String urlFragment, List<EndpointTemplate> templates) {
+    String           path  = stripQuery(urlFragment);
+    EndpointTemplate match = null;
+
+    for (EndpointTemplate template : templates) {
+      if (template.matches(path) && (match == null || template.literalLength > match.literalLength)) {
+        match = template;
+      }
+    }
+
+    return match != null ? match.template : OTHER;
+  }
+
+  static List<EndpointTemplate> templates(String... templates) {
+    EndpointTemplate[] compiled = new EndpointTemplate[templates.length];
+
+    for (int i = 0; i < templates.length; i++) {
+      compiled[i] = new EndpointTemplate(stripQuery(templates[i]));
+    }
+
+    return Arrays.asList(compiled);
+  }
+
+  void onCoalesced(String endpoint) {
+    synchronized (statsByEndpoint) {
+      statsFor(endpoint).coalesced++;
+    }
+  }
+
+  @Override
+  public EventListener create(Call call) {
+    Endpoint endpoint = call.request().tag(Endpoint.class);
+
+    return new CallListener(endpoint != null ? endpoint.name : call.request().url().host());
+  }
+
+  private void onCallFinished(String endpoint, long millis, boolean newConnection, boolean http2, boolean failed) {
+    synchronized (statsByEndpoint) {
+      Stats stats = statsFor(endpoint);
+
+      stats.calls++;
+      if (failed)        stats.failures++;
+      if (newConnection) stats.newConnections++;
+      if (http2)         stats.http2++;
+
+      stats.totalMillis = stats.totalMillis + millis;
+      stats.maxMillis   = Math.max(stats.maxMillis, millis);
+
+      stats.samples[stats.nextSample] = millis;
+      stats.nextSample                = (stats.nextSample + 1) % SAMPLES;
+    }
+  }
+
+  private Stats statsFor(String endpoint) {
+    Stats stats = statsByEndpoint.get(endpoint);
+
+    if (stats == null) {
+      stats = new Stats();
+      statsByEndpoint.put(endpoint, stats);
+    }
+
+    return stats;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder();
+
+    synchronized (statsByEndpoint) {
+      if (statsByEndpoint.isEmpty()) return "None";
+
+      for (Map.Entry<String, Stats> entry : statsByEndpoint.entrySet()) {
+        Stats  stats  = entry.getValue();
+        long[] sorted = Arrays.copyOf(stats.samples, (int) Math.min(stats.calls, SAMPLES));
+
+        Arrays.sort(sorted);
+
+        out.append(String.format(Locale.US, "%-40s calls: %d, failed: %d, coalesced: %d, reused: %d, h2: %d, avg: %d, p50: %d, p90: %d, max: %d\n",
+                                 entry.getKey(),
+                                 stats.calls,
+                                 stats.failures,
+                                 stats.coalesced,
+                                 stats.calls - stats.newConnections,
+                                 stats.http2,
+                                 stats.calls > 0 ? stats.totalMillis / stats.calls : 0,
+                                 percentile(sorted, 0.5),
+                                 percentile(sorted, 0.9),
+                                 stats.maxMillis));
+      }
+    }
+
+    return out.toString();
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted.length > 0 ? sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile))] : 0;
+  }
+
+  private static String stripQuery(String path) {
+    int query = path.indexOf('?');
+    return query >= 0 ? path.substring(0, query) : path;
+  }
+
+  static final class EndpointTemplate {
+    private final String  template;
+    private final Pattern pattern;
+    private final int     literalLength;
+
+    private EndpointTemplate(String template) {
+      String[]      parts   = template.split("%[sd]", -1);
+      StringBuilder regex   = new StringBuilder();
+      int           literal = 0;
+
+      for (int i = 0; i < parts.length; i++) {
+        if (i > 0) regex.append(".*");
+        regex.append(Pattern.quote(parts[i]));
+        literal += parts[i].length();
+      }
+
+      this.template      = template;
+      this.pattern       = Pattern.compile(regex.toString());
+      this.literalLength = literal;
+    }
+
+    private boolean matches(String path) {
+      return pattern.matcher(path).matches();
+    }
+  }
+
+  private static final class Endpoint {
+    private final String name;
+
+    private Endpoint(String name) {
+      this.name = name;
+    }
+  }
+
+  private static final class Stats {
+    private final long[] samples = new long[SAMPLES];
+
+    private long calls;
+    private long failures;
+    private long coalesced;
+    private long newConnections;
+    private long http2;
+    private long totalMillis;
+    private long maxMillis;
+    private int  nextSample;
+  }
+
+  /**
+   * A connection was set up for the call only if connectStart fires; otherwise one from the pool was reused, or a
+   * stream was opened on a shared HTTP/2 connection.
+   */
+  private final class CallListener extends EventListener {
+    private final String endpoint;
+
+    private long    startNanos;
+    private boolean newConnection;
+    private boolean http2;
+
+    private CallListener(String endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public void callStart(Call call) {
+      startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+      newConnection = true;
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      http2 = connection.protocol() == Protocol.HTTP_2;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+      onCallFinished(endpoint, elapsedMillis(), newConnection, http2, false);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+      onCallFinished(endpoint, elapsedMillis(), newConnection, http2, true);
+    }
+
+    private long elapsedMillis() {
+      return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+  }
+}
@@ -14,6 +14,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
@@ -55,6 +56,13 @@ public class JsonUtil {
     return objectMapper.readValue(json, clazz);
   }
 
+  //AA+
+  public static <T> T fromJson(JsonNode tree, Class<T> clazz)
+          throws IOException
+  {
+    return objectMapper.treeToValue(tree, clazz);
+  }
+
   public static <T> T fromJson(String json, TypeReference<T> typeRef)
           throws IOException
   {
@@ -0,0 +1,135 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free single-producer/single-consumer ring buffer used to hand inbound websocket frames from the
+ * OkHttp reader thread to the message retrieval thread, without either side contending on the connection's monitor.
+ *
+ * The producer never waits: the OkHttp reader thread also delivers keepalive responses and close/failure callbacks,
+ * so it must not be held up by a slow consumer. Instead, the queue reports when it is past its {@code highWaterMark}
+ * for the producer to push back some other way, and has room for as many frames again past that mark to absorb what
+ * is already in flight. Only once that is exhausted are offers refused.
+ *
+ * Only one thread may call {@link #offer(Object)} and only one thread may call {@link #poll(long)} at any one time.
+ */
+final class InboundFrameQueue<E> {
+
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+  private final Object[]   buffer;
+  private final int        mask;
+  private final int        highWaterMark;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  private volatile Thread  waitingConsumer;
+  private volatile boolean closed;
+
+  InboundFrameQueue(int highWaterMark) {
+    if (highWaterMark <= 0) {
+      throw new IllegalArgumentException("highWaterMark must be positive: " + highWaterMark);
+    }
+
+    int capacity = Integer.highestOneBit(highWaterMark) << 1;
+    if (capacity < highWaterMark * 2) {
+      capacity <<= 1;
+    }
+
+    this.buffer        = new Object[capacity];
+    this.mask          = capacity - 1;
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Enqueues a frame without ever blocking the calling (producer) thread.
+   *
+   * @return false if the queue is closed, or full even past its high-water mark.
+   */
+  boolean offer(E element) {
+    long currentTail = tail.get();
+
+    if (closed || currentTail - head.get() >= buffer.length) {
+      return false;
+    }
+
+    buffer[(int) (currentTail & mask)] = element;
+    tail.set(currentTail + 1);
+
+    Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+
+    return true;
+  }
+
+  /**
+   * Dequeues the oldest frame, waiting up to {@code timeoutMillis} for one to arrive. Frames that were enqueued before
+   * the queue was closed are still handed out.
+   *
+   * @return the frame, or null if the timeout elapsed or the queue is closed and drained.
+   */
+  @SuppressWarnings("unchecked")
+  E poll(long timeoutMillis) {
+    long currentHead = head.get();
+    long deadline    = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+    while (currentHead == tail.get()) {
+      long remaining = deadline - System.nanoTime();
+      if (closed || remaining <= 0) {
+        return null;
+      }
+
+      waitingConsumer = Thread.currentThread();
+      if (currentHead == tail.get() && !closed) {
+        LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+      }
+      waitingConsumer = null;
+    }
+
+    int index   = (int) (currentHead & mask);
+    E   element = (E) buffer[index];
+
+    buffer[index] = null;
+    head.set(currentHead + 1);
+
+    return element;
+  }
+
+  /**
+   * Releases a parked consumer. Subsequent offers are rejected; frames already queued can still be polled.
+   */
+  void close() {
+    closed = true;
+
+    Thread consumer = waitingConsumer;
+    if (consumer != null) LockSupport.unpark(consumer);
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+  boolean isAtHighWaterMark() {
+    return size() >= highWaterMark;
+  }
+
+  int getCapacity() {
+    return buffer.length;
+  }
+
+  int getHighWaterMark() {
+    return highWaterMark;
+  }
+}
@@ -24,15 +24,13 @@ import org.whispersystems.signalservice.internal.util.Util;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -65,15 +63,24 @@ public class WebSocketConnection extends WebSocketListener {
   private static final String TAG                       = Log.tag(WebSocketConnection.class);
   public static final int     KEEPALIVE_TIMEOUT_SECONDS = 120;//55; 4 minutes
 
+  /**
+   * Number of inbound frames buffered ahead of the message retrieval thread before the connection sheds load.
+   */
+  public static final int     DEFAULT_INBOUND_HIGH_WATER_MARK = 1024;
+
+  /** "Try Again Later": the server keeps what it hasn't delivered until we reconnect. */
+  private static final int    CLOSE_CODE_SHED_LOAD            = 1013;
+
   //AA+
   public  static final String CONNECTED_STATE_EXTRA        = "ConnectedState";
   public static final String CONNECTEDWS_EVENT             = "org.thoughtcrime.securesms.CONNECTEDWS_EVENT";
 
-  //AA- expanded type from Request to more general
+  //AA- expanded type from Request to more general. Inbound frames are handed over through a lock-free SPSC ring, while
+  //outbound sends and response correlation use concurrent collections, so neither path contends on this object's monitor.
   //private final LinkedList<WebSocketRequestMessage> incomingRequests = new LinkedList<>();
-  private final LinkedList<WebSocketMessage>        incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest>          outgoingRequests = new HashMap<>();
-  private final Set<Long>                           keepAlives       = new HashSet<>();
+  private final InboundFrameQueue<WebSocketMessage> incomingRequests;
+  private final Map<Long, OutgoingRequest>          outgoingRequests = new ConcurrentHashMap<>();
+  private final Set<Long>                           keepAlives       = ConcurrentHashMap.newKeySet();
 
   private final String                                    name;
   private final String                                    wsUri;
@@ -86,7 +93,8 @@ public class WebSocketConnection extends WebSocketListener {
   private final Optional<SignalProxy>                     signalProxy;
   private final BehaviorSubject<WebSocketConnectionState> webSocketState;
 
-  private WebSocket client;
+  private volatile WebSocket client;
+  private          boolean   sheddingLoad;//only touched from the socket reader thread
 
   public WebSocketConnection(String name,
                              SignalServiceConfiguration serviceConfiguration,
@@ -102,6 +110,17 @@ public class WebSocketConnection extends WebSocketListener {
                              String signalAgent,
                              HealthMonitor healthMonitor,
                              String extraPathUri)
+  {
+    this(name, serviceConfiguration, credentialsProvider, signalAgent, healthMonitor, extraPathUri, DEFAULT_INBOUND_HIGH_WATER_MARK);
+  }
+
+  public WebSocketConnection(String name,
+                             SignalServiceConfiguration serviceConfiguration,
+                             Optional<CredentialsProvider> credentialsProvider,
+                             String signalAgent,
+                             HealthMonitor healthMonitor,
+                             String extraPathUri,
+                             int inboundHighWaterMark)
   {
     this.name                = "[" + name + ":" + System.identityHashCode(this) + "]";
     this.trustStore          = serviceConfiguration.getSignalServiceUrls()[0].getTrustStore();
@@ -112,6 +131,7 @@ public class WebSocketConnection extends WebSocketListener {
     this.signalProxy         = serviceConfiguration.getSignalProxy();
     this.healthMonitor       = healthMonitor;
     this.webSocketState      = BehaviorSubject.createDefault(WebSocketConnectionState.DISCONNECTED);
+    this.incomingRequests    = new InboundFrameQueue<>(inboundHighWaterMark);
 
     this.wsUri               = BuildConfig.UFSRV_URL;//httpUri; //todo: this needs to be ported to work with domain fronting, or somehow added to SignalServiceNetworkAccess.java
     /*String uri = serviceConfiguration.getSignalServiceUrls()[0].getUrl().replace("https://", "wss://").replace("http://", "ws://");
@@ -167,6 +187,11 @@ public class WebSocketConnection extends WebSocketListener {
         requestBuilder.addHeader("Cookie", TextUtils.isEmpty(credentialsProvider.get().getCookie()) ? "0" : credentialsProvider.get().getCookie());
         requestBuilder.addHeader("X-UFSRVCID", "0");
         requestBuilder.addHeader("X-CM-TOKEN", "0");
+
+        String stateSyncVersions = credentialsProvider.get().getStateSyncVersions();
+        if (!TextUtils.isEmpty(stateSyncVersions)) {
+          requestBuilder.addHeader("X-UFSRV-STATESYNC-VERSIONS", stateSyncVersions);
+        }
         //
       }
 
@@ -177,7 +202,7 @@ public class WebSocketConnection extends WebSocketListener {
     return webSocketState;
   }
 
-  public synchronized boolean isDead() {
+  public boolean isDead() {
     return client == null;
   }
 
@@ -190,34 +215,35 @@ public class WebSocketConnection extends WebSocketListener {
         webSocketState.onNext(WebSocketConnectionState.DISCONNECTING);
       }
 
-    notifyAll();
+    incomingRequests.close();
   }
 
-  public synchronized WebSocketMessage readRequest(long timeoutMillis)
+  /**
+   * Blocks until an inbound frame is available. Must only be called from a single reader thread, as the inbound queue
+   * is single-consumer.
+   */
+  public WebSocketMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
-    if (client == null) {
+    if (client == null && incomingRequests.isEmpty()) {
       throw new IOException("Connection closed!");
     }
 
-    long startTime = System.currentTimeMillis();
+    WebSocketMessage message = incomingRequests.poll(timeoutMillis);
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
-    }
-
-    if (incomingRequests.isEmpty() && client == null) {
+    if (message == null && (client == null || incomingRequests.isClosed())) {
       throw new IOException("Connection closed!");
-    } else if (incomingRequests.isEmpty()) {
+    } else if (message == null) {
       throw new TimeoutException("Timeout exceeded");
     } else {
-        Log.d(TAG, String.format(">>> readRequest (%d): Removing from incomingRequests queue (current size: %d)",  Thread.currentThread().getId(), incomingRequests.size()));
-        return incomingRequests.removeFirst();
+      return message;
     }
   }
 
-  public synchronized Single<WebsocketResponse> sendRequest(WebSocketRequestMessage request, Optional<List<String>> headers) throws IOException {//AA+ headers
-    if (client == null) {
+  public Single<WebsocketResponse> sendRequest(WebSocketRequestMessage request, Optional<List<String>> headers) throws IOException {//AA+ headers
+    WebSocket socket = client;
+
+    if (socket == null) {
       throw new IOException("No connection!");
     }
 
@@ -232,9 +258,16 @@ public class WebSocketConnection extends WebSocketListener {
 
     outgoingRequests.put(request.getId(), new OutgoingRequest(single));
 
-    Log.d(TAG, String.format(">>> sendRequest (WS) (hash_sz:'%d'): Generated id: '%d'",   outgoingRequests.size(), request.getId()));
+    if (client == null) {
+      //raced with cleanupAfterShutdown(), which may have already drained outgoingRequests
+      outgoingRequests.remove(request.getId());
+      throw new IOException("No connection!");
+    }
+
+    Log.d(TAG, () -> String.format(">>> sendRequest (WS) (hash_sz:'%d'): Generated id: '%d'",   outgoingRequests.size(), request.getId()));
 
-    if (!client.send(ByteString.of(message.toByteArray()))) {
+    if (!socket.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("sendRequest: Write failed!");
     }
 
@@ -243,8 +276,10 @@ public class WebSocketConnection extends WebSocketListener {
                  .timeout(10, TimeUnit.SECONDS, Schedulers.io());
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
-    if (client == null) {
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket socket = client;
+
+    if (socket == null) {
       throw new IOException("Connection closed!");
     }
 
@@ -253,27 +288,31 @@ public class WebSocketConnection extends WebSocketListener {
                                                .setResponse(response)
                                                .build();
 
-    if (!client.send(ByteString.of(message.toByteArray()))) {
+    if (!socket.send(ByteString.of(message.toByteArray()))) {
       throw new IOException("sendResponse: Write failed!");
     }
   }
 
   //AA+
-  public synchronized void sendMessage(WebSocketMessage wsm) throws IOException
+  public void sendMessage(WebSocketMessage wsm) throws IOException
   {
-    if (client == null) {
+    WebSocket socket = client;
+
+    if (socket == null) {
       throw new IOException(TAG+" sendMessage: Connection closed!");
     }
 
    // client.sendMessage(wsm.toByteArray());
-    if (!client.send(ByteString.of(wsm.toByteArray()))) {
+    if (!socket.send(ByteString.of(wsm.toByteArray()))) {
       throw new IOException("sendMessage: Write failed!");
     }
 
   }
 
-  public synchronized void sendKeepAlive() throws IOException {
-    if (client != null) {
+  public void sendKeepAlive() throws IOException {
+    WebSocket socket = client;
+
+    if (socket != null) {
       long id = System.currentTimeMillis();
       log( "Sending keep alive... id: " + id);
       byte[] message = WebSocketMessage.newBuilder()
@@ -287,7 +326,8 @@ public class WebSocketConnection extends WebSocketListener {
                                        .build()
                                        .toByteArray();
       keepAlives.add(id);
-      if (!client.send(ByteString.of(message))) {
+      if (!socket.send(ByteString.of(message))) {
+        keepAlives.remove(id);
         throw new IOException("Write failed!");
       }
     }
@@ -310,18 +350,23 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  /**
+   * Invoked on OkHttp's single reader thread. Deliberately not synchronized: response correlation goes through
+   * concurrent collections and inbound frames through {@link InboundFrameQueue}, which never blocks, so a deep backlog
+   * never holds up outbound sends, keepalive responses or close/failure callbacks on this thread.
+   */
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
       if (!message.getCommand().equalsIgnoreCase("/v1/keepalive")) {//too verbose otherwise
-        Log.w(TAG, String.format(Locale.getDefault(), "onMessage ('%d'):  Command: '%s' Text: '%s'", Thread.currentThread().getId(), message.getCommand(), message));
+        Log.w(TAG, () -> String.format(Locale.getDefault(), "onMessage ('%d'):  Command: '%s' Text: '%s'", Thread.currentThread().getId(), message.getCommand(), message));
       }
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE) {
         Log.d(TAG, "onMessage() -- incoming request");
-        incomingRequests.add(message);
+        enqueueIncoming(message);
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
         OutgoingRequest listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) {
@@ -334,14 +379,13 @@ public class WebSocketConnection extends WebSocketListener {
           }
         } else if (keepAlives.remove(message.getResponse().getId())) {
           healthMonitor.onKeepAliveResponse(message.getResponse().getId(), credentialsProvider.isPresent());
+          return;//control frame, fully handled here
         } else {
           Log.d(TAG, "onMessage() -- response received, but no listener");
         }
 
-        incomingRequests.add(message);//AA+ uf semantics response messages arriving via websocket are legit envelope (e.g delivery receipts).
+        enqueueIncoming(message);//AA+ uf semantics response messages arriving via websocket are legit envelope (e.g delivery receipts).
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
     }
@@ -354,8 +398,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocketState.onNext(WebSocketConnectionState.DISCONNECTED);
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   @Override
@@ -369,11 +411,37 @@ public class WebSocketConnection extends WebSocketListener {
     }
 
     cleanupAfterShutdown();
+  }
+
+  /**
+   * Hands a frame to the message retrieval thread without ever blocking the reader. Once the backlog reaches the
+   * high-water mark the connection is closed, which stops the server sending more; frames already queued, and those
+   * still in flight up to the queue's capacity, are drained by the retrieval thread before it reconnects.
+   */
+  private void enqueueIncoming(WebSocketMessage message) {
+    if (!incomingRequests.offer(message)) {
+      warn("Dropping inbound frame: " + (incomingRequests.isClosed() ? "connection closed" : "queue full (" + incomingRequests.getCapacity() + ")"));
+      return;
+    }
 
-    notifyAll();
+    if (incomingRequests.isAtHighWaterMark() && !sheddingLoad) {
+      sheddingLoad = true;
+      shedLoad();
+    }
+  }
+
+  private synchronized void shedLoad() {
+    if (client != null) {
+      warn("Inbound queue at high-water mark (" + incomingRequests.getHighWaterMark() + "), closing until the backlog is drained");
+      client.close(CLOSE_CODE_SHED_LOAD, "Inbound backlog");
+      client = null;
+      webSocketState.onNext(WebSocketConnectionState.DISCONNECTING);
+    }
   }
 
   private void cleanupAfterShutdown() {
+    incomingRequests.close();
+
     Iterator<Map.Entry<Long, OutgoingRequest>> iterator = outgoingRequests.entrySet().iterator();
 
     while (iterator.hasNext()) {
@@ -432,10 +500,6 @@ public class WebSocketConnection extends WebSocketListener {
     Log.w(TAG, name + " " + message, e);
   }
 
-  private long elapsedTime(long startTime) {
-    return System.currentTimeMillis() - startTime;
-  }
-
  /* private class KeepAliveSender extends Thread {
 
     private final AtomicBoolean stop = new AtomicBoolean(false);
@@ -0,0 +1,70 @@
+package com.unfacd.android.ufsrvuid;
+
+import com.unfacd.android.utils.crockford32.Crockford32;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares {@link UfsrvUid} decoding/encoding against the BigInteger-based {@link Crockford32} path it replaced, over a
+ * working set resembling a busy receipt/presence burst (a few hundred distinct senders, each seen many times).
+ *
+ * Not part of the regular run; remove the {@link Ignore} to get numbers.
+ */
+@Ignore("Benchmark")
+public class UfsrvUidBenchmark {
+
+  private static final int DISTINCT   = 256;
+  private static final int ITERATIONS = 1_000_000;
+
+  @Test
+  public void decodeEncode() {
+    Random   random  = new Random(11);
+    byte[][] raws    = new byte[DISTINCT][16];
+    String[] encoded = new String[DISTINCT];
+
+    for (int i = 0; i < DISTINCT; i++) {
+      random.nextBytes(raws[i]);
+      encoded[i] = new UfsrvUid(raws[i]).toString();
+    }
+
+    for (int round = 0; round < 3; round++) {
+      report("legacy decode", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += legacyDecode(encoded[i % DISTINCT]).length; return sink; });
+      report("decode       ", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += new UfsrvUid(encoded[i % DISTINCT]).getUfsrvSequenceId(); return sink; });
+      report("interned     ", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += UfsrvUid.of(encoded[i % DISTINCT]).getUfsrvSequenceId(); return sink; });
+      report("legacy encode", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += legacyEncode(raws[i % DISTINCT]).length(); return sink; });
+      report("encode       ", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += new UfsrvUid(raws[i % DISTINCT]).toString().length(); return sink; });
+      report("interned     ", () -> { long sink = 0; for (int i = 0; i < ITERATIONS; i++) sink += UfsrvUid.of(raws[i % DISTINCT]).toString().length(); return sink; });
+    }
+  }
+
+  private static byte[] legacyDecode(String ufsrvUidEncoded) {
+    byte[] ufsrvUidBytes = Crockford32.decode(ufsrvUidEncoded).toByteArray();
+    if (ufsrvUidBytes[0] == 0) ufsrvUidBytes = Arrays.copyOfRange(ufsrvUidBytes, 1, ufsrvUidBytes.length);
+    return ufsrvUidBytes;
+  }
+
+  private static String legacyEncode(byte[] ufsrvUidBytes) {
+    byte[] tmp = new byte[17];
+    System.arraycopy(ufsrvUidBytes, 0, tmp, 1, 16);
+    String encoded = Crockford32.encode(new BigInteger(tmp));
+    return encoded.length() == UfsrvUid.ufsrvUidEncodedLength - 1 ? "0" + encoded : encoded;
+  }
+
+  private static void report(String label, Run run) {
+    long start = System.nanoTime();
+    long sink  = run.run();
+    long end   = System.nanoTime();
+
+    System.out.println(String.format(Locale.US, "%s %6.1f ns/op (%d)", label, (end - start) / (double) ITERATIONS, sink));
+  }
+
+  private interface Run {
+    long run();
+  }
+}
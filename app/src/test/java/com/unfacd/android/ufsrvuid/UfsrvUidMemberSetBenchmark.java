@@ -0,0 +1,65 @@
+package com.unfacd.android.ufsrvuid;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Per-row membership test cost on large groups: the per-call regex that GroupDatabase used, the allocation-free token
+ * scan that replaced it, and lookups against a parsed {@link UfsrvUidMemberSet}.
+ *
+ * Not part of the regular run; remove the {@link Ignore} to get numbers.
+ */
+@Ignore("Benchmark")
+public class UfsrvUidMemberSetBenchmark {
+
+  private static final int ITERATIONS = 100_000;
+
+  @Test
+  public void members_500() {
+    run(500);
+  }
+
+  @Test
+  public void members_2000() {
+    run(2000);
+  }
+
+  private static void run(int memberCount) {
+    Random        random     = new Random(5);
+    String[]      members    = new String[memberCount];
+    StringBuilder serialized = new StringBuilder();
+
+    for (int i = 0; i < memberCount; i++) {
+      byte[] raw = new byte[16];
+      random.nextBytes(raw);
+      members[i] = new UfsrvUid(raw).toString();
+      if (i > 0) serialized.append(',');
+      serialized.append(members[i]);
+    }
+
+    String            list = serialized.toString();
+    UfsrvUidMemberSet set  = UfsrvUidMemberSet.fromSerializedList(list, ',');
+
+    for (int round = 0; round < 3; round++) {
+      report(memberCount, "regex", () -> { long hits = 0; for (int i = 0; i < ITERATIONS; i++) if (Pattern.compile("\\b" + members[i % memberCount] + "\\b").matcher(list).find()) hits++; return hits; });
+      report(memberCount, "scan ", () -> { long hits = 0; for (int i = 0; i < ITERATIONS; i++) if (UfsrvUidMemberSet.serializedListContains(list, members[i % memberCount])) hits++; return hits; });
+      report(memberCount, "set  ", () -> { long hits = 0; for (int i = 0; i < ITERATIONS; i++) if (set.contains(members[i % memberCount])) hits++; return hits; });
+    }
+  }
+
+  private static void report(int memberCount, String label, Run run) {
+    long start = System.nanoTime();
+    long hits  = run.run();
+    long end   = System.nanoTime();
+
+    System.out.println(String.format(Locale.US, "[%d members] %s %8.1f ns/op (%d)", memberCount, label, (end - start) / (double) ITERATIONS, hits));
+  }
+
+  private interface Run {
+    long run();
+  }
+}
@@ -0,0 +1,56 @@
+package com.unfacd.android.ufsrvuid;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class UfsrvUidMemberSetTest {
+
+  private static final String A = "0GV1QH2DZ0W8C8JKE7N1Q4XM2A";
+  private static final String B = "01000000000000000000000001";
+  private static final String C = "7ZZZZZZZZZZZZZZZZZZZZZZZZZ";
+
+  @Test
+  public void givenSerializedList_whenIParse_thenEveryMemberIsFound() {
+    UfsrvUidMemberSet set = UfsrvUidMemberSet.fromSerializedList(C + "," + A + ",,+15555550100," + A, ',');
+
+    assertEquals(3, set.size());
+    assertTrue(set.contains(A));
+    assertTrue(set.contains(new UfsrvUid(C)));
+    assertTrue(set.contains("+15555550100"));
+    assertFalse(set.contains(B));
+    assertFalse(set.contains("+15555550101"));
+  }
+
+  @Test
+  public void givenEmptyList_whenIParse_thenNothingIsFound() {
+    assertTrue(UfsrvUidMemberSet.fromSerializedList("", ',').isEmpty());
+    assertFalse(UfsrvUidMemberSet.fromSerializedList(null, ',').contains(A));
+  }
+
+  @Test
+  public void givenRandomLists_whenIScan_thenResultMatchesRegex() {
+    Random   random   = new Random(3);
+    String[] alphabet = { "1", "12", "112", "12_", "A" + "1", A, B, C };
+
+    for (int i = 0; i < 500; i++) {
+      StringBuilder serialized = new StringBuilder();
+      int           count      = random.nextInt(5);
+
+      for (int j = 0; j < count; j++) {
+        if (j > 0) serialized.append(',');
+        serialized.append(alphabet[random.nextInt(alphabet.length)]);
+      }
+
+      String token = alphabet[random.nextInt(alphabet.length)];
+      boolean expected = Pattern.compile("\\b" + token + "\\b").matcher(serialized).find();
+
+      assertEquals(serialized + " / " + token, expected, UfsrvUidMemberSet.serializedListContains(serialized.toString(), token));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.unfacd.android.ufsrvuid;
+
+import com.unfacd.android.utils.crockford32.Crockford32;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class UfsrvUidTest {
+
+  private static final String SAMPLE = "0GV1QH2DZ0W8C8JKE7N1Q4XM2A";
+
+  @Test
+  public void givenRandomUids_whenIEncode_thenOutputMatchesBigIntegerCodec() {
+    Random random = new Random(7);
+
+    for (int i = 0; i < 1000; i++) {
+      byte[] raw = new byte[16];
+      random.nextBytes(raw);
+      if (i % 10 == 0) raw[0] = 0; //exercise leading zeros
+
+      String expected = padded(Crockford32.encode(new BigInteger(1, raw)));
+
+      assertEquals(expected, new UfsrvUid(raw).toString());
+      assertArrayEquals(raw, new UfsrvUid(expected).toBytes());
+      assertArrayEquals(raw, UfsrvUid.of(expected).toBytes());
+    }
+  }
+
+  @Test
+  public void givenEncodedUid_whenIDecode_thenSequenceIdIsLittleEndianTail() {
+    UfsrvUid ufsrvUid = new UfsrvUid(SAMPLE);
+    byte[]   raw      = ufsrvUid.toBytes();
+
+    assertEquals(SAMPLE, ufsrvUid.toString());
+    assertEquals(ufsrvUid.getUfsrvUidRaw().getLong(8), ufsrvUid.getUfsrvSequenceId());
+    assertEquals(ufsrvUid.getUfsrvSequenceId(), UfsrvUid.DecodeUfsrvSequenceId(raw));
+    assertEquals(ufsrvUid.toLong(8, 8), ufsrvUid.getUfsrvSequenceId());
+  }
+
+  @Test
+  public void givenSignPrefixedOrEmptyBytes_whenIConstruct_thenTheyAreNormalised() {
+    byte[] raw      = new UfsrvUid(SAMPLE).toBytes();
+    byte[] prefixed = new byte[17];
+    System.arraycopy(raw, 0, prefixed, 1, 16);
+
+    assertEquals(SAMPLE, new UfsrvUid(prefixed).toString());
+    assertEquals(UfsrvUid.UndefinedUfsrvUid, new UfsrvUid(new byte[0]).toString());
+    assertTrue(new UfsrvUid(new byte[0]).isUndefined());
+  }
+
+  @Test
+  public void givenNonCanonicalOrBadInput_whenIConstruct_thenLegacyBehaviourIsKept() {
+    assertEquals(new UfsrvUid(SAMPLE), new UfsrvUid(SAMPLE.toLowerCase()));
+    assertEquals(SAMPLE.toLowerCase(), UfsrvUid.of(SAMPLE.toLowerCase()).toString());
+    assertTrue(new UfsrvUid(UfsrvUid.UndefinedUfsrvUidTruncated).isUndefined());
+    assertEquals(UfsrvUid.UndefinedUfsrvUid, new UfsrvUid("not*valid").toString());
+    assertFalse(new UfsrvUid(SAMPLE).isUndefined());
+  }
+
+  @Test
+  public void givenRepeatedUid_whenIIntern_thenTheSameInstanceIsReturned() {
+    UfsrvUid first = UfsrvUid.of(SAMPLE);
+
+    assertSame(first, UfsrvUid.of(SAMPLE));
+    assertSame(first, UfsrvUid.of(first.toBytes()));
+    assertNotSame(first, new UfsrvUid(SAMPLE));
+  }
+
+  private static String padded(String encoded) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = encoded.length(); i < UfsrvUid.ufsrvUidEncodedLength; i++) builder.append('0');
+    return builder.append(encoded).toString();
+  }
+}
@@ -0,0 +1,251 @@
+package com.unfacd.android.ui.components.CollapsingFenceMap.search;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.FencesSearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class FenceSearchControllerTest {
+
+  private static final String WORONORA = "Australia:379854490880180245:Australia:New South Wales:Woronora:selfzone:Woronora Heights:151.035395:-34.026778";
+  private static final String SUTTON   = "australia:379854490880180246:Australia:New South Wales:Sutherland:selfzone:Sutton Forest:150.3:-34.5";
+  private static final String BONDI    = "bondi:379854490880180247:Australia:New South Wales:Sydney:selfzone:Bondi Beach:151.27:-33.89";
+
+  private LinkedList<Runnable> queued;
+  private List<String>         fetched;
+  private List<String>         found;
+  private List<String>         failed;
+  private FencesSearch         response;
+
+  private FenceSearchController controller;
+
+  @Before
+  public void setUp() {
+    ShadowLooper.pauseMainLooper();
+    FenceSearchController.clearCache();
+
+    queued   = new LinkedList<>();
+    fetched  = new ArrayList<>();
+    found    = new ArrayList<>();
+    failed   = new ArrayList<>();
+    response = search(WORONORA, SUTTON, BONDI);
+
+    controller = new FenceSearchController(new FenceSearchController.Listener() {
+      @Override
+      public void onFencesFound(@NonNull String query, @NonNull FencesSearch fencesSearch) {
+        found.add(query);
+      }
+
+      @Override
+      public void onSearchFailed(@NonNull String query) {
+        failed.add(query);
+      }
+    }, queued::add, this::fetch);
+  }
+
+  @After
+  public void tearDown() {
+    FenceSearchController.clearCache();
+  }
+
+  @Test
+  public void givenRecords_whenIFilterThem_thenOnlyThoseWithAMatchingNameFnameOrLocalityAreKept() {
+    assertEquals(Arrays.asList(WORONORA), payloads(FenceSearchController.filter(response, "heights")));
+    assertEquals(Arrays.asList(WORONORA, SUTTON), payloads(FenceSearchController.filter(response, "australia")));
+    assertEquals(Arrays.asList(SUTTON), payloads(FenceSearchController.filter(response, "sutherland")));
+    assertEquals(Arrays.asList(), payloads(FenceSearchController.filter(response, "wales")));
+  }
+
+  @Test
+  public void givenMixedCaseRecord_whenIMatchALowerCaseQuery_thenItMatches() {
+    assertTrue(FenceSearchController.matches(WORONORA, "woronora h"));
+    assertFalse(FenceSearchController.matches(WORONORA, "Woronora"));
+  }
+
+  @Test
+  public void givenTruncatedRecord_whenIMatchIt_thenOnlyTheFieldsPresentAreChecked() {
+    assertTrue(FenceSearchController.matches("Bondi", "bon"));
+    assertFalse(FenceSearchController.matches("Bondi:1:Australia", "syd"));
+  }
+
+  @Test
+  public void givenQueryTypedWithinTheDebounce_whenItSettles_thenOnlyTheLastQueryIsFetched() {
+    controller.search("wo");
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS - 1, TimeUnit.MILLISECONDS);
+    controller.search("Wor");
+
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS - 1, TimeUnit.MILLISECONDS);
+    assertTrue(queued.isEmpty());
+
+    ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+    runQueued();
+    ShadowLooper.idleMainLooper();
+
+    assertEquals(Arrays.asList("Wor"), fetched);
+    assertEquals(Arrays.asList("Wor"), found);
+  }
+
+  @Test
+  public void givenQuerySupersededAfterItsDebounce_whenItsTaskRuns_thenItIsDroppedBeforeGoingOut() {
+    controller.search("wor");
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+
+    controller.search("woro");
+    runQueued();
+
+    assertTrue(fetched.isEmpty());
+
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    runQueued();
+    ShadowLooper.idleMainLooper();
+
+    assertEquals(Arrays.asList("woro"), fetched);
+    assertEquals(Arrays.asList("woro"), found);
+  }
+
+  @Test
+  public void givenQuerySupersededWhileInFlight_whenItsResultArrives_thenItIsDiscarded() {
+    controller.search("wor");
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    runQueued();
+
+    controller.cancel();
+    ShadowLooper.idleMainLooper();
+
+    assertEquals(Arrays.asList("wor"), fetched);
+    assertTrue(found.isEmpty());
+    assertTrue(failed.isEmpty());
+  }
+
+  @Test
+  public void givenFailedFetch_whenItCompletes_thenTheFailureIsReportedAndNothingIsCached() {
+    response = null;
+
+    settle("wor");
+    settle("wor");
+
+    assertEquals(Arrays.asList("wor", "wor"), fetched);
+    assertEquals(Arrays.asList("wor", "wor"), failed);
+  }
+
+  @Test
+  public void givenCompleteResultForAPrefix_whenILengthenTheQuery_thenItIsAnsweredLocallyWithoutADebounce() {
+    settle("Su");
+
+    controller.search("sutt");
+
+    assertEquals(Arrays.asList("Su"), fetched);
+    assertEquals(Arrays.asList("Su", "sutt"), found);
+    assertTrue(queued.isEmpty());
+  }
+
+  @Test
+  public void givenPossiblyTruncatedResultForAPrefix_whenILengthenTheQuery_thenItIsFetched() {
+    FencesSearch.Builder full = FencesSearch.newBuilder();
+    for (int i = 0; i < FenceSearchController.COMPLETE_RESULT_LIMIT; i++) {
+      full.addRawResults(FencesSearch.RawResultRecord.newBuilder().setRawPayload(SUTTON));
+    }
+    response = full.build();
+
+    settle("su");
+    settle("sut");
+
+    assertEquals(Arrays.asList("su", "sut"), fetched);
+  }
+
+  @Test
+  public void givenBlankQuery_whenISearch_thenNothingIsFetchedOrReported() {
+    controller.search("   ");
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+
+    assertTrue(queued.isEmpty());
+    assertTrue(found.isEmpty());
+    assertTrue(failed.isEmpty());
+  }
+
+  @Test
+  public void givenCachedQuery_whenISearchItAgain_thenTheCachedResultIsReturned() {
+    List<FencesSearch> results = new ArrayList<>();
+    FenceSearchController recording = new FenceSearchController(new FenceSearchController.Listener() {
+      @Override
+      public void onFencesFound(@NonNull String query, @NonNull FencesSearch fencesSearch) {
+        results.add(fencesSearch);
+      }
+
+      @Override
+      public void onSearchFailed(@NonNull String query) {
+      }
+    }, queued::add, this::fetch);
+
+    recording.search("bondi");
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    runQueued();
+    ShadowLooper.idleMainLooper();
+
+    recording.search(" BONDI ");
+
+    assertEquals(2, results.size());
+    assertSame(results.get(0), results.get(1));
+    assertEquals(Arrays.asList("bondi"), fetched);
+  }
+
+  private void settle(@NonNull String query) {
+    controller.search(query);
+    ShadowLooper.idleMainLooper(FenceSearchController.DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+    runQueued();
+    ShadowLooper.idleMainLooper();
+  }
+
+  private void runQueued() {
+    while (!queued.isEmpty()) {
+      queued.removeFirst().run();
+    }
+  }
+
+  private @Nullable FencesSearch fetch(@NonNull String query) {
+    fetched.add(query);
+    return response;
+  }
+
+  private static @NonNull FencesSearch search(@NonNull String... payloads) {
+    FencesSearch.Builder builder = FencesSearch.newBuilder();
+
+    for (String payload : payloads) {
+      builder.addRawResults(FencesSearch.RawResultRecord.newBuilder().setRawPayload(payload));
+    }
+
+    return builder.build();
+  }
+
+  private static @NonNull List<String> payloads(@NonNull FencesSearch fencesSearch) {
+    List<String> payloads = new ArrayList<>();
+
+    for (FencesSearch.RawResultRecord record : fencesSearch.getRawResultsList()) {
+      payloads.add(record.getRawPayload());
+    }
+
+    return payloads;
+  }
+}
@@ -0,0 +1,199 @@
+package com.unfacd.android.utils;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class PresenceTableTest {
+
+  private static final long NOW = 1_000_000_000_000L;
+
+  private static final int ONLINE  = 1;
+  private static final int OFFLINE = 2;
+
+  private PresenceTable table;
+
+  @Before
+  public void setUp() {
+    table = new PresenceTable(null);
+  }
+
+  @Test
+  public void givenPresence_whenIPutIt_thenStatusAndTimestampUnpack() {
+    long now = System.currentTimeMillis();
+
+    assertTrue(table.put(7, OFFLINE, 1_650_000_000L, now));
+
+    long packed = table.get(7, now);
+
+    assertEquals(OFFLINE, PresenceTable.status(packed));
+    assertEquals(1_650_000_000L, PresenceTable.timestamp(packed));
+    assertEquals(OFFLINE + ",1650000000", table.getPresenceInformation(7));
+  }
+
+  @Test
+  public void givenUnknownUser_whenIGet_thenItIsAbsent() {
+    table.put(7, ONLINE, 1, NOW);
+
+    assertEquals(PresenceTable.ABSENT, table.get(8, NOW));
+    assertNull(table.getPresenceInformation(8));
+  }
+
+  @Test
+  public void givenInvalidSequenceId_whenIPut_thenNothingIsStored() {
+    assertFalse(table.put(0, ONLINE, 1, NOW));
+    assertFalse(table.put(-3, ONLINE, 1, NOW));
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void givenSamePresence_whenIPutItAgain_thenNoWriteIsPending() {
+    assertTrue(table.put(7, ONLINE, 100, NOW));
+    assertFalse(table.put(7, ONLINE, 100, NOW + 1000));
+    assertTrue(table.put(7, ONLINE, 101, NOW + 2000));
+    assertTrue(table.put(7, OFFLINE, 101, NOW + 3000));
+
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void givenCollidingKeys_whenIPutThem_thenEachIsFoundAlongTheProbeRun() {
+    List<Long> colliding = collidingKeys(0, 5, table.capacity());
+
+    for (long key : colliding) table.put(key, ONLINE, key, NOW);
+
+    for (long key : colliding) assertEquals(key, PresenceTable.timestamp(table.get(key, NOW)));
+  }
+
+  @Test
+  public void givenProbeRun_whenIRemoveFromTheMiddle_thenLaterEntriesAreStillFound() {
+    List<Long> colliding = collidingKeys(3, 5, table.capacity());
+    List<Long> next      = collidingKeys(5, 2, table.capacity());
+
+    for (long key : colliding) table.put(key, ONLINE, key, NOW);
+    for (long key : next)      table.put(key, ONLINE, key, NOW);
+
+    table.remove(colliding.get(1));
+    table.remove(next.get(0));
+
+    assertEquals(PresenceTable.ABSENT, table.get(colliding.get(1), NOW));
+    assertEquals(PresenceTable.ABSENT, table.get(next.get(0), NOW));
+
+    for (long key : colliding) {
+      if (key != colliding.get(1)) assertEquals(key, PresenceTable.timestamp(table.get(key, NOW)));
+    }
+    assertEquals((long) next.get(1), PresenceTable.timestamp(table.get(next.get(1), NOW)));
+    assertEquals(5, table.size());
+  }
+
+  @Test
+  public void givenProbeRunWrappingAroundTheEnd_whenIRemoveIt_thenWrappedEntriesAreStillFound() {
+    int        last      = table.capacity() - 1;
+    List<Long> colliding = collidingKeys(last, 4, table.capacity());
+
+    for (long key : colliding) table.put(key, ONLINE, key, NOW);
+
+    table.remove(colliding.get(0));
+    table.remove(colliding.get(2));
+
+    assertEquals((long) colliding.get(1), PresenceTable.timestamp(table.get(colliding.get(1), NOW)));
+    assertEquals((long) colliding.get(3), PresenceTable.timestamp(table.get(colliding.get(3), NOW)));
+    assertEquals(2, table.size());
+  }
+
+  @Test
+  public void givenRemovedUser_whenIPutThemAgain_thenTheyAreStoredAfresh() {
+    table.put(7, ONLINE, 100, NOW);
+    table.remove(7);
+    table.remove(7);
+
+    assertEquals(0, table.size());
+    assertTrue(table.put(7, ONLINE, 100, NOW));
+    assertEquals(100, PresenceTable.timestamp(table.get(7, NOW)));
+  }
+
+  @Test
+  public void givenManyUsers_whenTheTableGrows_thenEveryEntryIsKept() {
+    int initialCapacity = table.capacity();
+
+    for (long key = 1; key <= 1000; key++) table.put(key, (int) (key % 2) + 1, key * 10, NOW);
+
+    assertTrue(table.capacity() > initialCapacity);
+    assertEquals(1000, table.size());
+
+    for (long key = 1; key <= 1000; key++) {
+      long packed = table.get(key, NOW);
+
+      assertEquals((int) (key % 2) + 1, PresenceTable.status(packed));
+      assertEquals(key * 10, PresenceTable.timestamp(packed));
+    }
+  }
+
+  @Test
+  public void givenUnconfirmedEntry_whenTheTtlPasses_thenItIsNoLongerServed() {
+    table.put(7, ONLINE, 100, NOW);
+
+    assertEquals(100, PresenceTable.timestamp(table.get(7, NOW + PresenceTable.ENTRY_TTL_MILLIS - 1)));
+    assertEquals(PresenceTable.ABSENT, table.get(7, NOW + PresenceTable.ENTRY_TTL_MILLIS));
+  }
+
+  @Test
+  public void givenUnchangedButConfirmedEntry_whenTheTtlPasses_thenItIsStillServed() {
+    table.put(7, ONLINE, 100, NOW);
+    table.put(7, ONLINE, 100, NOW + PresenceTable.ENTRY_TTL_MILLIS - 1);
+
+    assertEquals(100, PresenceTable.timestamp(table.get(7, NOW + PresenceTable.ENTRY_TTL_MILLIS)));
+  }
+
+  @Test
+  public void givenExpiredEntriesInProbeRuns_whenIEvict_thenOnlyConfirmedEntriesRemain() {
+    List<Long> colliding = collidingKeys(table.capacity() - 2, 6, table.capacity());
+    long       later     = NOW + PresenceTable.ENTRY_TTL_MILLIS;
+
+    for (int i = 0; i < colliding.size(); i++) table.put(colliding.get(i), ONLINE, i, i % 2 == 0 ? NOW : later);
+
+    table.evictExpired(later);
+
+    assertEquals(3, table.size());
+    for (int i = 0; i < colliding.size(); i++) {
+      if (i % 2 == 0) assertEquals(PresenceTable.ABSENT, table.get(colliding.get(i), later));
+      else            assertEquals(i, PresenceTable.timestamp(table.get(colliding.get(i), later)));
+    }
+  }
+
+  @Test
+  public void givenRecentPush_whenIAskForPushes_thenTheyAreOnlyReportedWithinTheWindow() {
+    assertFalse(table.isReceivingPushes(NOW));
+
+    table.setLastPushAt(NOW);
+
+    assertTrue(table.isReceivingPushes(NOW));
+    assertTrue(table.isReceivingPushes(NOW + PresenceTable.PUSH_WINDOW_MILLIS - 1));
+    assertFalse(table.isReceivingPushes(NOW + PresenceTable.PUSH_WINDOW_MILLIS));
+    assertFalse(table.isReceivingPushes(NOW - 1));
+  }
+
+  private static List<Long> collidingKeys(int home, int count, int capacity) {
+    List<Long> keys = new ArrayList<>(count);
+
+    for (long key = 1; keys.size() < count; key++) {
+      if (PresenceTable.homeOf(key, capacity - 1) == home) keys.add(key);
+    }
+
+    return keys;
+  }
+}
@@ -0,0 +1,151 @@
+package com.unfacd.android.utils;
+
+import android.app.Application;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unfacd.android.utils.StateSyncVersions.Section;
+import com.unfacd.android.utils.StateSyncVersions.Stored;
+import com.unfacd.android.utils.StateSyncVersions.Token;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class StateSyncVersionsTest {
+
+  private static final long NOW = 1_000_000_000_000L;
+
+  private static final String FENCES = "{\"fences\":[{\"fid\":1},{\"fid\":2}],\"fences_invited\":[]}";
+
+  @Test
+  public void givenSameInput_whenIDigest_thenDigestIsStableAndHex() {
+    String digest = StateSyncVersions.digest("[{\"fid\":1}]");
+
+    assertEquals(digest, StateSyncVersions.digest("[{\"fid\":1}]"));
+    assertEquals(64, digest.length());
+    assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", StateSyncVersions.digest(""));
+    assertNotEquals(digest, StateSyncVersions.digest("[{\"fid\":2}]"));
+  }
+
+  @Test
+  public void givenNothingStored_whenICheckPresentSection_thenItIsApplied() throws IOException {
+    assertNotNull(StateSyncVersions.checkSection(tree(FENCES), Section.FENCES, 3, null, NOW));
+  }
+
+  @Test
+  public void givenFreshDigest_whenICheckUnchangedSection_thenItIsSkipped() throws IOException {
+    Stored stored = applied(FENCES, Section.FENCES, 3, NOW - 1000);
+
+    assertNull(StateSyncVersions.checkSection(tree(FENCES), Section.FENCES, 3, stored, NOW));
+  }
+
+  @Test
+  public void givenFreshDigest_whenICheckChangedSection_thenItIsApplied() throws IOException {
+    Stored stored = applied(FENCES, Section.FENCES, 3, NOW - 1000);
+
+    assertNotNull(StateSyncVersions.checkSection(tree("{\"fences\":[{\"fid\":1}]}"), Section.FENCES, 4, stored, NOW));
+  }
+
+  @Test
+  public void givenStaleDigest_whenICheckUnchangedSection_thenItIsAppliedAnyway() throws IOException {
+    Stored stored = applied(FENCES, Section.FENCES, 3, NOW - StateSyncVersions.FULL_SYNC_INTERVAL);
+
+    assertNotNull(StateSyncVersions.checkSection(tree(FENCES), Section.FENCES, 3, stored, NOW));
+  }
+
+  @Test
+  public void givenDigestFromTheFuture_whenICheckUnchangedSection_thenItIsApplied() throws IOException {
+    Stored stored = applied(FENCES, Section.FENCES, 3, NOW + 1000);
+
+    assertNotNull(StateSyncVersions.checkSection(tree(FENCES), Section.FENCES, 3, stored, NOW));
+  }
+
+  @Test
+  public void givenAdvertisedVersion_whenServerOmitsSection_thenItIsSkippedEvenIfStale() throws IOException {
+    Stored fresh = applied(FENCES, Section.FENCES, 3, NOW - 1000);
+    Stored stale = applied(FENCES, Section.FENCES, 3, NOW - 2 * StateSyncVersions.FULL_SYNC_INTERVAL);
+
+    assertNull(StateSyncVersions.checkSection(tree("{}"), Section.FENCES, 3, fresh, NOW));
+    assertNull(StateSyncVersions.checkSection(tree("{}"), Section.FENCES, 3, stale, NOW));
+    assertNull(StateSyncVersions.checkSection(tree("{\"fences\":null}"), Section.FENCES, -1, stale, NOW));
+  }
+
+  @Test
+  public void givenNothingStored_whenServerOmitsSection_thenItIsSkipped() throws IOException {
+    assertNull(StateSyncVersions.checkSection(tree("{}"), Section.FENCES_INVITED, -1, null, NOW));
+  }
+
+  @Test
+  public void givenEmptySection_whenICheck_thenItIsApplied() throws IOException {
+    assertNotNull(StateSyncVersions.checkSection(tree(FENCES), Section.FENCES_INVITED, -1, null, NOW));
+  }
+
+  @Test
+  public void givenFreshVersions_whenIBuildHeader_thenEveryKnownVersionIsAdvertised() {
+    Map<Section, Stored> stored = new EnumMap<>(Section.class);
+    stored.put(Section.FENCES, new Stored(12, NOW - 1000, "a"));
+    stored.put(Section.USER_PREFS, new Stored(3, NOW - 2000, "b"));
+    stored.put(Section.SHARED_LISTS, new Stored(-1, NOW - 2000, "c"));
+
+    assertEquals("fences:12,user_prefs:3", StateSyncVersions.asHeaderValue(stored, NOW));
+  }
+
+  @Test
+  public void givenAnyStaleSection_whenIBuildHeader_thenNothingIsAdvertised() {
+    Map<Section, Stored> stored = new EnumMap<>(Section.class);
+    stored.put(Section.FENCES, new Stored(12, NOW - 1000, "a"));
+    stored.put(Section.USER_PREFS, new Stored(3, NOW - StateSyncVersions.FULL_SYNC_INTERVAL, "b"));
+
+    assertNull(StateSyncVersions.asHeaderValue(stored, NOW));
+  }
+
+  @Test
+  public void givenNoVersions_whenIBuildHeader_thenNothingIsAdvertised() {
+    Map<Section, Stored> stored = new EnumMap<>(Section.class);
+    stored.put(Section.FENCES, new Stored(-1, NOW, "a"));
+
+    assertNull(StateSyncVersions.asHeaderValue(stored, NOW));
+    assertNull(StateSyncVersions.asHeaderValue(new EnumMap<>(Section.class), NOW));
+  }
+
+  @Test
+  public void givenStored_whenISerialize_thenItParsesBack() {
+    Stored stored = StateSyncVersions.Stored.parse(new Stored(7, NOW, "abc").serialize());
+
+    assertEquals("fences:7", StateSyncVersions.asHeaderValue(single(stored), NOW));
+    assertNotNull(StateSyncVersions.Stored.parse(new Stored(7, NOW, null).serialize()));
+    assertNull(StateSyncVersions.Stored.parse("garbage"));
+    assertNull(StateSyncVersions.Stored.parse(""));
+    assertNull(StateSyncVersions.Stored.parse(null));
+  }
+
+  private static Stored applied(String json, Section section, long version, long appliedAt) throws IOException {
+    Token token = StateSyncVersions.checkSection(tree(json), section, version, null, appliedAt);
+
+    assertNotNull(token);
+    return token.appliedAt(appliedAt);
+  }
+
+  private static Map<Section, Stored> single(Stored stored) {
+    Map<Section, Stored> map = new EnumMap<>(Section.class);
+    map.put(Section.FENCES, stored);
+    return map;
+  }
+
+  private static JsonNode tree(String json) throws IOException {
+    return new ObjectMapper().readTree(json);
+  }
+}
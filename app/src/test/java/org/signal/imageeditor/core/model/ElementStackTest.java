@@ -0,0 +1,277 @@
+package org.signal.imageeditor.core.model;
+
+import android.app.Application;
+import android.graphics.Matrix;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.imageeditor.core.MutableRenderer;
+import org.signal.imageeditor.core.RendererContext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ElementStackTest {
+
+  private EditorElement root;
+  private EditorElement moved;
+  private EditorElement recoloured;
+
+  @Before
+  public void setUp() {
+    root       = new EditorElement(null);
+    moved      = new EditorElement(new TestRenderer(1));
+    recoloured = new EditorElement(new TestRenderer(2));
+
+    root.addElement(moved);
+    root.addElement(recoloured);
+    root.addElement(new EditorElement(new TestRenderer(3)));
+  }
+
+  @Test
+  public void givenUnchangedElement_whenISerializeItAgain_thenTheSameNodeIsReturned() {
+    byte[] node = moved.getNodeBytes();
+
+    assertSame(node, moved.getNodeBytes());
+
+    moved.getLocalMatrix().setTranslate(10, 0);
+    byte[] movedNode = moved.getNodeBytes();
+
+    assertNotSame(node, movedNode);
+    assertSame(movedNode, moved.getNodeBytes());
+
+    TestRenderer.of(moved).setValue(5);
+
+    assertNotSame(movedNode, moved.getNodeBytes());
+  }
+
+  @Test
+  public void givenUnchangedState_whenIPushItTwice_thenOnlyTheFirstIsPushed() {
+    ElementStack stack = new ElementStack(10);
+
+    assertTrue(stack.tryPush(root));
+    assertFalse(stack.tryPush(root));
+    assertFalse(stack.stackContainsStateDifferentFrom(root));
+  }
+
+  @Test
+  public void givenMovedElement_whenIPush_thenItIsPushed() {
+    ElementStack stack = new ElementStack(10);
+    stack.tryPush(root);
+
+    moved.getLocalMatrix().setTranslate(10, 0);
+
+    assertTrue(stack.stackContainsStateDifferentFrom(root));
+    assertTrue(stack.tryPush(root));
+  }
+
+  @Test
+  public void givenRendererChangedInPlace_whenIPush_thenItIsPushed() {
+    ElementStack stack = new ElementStack(10);
+    stack.tryPush(root);
+
+    TestRenderer.of(recoloured).setValue(20);
+
+    assertTrue(stack.tryPush(root));
+  }
+
+  @Test
+  public void givenEditsPushed_whenIPop_thenEarlierStatesComeBackInOrder() {
+    ElementStack stack = new ElementStack(10);
+
+    stack.tryPush(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+    stack.tryPush(root);
+    TestRenderer.of(recoloured).setValue(20);
+
+    EditorElement first = stack.pop(root);
+
+    assertEquals(10, translateX(child(first, moved)), 0);
+    assertEquals(2, TestRenderer.of(child(first, recoloured)).value);
+
+    EditorElement second = stack.pop(first);
+
+    assertEquals(0, translateX(child(second, moved)), 0);
+    assertNull(stack.pop(second));
+  }
+
+  @Test
+  public void givenTopEqualToCurrentState_whenIPop_thenItIsSkipped() {
+    ElementStack stack = new ElementStack(10);
+
+    stack.tryPush(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+    stack.tryPush(root);
+
+    EditorElement popped = stack.pop(root);
+
+    assertEquals(0, translateX(child(popped, moved)), 0);
+    assertNull(stack.pop(root));
+  }
+
+  @Test
+  public void givenOnlyEqualStates_whenIPop_thenNothingIsReturned() {
+    ElementStack stack = new ElementStack(10);
+
+    assertNull(stack.pop(root));
+
+    stack.tryPush(root);
+
+    assertNull(stack.pop(root));
+  }
+
+  @Test
+  public void givenMoreStatesThanTheLimit_whenIPush_thenTheFirstStateIsKept() {
+    ElementStack stack = new ElementStack(3);
+
+    for (int i = 0; i < 5; i++) {
+      moved.getLocalMatrix().setTranslate(i, 0);
+      stack.tryPush(root);
+    }
+
+    moved.getLocalMatrix().setTranslate(100, 0);
+
+    EditorElement state = root;
+    for (float expected : new float[] { 4, 3, 0 }) {
+      state = stack.pop(state);
+      assertEquals(expected, translateX(child(state, moved)), 0);
+    }
+
+    assertNull(stack.pop(state));
+  }
+
+  @Test
+  public void givenPoppedState_whenIPushItUnchanged_thenItIsNotMarshalledAgain() {
+    ElementStack stack = new ElementStack(10);
+
+    stack.tryPush(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+
+    EditorElement popped      = stack.pop(root);
+    EditorElement poppedChild = child(popped, recoloured);
+    byte[]        node        = poppedChild.getNodeBytes();
+
+    assertTrue(stack.tryPush(popped));
+    assertSame(node, poppedChild.getNodeBytes());
+    assertFalse(stack.tryPush(popped));
+  }
+
+  @Test
+  public void givenStack_whenIParcelAndRestoreIt_thenItPopsTheSameStates() {
+    ElementStack stack = new ElementStack(3);
+
+    for (int i = 0; i < 5; i++) {
+      moved.getLocalMatrix().setTranslate(i, 0);
+      TestRenderer.of(recoloured).setValue(i * 10);
+      stack.tryPush(root);
+    }
+
+    ElementStack restored = parcelRoundTrip(stack);
+
+    moved.getLocalMatrix().setTranslate(100, 0);
+
+    EditorElement state = root;
+    for (int expected : new int[] { 4, 3, 0 }) {
+      state = restored.pop(state);
+      assertEquals(expected, translateX(child(state, moved)), 0);
+      assertEquals(expected * 10, TestRenderer.of(child(state, recoloured)).value);
+      assertEquals(3, state.getChildCount());
+    }
+
+    assertNull(restored.pop(state));
+  }
+
+  private static @NonNull ElementStack parcelRoundTrip(@NonNull ElementStack stack) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      stack.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      return ElementStack.CREATOR.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  static @NonNull EditorElement child(@NonNull EditorElement root, @NonNull EditorElement original) {
+    EditorElement child = root.findElementWithId(original.getId());
+    assertNotNull(child);
+    return child;
+  }
+
+  static float translateX(@NonNull EditorElement element) {
+    float[] values = new float[9];
+    element.getLocalMatrix().getValues(values);
+    return values[Matrix.MTRANS_X];
+  }
+
+  /**
+   * Renderer whose parcelled value can change in place, like text or drawing renderers.
+   */
+  static final class TestRenderer implements MutableRenderer {
+
+    private int value;
+    private int revision;
+
+    TestRenderer(int value) {
+      this.value = value;
+    }
+
+    static @NonNull TestRenderer of(@NonNull EditorElement element) {
+      return (TestRenderer) element.getRenderer();
+    }
+
+    void setValue(int value) {
+      this.value = value;
+      revision++;
+    }
+
+    @Override
+    public int getRevision() {
+      return revision;
+    }
+
+    @Override
+    public void render(@NonNull RendererContext rendererContext) {
+    }
+
+    @Override
+    public boolean hitTest(float x, float y) {
+      return false;
+    }
+
+    @Override
+    public int describeContents() {
+      return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+      dest.writeInt(value);
+    }
+
+    public static final Creator<TestRenderer> CREATOR = new Creator<TestRenderer>() {
+      @Override
+      public TestRenderer createFromParcel(Parcel in) {
+        return new TestRenderer(in.readInt());
+      }
+
+      @Override
+      public TestRenderer[] newArray(int size) {
+        return new TestRenderer[size];
+      }
+    };
+  }
+}
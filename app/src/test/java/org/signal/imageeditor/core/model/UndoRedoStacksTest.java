@@ -0,0 +1,140 @@
+package org.signal.imageeditor.core.model;
+
+import android.app.Application;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.imageeditor.core.model.ElementStackTest.TestRenderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.signal.imageeditor.core.model.ElementStackTest.child;
+import static org.signal.imageeditor.core.model.ElementStackTest.translateX;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class UndoRedoStacksTest {
+
+  private EditorElement  root;
+  private EditorElement  moved;
+  private UndoRedoStacks stacks;
+
+  @Before
+  public void setUp() {
+    root   = new EditorElement(null);
+    moved  = new EditorElement(new TestRenderer(1));
+    stacks = new UndoRedoStacks(10);
+
+    root.addElement(moved);
+  }
+
+  @Test
+  public void givenNoCleanState_whenIAskIfChanged_thenItIs() {
+    assertTrue(stacks.isChanged(root));
+  }
+
+  @Test
+  public void givenCleanState_whenIEditAndRevert_thenItIsOnlyChangedInBetween() {
+    stacks.clear(root);
+
+    assertFalse(stacks.isChanged(root));
+
+    moved.getLocalMatrix().setTranslate(10, 0);
+    assertTrue(stacks.isChanged(root));
+
+    moved.getLocalMatrix().reset();
+    assertFalse(stacks.isChanged(root));
+
+    TestRenderer.of(moved).setValue(2);
+    assertTrue(stacks.isChanged(root));
+  }
+
+  @Test
+  public void givenPushedState_whenNothingChanged_thenThereIsNothingToUndo() {
+    stacks.pushState(root);
+
+    assertFalse(stacks.canUndo(root));
+    assertFalse(stacks.canRedo(root));
+
+    moved.getLocalMatrix().setTranslate(10, 0);
+
+    assertTrue(stacks.canUndo(root));
+  }
+
+  @Test
+  public void givenRedoState_whenIPushANewState_thenRedoIsCleared() {
+    stacks.pushState(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+    stacks.getRedoStack().tryPush(root);
+    moved.getLocalMatrix().setTranslate(20, 0);
+
+    assertTrue(stacks.canRedo(root));
+
+    stacks.pushState(root);
+
+    assertFalse(stacks.canRedo(root));
+  }
+
+  @Test
+  public void givenRedoState_whenIPushAnUnchangedState_thenRedoIsKept() {
+    stacks.pushState(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+    stacks.getRedoStack().tryPush(root);
+    moved.getLocalMatrix().reset();
+
+    stacks.pushState(root);
+
+    assertTrue(stacks.canRedo(root));
+  }
+
+  @Test
+  public void givenStacks_whenIParcelAndRestoreThem_thenUndoRedoAndCleanStateSurvive() {
+    stacks.clear(root);
+    moved.getLocalMatrix().setTranslate(10, 0);
+    stacks.pushState(root);
+    moved.getLocalMatrix().setTranslate(20, 0);
+    stacks.getRedoStack().tryPush(root);
+    moved.getLocalMatrix().setTranslate(30, 0);
+
+    UndoRedoStacks restored = parcelRoundTrip(stacks);
+
+    assertTrue(restored.isChanged(root));
+    assertTrue(restored.canUndo(root));
+    assertTrue(restored.canRedo(root));
+
+    EditorElement undone = restored.getUndoStack().pop(root);
+    assertNotNull(undone);
+    assertEquals(10, translateX(child(undone, moved)), 0);
+
+    EditorElement redone = restored.getRedoStack().pop(root);
+    assertNotNull(redone);
+    assertEquals(20, translateX(child(redone, moved)), 0);
+
+    moved.getLocalMatrix().reset();
+    assertFalse(restored.isChanged(root));
+  }
+
+  @Test
+  public void givenNoCleanState_whenIParcelAndRestore_thenItIsStillChanged() {
+    assertTrue(parcelRoundTrip(stacks).isChanged(root));
+  }
+
+  private static @NonNull UndoRedoStacks parcelRoundTrip(@NonNull UndoRedoStacks stacks) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      stacks.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      return UndoRedoStacks.CREATOR.createFromParcel(parcel);
+    } finally {
+      parcel.recycle();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.Conversions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class BackupFramePipelineTest {
+
+  private static final byte[] CIPHER_KEY = bytes(32, 1);
+  private static final byte[] MAC_KEY    = bytes(32, 2);
+
+  @Test
+  public void givenMixOfFramesAndStreams_whenIWriteThemThroughThePipeline_thenOutputMatchesTheSequentialEncoder() throws Exception {
+    List<Entry> entries = entries(new Random(42), 400);
+    byte[]      iv      = bytes(16, 3);
+
+    assertArrayEquals(sequential(entries, iv), pipelined(entries, iv));
+  }
+
+  @Test
+  public void givenCounterAboutToOverflow_whenIWriteThroughThePipeline_thenOutputMatchesTheSequentialEncoder() throws Exception {
+    List<Entry> entries = entries(new Random(7), 20);
+    byte[]      iv      = bytes(16, 4);
+
+    Conversions.intToByteArray(iv, 0, Integer.MAX_VALUE - 5);
+
+    assertArrayEquals(sequential(entries, iv), pipelined(entries, iv));
+  }
+
+  @Test
+  public void givenNoFrames_whenIFinish_thenNothingIsWritten() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    try (BackupFramePipeline pipeline = new BackupFramePipeline(output, CIPHER_KEY, MAC_KEY, bytes(16, 5))) {
+      pipeline.finish();
+    }
+
+    assertEquals(0, output.size());
+  }
+
+  @Test
+  public void givenStreamShorterThanDeclared_whenIFinish_thenTheExportFails() throws Exception {
+    try (BackupFramePipeline pipeline = new BackupFramePipeline(new ByteArrayOutputStream(), CIPHER_KEY, MAC_KEY, bytes(16, 6))) {
+      pipeline.write(bytes(20, 7), new ByteArrayInputStream(bytes(100, 8)), 101);
+      pipeline.finish();
+      fail();
+    } catch (IOException e) {
+      assertEquals("Size mismatch!", e.getMessage());
+    }
+  }
+
+  @Test
+  public void givenFailingOutput_whenIClose_thenEveryStreamHandedOverIsClosed() throws Exception {
+    List<TrackingStream> streams  = new ArrayList<>();
+    BackupFramePipeline  pipeline = new BackupFramePipeline(new FailingOutputStream(), CIPHER_KEY, MAC_KEY, bytes(16, 9));
+
+    try {
+      for (int i = 0; i < 500; i++) {
+        TrackingStream stream = new TrackingStream(bytes(1000, i));
+        streams.add(stream);
+        pipeline.write(bytes(20, i), stream, 1000);
+      }
+      fail();
+    } catch (IOException e) {
+      assertEquals("Disk full", e.getMessage());
+    } finally {
+      pipeline.close();
+    }
+
+    for (TrackingStream stream : streams) {
+      assertTrue(stream.closed);
+    }
+  }
+
+  private static @NonNull byte[] pipelined(@NonNull List<Entry> entries, @NonNull byte[] iv) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    try (BackupFramePipeline pipeline = new BackupFramePipeline(output, CIPHER_KEY, MAC_KEY, iv)) {
+      for (Entry entry : entries) {
+        if (entry.stream == null) pipeline.write(entry.frame);
+        else                      pipeline.write(entry.frame, new ByteArrayInputStream(entry.stream), entry.stream.length);
+      }
+
+      pipeline.finish();
+    }
+
+    return output.toByteArray();
+  }
+
+  /**
+   * What FullBackupExporter's BackupFrameOutputStream wrote before frames went through the pipeline.
+   */
+  private static @NonNull byte[] sequential(@NonNull List<Entry> entries, @NonNull byte[] initialIv) throws Exception {
+    ByteArrayOutputStream out     = new ByteArrayOutputStream();
+    Cipher                cipher  = Cipher.getInstance("AES/CTR/NoPadding");
+    Mac                   mac     = Mac.getInstance("HmacSHA256");
+    byte[]                iv      = initialIv.clone();
+    int                   counter = Conversions.byteArrayToInt(iv);
+
+    mac.init(new SecretKeySpec(MAC_KEY, "HmacSHA256"));
+
+    for (Entry entry : entries) {
+      Conversions.intToByteArray(iv, 0, counter++);
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CIPHER_KEY, "AES"), new IvParameterSpec(iv));
+
+      byte[] frameCiphertext = cipher.doFinal(entry.frame);
+      byte[] frameMac        = mac.doFinal(frameCiphertext);
+
+      out.write(Conversions.intToByteArray(frameCiphertext.length + 10));
+      out.write(frameCiphertext);
+      out.write(frameMac, 0, 10);
+
+      if (entry.stream != null) {
+        Conversions.intToByteArray(iv, 0, counter++);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CIPHER_KEY, "AES"), new IvParameterSpec(iv));
+        mac.update(iv);
+
+        InputStream in     = new ByteArrayInputStream(entry.stream);
+        byte[]      buffer = new byte[8192];
+        int         read;
+
+        while ((read = in.read(buffer)) != -1) {
+          byte[] ciphertext = cipher.update(buffer, 0, read);
+
+          if (ciphertext != null) {
+            out.write(ciphertext);
+            mac.update(ciphertext);
+          }
+        }
+
+        byte[] remainder = cipher.doFinal();
+        out.write(remainder);
+        mac.update(remainder);
+
+        out.write(mac.doFinal(), 0, 10);
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  private static @NonNull List<Entry> entries(@NonNull Random random, int count) {
+    int[]       streamLengths = { 0, 1, 15, 16, 8192, 64 * 1024, 64 * 1024 + 1, 300_000 };
+    List<Entry> entries       = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      byte[] frame = new byte[1 + random.nextInt(400)];
+      random.nextBytes(frame);
+
+      byte[] stream = null;
+
+      if (i % 5 == 0) {
+        stream = new byte[streamLengths[(i / 5) % streamLengths.length]];
+        random.nextBytes(stream);
+      }
+
+      entries.add(new Entry(frame, stream));
+    }
+
+    return entries;
+  }
+
+  private static @NonNull byte[] bytes(int length, int seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class Entry {
+    private final byte[] frame;
+    private final byte[] stream;
+
+    private Entry(@NonNull byte[] frame, @Nullable byte[] stream) {
+      this.frame  = frame;
+      this.stream = stream;
+    }
+  }
+
+  private static final class FailingOutputStream extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      throw new IOException("Disk full");
+    }
+  }
+
+  private static final class TrackingStream extends ByteArrayInputStream {
+    private volatile boolean closed;
+
+    private TrackingStream(@NonNull byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.FenceLocationDatabase.Tile;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.thoughtcrime.securesms.database.FenceLocationDatabase.MAX_TILE_REACH;
+import static org.thoughtcrime.securesms.database.FenceLocationDatabase.cellLat;
+import static org.thoughtcrime.securesms.database.FenceLocationDatabase.cellLon;
+import static org.thoughtcrime.securesms.database.FenceLocationDatabase.tileOf;
+import static org.thoughtcrime.securesms.database.FenceLocationDatabase.tilesWithin;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class FenceLocationDatabaseTest_tiles {
+
+  @Test
+  public void givenCoordinates_whenIBucketThem_thenCellsCountFromTheSouthPoleAndAntimeridian() {
+    assertEquals(0, cellLat(-90));
+    assertEquals(0, cellLon(-180));
+    assertEquals(1800, cellLat(0));
+    assertEquals(3600, cellLon(0));
+    assertEquals(1799, cellLat(-0.01));
+    assertEquals(3599, cellLon(-0.01));
+    assertEquals(1801, cellLat(0.051));
+    assertEquals(7199, cellLon(179.99));
+  }
+
+  @Test
+  public void givenCoordinatesOutOfRange_whenIBucketThem_thenTheyAreClamped() {
+    assertEquals(cellLat(90), cellLat(95));
+    assertEquals(cellLat(-90), cellLat(-95));
+    assertEquals(cellLon(180), cellLon(190));
+    assertEquals(cellLon(-180), cellLon(-190));
+  }
+
+  @Test
+  public void givenNeighbouringCells_whenIKeyThem_thenEachGetsItsOwnTile() {
+    long tile = tileOf(-33.86, 151.21);
+
+    assertEquals((long) cellLat(-33.86) * 10_000 + cellLon(151.21), tile);
+    assertEquals(tile + 1, tileOf(-33.86, 151.26));
+    assertEquals(tile - 1, tileOf(-33.86, 151.16));
+    assertEquals(tile + 10_000, tileOf(-33.81, 151.21));
+    assertEquals(tile - 10_000, tileOf(-33.91, 151.21));
+    assertEquals(tile, tileOf(-33.87, 151.24));
+  }
+
+  @Test
+  public void givenCellsEitherSideOfTheAntimeridian_whenIKeyThem_thenTheyAreDifferentTiles() {
+    assertEquals(tileOf(10, -179.99) + 7199, tileOf(10, 179.99));
+  }
+
+  @Test
+  public void givenTile_whenIKeyItsCentre_thenItIsTheSameTile() {
+    double[][] points = { { -33.86, 151.21 }, { 51.51, -0.12 }, { -89.99, -179.99 }, { 89.99, 179.99 }, { 0.01, -0.01 } };
+
+    for (double[] point : points) {
+      Tile tile = Tile.of(point[0], point[1]);
+
+      assertEquals(tileOf(point[0], point[1]), keyOf(tile));
+      assertEquals(point[0], tile.getCentreLatitude(), FenceLocationDatabase.CELL_DEGREES / 2);
+      assertEquals(point[1], tile.getCentreLongitude(), FenceLocationDatabase.CELL_DEGREES / 2);
+    }
+  }
+
+  @Test
+  public void givenBoundsInsideOneCell_whenIListItsTiles_thenOnlyThatTileIsReturned() {
+    List<Tile> tiles = tilesWithin(-33.86, 151.21, -33.855, 151.215);
+
+    assertEquals(1, tiles.size());
+    assertEquals(tileOf(-33.86, 151.21), keyOf(tiles.get(0)));
+  }
+
+  @Test
+  public void givenBoundsSpanningThreeByThreeCells_whenIListItsTiles_thenEveryTileIsReturnedCentreFirst() {
+    List<Tile> tiles = tilesWithin(-33.91, 151.16, -33.81, 151.26);
+
+    assertEquals(9, tiles.size());
+    assertEquals(tileOf(-33.86, 151.21), keyOf(tiles.get(0)));
+    assertEquals(9, keysOf(tiles).size());
+
+    for (double lat : new double[] { -33.91, -33.86, -33.81 }) {
+      for (double lon : new double[] { 151.16, 151.21, 151.26 }) {
+        assertTrue(keysOf(tiles).contains(tileOf(lat, lon)));
+      }
+    }
+  }
+
+  @Test
+  public void givenBoundsStraddlingTheAntimeridian_whenIListItsTiles_thenBothSidesAreReturned() {
+    List<Tile> tiles = tilesWithin(10.01, 179.93, 10.04, -179.93);
+    Set<Long>  keys  = keysOf(tiles);
+
+    assertEquals(4, tiles.size());
+    assertTrue(keys.contains(tileOf(10.02, 179.93)));
+    assertTrue(keys.contains(tileOf(10.02, 179.99)));
+    assertTrue(keys.contains(tileOf(10.02, -179.99)));
+    assertTrue(keys.contains(tileOf(10.02, -179.93)));
+  }
+
+  @Test
+  public void givenWholeWorldInView_whenIListItsTiles_thenOnlyTilesNearTheCentreAreReturned() {
+    List<Tile> tiles  = tilesWithin(-85, -180, 85, 180);
+    int        centre = cellLat(0);
+    int        span   = 2 * MAX_TILE_REACH + 1;
+
+    assertEquals(span * span, tiles.size());
+    assertEquals(span * span, keysOf(tiles).size());
+
+    for (Tile tile : tiles) {
+      assertTrue(Math.abs(cellLat(tile.getCentreLatitude()) - centre) <= MAX_TILE_REACH);
+      assertTrue(Math.abs(cellLon(tile.getCentreLongitude()) - cellLon(0)) <= MAX_TILE_REACH);
+    }
+  }
+
+  @Test
+  public void givenLargeBounds_whenIListItsTiles_thenTheyAreOrderedByDistanceFromTheCentre() {
+    List<Tile> tiles     = tilesWithin(-34.5, 150.5, -33.5, 151.5);
+    Tile       centre    = tiles.get(0);
+    int        lastReach = 0;
+
+    for (Tile tile : tiles) {
+      int reach = Math.max(Math.abs(cellLat(tile.getCentreLatitude()) - cellLat(centre.getCentreLatitude())),
+                           Math.abs(cellLon(tile.getCentreLongitude()) - cellLon(centre.getCentreLongitude())));
+
+      assertTrue(reach >= lastReach);
+      lastReach = reach;
+    }
+
+    assertEquals(MAX_TILE_REACH, lastReach);
+  }
+
+  private static long keyOf(@NonNull Tile tile) {
+    return tileOf(tile.getCentreLatitude(), tile.getCentreLongitude());
+  }
+
+  private static @NonNull Set<Long> keysOf(@NonNull List<Tile> tiles) {
+    Set<Long> keys = new HashSet<>();
+    for (Tile tile : tiles) {
+      keys.add(keyOf(tile));
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.groups.GroupId;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The sender and requester checks in MessageContentProcessor, the target check in ResendMessageJob and the group scan
+ * in IdentityUtil all gate on {@link GroupDatabase.GroupRecord#containsMember(Recipient)}. Members are stored as
+ * Addresses, so those checks used to test a list of Addresses for a RecipientId and never matched.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class GroupRecordTest_containsMember {
+
+  private static final String MEMBER       = "0GV1QH2DZ0W8C8JKE7N1Q4XM2A";
+  private static final String OTHER_MEMBER = "01000000000000000000000001";
+  private static final String STRANGER     = "7ZZZZZZZZZZZZZZZZZZZZZZZZZ";
+
+  @Test
+  public void givenMember_whenICheckMembership_thenItMatches() {
+    GroupDatabase.GroupRecord group = group(MEMBER + "," + OTHER_MEMBER);
+
+    assertTrue(group.containsMember(recipient(1, MEMBER)));
+    assertTrue(group.containsMember(recipient(2, OTHER_MEMBER)));
+  }
+
+  @Test
+  public void givenNonMember_whenICheckMembership_thenItIsRefused() {
+    GroupDatabase.GroupRecord group = group(MEMBER + "," + OTHER_MEMBER);
+
+    assertFalse(group.containsMember(recipient(3, STRANGER)));
+  }
+
+  @Test
+  public void givenRecipientWithoutUfsrvUid_whenICheckMembership_thenItIsRefused() {
+    GroupDatabase.GroupRecord group = group(MEMBER);
+
+    assertFalse(group.containsMember(recipient(1, null)));
+  }
+
+  @Test
+  public void givenEmptyGroup_whenICheckMembership_thenNobodyMatches() {
+    GroupDatabase.GroupRecord group = group("");
+
+    assertFalse(group.containsMember(recipient(1, MEMBER)));
+  }
+
+  @Test
+  public void givenInvitedOnly_whenICheckMembership_thenItIsRefused() {
+    GroupDatabase.GroupRecord group = group(MEMBER, STRANGER);
+
+    assertFalse(group.containsMember(recipient(3, STRANGER)));
+    assertEquals(GroupDatabase.MemberLevel.PENDING_MEMBER, group.memberLevel(recipient(3, STRANGER)));
+  }
+
+  @Test
+  public void givenMember_whenICompareWithItsRecipientId_thenTheOldCheckNeverMatched() {
+    GroupDatabase.GroupRecord group = group(MEMBER);
+
+    //noinspection SuspiciousMethodCalls
+    assertFalse(group.getMembers().contains(RecipientId.from(1)));
+    assertTrue(group.containsMember(recipient(1, MEMBER)));
+  }
+
+  private static @NonNull Recipient recipient(long id, @Nullable String ufsrvUid) {
+    Recipient recipient = mock(Recipient.class);
+    when(recipient.getId()).thenReturn(RecipientId.from(id));
+    when(recipient.getUfsrvUid()).thenReturn(ufsrvUid);
+    return recipient;
+  }
+
+  private static @NonNull GroupDatabase.GroupRecord group(@NonNull String members) {
+    return group(members, null);
+  }
+
+  private static @NonNull GroupDatabase.GroupRecord group(@NonNull String members, @Nullable String membersInvited) {
+    return new GroupDatabase.GroupRecord(GroupId.v1orThrow(new byte[16]), RecipientId.from(100), "Title", members,
+                                         0, null, null, null, true, null, false,
+                                         null, null, 0, null,
+                                         null,
+                                         null, 0.0, 0.0, 0,
+                                         0, 0, 0, 0, 0,
+                                         0, 1, null, membersInvited, null, null, 0,
+                                         Optional.empty());
+  }
+}
@@ -0,0 +1,83 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class BinaryDataSerializerTest {
+
+  private final BinaryDataSerializer serializer = new BinaryDataSerializer();
+
+  @Test
+  public void givenEmptyData_whenIRoundTrip_thenIGetEmptyData() {
+    byte[] serialized = serializer.serialize(Data.EMPTY);
+    Data   data       = serializer.deserialize(serialized);
+
+    assertEquals(0, serialized[0]);
+    assertFalse(data.hasString("a"));
+    assertFalse(data.hasLong("a"));
+  }
+
+  @Test
+  public void givenEveryValueType_whenIRoundTrip_thenAllValuesSurvive() {
+    Data input = new Data.Builder()
+                         .putString("string", "héllo wörld ✓")
+                         .putString("null_string", null)
+                         .putStringArray("string_array", new String[] { "a", null, "" })
+                         .putInt("int", -42)
+                         .putIntArray("int_array", new int[] { Integer.MIN_VALUE, 0, Integer.MAX_VALUE })
+                         .putLong("long", 1234567890123L)
+                         .putLongArray("long_array", new long[] { Long.MIN_VALUE, -1, Long.MAX_VALUE })
+                         .putFloat("float", 1.5f)
+                         .putFloatArray("float_array", new float[] { -0.25f, Float.NaN })
+                         .putDouble("double", Math.PI)
+                         .putDoubleArray("double_array", new double[] { Double.MIN_VALUE, -1e300 })
+                         .putBoolean("boolean", true)
+                         .putBooleanArray("boolean_array", new boolean[] { true, false, true })
+                         .build();
+
+    Data output = serializer.deserialize(serializer.serialize(input));
+
+    assertEquals("héllo wörld ✓", output.getString("string"));
+    assertTrue(output.hasString("null_string"));
+    assertNull(output.getString("null_string"));
+    assertArrayEquals(new String[] { "a", null, "" }, output.getStringArray("string_array"));
+    assertEquals(-42, output.getInt("int"));
+    assertArrayEquals(new int[] { Integer.MIN_VALUE, 0, Integer.MAX_VALUE }, output.getIntegerArray("int_array"));
+    assertEquals(1234567890123L, output.getLong("long"));
+    assertArrayEquals(new long[] { Long.MIN_VALUE, -1, Long.MAX_VALUE }, output.getLongArray("long_array"));
+    assertEquals(1.5f, output.getFloat("float"), 0);
+    assertArrayEquals(new float[] { -0.25f, Float.NaN }, output.getFloatArray("float_array"), 0);
+    assertEquals(Math.PI, output.getDouble("double"), 0);
+    assertArrayEquals(new double[] { Double.MIN_VALUE, -1e300 }, output.getDoubleArray("double_array"), 0);
+    assertTrue(output.getBoolean("boolean"));
+    assertArrayEquals(new boolean[] { true, false, true }, output.getBooleanArray("boolean_array"));
+  }
+
+  @Test
+  public void givenPayloadFromTheJsonSerializer_whenIDeserialize_thenAllValuesSurvive() {
+    Data input  = new Data.Builder().putLong("message_id", 300).putString("name", "ü").putBooleanArray("flags", new boolean[] { true }).build();
+    Data output = serializer.deserialize(new JsonDataSerializer().serialize(input));
+
+    assertEquals(300, output.getLong("message_id"));
+    assertEquals("ü", output.getString("name"));
+    assertArrayEquals(new boolean[] { true }, output.getBooleanArray("flags"));
+  }
+
+  @Test
+  public void givenLegacyTextRowCastToBlob_whenIDeserialize_thenItIsReadThroughTheJsonSerializer() {
+    String json = "{\"strings\":{\"key\":\"value\"},\"stringArrays\":{},\"integers\":{},\"integerArrays\":{},\"longs\":{\"id\":7},\"longArrays\":{},\"floats\":{},\"floatArrays\":{},\"doubles\":{},\"doubleArrays\":{},\"booleans\":{},\"booleanArrays\":{}}";
+
+    Data data = serializer.deserialize(json.getBytes(StandardCharsets.UTF_8));
+
+    assertEquals("value", data.getString("key"));
+    assertEquals(7, data.getLong("id"));
+  }
+}
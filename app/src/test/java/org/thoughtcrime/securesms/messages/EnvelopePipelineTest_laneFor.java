@@ -0,0 +1,31 @@
+package org.thoughtcrime.securesms.messages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public final class EnvelopePipelineTest_laneFor {
+
+  @Test
+  public void lanes_are_within_range() {
+    for (long key = -1000; key < 1000; key++) {
+      int lane = EnvelopePipeline.laneFor(key, 3);
+      assertTrue(lane >= 0 && lane < 3);
+    }
+
+    assertTrue(EnvelopePipeline.laneFor(Long.MIN_VALUE, 3) >= 0);
+    assertTrue(EnvelopePipeline.laneFor(Long.MAX_VALUE, 3) >= 0);
+  }
+
+  @Test
+  public void sequential_fids_spread_over_all_lanes() {
+    int[] hits = new int[4];
+    for (long fid = 1; fid <= 400; fid++) {
+      hits[EnvelopePipeline.laneFor(fid, 4)]++;
+    }
+
+    for (int count : hits) {
+      assertTrue("lane underused: " + count, count > 50);
+    }
+  }
+}
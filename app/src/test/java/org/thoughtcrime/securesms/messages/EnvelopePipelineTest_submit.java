@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public final class EnvelopePipelineTest_submit {
+
+  private static final int LANES     = 4;
+  private static final int PER_FENCE = 100;
+
+  private EnvelopePipeline pipeline;
+
+  @Before
+  public void setUp() {
+    pipeline = new EnvelopePipeline(mock(IncomingMessageProcessor.class), LANES);
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.shutdown();
+  }
+
+  @Test
+  public void interleaved_fences_keep_their_order_and_run_in_parallel() {
+    long fenceA = 1;
+    long fenceB = otherLaneThan(fenceA);
+
+    List<Integer>  orderA     = Collections.synchronizedList(new ArrayList<>());
+    List<Integer>  orderB     = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch bothActive = new CountDownLatch(2);
+    AtomicBoolean  parallel   = new AtomicBoolean(true);
+
+    for (int i = 0; i < PER_FENCE; i++) {
+      int seq = i;
+
+      pipeline.submit(fenceA, () -> record(seq, orderA, bothActive, parallel));
+      pipeline.submit(fenceB, () -> record(seq, orderB, bothActive, parallel));
+    }
+
+    assertTrue(pipeline.awaitIdle(TimeUnit.SECONDS.toMillis(10)));
+    assertTrue("first envelopes of both fences weren't processed at the same time", parallel.get());
+    assertEquals(sequence(), orderA);
+    assertEquals(sequence(), orderB);
+  }
+
+  /**
+   * The first envelope of each fence waits for the other's, which only completes if their lanes run concurrently.
+   */
+  private static void record(int seq, List<Integer> order, CountDownLatch bothActive, AtomicBoolean parallel) {
+    if (seq == 0) {
+      bothActive.countDown();
+      try {
+        if (!bothActive.await(5, TimeUnit.SECONDS)) {
+          parallel.set(false);
+        }
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    order.add(seq);
+  }
+
+  private static long otherLaneThan(long fid) {
+    long other = fid + 1;
+    while (EnvelopePipeline.laneFor(other, LANES) == EnvelopePipeline.laneFor(fid, LANES)) {
+      other++;
+    }
+    assertNotEquals(EnvelopePipeline.laneFor(fid, LANES), EnvelopePipeline.laneFor(other, LANES));
+    return other;
+  }
+
+  private static List<Integer> sequence() {
+    List<Integer> expected = new ArrayList<>(PER_FENCE);
+    for (int i = 0; i < PER_FENCE; i++) {
+      expected.add(i);
+    }
+    return expected;
+  }
+}
@@ -0,0 +1,186 @@
+package org.thoughtcrime.securesms.recipients;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.test.core.app.ApplicationProvider;
+
+import com.unfacd.android.ufsrvuid.RecipientUfsrvId;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+@PowerMockIgnore({ "org.mockito.*", "org.robolectric.*", "android.*", "androidx.*", "org.powermock.*" })
+@PrepareForTest(SignalDatabase.class)
+public final class LiveRecipientCacheTest {
+
+  private static final int CACHE_MAX = 1000;
+
+  @Rule
+  public PowerMockRule powerMockRule = new PowerMockRule();
+
+  private List<Runnable>     queuedResolves;
+  private LiveRecipientCache cache;
+
+  @Before
+  public void setUp() {
+    mockStatic(SignalDatabase.class);
+
+    queuedResolves = new ArrayList<>();
+    cache          = new LiveRecipientCache(ApplicationProvider.getApplicationContext(), queuedResolves::add);
+  }
+
+  @Test
+  public void givenCachedId_whenILookItUpAgain_thenTheSameLiveRecipientIsReturnedAndResolvedOnce() {
+    LiveRecipient live = cache.getLive(RecipientId.from(1));
+
+    assertSame(live, cache.getLive(RecipientId.from(1)));
+    assertEquals(1, queuedResolves.size());
+
+    LiveRecipientCache.Stats stats = cache.getStats();
+    assertEquals(1, stats.getSize());
+    assertEquals(1, stats.getHits());
+    assertEquals(1, stats.getMisses());
+    assertEquals(1, stats.getResolves());
+  }
+
+  @Test
+  public void givenRecipientLookedUpByUfsrvUid_whenItResolves_thenItsIdAndUfsrvIdReturnTheSameLiveRecipient() {
+    LiveRecipient live = cache.getLiveUfsrvUid("uid-1");
+
+    resolve(live, 1, "uid-1", 11);
+
+    assertSame(live, cache.getLive(RecipientId.from(1)));
+    assertSame(live, cache.getLiveUfsrvId(RecipientUfsrvId.from(11), false));
+    assertSame(live, cache.getLiveUfsrvUid("uid-1"));
+    assertEquals(1, queuedResolves.size());
+    assertEquals(1, cache.getStats().getSize());
+  }
+
+  @Test
+  public void givenRecipientCachedById_whenALookupByUfsrvUidResolvesToIt_thenItsKeysAreFoldedIntoTheExistingEntry() {
+    LiveRecipient byId  = cache.getLive(RecipientId.from(1));
+    LiveRecipient byUid = cache.getLiveUfsrvUid("uid-1");
+
+    assertNotSame(byId, byUid);
+    assertEquals(2, cache.getStats().getSize());
+
+    Recipient resolved = resolve(byUid, 1, "uid-1", 11);
+
+    assertSame(byId, cache.getLiveUfsrvUid("uid-1"));
+    assertSame(byId, cache.getLiveUfsrvId(RecipientUfsrvId.from(11), false));
+    assertSame(resolved, byId.get());
+    assertEquals(1, cache.getStats().getSize());
+  }
+
+  @Test
+  public void givenResolvedRecipient_whenIAddItToTheCache_thenEveryKeyReturnsTheSameLiveRecipientWithoutAResolve() {
+    Recipient recipient = recipient(1, "uid-1", 11);
+
+    cache.addToCache(Collections.singletonList(recipient));
+
+    LiveRecipient live = cache.getLive(RecipientId.from(1));
+
+    assertSame(recipient, live.get());
+    assertSame(live, cache.getLiveUfsrvUid("uid-1"));
+    assertSame(live, cache.getLiveUfsrvId(RecipientUfsrvId.from(11), false));
+    assertEquals(0, queuedResolves.size());
+  }
+
+  @Test
+  public void givenFullCache_whenOneMoreRecipientIsCached_thenTheLeastRecentlyUsedTenthIsEvicted() {
+    LiveRecipient[] lives = new LiveRecipient[CACHE_MAX + 1];
+
+    for (int i = 1; i <= CACHE_MAX; i++) {
+      lives[i] = cache.getLive(RecipientId.from(i));
+    }
+
+    cache.getLive(RecipientId.from(1));
+    cache.getLive(RecipientId.from(CACHE_MAX + 1));
+
+    LiveRecipientCache.Stats stats = cache.getStats();
+    assertEquals(CACHE_MAX + 1 - CACHE_MAX / 10, stats.getSize());
+    assertEquals(CACHE_MAX / 10, stats.getEvictions());
+
+    assertSame(lives[1], cache.getLive(RecipientId.from(1)));
+    assertSame(lives[CACHE_MAX / 10 + 2], cache.getLive(RecipientId.from(CACHE_MAX / 10 + 2)));
+    assertNotSame(lives[2], cache.getLive(RecipientId.from(2)));
+  }
+
+  @Test
+  public void givenEntryKnownByEveryKey_whenItIsEvicted_thenNoneOfItsKeysReturnIt() {
+    LiveRecipient live = cache.getLiveUfsrvUid("uid-1");
+    resolve(live, 1, "uid-1", 11);
+    cache.remap(RecipientId.from(5000), RecipientId.from(1));
+
+    for (int i = 2; i <= CACHE_MAX + 1; i++) {
+      cache.getLive(RecipientId.from(i));
+    }
+
+    assertEquals(CACHE_MAX / 10, cache.getStats().getEvictions());
+    assertNotSame(live, cache.getLive(RecipientId.from(1)));
+    assertNotSame(live, cache.getLive(RecipientId.from(5000)));
+    assertNotSame(live, cache.getLiveUfsrvUid("uid-1"));
+    assertNotSame(live, cache.getLiveUfsrvId(RecipientUfsrvId.from(11), false));
+  }
+
+  @Test
+  public void givenMergedRecipient_whenIRemapTheOldId_thenTheOldIdReturnsTheSurvivingLiveRecipient() {
+    LiveRecipient survivor = cache.getLive(RecipientId.from(2));
+
+    cache.remap(RecipientId.from(1), RecipientId.from(2));
+
+    assertSame(survivor, cache.getLive(RecipientId.from(1)));
+    assertEquals(1, cache.getStats().getSize());
+  }
+
+  @Test
+  public void givenUncachedSurvivor_whenIRemapTheOldId_thenTheOldEntryIsDropped() {
+    LiveRecipient old = cache.getLive(RecipientId.from(1));
+
+    cache.remap(RecipientId.from(1), RecipientId.from(2));
+
+    assertNotSame(old, cache.getLive(RecipientId.from(1)));
+  }
+
+  private @NonNull Recipient resolve(@NonNull LiveRecipient live, long id, @NonNull String ufsrvUid, long ufsrvId) {
+    Recipient recipient = recipient(id, ufsrvUid, ufsrvId);
+
+    live.set(recipient);
+    cache.synchroniseUfsrvCache(live);
+
+    return recipient;
+  }
+
+  private static @NonNull Recipient recipient(long id, @NonNull String ufsrvUid, long ufsrvId) {
+    Recipient recipient = mock(Recipient.class);
+
+    when(recipient.getId()).thenReturn(RecipientId.from(id));
+    when(recipient.getUfsrvUid()).thenReturn(ufsrvUid);
+    when(recipient.getUfsrvId()).thenReturn(ufsrvId);
+    when(recipient.hasServiceId()).thenReturn(true);
+
+    return recipient;
+  }
+}
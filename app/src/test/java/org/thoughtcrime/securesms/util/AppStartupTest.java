@@ -0,0 +1,182 @@
+package org.thoughtcrime.securesms.util;
+
+import android.app.Application;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.thoughtcrime.securesms.util.AppStartup.after;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class AppStartupTest {
+
+  private ExecutorService executor;
+  private AppStartup      startup;
+  private List<String>    ran;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+    startup  = new AppStartup(executor);
+    ran      = new CopyOnWriteArrayList<>();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void givenMainThreadTasks_whenIExecute_thenTheyRunInOrderOnTheCallingThread() {
+    Thread caller = Thread.currentThread();
+    List<Thread> threads = new CopyOnWriteArrayList<>();
+
+    startup.addBlocking("a", () -> { ran.add("a"); threads.add(Thread.currentThread()); })
+           .addBlocking("b", () -> { ran.add("b"); threads.add(Thread.currentThread()); })
+           .addBlocking("c", () -> { ran.add("c"); threads.add(Thread.currentThread()); });
+
+    startup.executeBlocking();
+
+    assertEquals(Arrays.asList("a", "b", "c"), ran);
+    assertEquals(Collections.nCopies(3, caller), threads);
+  }
+
+  @Test
+  public void givenBackgroundTask_whenItsDependencyIsSlow_thenItOnlyStartsOnceTheDependencyHasFinished() {
+    AtomicReference<Thread> backgroundThread = new AtomicReference<>();
+
+    startup.addBlockingInBackground("slow", after(), () -> { sleep(100); ran.add("slow"); })
+           .addBlockingInBackground("dependent", after("slow"), () -> { ran.add("dependent"); backgroundThread.set(Thread.currentThread()); });
+
+    startup.executeBlocking();
+
+    assertEquals(Arrays.asList("slow", "dependent"), ran);
+    assertNotSame(Thread.currentThread(), backgroundThread.get());
+  }
+
+  @Test
+  public void givenMainThreadTaskDependingOnABackgroundTask_whenIExecute_thenItWaitsForIt() {
+    startup.addBlockingInBackground("background", after(), () -> { sleep(100); ran.add("background"); })
+           .addBlocking("main", after("background"), () -> ran.add("main"));
+
+    startup.executeBlocking();
+
+    assertEquals(Arrays.asList("background", "main"), ran);
+  }
+
+  @Test
+  public void givenIndependentBackgroundTasks_whenIExecute_thenTheyRunAlongsideEachOtherAndTheMainThread() {
+    CyclicBarrier barrier = new CyclicBarrier(3);
+
+    startup.addBlockingInBackground("first", after(), () -> await(barrier))
+           .addBlockingInBackground("second", after(), () -> await(barrier))
+           .addBlocking("main", () -> await(barrier));
+
+    startup.executeBlocking();
+  }
+
+  @Test
+  public void givenBackgroundTaskStillRunning_whenMainThreadTasksFinish_thenExecuteWaitsForIt() {
+    CountDownLatch mainDone = new CountDownLatch(1);
+    AtomicBoolean  finished = new AtomicBoolean();
+
+    startup.addBlockingInBackground("background", after(), () -> { await(mainDone); sleep(50); finished.set(true); })
+           .addBlocking("main", mainDone::countDown);
+
+    startup.executeBlocking();
+
+    assertTrue(finished.get());
+  }
+
+  @Test
+  public void givenFailingBackgroundTask_whenIExecute_thenItsFailureIsRethrownAndDependentsAreSkipped() {
+    IllegalStateException failure = new IllegalStateException("boom");
+
+    startup.addBlockingInBackground("failing", after(), () -> { throw failure; })
+           .addBlockingInBackground("dependent", after("failing"), () -> ran.add("dependent"))
+           .addBlocking("main", after("dependent"), () -> ran.add("main"));
+
+    try {
+      startup.executeBlocking();
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+
+    assertFalse(ran.contains("dependent"));
+    assertFalse(ran.contains("main"));
+  }
+
+  @Test
+  public void givenFailingMainThreadTask_whenIExecute_thenLaterMainThreadTasksDoNotRun() {
+    startup.addBlocking("failing", () -> { throw new IllegalStateException("boom"); })
+           .addBlocking("later", () -> ran.add("later"));
+
+    try {
+      startup.executeBlocking();
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("boom", e.getMessage());
+    }
+
+    assertTrue(ran.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void givenDependencyAddedLater_whenIAddTheTask_thenItIsRejected() {
+    startup.addBlockingInBackground("early", after("late"), () -> {});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void givenTaskName_whenIAddItTwice_thenItIsRejected() {
+    startup.addBlocking("task", () -> {})
+           .addBlockingInBackground("task", after(), () -> {});
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new AssertionError("Tasks didn't run concurrently", e);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      if (!latch.await(5, TimeUnit.SECONDS)) throw new AssertionError("Timed out");
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
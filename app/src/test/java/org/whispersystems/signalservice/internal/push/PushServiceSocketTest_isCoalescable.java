@@ -0,0 +1,34 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class PushServiceSocketTest_isCoalescable {
+
+  private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+  @Test
+  public void givenPlainGet_whenIAsk_thenItIsCoalescable() {
+    assertTrue(PushServiceSocket.isCoalescable("/V1/Fence/12", "GET", null, NO_HEADERS));
+    assertTrue(PushServiceSocket.isCoalescable("/V1/Account/Keys", "GET", null, NO_HEADERS));
+  }
+
+  @Test
+  public void givenNonceEndpoint_whenIAsk_thenItIsNotCoalescable() {
+    assertFalse(PushServiceSocket.isCoalescable("/V1/Nonce", "GET", null, NO_HEADERS));
+    assertFalse(PushServiceSocket.isCoalescable("/V1/MessageNonce", "GET", null, NO_HEADERS));
+    assertFalse(PushServiceSocket.isCoalescable("/V1/Account/Attachment/", "GET", null, NO_HEADERS));
+  }
+
+  @Test
+  public void givenRequestWithSideEffectsOrCallerSpecificInput_whenIAsk_thenItIsNotCoalescable() {
+    assertFalse(PushServiceSocket.isCoalescable("/V1/Fence/12", "PUT", null, NO_HEADERS));
+    assertFalse(PushServiceSocket.isCoalescable("/V1/Fence/12", "GET", "{}", NO_HEADERS));
+    assertFalse(PushServiceSocket.isCoalescable("/V1/Fence/12", "GET", null, Collections.singletonMap("X-Header", "value")));
+  }
+}
@@ -0,0 +1,380 @@
+package org.whispersystems.signalservice.internal.push;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.whispersystems.signalservice.api.push.exceptions.RangeException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class RangedDownloadTest {
+
+  private static final int SMALL   = 100_000;
+  private static final int LARGE   = 8 * 1024 * 1024;
+  private static final int SEGMENT = LARGE / 4;
+
+  private File directory;
+  private File destination;
+
+  @Before
+  public void setUp() throws IOException {
+    directory   = Files.createTempDirectory("ranged").toFile();
+    destination = new File(directory, "transfer.tmp");
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+
+    if (files != null) {
+      for (File file : files) file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void givenNothingOnDisk_whenIDownload_thenFileAndDigestMatchTheMedia() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+
+    byte[] digest = RangedDownload.toFile(server, destination, SMALL, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertEquals(Collections.singletonList(0L), server.starts());
+  }
+
+  @Test
+  public void givenPartialFile_whenIDownload_thenItResumesFromItsLength() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+    write(destination, server.media, 0, 30_000);
+
+    byte[] digest = RangedDownload.toFile(server, destination, SMALL, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertEquals(Collections.singletonList(30_000L), server.starts());
+  }
+
+  @Test
+  public void givenCorruptPrefix_whenIResume_thenTheDigestDoesNotMatch() throws Exception {
+    FakeServer server  = new FakeServer(media(SMALL));
+    byte[]     corrupt = Arrays.copyOf(server.media, 30_000);
+    corrupt[10]++;
+    write(destination, corrupt, 0, corrupt.length);
+
+    byte[] digest = RangedDownload.toFile(server, destination, SMALL, null, true);
+
+    assertFalse(MessageDigest.isEqual(sha256(server.media), digest));
+  }
+
+  @Test
+  public void givenDroppedConnection_whenIDownload_thenItResumesWithinTheCall() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+    server.dropAfter(0, 40_000);
+
+    byte[] digest = RangedDownload.toFile(server, destination, SMALL, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertEquals(Arrays.asList(0L, 40_000L), server.starts());
+  }
+
+  @Test
+  public void givenLargeMedia_whenIDownloadInParallel_thenRangesAreAppendedInOrder() throws Exception {
+    FakeServer server = new FakeServer(media(LARGE));
+
+    byte[] digest = RangedDownload.toFile(server, destination, LARGE, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertTrue(server.starts().containsAll(Arrays.asList(0L, (long) SEGMENT, 2L * SEGMENT, 3L * SEGMENT)));
+    assertRangeFilesDeleted();
+  }
+
+  @Test
+  public void givenLargeMedia_whenIDownloadSequentially_thenOnlyOneRequestIsMade() throws Exception {
+    FakeServer server = new FakeServer(media(LARGE));
+
+    RangedDownload.toFile(server, destination, LARGE, null, false);
+
+    assertArrayEquals(server.media, read(destination));
+    assertEquals(Collections.singletonList(0L), server.starts());
+  }
+
+  @Test
+  public void givenDroppedRange_whenIDownloadInParallel_thenOnlyThatRangeIsResumed() throws Exception {
+    FakeServer server = new FakeServer(media(LARGE));
+    server.dropAfter(2L * SEGMENT, 1000);
+
+    byte[] digest = RangedDownload.toFile(server, destination, LARGE, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertTrue(server.starts().contains(2L * SEGMENT + 1000));
+    assertRangeFilesDeleted();
+  }
+
+  @Test
+  public void givenRangeFileAlreadyPartlyAppended_whenIResume_thenProgressNeverExceedsTheTotal() throws Exception {
+    FakeServer server = new FakeServer(media(LARGE));
+    write(destination, server.media, 0, SEGMENT + 1000);
+    write(new File(directory, destination.getName() + ".range1"), server.media, SEGMENT, SEGMENT);
+    write(new File(directory, destination.getName() + ".range2"), server.media, 2 * SEGMENT, 500);
+
+    AtomicLong maxProgress = new AtomicLong();
+    AtomicLong lastTotal   = new AtomicLong();
+
+    byte[] digest = RangedDownload.toFile(server, destination, LARGE, (total, progress) -> {
+      lastTotal.set(total);
+      maxProgress.accumulateAndGet(progress, Math::max);
+    }, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertArrayEquals(sha256(server.media), digest);
+    assertEquals(LARGE, lastTotal.get());
+    assertEquals(LARGE, maxProgress.get());
+    assertRangeFilesDeleted();
+  }
+
+  @Test
+  public void givenServerIgnoringRanges_whenIDownloadFromZero_thenItSucceeds() throws Exception {
+    FakeServer server = new FakeServer(media(LARGE));
+    server.honoursRanges = false;
+
+    RangedDownload.toFile(server, destination, LARGE, null, true);
+
+    assertArrayEquals(server.media, read(destination));
+    assertEquals(Collections.singletonList(0L), server.starts());
+  }
+
+  @Test
+  public void givenServerIgnoringRanges_whenIResumeToFile_thenIGetARangeException() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+    server.honoursRanges = false;
+    write(destination, server.media, 0, 30_000);
+
+    try {
+      RangedDownload.toFile(server, destination, SMALL, null, true);
+      fail();
+    } catch (RangeException e) {
+      assertEquals(30_000, destination.length());
+    }
+  }
+
+  @Test
+  public void givenServerIgnoringRanges_whenIResumeInMemory_thenItStartsOver() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+    server.honoursRanges = false;
+    server.dropAfter(0, 40_000);
+
+    AtomicLong maxProgress = new AtomicLong();
+
+    byte[] bytes = RangedDownload.toBytes(server, SMALL, (total, progress) -> maxProgress.accumulateAndGet(progress, Math::max));
+
+    assertArrayEquals(server.media, bytes);
+    assertEquals(Arrays.asList(0L, 40_000L), server.starts());
+    assertEquals(SMALL, maxProgress.get());
+  }
+
+  @Test
+  public void givenDroppedConnection_whenIDownloadInMemory_thenItResumesFromWhatWasRead() throws Exception {
+    FakeServer server = new FakeServer(media(SMALL));
+    server.dropAfter(0, 40_000);
+
+    assertArrayEquals(server.media, RangedDownload.toBytes(server, SMALL, null));
+    assertEquals(Arrays.asList(0L, 40_000L), server.starts());
+  }
+
+  @Test
+  public void givenRangeFiles_whenIDeleteThem_thenTheDestinationIsKept() throws Exception {
+    byte[] media = media(SMALL);
+    write(destination, media, 0, 10);
+    write(new File(directory, destination.getName() + ".range1"), media, 0, 10);
+    write(new File(directory, destination.getName() + ".range3"), media, 0, 10);
+
+    RangedDownload.deleteRangeFiles(destination);
+
+    assertEquals(10, destination.length());
+    assertRangeFilesDeleted();
+  }
+
+  private void assertRangeFilesDeleted() {
+    for (int i = 1; i < 4; i++) {
+      assertFalse(new File(directory, destination.getName() + ".range" + i).exists());
+    }
+  }
+
+  private static byte[] media(int length) {
+    byte[] media = new byte[length];
+    new Random(length).nextBytes(media);
+    return media;
+  }
+
+  private static byte[] sha256(byte[] data) throws Exception {
+    return MessageDigest.getInstance("SHA-256").digest(data);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    return Files.readAllBytes(file.toPath());
+  }
+
+  private static void write(File file, byte[] data, int offset, int length) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(data, offset, length);
+    }
+  }
+
+  /**
+   * Serves the media with or without honouring ranges, dropping the connection once after a given number of bytes
+   * for requests starting at a given offset.
+   */
+  private static final class FakeServer implements RangedDownload.Requester {
+
+    private final byte[]          media;
+    private final List<Long>      starts    = new ArrayList<>();
+    private final Map<Long, Long> dropAfter = new HashMap<>();
+
+    private volatile boolean honoursRanges = true;
+
+    FakeServer(@NonNull byte[] media) {
+      this.media = media;
+    }
+
+    synchronized void dropAfter(long start, long bytes) {
+      dropAfter.put(start, bytes);
+    }
+
+    synchronized @NonNull List<Long> starts() {
+      return new ArrayList<>(starts);
+    }
+
+    @Override
+    public @NonNull Response execute(long start, long end) {
+      Long drop;
+
+      synchronized (this) {
+        starts.add(start);
+        drop = dropAfter.remove(start);
+      }
+
+      if (!honoursRanges) {
+        return response(200, 0, media.length, drop);
+      }
+
+      if (start >= media.length) {
+        return response(416, 0, 0, null);
+      }
+
+      return response(206, (int) start, end == -1 ? media.length : (int) end, drop);
+    }
+
+    private @NonNull Response response(int code, int from, int to, @Nullable Long drop) {
+      InputStream stream = new ByteArrayInputStream(media, from, to - from);
+
+      if (drop != null) {
+        stream = new DroppingInputStream(stream, drop);
+      }
+
+      return new Response.Builder().request(new Request.Builder().url("https://example.com/media").build())
+                                   .protocol(Protocol.HTTP_1_1)
+                                   .code(code)
+                                   .message("")
+                                   .body(new StreamBody(stream, to - from))
+                                   .build();
+    }
+  }
+
+  private static final class StreamBody extends ResponseBody {
+
+    private final BufferedSource source;
+    private final long           length;
+
+    StreamBody(@NonNull InputStream stream, long length) {
+      this.source = Okio.buffer(Okio.source(stream));
+      this.length = length;
+    }
+
+    @Override
+    public @Nullable MediaType contentType() {
+      return null;
+    }
+
+    @Override
+    public long contentLength() {
+      return length;
+    }
+
+    @Override
+    public @NonNull BufferedSource source() {
+      return source;
+    }
+  }
+
+  private static final class DroppingInputStream extends InputStream {
+
+    private final InputStream delegate;
+    private       long        remaining;
+
+    DroppingInputStream(@NonNull InputStream delegate, long remaining) {
+      this.delegate  = delegate;
+      this.remaining = remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (remaining <= 0) {
+        throw new IOException("Connection dropped");
+      }
+
+      int read = delegate.read(buffer, offset, (int) Math.min(length, remaining));
+
+      if (read > 0) remaining -= read;
+
+      return read;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public final class ServiceTransportMetricsTest {
+
+  private static final List<ServiceTransportMetrics.EndpointTemplate> TEMPLATES = ServiceTransportMetrics.templates(
+      "/V1/Fence",
+      "/V1/Fence/%d",
+      "/V1/Fence/NearBy",
+      "/V1/Fence/Info/%s",
+      "/V1/Message/Gid/%d/%d",
+      "/V1/Account/Keys",
+      "/V1/Account/Keys/PreKeys/%s/%s",
+      "/v1/subscription/boost/badges?since=%d"
+  );
+
+  @Test
+  public void givenPathWithoutPlaceholders_whenIResolveIt_thenItIsItsOwnTemplate() {
+    assertEquals("/V1/Fence", ServiceTransportMetrics.endpointOf("/V1/Fence", TEMPLATES));
+    assertEquals("/V1/Account/Keys", ServiceTransportMetrics.endpointOf("/V1/Account/Keys", TEMPLATES));
+  }
+
+  @Test
+  public void givenFormattedPath_whenIResolveIt_thenTheTemplateIsReturnedWithoutTheValues() {
+    assertEquals("/V1/Fence/%d", ServiceTransportMetrics.endpointOf("/V1/Fence/379423644163506195", TEMPLATES));
+    assertEquals("/V1/Message/Gid/%d/%d", ServiceTransportMetrics.endpointOf("/V1/Message/Gid/12/34", TEMPLATES));
+    assertEquals("/V1/Account/Keys/PreKeys/%s/%s", ServiceTransportMetrics.endpointOf("/V1/Account/Keys/PreKeys/uid/1", TEMPLATES));
+  }
+
+  @Test
+  public void givenPathMatchingSeveralTemplates_whenIResolveIt_thenTheMostLiteralOneWins() {
+    assertEquals("/V1/Fence/NearBy", ServiceTransportMetrics.endpointOf("/V1/Fence/NearBy", TEMPLATES));
+    assertEquals("/V1/Fence/Info/%s", ServiceTransportMetrics.endpointOf("/V1/Fence/Info/abc", TEMPLATES));
+  }
+
+  @Test
+  public void givenPathWithQuery_whenIResolveIt_thenTheQueryIsIgnored() {
+    assertEquals("/V1/Fence/%d", ServiceTransportMetrics.endpointOf("/V1/Fence/12?full=true", TEMPLATES));
+    assertEquals("/v1/subscription/boost/badges", ServiceTransportMetrics.endpointOf("/v1/subscription/boost/badges?since=99", TEMPLATES));
+  }
+
+  @Test
+  public void givenUnknownPath_whenIResolveIt_thenItIsReportedAsOther() {
+    assertEquals("other", ServiceTransportMetrics.endpointOf("/V1/Unknown", TEMPLATES));
+    assertEquals("other", ServiceTransportMetrics.endpointOf("/V1/FenceX", TEMPLATES));
+    assertEquals("other", ServiceTransportMetrics.endpointOf("/V1/Account/Keys/Extra", TEMPLATES));
+  }
+}
@@ -0,0 +1,182 @@
+package org.whispersystems.signalservice.internal.push;
+
+import org.junit.Test;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ServiceTransportTest {
+
+  @Test
+  public void givenCallInFlight_whenTheSameCallIsMade_thenItWaitsForAndSharesTheResult() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+
+    Concurrent concurrent = new Concurrent("user /V1/Fence/1", () -> "fences " + calls.incrementAndGet());
+
+    assertEquals("fences 1", concurrent.leader.get(5, TimeUnit.SECONDS));
+    assertEquals("fences 1", concurrent.follower.get(5, TimeUnit.SECONDS));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void givenCallInFlight_whenItFails_thenTheWaitingCallFailsTheSameWay() throws Exception {
+    NonSuccessfulResponseCodeException failure = new NonSuccessfulResponseCodeException(500);
+
+    Concurrent concurrent = new Concurrent("user /V1/Fence/2", () -> {
+      throw failure;
+    });
+
+    assertSame(failure, causeOf(concurrent.leader));
+    assertSame(failure, causeOf(concurrent.follower));
+  }
+
+  @Test
+  public void givenCallInFlight_whenItThrowsUnchecked_thenTheWaitingCallGetsItToo() throws Exception {
+    IllegalStateException failure = new IllegalStateException();
+
+    Concurrent concurrent = new Concurrent("user /V1/Fence/3", () -> {
+      throw failure;
+    });
+
+    assertSame(failure, causeOf(concurrent.leader));
+    assertSame(failure, causeOf(concurrent.follower));
+  }
+
+  @Test
+  public void givenCompletedCall_whenTheSameCallIsMadeAgain_thenItIsMadeAgain() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+
+    assertEquals(Integer.valueOf(1), ServiceTransport.coalesce("user /V1/Fence/4", "test", calls::incrementAndGet));
+    assertEquals(Integer.valueOf(2), ServiceTransport.coalesce("user /V1/Fence/4", "test", calls::incrementAndGet));
+  }
+
+  @Test
+  public void givenFailedCall_whenTheSameCallIsMadeAgain_thenItIsMadeAgain() throws Exception {
+    try {
+      ServiceTransport.coalesce("user /V1/Fence/5", "test", () -> { throw new NonSuccessfulResponseCodeException(500); });
+      fail();
+    } catch (NonSuccessfulResponseCodeException e) {
+      // expected
+    }
+
+    assertEquals("fences", ServiceTransport.coalesce("user /V1/Fence/5", "test", () -> "fences"));
+  }
+
+  @Test
+  public void givenCallInFlight_whenADifferentCallIsMade_thenItIsNotCoalesced() throws Exception {
+    CountDownLatch  release  = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<String> first = executor.submit(() -> ServiceTransport.coalesce("user /V1/Fence/6", "test", () -> {
+        await(release);
+        return "first";
+      }));
+
+      assertEquals("second", ServiceTransport.coalesce("other /V1/Fence/6", "test", () -> "second"));
+
+      release.countDown();
+      assertEquals("first", first.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void givenCoalescedCall_whenIReadTheMetrics_thenItIsCounted() throws Exception {
+    new Concurrent("user /V1/Fence/7", () -> "fences").follower.get(5, TimeUnit.SECONDS);
+
+    for (String line : ServiceTransportMetrics.getInstance().toString().split("\n")) {
+      if (line.startsWith("user /V1/Fence/7 ")) {
+        assertTrue(line, line.contains("coalesced: 1,"));
+        return;
+      }
+    }
+
+    fail("No stats for the coalesced endpoint");
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static Throwable causeOf(Future<?> future) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      throw new AssertionError("Expected a failure");
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+  }
+
+  /**
+   * Makes the same call from two threads, holding the first in flight until the second is waiting on it. The key doubles
+   * as the endpoint the calls are counted against.
+   */
+  private static final class Concurrent {
+    private final Future<String> leader;
+    private final Future<String> follower;
+
+    Concurrent(String key, ServiceTransport.ServiceCall<String> call) throws Exception {
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      CountDownLatch  started  = new CountDownLatch(1);
+      Thread[]        waiting  = new Thread[1];
+
+      leader = executor.submit(() -> ServiceTransport.coalesce(key, key, () -> {
+        started.countDown();
+        awaitWaiting(waiting);
+        return call.execute();
+      }));
+
+      started.await(5, TimeUnit.SECONDS);
+
+      follower = executor.submit((Callable<String>) () -> {
+        synchronized (waiting) {
+          waiting[0] = Thread.currentThread();
+        }
+        return ServiceTransport.coalesce(key, key, () -> {
+          throw new AssertionError("Coalesced call was made");
+        });
+      });
+
+      executor.shutdown();
+    }
+
+    private static void awaitWaiting(Thread[] waiting) {
+      long deadline = System.currentTimeMillis() + 5000;
+
+      while (System.currentTimeMillis() < deadline) {
+        Thread thread;
+        synchronized (waiting) {
+          thread = waiting[0];
+        }
+
+        if (thread != null && thread.getState() == Thread.State.WAITING) return;
+
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      throw new AssertionError("Second call never waited");
+    }
+  }
+}
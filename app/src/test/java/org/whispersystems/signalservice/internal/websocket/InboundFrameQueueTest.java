@@ -0,0 +1,132 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InboundFrameQueueTest {
+
+  @Test
+  public void givenEmptyQueue_whenIPoll_thenIGetNullAfterTimeout() {
+    InboundFrameQueue<Integer> queue = new InboundFrameQueue<>(4);
+
+    assertNull(queue.poll(10));
+  }
+
+  @Test
+  public void givenOfferedElements_whenIPoll_thenIGetThemInOrder() {
+    InboundFrameQueue<Integer> queue = new InboundFrameQueue<>(4);
+
+    assertTrue(queue.offer(1));
+    assertTrue(queue.offer(2));
+    assertTrue(queue.offer(3));
+
+    assertEquals(3, queue.size());
+    assertEquals(Integer.valueOf(1), queue.poll(0));
+    assertEquals(Integer.valueOf(2), queue.poll(0));
+    assertEquals(Integer.valueOf(3), queue.poll(0));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void givenClosedQueue_whenIOffer_thenItIsRejectedButQueuedElementsDrain() {
+    InboundFrameQueue<Integer> queue = new InboundFrameQueue<>(4);
+
+    queue.offer(1);
+    queue.close();
+
+    assertFalse(queue.offer(2));
+    assertEquals(Integer.valueOf(1), queue.poll(0));
+    assertNull(queue.poll(1000));
+  }
+
+  @Test
+  public void givenQueueAtHighWaterMark_whenIOffer_thenItNeitherBlocksNorRefusesUntilCapacity() {
+    InboundFrameQueue<Integer> queue = new InboundFrameQueue<>(3);
+
+    for (int i = 0; i < 3; i++) {
+      assertFalse(queue.isAtHighWaterMark());
+      assertTrue(queue.offer(i));
+    }
+
+    assertTrue(queue.isAtHighWaterMark());
+    assertTrue(queue.getCapacity() >= 2 * queue.getHighWaterMark());
+
+    for (int i = 3; i < queue.getCapacity(); i++) {
+      assertTrue(queue.offer(i));
+    }
+
+    assertFalse(queue.offer(-1));
+    assertEquals(queue.getCapacity(), queue.size());
+
+    for (int i = 0; i < queue.getCapacity(); i++) {
+      assertEquals(Integer.valueOf(i), queue.poll(0));
+    }
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void givenHighWaterMark_whenIBuildTheQueue_thenCapacityIsAPowerOfTwoAtLeastTwiceIt() {
+    for (int highWaterMark : new int[] { 1, 2, 3, 4, 5, 1000, 1024 }) {
+      int capacity = new InboundFrameQueue<Integer>(highWaterMark).getCapacity();
+
+      assertEquals(0, capacity & (capacity - 1));
+      assertTrue(capacity >= 2 * highWaterMark);
+      assertTrue(capacity < 4 * highWaterMark);
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void givenConcurrentProducer_whenConsumerDrains_thenNothingIsLostOrReordered() throws Exception {
+    InboundFrameQueue<Integer> queue    = new InboundFrameQueue<>(3);
+    int                        count    = 10_000;
+    CountDownLatch             produced = new CountDownLatch(1);
+
+    Thread producer = new Thread(() -> {
+      for (int i = 0; i < count; i++) {
+        while (!queue.offer(i)) {
+          Thread.yield();
+        }
+      }
+      produced.countDown();
+    });
+    producer.start();
+
+    List<Integer> received = new ArrayList<>(count);
+    while (received.size() < count) {
+      Integer next = queue.poll(1000);
+      if (next != null) {
+        received.add(next);
+      }
+      assertTrue(queue.size() <= queue.getCapacity());
+    }
+
+    assertTrue(produced.await(1, TimeUnit.SECONDS));
+    for (int i = 0; i < count; i++) {
+      assertEquals(Integer.valueOf(i), received.get(i));
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void givenParkedConsumer_whenIClose_thenPollReturnsNull() throws Exception {
+    InboundFrameQueue<Integer> queue = new InboundFrameQueue<>(1);
+
+    Integer[] result = new Integer[]{ 0 };
+    Thread consumer = new Thread(() -> result[0] = queue.poll(10_000));
+    consumer.start();
+
+    Thread.sleep(50);
+    queue.close();
+    consumer.join();
+
+    assertNull(result[0]);
+  }
+}
@@ -0,0 +1,87 @@
+package org.thoughtcrime.securesms.jobs;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Rough dequeue latency of {@link FastJobStorage} with a large backlog. Mirrors what the JobController does per
+ * scheduling pass: find the eligible jobs, mark one running, then delete it once it completes.
+ *
+ * Not part of the regular run; remove the {@link Ignore} to get numbers.
+ */
+@Ignore("Benchmark")
+public class FastJobStorageBenchmark {
+
+  private static final int QUEUES     = 50;
+  private static final int ITERATIONS = 1_000;
+
+  @Test
+  public void dequeue_10k() {
+    runDequeue(10_000);
+  }
+
+  @Test
+  public void dequeue_100k() {
+    runDequeue(100_000);
+  }
+
+  private static void runDequeue(int jobCount) {
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+    subject.insertJobs(buildJobs(jobCount));
+
+    for (int i = 0; i < 100; i++) {
+      dequeueOne(subject);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      dequeueOne(subject);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(String.format(Locale.US, "[%d jobs] %.1f us per dequeue", jobCount, elapsed / 1000.0 / ITERATIONS));
+  }
+
+  private static void dequeueOne(FastJobStorage subject) {
+    List<JobSpec> pending = subject.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis());
+    assertFalse(pending.isEmpty());
+
+    String id = pending.get(0).getId();
+    subject.updateJobRunningState(id, true);
+    subject.deleteJob(id);
+  }
+
+  private static List<FullSpec> buildJobs(int count) {
+    List<FullSpec> fullSpecs = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      String  queue   = (i % 3 == 0) ? null : "q" + (i % QUEUES);
+      JobSpec jobSpec = new JobSpec("id" + i, "f", queue, i, 0, 0, -1, -1, "", null, false, false);
+      fullSpecs.add(new FullSpec(jobSpec, Collections.emptyList(), Collections.emptyList()));
+    }
+
+    return fullSpecs;
+  }
+
+  private static JobDatabase noopDatabase() {
+    JobDatabase database = mock(JobDatabase.class);
+
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    return database;
+  }
+}
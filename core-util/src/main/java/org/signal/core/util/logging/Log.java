@@ -2,6 +2,11 @@ package org.signal.core.util.logging;
 
 import android.annotation.SuppressLint;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 
@@ -13,6 +18,8 @@ public final class Log {
   private static InternalCheck internalCheck;
   private static Logger        logger = new AndroidLogger();
 
+  private static volatile Map<String, RateLimiter> rateLimiters = Collections.emptyMap();
+
   /**
    * @param internalCheck A checker that will indicate if this is an internal user
    * @param loggers A list of loggers that will be given every log statement.
@@ -68,18 +75,22 @@ public final class Log {
   }
 
   public static void v(String tag, String message, Throwable t) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.v(tag, message, t);
   }
 
   public static void d(String tag, String message, Throwable t) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.d(tag, message, t);
   }
 
   public static void i(String tag, String message, Throwable t) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.i(tag, message, t);
   }
 
   public static void w(String tag, String message, Throwable t) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.w(tag, message, t);
   }
 
@@ -88,18 +99,22 @@ public final class Log {
   }
 
   public static void v(String tag, String message, boolean keepLonger) {
+    if ((message = rateLimit(tag, message)) == null) return;
     logger.v(tag, message, keepLonger);
   }
 
   public static void d(String tag, String message, boolean keepLonger) {
+    if ((message = rateLimit(tag, message)) == null) return;
     logger.d(tag, message, keepLonger);
   }
 
   public static void i(String tag, String message, boolean keepLonger) {
+    if ((message = rateLimit(tag, message)) == null) return;
     logger.i(tag, message, keepLonger);
   }
 
   public static void w(String tag, String message, boolean keepLonger) {
+    if ((message = rateLimit(tag, message)) == null) return;
     logger.w(tag, message, keepLonger);
   }
 
@@ -108,18 +123,22 @@ public final class Log {
   }
 
   public static void v(String tag, String message, Throwable t, boolean keepLonger) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.v(tag, message, t, keepLonger);
   }
 
   public static void d(String tag, String message, Throwable t, boolean keepLonger) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.d(tag, message, t, keepLonger);
   }
 
   public static void i(String tag, String message, Throwable t, boolean keepLonger) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.i(tag, message, t, keepLonger);
   }
 
   public static void w(String tag, String message, Throwable t, boolean keepLonger) {
+    if (t == null && (message = rateLimit(tag, message)) == null) return;
     logger.w(tag, message, t, keepLonger);
   }
 
@@ -127,6 +146,59 @@ public final class Log {
     logger.e(tag, message, t, keepLonger);
   }
 
+  /**
+   * Lazily built messages: the supplier isn't called if the line would be dropped by a rate limit.
+   */
+  public static void v(String tag, @NonNull Supplier<String> message) {
+    if (isRateLimited(tag)) return;
+    v(tag, message.get());
+  }
+
+  public static void d(String tag, @NonNull Supplier<String> message) {
+    if (isRateLimited(tag)) return;
+    d(tag, message.get());
+  }
+
+  public static void i(String tag, @NonNull Supplier<String> message) {
+    if (isRateLimited(tag)) return;
+    i(tag, message.get());
+  }
+
+  public static void w(String tag, @NonNull Supplier<String> message) {
+    if (isRateLimited(tag)) return;
+    w(tag, message.get());
+  }
+
+  /**
+   * Samples chatty tags on hot paths: beyond {@code maxPerSecond} lines a second, verbose to warning
+   * lines without a throwable are dropped, and a count of what was dropped is added to the next
+   * line let through. Errors, and anything logged with a throwable, are always kept.
+   */
+  public static synchronized void setRateLimit(@NonNull String tag, int maxPerSecond) {
+    Map<String, RateLimiter> updated = new HashMap<>(rateLimiters);
+    updated.put(tag, new RateLimiter(maxPerSecond));
+    rateLimiters = Collections.unmodifiableMap(updated);
+  }
+
+  private static boolean isRateLimited(String tag) {
+    RateLimiter rateLimiter = rateLimiters.get(tag);
+    return rateLimiter != null && rateLimiter.isExhausted();
+  }
+
+  /**
+   * @return the message to log, or null if it is to be dropped.
+   */
+  private static String rateLimit(String tag, String message) {
+    RateLimiter rateLimiter = rateLimiters.get(tag);
+    if (rateLimiter == null) return message;
+
+    int dropped = rateLimiter.acquire();
+    if (dropped < 0)  return null;
+    if (dropped == 0) return message;
+
+    return message + " [" + dropped + " lines dropped by rate limit]";
+  }
+
   public static String tag(Class<?> clazz) {
     String simpleName = clazz.getSimpleName();
     if (simpleName.length() > 23) {
@@ -202,6 +274,22 @@ public final class Log {
       e(tag, message, t, false);
     }
 
+    public void v(String tag, @NonNull Supplier<String> message) {
+      v(tag, message.get());
+    }
+
+    public void d(String tag, @NonNull Supplier<String> message) {
+      d(tag, message.get());
+    }
+
+    public void i(String tag, @NonNull Supplier<String> message) {
+      i(tag, message.get());
+    }
+
+    public void w(String tag, @NonNull Supplier<String> message) {
+      w(tag, message.get());
+    }
+
     public void v(String tag, String message) {
       v(tag, message, null);
     }
@@ -226,4 +314,57 @@ public final class Log {
   public interface InternalCheck {
     boolean isInternal();
   }
-}
\ No newline at end of file
+
+  private static final class RateLimiter {
+    private static final long WINDOW_MILLIS = 1000;
+
+    private final int maxPerWindow;
+
+    private long windowStart;
+    private int  inWindow;
+    private int  dropped;
+
+    private RateLimiter(int maxPerWindow) {
+      this.maxPerWindow = maxPerWindow;
+    }
+
+    synchronized boolean isExhausted() {
+      rollWindow();
+
+      if (inWindow >= maxPerWindow) {
+        dropped++;
+        return true;
+      }
+
+      return false;
+    }
+
+    /**
+     * @return -1 if the line is to be dropped, otherwise how many were dropped since the last one
+     *         let through.
+     */
+    synchronized int acquire() {
+      rollWindow();
+
+      if (inWindow >= maxPerWindow) {
+        dropped++;
+        return -1;
+      }
+
+      inWindow++;
+
+      int reported = dropped;
+      dropped = 0;
+      return reported;
+    }
+
+    private void rollWindow() {
+      long now = System.currentTimeMillis();
+
+      if (now - windowStart >= WINDOW_MILLIS) {
+        windowStart = now;
+        inWindow    = 0;
+      }
+    }
+  }
+}
@@ -1,5 +1,9 @@
 package org.signal.core.util.logging;
 
+import java.util.function.Supplier;
+
+import androidx.annotation.NonNull;
+
 /**
  * A logger that does nothing.
  */
@@ -19,6 +23,18 @@ class NoopLogger extends Log.Logger {
   @Override
   public void e(String tag, String message, Throwable t, boolean keepLonger) { }
 
+  @Override
+  public void v(String tag, @NonNull Supplier<String> message) { }
+
+  @Override
+  public void d(String tag, @NonNull Supplier<String> message) { }
+
+  @Override
+  public void i(String tag, @NonNull Supplier<String> message) { }
+
+  @Override
+  public void w(String tag, @NonNull Supplier<String> message) { }
+
   @Override
   public void flush() { }
 }
\ No newline at end of file
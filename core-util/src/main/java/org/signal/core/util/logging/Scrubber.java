@@ -25,9 +25,15 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 /**
  * Scrub data for possibly sensitive information.
+ *
+ * Patterns are applied one after the other, in a fixed order that decides which wins where they
+ * overlap. As most lines hold nothing sensitive, a single pass over the characters first finds
+ * which patterns could possibly match, and only those are run; a line that can't match any of
+ * them is returned as is.
  */
 public final class Scrubber {
 
@@ -89,8 +95,40 @@ public final class Scrubber {
                                                                                 "mobi", "by", "cat", "wiki", "la", "ga", "xxx", "cf", "hr", "ng", "jobs", "online", "kz", "ug", "gq", "ae", "is",
                                                                                 "lv", "pro", "fm", "tips", "ms", "sa", "app"));
 
+  private static final int MAY_HAVE_E164   = 1;
+  private static final int MAY_HAVE_EMAIL  = 1 << 1;
+  private static final int MAY_HAVE_GROUP  = 1 << 2;
+  private static final int MAY_HAVE_UUID   = 1 << 3;
+  private static final int MAY_HAVE_DOMAIN = 1 << 4;
+  private static final int MAY_HAVE_IPV4   = 1 << 5;
+
+  private static final String GROUP_MARKER = "uf_group__";
+
   public static CharSequence scrub(@NonNull CharSequence in) {
+    int candidates = findCandidates(in);
+
+    if (candidates == 0) {
+      return in;
+    }
+
+    // A pass that censors something rewrites the line, so what later passes may find is looked at again
+    if ((candidates & MAY_HAVE_E164) != 0)   candidates = rescanIfChanged(in, in = scrubE164(in), candidates);
+    if ((candidates & MAY_HAVE_EMAIL) != 0)  candidates = rescanIfChanged(in, in = scrubEmail(in), candidates);
+    if ((candidates & MAY_HAVE_GROUP) != 0)  candidates = rescanIfChanged(in, in = scrubGroupsV1(in), candidates);
+    if ((candidates & MAY_HAVE_GROUP) != 0)  candidates = rescanIfChanged(in, in = scrubGroupsV2(in), candidates);
+    if ((candidates & MAY_HAVE_UUID) != 0)   candidates = rescanIfChanged(in, in = scrubUuids(in), candidates);
+    if ((candidates & MAY_HAVE_DOMAIN) != 0) candidates = rescanIfChanged(in, in = scrubDomains(in), candidates);
+    if ((candidates & MAY_HAVE_IPV4) != 0)   in = scrubIpv4(in);
+
+    return in;
+  }
 
+  /**
+   * Runs every pattern in turn, without looking for candidates first. {@link #scrub(CharSequence)}
+   * must always give the same result.
+   */
+  @VisibleForTesting
+  static CharSequence scrubWithoutPrefilter(@NonNull CharSequence in) {
     in = scrubE164(in);
     in = scrubEmail(in);
     in = scrubGroupsV1(in);
@@ -102,6 +140,71 @@ public final class Scrubber {
     return in;
   }
 
+  private static int rescanIfChanged(@NonNull CharSequence before, @NonNull CharSequence after, int candidates) {
+    return before == after ? candidates : findCandidates(after);
+  }
+
+  /**
+   * Looks for what each pattern can't match without, so a clear bit means that pattern has nothing
+   * to find. A set bit is no more than a maybe.
+   */
+  private static int findCandidates(@NonNull CharSequence in) {
+    int candidates = 0;
+    int dashes     = 0;
+    int digitDots  = 0;
+
+    for (int i = 0, len = in.length(); i < len; i++) {
+      char c    = in.charAt(i);
+      char next = i + 1 < len ? in.charAt(i + 1) : 0;
+
+      switch (c) {
+        case '+':
+          if (isDigit(next)) candidates |= MAY_HAVE_E164;
+          break;
+        case '%':
+          if (next == '2' && i + 3 < len && in.charAt(i + 2) == 'B' && isDigit(in.charAt(i + 3))) candidates |= MAY_HAVE_E164;
+          break;
+        case '@':
+          candidates |= MAY_HAVE_EMAIL;
+          break;
+        case '-':
+          dashes++;
+          break;
+        case '.':
+          char previous = i > 0 ? in.charAt(i - 1) : 0;
+          if (isLetterOrDigit(previous) && (isLetterOrDigit(next) || next == '-')) candidates |= MAY_HAVE_DOMAIN;
+          if (isDigit(previous)) digitDots++;
+          break;
+        case 'u':
+          if (next == 'f' && regionMatches(in, i, GROUP_MARKER)) candidates |= MAY_HAVE_GROUP;
+          break;
+      }
+    }
+
+    if (dashes >= 4)    candidates |= MAY_HAVE_UUID;
+    if (digitDots >= 3) candidates |= MAY_HAVE_IPV4;
+
+    return candidates;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetterOrDigit(char c) {
+    return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean regionMatches(@NonNull CharSequence in, int offset, @NonNull String marker) {
+    if (offset + marker.length() > in.length()) return false;
+
+    for (int i = 0; i < marker.length(); i++) {
+      if (in.charAt(offset + i) != marker.charAt(i)) return false;
+    }
+
+    return true;
+  }
+
   private static CharSequence scrubE164(@NonNull CharSequence in) {
     return scrub(in,
                  E164_PATTERN,
@@ -0,0 +1,149 @@
+package org.signal.core.util.logging;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class LogTest_setRateLimit {
+
+  private CapturingLogger logger;
+
+  @Before
+  public void setUp() {
+    logger = new CapturingLogger();
+    Log.initialize(logger);
+  }
+
+  @Test
+  public void givenRateLimitedTag_whenILogPastTheLimit_thenTheRestOfTheSecondIsDropped() {
+    Log.setRateLimit("Limited1", 3);
+
+    for (int i = 0; i < 10; i++) {
+      Log.d("Limited1", "line " + i);
+    }
+
+    assertEquals(3, logger.lines.size());
+    assertEquals("D Limited1 line 2", logger.lines.get(2));
+  }
+
+  @Test
+  public void givenRateLimitedTag_whenOtherTagsLog_thenTheyAreNotLimited() {
+    Log.setRateLimit("Limited2", 1);
+
+    for (int i = 0; i < 10; i++) {
+      Log.d("Limited2", "line " + i);
+      Log.d("Unlimited2", "line " + i);
+    }
+
+    assertEquals(1, logger.linesFor("Limited2"));
+    assertEquals(10, logger.linesFor("Unlimited2"));
+  }
+
+  @Test
+  public void givenTwoRateLimitedTags_whenOneIsExhausted_thenTheOtherStillLogs() {
+    Log.setRateLimit("Limited3a", 2);
+    Log.setRateLimit("Limited3b", 2);
+
+    for (int i = 0; i < 5; i++) {
+      Log.i("Limited3a", "line " + i);
+    }
+    Log.i("Limited3b", "line");
+
+    assertEquals(2, logger.linesFor("Limited3a"));
+    assertEquals(1, logger.linesFor("Limited3b"));
+  }
+
+  @Test
+  public void givenExhaustedTag_whenILogErrorsOrThrowables_thenTheyAreKept() {
+    Log.setRateLimit("Limited4", 1);
+
+    Log.w("Limited4", "first");
+    Log.w("Limited4", "dropped");
+    Log.w("Limited4", "with throwable", new RuntimeException());
+    Log.e("Limited4", "error");
+
+    assertEquals(3, logger.linesFor("Limited4"));
+    assertTrue(logger.lines.contains("W Limited4 with throwable"));
+    assertTrue(logger.lines.contains("E Limited4 error"));
+  }
+
+  @Test
+  public void givenExhaustedTag_whenILogLazily_thenTheMessageIsNeverBuilt() {
+    AtomicInteger built = new AtomicInteger();
+
+    Log.setRateLimit("Limited5", 2);
+
+    for (int i = 0; i < 10; i++) {
+      Log.d("Limited5", () -> "line " + built.incrementAndGet());
+    }
+
+    assertEquals(2, built.get());
+    assertEquals(2, logger.linesFor("Limited5"));
+  }
+
+  @Test
+  public void givenDroppedLines_whenTheNextSecondStarts_thenTheFirstLineCarriesTheCount() throws InterruptedException {
+    Log.setRateLimit("Limited6", 2);
+
+    for (int i = 0; i < 7; i++) {
+      Log.d("Limited6", "line " + i);
+    }
+    Log.d("Limited6", () -> "lazy");
+
+    Thread.sleep(1100);
+
+    Log.d("Limited6", "next");
+    Log.d("Limited6", "after");
+
+    assertEquals(4, logger.linesFor("Limited6"));
+    assertEquals("D Limited6 next [6 lines dropped by rate limit]", logger.lines.get(2));
+    assertEquals("D Limited6 after", logger.lines.get(3));
+  }
+
+  private static final class CapturingLogger extends Log.Logger {
+    private final List<String> lines = new ArrayList<>();
+
+    int linesFor(String tag) {
+      int count = 0;
+      for (String line : lines) {
+        if (line.startsWith(line.charAt(0) + " " + tag + " ")) count++;
+      }
+      return count;
+    }
+
+    @Override
+    public void v(String tag, String message, Throwable t, boolean keepLonger) {
+      lines.add("V " + tag + " " + message);
+    }
+
+    @Override
+    public void d(String tag, String message, Throwable t, boolean keepLonger) {
+      lines.add("D " + tag + " " + message);
+    }
+
+    @Override
+    public void i(String tag, String message, Throwable t, boolean keepLonger) {
+      lines.add("I " + tag + " " + message);
+    }
+
+    @Override
+    public void w(String tag, String message, Throwable t, boolean keepLonger) {
+      lines.add("W " + tag + " " + message);
+    }
+
+    @Override
+    public void e(String tag, String message, Throwable t, boolean keepLonger) {
+      lines.add("E " + tag + " " + message);
+    }
+
+    @Override
+    public void flush() {
+    }
+  }
+}
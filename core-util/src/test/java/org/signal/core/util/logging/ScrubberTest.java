@@ -0,0 +1,79 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public final class ScrubberTest {
+
+  private static final String[] LINES = {
+      "",
+      "Nothing to see here",
+      "[WebSocketConnection] onMessage: Command: '/v1/keepalive' Text: 'type: REQUEST'",
+      "An E164 number +15551234567",
+      "An avatar filename: file:///data/user/0/org.thoughtcrime.securesms/files/avatars/%2B447700900099",
+      "One less than shortest number +155556",
+      "Plus without a number + 123",
+      "Percent without a number %2B %2Bx %2",
+      "abc@def.com",
+      "A email with multiple parts before the @ d.c+b.a@mulitpart.domain.com and a multipart domain",
+      "An email and a number abc@def.com +155556789012345",
+      "A group id __uf_group__!000102030405060708090a0b0c0d0e1a surrounded with text",
+      "A group v2 id __uf_group__v2__!23456789abcdef0123456789abcdef01 surrounded with text",
+      "A marker with nothing after it uf_group__ and __uf_group__",
+      "A UUID a37cb654-c9e0-4c1e-93df-3d11ca3c97f4 surrounded with text",
+      "JOB::a37cb654-c9e0-4c1e-93df-3d11ca3c97f4",
+      "Four dashes that aren't a uuid a-b-c-d-e",
+      "A domain like cdn.signal.org or textsecure-service.whispersystems.org is kept",
+      "A domain like example.com and one like sub.example.co.uk is censored",
+      "Not a tld: version 1.2.3 of file.apk, a sentence. Another one.",
+      "An ip 192.168.1.1 and one out of range 256.1.1.1 and a version 10.0.0",
+      "An ip in a url https://10.0.0.1:443/v1/keepalive and a host https://api.unfacd.io/V1/Fence/12",
+      "A uuid in a domain a37cb654-c9e0-4c1e-93df-3d11ca3c97f4.example.com",
+      "An email on an ip user@192.168.0.1 and one on a domain user@unfacd.com",
+      "A number in an email +15551234567@example.com",
+      "A group in a domain __uf_group__!abcdef.example.com",
+      "Everything +447700900001 abc@def.com __uf_group__!0a0b0c0d a37cb654-c9e0-4c1e-93df-3d11ca3c97f4 host.example.com 8.8.8.8",
+  };
+
+  private static final String[] FRAGMENTS = {
+      " ", " ", ".", "..", "-", "--", "@", "+", "%2B", "%2", "__", "!", ":", "/", "a", "Z", "x.y", "0", "7", "12",
+      "255", "256", "1.2", "1.2.3.4", "+15551234567", "%2B447700900099", "abc@def.com", "a@b", ".com", ".org",
+      "signal.org", "example.co.uk", "uf_group__", "__uf_group__!", "__uf_group__v2__!", "a37cb654-c9e0-4c1e-93df-3d11ca3c97f4",
+      "A37CB654-C9E0-4C1E-93DF-3D11CA3C97F4", "JOB::", "0a0b0c0d", "-c9e0-", "text", "Fence", "https://"
+  };
+
+  @Test
+  public void givenRepresentativeLines_whenIScrubThem_thenThePrefilterChangesNothing() {
+    for (String line : LINES) {
+      assertEquals(line, Scrubber.scrubWithoutPrefilter(line).toString(), Scrubber.scrub(line).toString());
+    }
+  }
+
+  @Test
+  public void givenRandomLinesOfSensitiveLookingFragments_whenIScrubThem_thenThePrefilterChangesNothing() {
+    Random random = new Random(18);
+
+    for (int i = 0; i < 20_000; i++) {
+      StringBuilder line  = new StringBuilder();
+      int           parts = 1 + random.nextInt(12);
+
+      for (int j = 0; j < parts; j++) {
+        line.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+
+      String in = line.toString();
+      assertEquals(in, Scrubber.scrubWithoutPrefilter(in).toString(), Scrubber.scrub(in).toString());
+    }
+  }
+
+  @Test
+  public void givenLineWithNothingToScrub_whenIScrubIt_thenTheSameInstanceIsReturned() {
+    String line = "[WebSocketConnection] onMessage: Command: '/v1/keepalive' Text: 'type: REQUEST'";
+
+    assertSame(line, Scrubber.scrub(line));
+  }
+}
@@ -0,0 +1,521 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.ThreadUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.signal.devicetransfer.TransferProtocol.CHUNK_SIZE;
+import static org.signal.devicetransfer.TransferProtocol.DONE;
+import static org.signal.devicetransfer.TransferProtocol.END_OF_DATA;
+import static org.signal.devicetransfer.TransferProtocol.KEEP_ALIVE;
+import static org.signal.devicetransfer.TransferProtocol.RESUME_TIMEOUT;
+import static org.signal.devicetransfer.TransferProtocol.STALL_TIMEOUT;
+import static org.signal.devicetransfer.TransferProtocol.STREAMS;
+import static org.signal.devicetransfer.TransferProtocol.WAIT_MILLIS;
+import static org.signal.devicetransfer.TransferProtocol.WINDOW_CHUNKS;
+
+/**
+ * Sending side of a transfer. What the {@link ClientTask} writes is cut into chunks and sent over
+ * {@link TransferProtocol#STREAMS} connections at once, each of them taking the next chunk as soon as it's free.
+ * <p>
+ * Chunks are kept until the server says it has handed them to its task. When a connection drops, the chunks last sent
+ * over it are queued again and a replacement is joined to the session, so the transfer carries on where it stopped.
+ * Only if no connection can be had for {@link TransferProtocol#RESUME_TIMEOUT} does the transfer fail.
+ * <p>
+ * A connection that stops moving without being closed is dropped the same way once it holds up the oldest chunk for
+ * the stall timeout. A server task that is merely slow to read looks the same, costing a reconnect and a resend.
+ */
+final class ClientTransferSession {
+
+  private static final String TAG = Log.tag(ClientTransferSession.class);
+
+  private static final long RECONNECT_DELAY = 1000;
+
+  /** Written in place of a chunk on a connection with nothing to send. */
+  private static final Chunk KEEP_ALIVE_CHUNK = new Chunk(KEEP_ALIVE, null);
+
+  /**
+   * Opens a new connection to the server, joined to this session.
+   */
+  interface Connector {
+    @NonNull Socket join() throws IOException;
+  }
+
+  private final Connector         connector;
+  private final Object            lock    = new Object();
+  private final ArrayDeque<Chunk> window  = new ArrayDeque<>();
+  private final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+  private final List<Socket>      sockets = new ArrayList<>();
+  private final OutputStream      outputStream;
+  private final long              stallTimeout;
+
+  private int         nextSeq;
+  private int         acked;
+  private long        lastAckAt;
+  private int         liveStreams;
+  private long        lostAt;
+  private boolean     done;
+  private boolean     closed;
+  private IOException failure;
+
+  ClientTransferSession(@NonNull Socket control, @NonNull Connector connector) {
+    this(control, connector, STALL_TIMEOUT);
+  }
+
+  @VisibleForTesting
+  ClientTransferSession(@NonNull Socket control, @NonNull Connector connector, long stallTimeout) {
+    this.connector    = connector;
+    this.outputStream = new ChunkingOutputStream();
+    this.stallTimeout = stallTimeout;
+    this.lostAt       = System.currentTimeMillis();
+
+    for (int i = 0; i < STREAMS; i++) {
+      new StreamThread(i, i == 0 ? control : null).start();
+    }
+  }
+
+  @NonNull OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Sends whatever is left, marks the end and waits for the server to finish with it. Once it has, confirms that over
+   * every connection, so the server knows it may close them.
+   */
+  void finish() throws IOException {
+    outputStream.flush();
+
+    synchronized (lock) {
+      Chunk end = new Chunk(nextSeq, null);
+
+      window.add(end);
+      pending.add(end);
+      lock.notifyAll();
+
+      while (!done) {
+        throwIfOver();
+        waitOnLock();
+      }
+
+      if (acked < end.seq) {
+        throw new IOException("Server finished after " + acked + " of " + end.seq + " chunks");
+      }
+
+      long deadline = System.currentTimeMillis() + RESUME_TIMEOUT;
+
+      while (liveStreams > 0 && !closed && System.currentTimeMillis() < deadline) {
+        waitOnLock();
+      }
+    }
+
+    Log.i(TAG, "Transfer of " + nextSeq + " chunks complete");
+  }
+
+  @AnyThread
+  void close() {
+    List<Socket> toClose;
+
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+      toClose = new ArrayList<>(sockets);
+    }
+
+    for (Socket socket : toClose) {
+      StreamUtil.close(socket);
+    }
+  }
+
+  private void submit(@NonNull byte[] data) throws IOException {
+    synchronized (lock) {
+      while (nextSeq - acked >= WINDOW_CHUNKS) {
+        throwIfOver();
+        waitOnLock();
+      }
+
+      throwIfOver();
+
+      Chunk chunk = new Chunk(nextSeq++, data);
+
+      window.add(chunk);
+      pending.add(chunk);
+      lock.notifyAll();
+    }
+  }
+
+  private void throwIfOver() throws IOException {
+    if (failure != null) throw failure;
+    if (closed)          throw new IOException("Transfer closed");
+    if (done)            throw new IOException("Server finished early");
+  }
+
+  private boolean isOver() {
+    return closed || done || failure != null;
+  }
+
+  private void waitOnLock() throws IOException {
+    try {
+      lock.wait(WAIT_MILLIS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void onAck(int count) {
+    synchronized (lock) {
+      lastAckAt = System.currentTimeMillis();
+
+      if (count <= acked) return;
+
+      acked = count;
+
+      while (!window.isEmpty() && window.peekFirst().seq < acked) {
+        window.removeFirst();
+      }
+
+      lock.notifyAll();
+    }
+  }
+
+  private void onDone() {
+    synchronized (lock) {
+      done = true;
+      lock.notifyAll();
+    }
+  }
+
+  private void onConnected(@NonNull Socket socket) {
+    synchronized (lock) {
+      sockets.add(socket);
+      liveStreams++;
+    }
+  }
+
+  /**
+   * Queues the chunks last sent over the lost connection again, ahead of new ones.
+   */
+  private void onDisconnected(@NonNull Socket socket, @NonNull StreamThread stream) {
+    synchronized (lock) {
+      sockets.remove(socket);
+
+      if (--liveStreams == 0) {
+        lostAt = System.currentTimeMillis();
+      }
+
+      lock.notifyAll();
+
+      if (isOver()) return;
+
+      List<Chunk> resend = new ArrayList<>();
+
+      for (Chunk chunk : window) {
+        if (chunk.sentOn == stream) {
+          chunk.sentOn = null;
+          resend.add(chunk);
+        }
+      }
+
+      for (int i = resend.size() - 1; i >= 0; i--) {
+        pending.addFirst(resend.get(i));
+      }
+
+      if (!resend.isEmpty()) {
+        Log.i(TAG, "Stream " + stream.index + " lost, resending " + resend.size() + " chunks from " + resend.get(0).seq);
+      }
+    }
+  }
+
+  private void onJoinFailed(@NonNull IOException e) {
+    synchronized (lock) {
+      if (liveStreams == 0 && System.currentTimeMillis() - lostAt > RESUME_TIMEOUT && failure == null) {
+        Log.w(TAG, "No connection to server for too long, giving up");
+        failure = e;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Called by the ack reader of a connection when it breaks, so the sender on it doesn't wait for chunks forever.
+   */
+  private void onBroken(@NonNull StreamThread stream, @NonNull Socket socket) {
+    synchronized (lock) {
+      if (stream.socket == socket) {
+        stream.broken = true;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return true if the oldest chunk not yet acknowledged went out on the given connection, and nothing has been
+   *         acknowledged since for the stall timeout.
+   */
+  private boolean isStalled(@NonNull StreamThread stream) {
+    synchronized (lock) {
+      Chunk oldest = window.peekFirst();
+
+      return oldest != null &&
+             oldest.sentOn == stream &&
+             System.currentTimeMillis() - Math.max(oldest.sentAt, lastAckAt) > stallTimeout;
+    }
+  }
+
+  /**
+   * @return the next chunk to send, {@link #KEEP_ALIVE_CHUNK} if there has been none for a while, or null once the
+   *         session is over. Flushes the connection before waiting for one.
+   */
+  private @Nullable Chunk takeChunk(@NonNull StreamThread stream, @NonNull OutputStream out) throws IOException {
+    boolean flushed = false;
+
+    while (true) {
+      synchronized (lock) {
+        if (isOver())      return null;
+        if (stream.broken) throw new IOException("Connection closed by server");
+
+        Chunk chunk;
+
+        while ((chunk = pending.pollFirst()) != null) {
+          if (chunk.seq >= acked) {
+            chunk.sentOn = stream;
+            chunk.sentAt = System.currentTimeMillis();
+            return chunk;
+          }
+        }
+
+        if (flushed && System.currentTimeMillis() - stream.lastWriteAt >= stallTimeout / 4) {
+          return KEEP_ALIVE_CHUNK;
+        }
+
+        if (flushed) {
+          waitOnLock();
+          continue;
+        }
+      }
+
+      out.flush();
+      flushed = true;
+    }
+  }
+
+  private final class StreamThread extends Thread {
+    private final int index;
+
+    private Socket  socket;
+    private boolean broken;
+    private long    lastWriteAt;
+
+    private StreamThread(int index, @Nullable Socket socket) {
+      super("transfer-stream-" + index);
+      this.index  = index;
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        synchronized (lock) {
+          if (isOver()) break;
+        }
+
+        try {
+          if (socket == null) {
+            Socket joined = connector.join();
+
+            synchronized (lock) {
+              socket = joined;
+              broken = false;
+            }
+
+            Log.i(TAG, "Stream " + index + " joined");
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Stream " + index + " failed to join: " + e.getMessage());
+          onJoinFailed(e);
+          ThreadUtil.interruptableSleep(RECONNECT_DELAY);
+          continue;
+        }
+
+        onConnected(socket);
+
+        try {
+          socket.setSoTimeout((int) (stallTimeout / 4));
+          new AckThread(this, socket).start();
+          send(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 8)));
+        } catch (IOException e) {
+          Log.w(TAG, "Stream " + index + " failed: " + e.getMessage());
+        }
+
+        onDisconnected(socket, this);
+        StreamUtil.close(socket);
+
+        synchronized (lock) {
+          socket = null;
+        }
+
+        synchronized (lock) {
+          if (isOver()) break;
+        }
+
+        ThreadUtil.interruptableSleep(RECONNECT_DELAY);
+      }
+
+      StreamUtil.close(socket);
+    }
+
+    private void send(@NonNull DataOutputStream out) throws IOException {
+      Chunk chunk;
+
+      lastWriteAt = System.currentTimeMillis();
+
+      while ((chunk = takeChunk(this, out)) != null) {
+        out.writeInt(chunk.seq);
+
+        if (chunk == KEEP_ALIVE_CHUNK) {
+          out.flush();
+        } else if (chunk.data != null) {
+          out.writeInt(chunk.data.length);
+          out.write(chunk.data);
+        } else {
+          out.writeInt(END_OF_DATA);
+        }
+
+        lastWriteAt = System.currentTimeMillis();
+      }
+
+      synchronized (lock) {
+        if (!done) return;
+      }
+
+      out.writeInt(DONE);
+      out.flush();
+    }
+  }
+
+  private final class AckThread extends Thread {
+    private final StreamThread stream;
+    private final Socket       socket;
+
+    private AckThread(@NonNull StreamThread stream, @NonNull Socket socket) {
+      super("transfer-ack-" + stream.index);
+      this.stream = stream;
+      this.socket = socket;
+    }
+
+    /**
+     * Reads into a buffer of its own, as the socket's read timeout may strike halfway through a value.
+     */
+    @Override
+    public void run() {
+      try {
+        InputStream in     = socket.getInputStream();
+        byte[]      buffer = new byte[4];
+        int         filled = 0;
+
+        while (true) {
+          try {
+            int read = in.read(buffer, filled, buffer.length - filled);
+
+            if (read == -1) throw new EOFException();
+
+            filled += read;
+          } catch (SocketTimeoutException e) {
+            if (isStalled(stream)) {
+              Log.w(TAG, "Stream " + stream.index + " stalled, dropping it");
+              StreamUtil.close(socket);
+              throw e;
+            }
+
+            continue;
+          }
+
+          if (filled < buffer.length) continue;
+
+          int ack = Conversions.byteArrayToInt(buffer);
+
+          filled = 0;
+
+          if (ack == DONE) onDone();
+          else             onAck(ack);
+        }
+      } catch (IOException e) {
+        onBroken(stream, socket);
+      }
+    }
+  }
+
+  private final class ChunkingOutputStream extends OutputStream {
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int    position;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int count = Math.min(len, buffer.length - position);
+
+        System.arraycopy(b, off, buffer, position, count);
+        position += count;
+        off      += count;
+        len      -= count;
+
+        if (position == buffer.length) {
+          flush();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (position == 0) return;
+
+      byte[] data = position == buffer.length ? buffer : copyOf(buffer, position);
+
+      buffer   = new byte[CHUNK_SIZE];
+      position = 0;
+
+      submit(data);
+    }
+
+    private byte[] copyOf(byte[] source, int length) {
+      byte[] copy = new byte[length];
+      System.arraycopy(source, 0, copy, 0, length);
+      return copy;
+    }
+  }
+
+  private static final class Chunk {
+    private final int    seq;
+    private final byte[] data;
+
+    private StreamThread sentOn;
+    private long         sentAt;
+
+    private Chunk(int seq, @Nullable byte[] data) {
+      this.seq  = seq;
+      this.data = data;
+    }
+  }
+}
@@ -36,6 +36,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *   <li>Completely tear down and restart WiFi direct if no server is found within the timeout.</li>
  *   <li>Retry connecting to the WiFi Direct network, and after all retries fail it does a complete tear down and restart.</li>
  *   <li>Retry connecting to the server until successful, disconnected from WiFi Direct network, or told to stop.</li>
+ *   <li>Keep a verified transfer running when the WiFi Direct network drops, restarting WiFi Direct to find the server
+ *   again and rejoining the transfer's connections to it, see {@link ClientTransferSession}.</li>
  * </ul>
  */
 final class DeviceTransferClient implements Handler.Callback {
@@ -67,6 +69,9 @@ final class DeviceTransferClient implements Handler.Callback {
   private final AtomicBoolean started = new AtomicBoolean(false);
   private final AtomicBoolean stopped = new AtomicBoolean(false);
 
+  /** Set while WiFi Direct is brought back up underneath a running transfer, which the UI mustn't hear about. */
+  private boolean resuming;
+
   private static void update(@NonNull TransferStatus transferStatus) {
     Log.d(TAG, "transferStatus: " + transferStatus.getTransferMode().name());
     EventBus.getDefault().postSticky(transferStatus);
@@ -146,14 +151,20 @@ final class DeviceTransferClient implements Handler.Callback {
         startNetworkClient((String) message.obj);
         break;
       case NETWORK_DISCONNECTED:
-        stopNetworkClient();
+        if (isTransferring()) {
+          resumeTransfer();
+        } else {
+          stopNetworkClient();
+        }
         break;
       case CONNECT_TO_SERVICE:
         stopServiceDiscovery();
         connectToService((String) message.obj, message.arg1);
         break;
       case RESTART_CLIENT:
-        stopNetworkClient();
+        if (!isTransferring()) {
+          stopNetworkClient();
+        }
         stopWifiDirect();
         startWifiDirect();
         break;
@@ -178,6 +189,7 @@ final class DeviceTransferClient implements Handler.Callback {
         update(TransferStatus.serviceConnected());
         break;
       case NetworkClientThread.NETWORK_CLIENT_DISCONNECTED:
+        resuming = false;
         update(TransferStatus.networkConnected());
         break;
       case NetworkClientThread.NETWORK_CLIENT_STOPPED:
@@ -197,14 +209,18 @@ final class DeviceTransferClient implements Handler.Callback {
       return;
     }
 
-    update(TransferStatus.startingUp());
+    if (!resuming) {
+      update(TransferStatus.startingUp());
+    }
 
     try {
       wifiDirect = new WifiDirect(context);
       wifiDirect.initialize(new WifiDirectListener());
       wifiDirect.discoverService();
       Log.i(TAG, "Started service discovery, searching for service...");
-      update(TransferStatus.discovery());
+      if (!resuming) {
+        update(TransferStatus.discovery());
+      }
       handler.postDelayed(autoRestart, TimeUnit.SECONDS.toMillis(15));
     } catch (WifiDirectUnavailableException e) {
       Log.e(TAG, e);
@@ -243,6 +259,13 @@ final class DeviceTransferClient implements Handler.Callback {
   }
 
   private void startNetworkClient(@NonNull String serverHostAddress) {
+    if (clientThread != null && resuming) {
+      Log.i(TAG, "Connection re-established, resuming transfer.");
+      clientThread.setServerAddress(serverHostAddress, remotePort);
+      resuming = false;
+      return;
+    }
+
     if (clientThread != null) {
       Log.i(TAG, "Client already running");
       return;
@@ -257,7 +280,28 @@ final class DeviceTransferClient implements Handler.Callback {
     clientThread.start();
   }
 
+  private boolean isTransferring() {
+    return clientThread != null && clientThread.isTransferring();
+  }
+
+  /**
+   * Leaves the transfer running while WiFi Direct is restarted to find the server again. Its connections keep trying
+   * to rejoin the session until the server can be reached, or until the session gives up on it.
+   */
+  private void resumeTransfer() {
+    if (resuming) {
+      return;
+    }
+
+    Log.i(TAG, "Network lost during transfer, restarting WiFi Direct to resume it");
+    resuming = true;
+    stopWifiDirect();
+    startWifiDirect();
+  }
+
   private void stopNetworkClient() {
+    resuming = false;
+
     if (clientThread != null) {
       Log.i(TAG, "Shutting down ClientThread");
       clientThread.shutdown();
@@ -276,7 +320,7 @@ final class DeviceTransferClient implements Handler.Callback {
       return;
     }
 
-    if (clientThread != null) {
+    if (clientThread != null && !resuming) {
       Log.i(TAG, "Client is running we shouldn't be connecting again");
       return;
     }
@@ -287,7 +331,9 @@ final class DeviceTransferClient implements Handler.Callback {
     while ((tries--) > 0) {
       try {
         wifiDirect.connect(deviceAddress);
-        update(TransferStatus.networkConnected());
+        if (!resuming) {
+          update(TransferStatus.networkConnected());
+        }
         remotePort = port;
         return;
       } catch (WifiDirectUnavailableException e) {
@@ -57,6 +57,9 @@ final class DeviceTransferServer implements Handler.Callback {
   private final AtomicBoolean started = new AtomicBoolean(false);
   private final AtomicBoolean stopped = new AtomicBoolean(false);
 
+  /** Set while the service is advertised again for a client that lost the network during a transfer. */
+  private boolean readvertising;
+
   private static void update(@NonNull TransferStatus transferStatus) {
     Log.d(TAG, "transferStatus: " + transferStatus.getTransferMode().name());
     EventBus.getDefault().postSticky(transferStatus);
@@ -218,6 +221,11 @@ final class DeviceTransferServer implements Handler.Callback {
     }
 
     if (isNetworkConnected) {
+      if (readvertising) {
+        readvertising = false;
+        stopDiscoveryService();
+      }
+
       try {
         wifiDirect.requestNetworkInfo();
       } catch (WifiDirectUnavailableException e) {
@@ -225,6 +233,22 @@ final class DeviceTransferServer implements Handler.Callback {
         internalShutdown();
         update(TransferStatus.failed());
       }
+    } else if (serverThread != null && serverThread.hasSession() && !readvertising) {
+      readvertising = true;
+      readvertise();
+    }
+  }
+
+  /**
+   * Advertises the service again, so a client that lost the network in the middle of a transfer can find its way back
+   * and rejoin the session, which waits for it for {@link TransferProtocol#RESUME_TIMEOUT}.
+   */
+  private void readvertise() {
+    try {
+      Log.i(TAG, "Network lost during transfer, advertising the service again");
+      wifiDirect.startDiscoveryService(String.valueOf(serverThread.getLocalPort()));
+    } catch (WifiDirectUnavailableException e) {
+      Log.w(TAG, "Unable to advertise the service again", e);
     }
   }
 
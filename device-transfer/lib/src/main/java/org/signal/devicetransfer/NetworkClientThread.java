@@ -10,10 +10,15 @@ import org.signal.core.util.StreamUtil;
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +29,8 @@ import javax.net.ssl.SSLSocket;
  * Performs the networking setup/tear down for the client. This includes
  * connecting to the server, performing the TLS/SAS verification, running an
  * arbitrarily provided {@link ClientTask}, and then cleaning up.
+ * <p>
+ * The task's data is sent over several connections to the server, see {@link ClientTransferSession}.
  */
 final class NetworkClientThread extends Thread {
 
@@ -34,14 +41,16 @@ final class NetworkClientThread extends Thread {
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1003;
   public static final int NETWORK_CLIENT_STOPPED         = 1004;
 
-  private volatile SSLSocket client;
-  private volatile boolean   isRunning;
-  private volatile Boolean   isVerified;
+  private volatile SSLSocket             client;
+  private volatile ClientTransferSession session;
+  private volatile boolean               isRunning;
+  private volatile Boolean               isVerified;
+
+  private volatile String serverHostAddress;
+  private volatile int    port;
 
   private final Context    context;
   private final ClientTask clientTask;
-  private final String     serverHostAddress;
-  private final int        port;
   private final Handler    handler;
   private final Object     verificationLock;
   private       boolean    success;
@@ -83,9 +92,12 @@ final class NetworkClientThread extends Thread {
             throw new SSLHandshakeException("no x509 after handshake");
           }
 
-          InputStream  inputStream        = client.getInputStream();
-          OutputStream outputStream       = client.getOutputStream();
-          int          authenticationCode = DeviceTransferAuthentication.generateClientAuthenticationCode(x509.getEncoded(), inputStream, outputStream);
+          InputStream  inputStream  = client.getInputStream();
+          OutputStream outputStream = client.getOutputStream();
+
+          outputStream.write(TransferProtocol.CONNECTION_CONTROL);
+
+          int authenticationCode = DeviceTransferAuthentication.generateClientAuthenticationCode(x509.getEncoded(), inputStream, outputStream);
 
           handler.sendMessage(handler.obtainMessage(NETWORK_CLIENT_SSL_ESTABLISHED, authenticationCode));
 
@@ -94,28 +106,28 @@ final class NetworkClientThread extends Thread {
           Log.d(TAG, "Waiting for server to tell us they also verified");
           outputStream.write(0x43);
           outputStream.flush();
+          byte[] sessionId = new byte[TransferProtocol.SESSION_ID_LENGTH];
           try {
             int result = inputStream.read();
             if (result == -1) {
               Log.w(TAG, "Something happened waiting for server to verify");
               throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("server disconnected while we waited");
             }
+            new DataInputStream(inputStream).readFully(sessionId);
           } catch (IOException e) {
             Log.w(TAG, "Something happened waiting for server to verify", e);
             throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
           }
 
+          byte[] serverCertificate = x509.getEncoded();
+          session = new ClientTransferSession(client, () -> join(serverCertificate, sessionId));
+
           handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          clientTask.run(context, outputStream);
-          outputStream.flush();
+          clientTask.run(context, session.getOutputStream());
 
           Log.d(TAG, "Waiting for server to tell us they got everything");
-          try {
-            //noinspection ResultOfMethodCallIgnored
-            inputStream.read();
-          } catch (IOException e) {
-            Log.w(TAG, "Something happened confirming with server, mostly like bad SSL shutdown state, assuming success", e);
-          }
+          session.finish();
+
           success   = true;
           isRunning = false;
         } catch (IOException e) {
@@ -130,6 +142,10 @@ final class NetworkClientThread extends Thread {
         if (success) {
           clientTask.success();
         }
+        if (session != null) {
+          session.close();
+          session = null;
+        }
         StreamUtil.close(client);
         handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
       }
@@ -143,6 +159,50 @@ final class NetworkClientThread extends Thread {
     handler.sendEmptyMessage(NETWORK_CLIENT_STOPPED);
   }
 
+  /**
+   * Opens another connection to the server already verified for this session and joins it to the session.
+   */
+  private @NonNull Socket join(@NonNull byte[] serverCertificate, @NonNull byte[] sessionId) throws IOException {
+    SelfSignedIdentity.ApprovingTrustManager trustManager = new SelfSignedIdentity.ApprovingTrustManager();
+    SSLSocket                                socket;
+
+    try {
+      socket = (SSLSocket) SelfSignedIdentity.getApprovingSocketFactory(trustManager).createSocket();
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+
+    try {
+      socket.bind(null);
+      socket.connect(new InetSocketAddress(serverHostAddress, port), 10000);
+      socket.startHandshake();
+
+      X509Certificate x509 = trustManager.getX509Certificate();
+      if (x509 == null || !MessageDigest.isEqual(serverCertificate, x509.getEncoded())) {
+        throw new SSLHandshakeException("Server certificate changed");
+      }
+
+      OutputStream outputStream = socket.getOutputStream();
+      outputStream.write(TransferProtocol.CONNECTION_JOIN);
+      outputStream.write(sessionId);
+      outputStream.flush();
+
+      socket.setSoTimeout(10000);
+      if (socket.getInputStream().read() != TransferProtocol.JOIN_ACCEPTED) {
+        throw new IOException("Server refused to join session");
+      }
+      // The session sets its own read timeout once it takes the connection over
+
+      return socket;
+    } catch (CertificateEncodingException e) {
+      StreamUtil.close(socket);
+      throw new IOException(e);
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      throw e;
+    }
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -166,9 +226,34 @@ final class NetworkClientThread extends Thread {
     }
   }
 
+  /**
+   * @return true once the server has verified us and the transfer is under way. Losing the network then leaves the
+   *         session running, its connections rejoining it once the server can be reached again.
+   */
+  @AnyThread
+  public boolean isTransferring() {
+    return session != null;
+  }
+
+  /**
+   * Points the connections joined to a running session at where the server can be reached now, as its address may
+   * have changed with the network coming back.
+   */
+  @AnyThread
+  public void setServerAddress(@NonNull String serverHostAddress, int port) {
+    this.serverHostAddress = serverHostAddress;
+    this.port              = port;
+  }
+
   @AnyThread
   public void shutdown() {
     isRunning = false;
+
+    ClientTransferSession transferSession = session;
+    if (transferSession != null) {
+      transferSession.close();
+    }
+
     StreamUtil.close(client);
     interrupt();
   }
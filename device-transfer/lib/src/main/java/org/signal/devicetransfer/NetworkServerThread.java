@@ -9,17 +9,21 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.StreamUtil;
 import org.signal.core.util.logging.Log;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Arrays;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 
 /**
  * Performs the networking setup/tear down for the server. This includes
  * connecting to the client, generating TLS keys, performing the TLS/SAS verification,
  * running an arbitrarily provided {@link ServerTask}, and then cleaning up.
+ * <p>
+ * The client may open further connections to a running session, see {@link TransferProtocol}.
  */
 final class NetworkServerThread extends Thread {
 
@@ -31,16 +35,21 @@ final class NetworkServerThread extends Thread {
   public static final int NETWORK_CLIENT_DISCONNECTED    = 1004;
   public static final int NETWORK_CLIENT_SSL_ESTABLISHED = 1005;
 
-  private volatile ServerSocket serverSocket;
-  private volatile Socket       clientSocket;
-  private volatile boolean      isRunning;
-  private volatile Boolean      isVerified;
+  private static final int CONNECTION_SETUP_TIMEOUT = 10000;
+
+  private volatile ServerSocket          serverSocket;
+  private volatile Socket                clientSocket;
+  private volatile ServerTransferSession session;
+  private volatile boolean               isRunning;
+  private volatile Boolean               isVerified;
+  private          boolean               settingUpSession;
 
   private final Context                           context;
   private final ServerTask                        serverTask;
   private final SelfSignedIdentity.SelfSignedKeys keys;
   private final Handler                           handler;
   private final Object                            verificationLock;
+  private final Object                            setupLock;
 
   public NetworkServerThread(@NonNull Context context,
                              @NonNull ServerTask serverTask,
@@ -52,6 +61,7 @@ final class NetworkServerThread extends Thread {
     this.keys             = keys;
     this.handler          = handler;
     this.verificationLock = new Object();
+    this.setupLock        = new Object();
   }
 
   @Override
@@ -65,49 +75,27 @@ final class NetworkServerThread extends Thread {
       handler.sendMessage(handler.obtainMessage(NETWORK_SERVER_STARTED, serverSocket.getLocalPort(), 0));
       while (shouldKeepRunning() && !serverSocket.isClosed()) {
         Log.i(TAG, "Waiting for client socket accept...");
+        Socket socket = null;
         try {
-          clientSocket = serverSocket.accept();
+          socket = serverSocket.accept();
 
           if (!isRunning) {
+            StreamUtil.close(socket);
             break;
           }
 
-          InputStream  inputStream        = clientSocket.getInputStream();
-          OutputStream outputStream       = clientSocket.getOutputStream();
-          int          authenticationCode = DeviceTransferAuthentication.generateServerAuthenticationCode(keys.getX509Encoded(), inputStream, outputStream);
-
-          handler.sendMessage(handler.obtainMessage(NETWORK_CLIENT_SSL_ESTABLISHED, authenticationCode));
-
-          Log.i(TAG, "Waiting for user to verify sas");
-          awaitAuthenticationCodeVerification();
-          Log.d(TAG, "Waiting for client to tell us they also verified");
-          outputStream.write(0x43);
-          outputStream.flush();
-          try {
-            int result = inputStream.read();
-            if (result == -1) {
-              Log.w(TAG, "Something happened waiting for client to verify");
-              throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
-            }
-          } catch (IOException e) {
-            Log.w(TAG, "Something happened waiting for client to verify", e);
-            throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
-          }
-
-          handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
-          serverTask.run(context, inputStream);
+          socket.setSoTimeout(CONNECTION_SETUP_TIMEOUT);
 
-          outputStream.write(0x53);
-          outputStream.flush();
+          Socket accepted = socket;
+          new Thread(() -> setUpConnection(accepted), "transfer-connection-setup").start();
         } catch (IOException e) {
+          StreamUtil.close(socket);
+
           if (isRunning) {
             Log.i(TAG, "Error connecting with client or server socket closed.", e);
           } else {
             Log.i(TAG, "Server shutting down...");
           }
-        } finally {
-          StreamUtil.close(clientSocket);
-          handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
         }
       }
     } catch (Exception e) {
@@ -121,6 +109,139 @@ final class NetworkServerThread extends Thread {
     handler.sendEmptyMessage(NETWORK_SERVER_STOPPED);
   }
 
+  /**
+   * Reads what the client wants of a new connection, off the accepting thread so a slow or silent client doesn't hold
+   * up the connections behind it.
+   */
+  private void setUpConnection(@NonNull Socket socket) {
+    boolean control = false;
+
+    try {
+      int connectionType = socket.getInputStream().read();
+
+      if (connectionType == TransferProtocol.CONNECTION_JOIN) {
+        joinSession(socket);
+      } else if (connectionType == TransferProtocol.CONNECTION_CONTROL && (control = claimControl(socket))) {
+        socket.setSoTimeout(0); // Users take their time comparing codes, the session sets its own timeout once it takes over
+        startSession(socket);
+      } else {
+        Log.w(TAG, "Unexpected connection: " + connectionType);
+        StreamUtil.close(socket);
+      }
+    } catch (DeviceTransferAuthentication.DeviceTransferAuthenticationException e) {
+      Log.w(TAG, e);
+      StreamUtil.close(socket);
+      handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+      isRunning = false;
+      StreamUtil.close(serverSocket);
+    } catch (IOException e) {
+      StreamUtil.close(socket);
+      if (socket == clientSocket) {
+        handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+      }
+
+      Log.i(TAG, "Error setting up connection with client", e);
+    } finally {
+      if (control) {
+        releaseControl();
+      }
+    }
+  }
+
+  /**
+   * @return true if no session is running or being set up, making the given connection the one to set it up on.
+   */
+  private boolean claimControl(@NonNull Socket socket) {
+    synchronized (setupLock) {
+      if (session != null || settingUpSession) {
+        return false;
+      }
+
+      settingUpSession = true;
+      clientSocket     = socket;
+      return true;
+    }
+  }
+
+  private void releaseControl() {
+    synchronized (setupLock) {
+      settingUpSession = false;
+    }
+  }
+
+  /**
+   * Verifies the client on its first connection, then hands the data arriving over it and over any connections joined
+   * later to the {@link ServerTask}, which runs on its own thread so further connections can still be accepted.
+   */
+  private void startSession(@NonNull Socket socket) throws IOException, DeviceTransferAuthentication.DeviceTransferAuthenticationException {
+    InputStream  inputStream        = socket.getInputStream();
+    OutputStream outputStream       = socket.getOutputStream();
+    int          authenticationCode = DeviceTransferAuthentication.generateServerAuthenticationCode(keys.getX509Encoded(), inputStream, outputStream);
+
+    handler.sendMessage(handler.obtainMessage(NETWORK_CLIENT_SSL_ESTABLISHED, authenticationCode));
+
+    Log.i(TAG, "Waiting for user to verify sas");
+    awaitAuthenticationCodeVerification();
+    Log.d(TAG, "Waiting for client to tell us they also verified");
+    outputStream.write(0x43);
+    outputStream.flush();
+    try {
+      int result = inputStream.read();
+      if (result == -1) {
+        Log.w(TAG, "Something happened waiting for client to verify");
+        throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException("client disconnected while we waited");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Something happened waiting for client to verify", e);
+      throw new DeviceTransferAuthentication.DeviceTransferAuthenticationException(e);
+    }
+
+    byte[] sessionId = new byte[TransferProtocol.SESSION_ID_LENGTH];
+    new SecureRandom().nextBytes(sessionId);
+
+    outputStream.write(sessionId);
+    outputStream.flush();
+
+    ServerTransferSession transferSession = new ServerTransferSession(sessionId);
+    transferSession.addConnection(socket);
+    session = transferSession;
+
+    handler.sendEmptyMessage(NETWORK_CLIENT_CONNECTED);
+
+    new Thread(() -> {
+      try {
+        serverTask.run(context, transferSession.getInputStream());
+        transferSession.finish();
+      } catch (IOException e) {
+        Log.i(TAG, "Error receiving from client", e);
+      } finally {
+        transferSession.close();
+        session = null;
+        handler.sendEmptyMessage(NETWORK_CLIENT_DISCONNECTED);
+      }
+    }, "transfer-server-task").start();
+  }
+
+  /**
+   * Adds a further connection to the running session if the client knows its id.
+   */
+  private void joinSession(@NonNull Socket socket) throws IOException {
+    byte[] sessionId = new byte[TransferProtocol.SESSION_ID_LENGTH];
+    new DataInputStream(socket.getInputStream()).readFully(sessionId);
+
+    ServerTransferSession transferSession = session;
+    if (transferSession == null || !MessageDigest.isEqual(sessionId, transferSession.getSessionId())) {
+      Log.w(TAG, "Join for unknown session");
+      StreamUtil.close(socket);
+      return;
+    }
+
+    socket.getOutputStream().write(TransferProtocol.JOIN_ACCEPTED);
+    socket.getOutputStream().flush();
+
+    transferSession.addConnection(socket);
+  }
+
   private void awaitAuthenticationCodeVerification() throws DeviceTransferAuthentication.DeviceTransferAuthenticationException {
     synchronized (verificationLock) {
       try {
@@ -140,6 +261,14 @@ final class NetworkServerThread extends Thread {
     return !isInterrupted() && isRunning;
   }
 
+  /**
+   * @return true while a verified client's transfer is running, which its connections may rejoin.
+   */
+  @AnyThread
+  public boolean hasSession() {
+    return session != null;
+  }
+
   @AnyThread
   public int getLocalPort() {
     ServerSocket localServerSocket = serverSocket;
@@ -160,6 +289,12 @@ final class NetworkServerThread extends Thread {
   @AnyThread
   public void shutdown() {
     isRunning = false;
+
+    ServerTransferSession transferSession = session;
+    if (transferSession != null) {
+      transferSession.close();
+    }
+
     StreamUtil.close(clientSocket);
     StreamUtil.close(serverSocket);
     interrupt();
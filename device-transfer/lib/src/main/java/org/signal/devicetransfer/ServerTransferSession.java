@@ -0,0 +1,375 @@
+package org.signal.devicetransfer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.signal.devicetransfer.TransferProtocol.CHUNK_SIZE;
+import static org.signal.devicetransfer.TransferProtocol.DONE;
+import static org.signal.devicetransfer.TransferProtocol.END_OF_DATA;
+import static org.signal.devicetransfer.TransferProtocol.KEEP_ALIVE;
+import static org.signal.devicetransfer.TransferProtocol.RESUME_TIMEOUT;
+import static org.signal.devicetransfer.TransferProtocol.STALL_TIMEOUT;
+import static org.signal.devicetransfer.TransferProtocol.WAIT_MILLIS;
+import static org.signal.devicetransfer.TransferProtocol.WINDOW_CHUNKS;
+
+/**
+ * Receiving side of a transfer. Chunks arrive over any number of connections, in any order and possibly more than
+ * once, and are handed to the {@link ServerTask} as one stream in their original order.
+ * <p>
+ * Connections may drop and be replaced at any time, the client resending whatever wasn't acknowledged. Reading only
+ * fails if no connection is left for {@link TransferProtocol#RESUME_TIMEOUT}. A connection that stays silent for the
+ * stall timeout is taken for dead and dropped, the client keeping live ones busy.
+ */
+final class ServerTransferSession {
+
+  private static final String TAG = Log.tag(ServerTransferSession.class);
+
+  private final byte[]               sessionId;
+  private final Object               lock     = new Object();
+  private final Map<Integer, byte[]> received = new HashMap<>();
+  private final List<Stream>         streams  = new ArrayList<>();
+  private final InputStream          inputStream;
+  private final long                 stallTimeout;
+
+  private int     consumed;
+  private int     total = -1;
+  private long    lostAt;
+  private boolean finished;
+  private boolean confirmed;
+  private boolean closed;
+
+  ServerTransferSession(@NonNull byte[] sessionId) {
+    this(sessionId, STALL_TIMEOUT);
+  }
+
+  @VisibleForTesting
+  ServerTransferSession(@NonNull byte[] sessionId, long stallTimeout) {
+    this.sessionId    = sessionId;
+    this.inputStream  = new ChunkInputStream();
+    this.stallTimeout = stallTimeout;
+    this.lostAt       = System.currentTimeMillis();
+  }
+
+  @NonNull byte[] getSessionId() {
+    return sessionId;
+  }
+
+  @NonNull InputStream getInputStream() {
+    return inputStream;
+  }
+
+  /**
+   * Starts reading chunks from a connection, the one the session was set up on or one joined to it later.
+   */
+  void addConnection(@NonNull Socket socket) throws IOException {
+    socket.setSoTimeout((int) stallTimeout);
+
+    Stream  stream = new Stream(socket);
+    boolean done;
+
+    synchronized (lock) {
+      if (closed) {
+        StreamUtil.close(socket);
+        return;
+      }
+
+      streams.add(stream);
+      done = finished;
+      Log.i(TAG, "Connection added, " + streams.size() + " live");
+    }
+
+    stream.start();
+
+    if (done) {
+      stream.sendDone();
+    }
+  }
+
+  /**
+   * Tells the client the task is done with the data and waits for it to confirm, then closes all connections. Any
+   * connection the client joins in the meantime is told as well, should the ones it had been told on have dropped.
+   */
+  void finish() {
+    List<Stream> live;
+
+    synchronized (lock) {
+      finished = true;
+      live     = new ArrayList<>(streams);
+    }
+
+    for (Stream stream : live) {
+      stream.sendDone();
+    }
+
+    long deadline = System.currentTimeMillis() + RESUME_TIMEOUT;
+
+    synchronized (lock) {
+      while (!confirmed && !closed && System.currentTimeMillis() < deadline) {
+        try {
+          lock.wait(WAIT_MILLIS);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+
+      if (!confirmed) {
+        Log.w(TAG, "Client didn't confirm the end of the transfer");
+      }
+    }
+
+    close();
+  }
+
+  @AnyThread
+  void close() {
+    List<Stream> toClose;
+
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+      toClose = new ArrayList<>(streams);
+      streams.clear();
+    }
+
+    for (Stream stream : toClose) {
+      StreamUtil.close(stream.socket);
+    }
+  }
+
+  private @NonNull List<Stream> getStreams() {
+    synchronized (lock) {
+      return new ArrayList<>(streams);
+    }
+  }
+
+  /**
+   * @return true if the chunk had been handed to the task already, its acknowledgement having got lost.
+   */
+  private boolean onChunk(int seq, @NonNull byte[] data) throws IOException {
+    synchronized (lock) {
+      if (seq >= consumed + WINDOW_CHUNKS) {
+        throw new IOException("Chunk " + seq + " outside of window at " + consumed);
+      }
+
+      if (seq >= consumed && !received.containsKey(seq)) {
+        received.put(seq, data);
+        lock.notifyAll();
+      }
+
+      return seq < consumed;
+    }
+  }
+
+  /**
+   * @return true if every chunk before the end mark had been handed to the task already, so nothing else will
+   *         acknowledge it.
+   */
+  private boolean onEnd(int count) {
+    synchronized (lock) {
+      total = count;
+      lock.notifyAll();
+
+      return consumed == total;
+    }
+  }
+
+  /**
+   * @return the number of chunks handed to the task, counting the end mark once it's in and all before it handed over.
+   */
+  private int getHandedOver() {
+    synchronized (lock) {
+      return consumed == total ? consumed + 1 : consumed;
+    }
+  }
+
+  private void onConfirmed() {
+    synchronized (lock) {
+      confirmed = true;
+      lock.notifyAll();
+    }
+  }
+
+  private void onLost(@NonNull Stream stream) {
+    synchronized (lock) {
+      if (streams.remove(stream) && streams.isEmpty()) {
+        lostAt = System.currentTimeMillis();
+      }
+
+      Log.i(TAG, "Connection lost, " + streams.size() + " live");
+    }
+
+    StreamUtil.close(stream.socket);
+  }
+
+  /**
+   * @return the next chunk in order, or null at the end of the data.
+   */
+  private byte[] takeChunk() throws IOException {
+    byte[] chunk;
+
+    synchronized (lock) {
+      while ((chunk = received.remove(consumed)) == null && consumed != total) {
+        if (closed) throw new IOException("Transfer closed");
+
+        if (streams.isEmpty() && System.currentTimeMillis() - lostAt > RESUME_TIMEOUT) {
+          throw new IOException("Client didn't come back in time");
+        }
+
+        try {
+          lock.wait(WAIT_MILLIS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      if (chunk != null) consumed++;
+    }
+
+    int          ack  = getHandedOver();
+    List<Stream> live = getStreams();
+
+    // A connection gone silent may have died without closing, so acknowledge on the one heard from last
+    Collections.sort(live, (a, b) -> Long.compare(b.lastReadAt, a.lastReadAt));
+
+    for (Stream stream : live) {
+      if (stream.send(ack)) break;
+    }
+
+    return chunk;
+  }
+
+  private final class Stream extends Thread {
+    private final Socket           socket;
+    private final DataOutputStream out;
+
+    private volatile long lastReadAt;
+
+    private Stream(@NonNull Socket socket) throws IOException {
+      super("transfer-receive");
+      this.socket = socket;
+      this.out    = new DataOutputStream(socket.getOutputStream());
+
+      this.lastReadAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the value went out. A failed connection is left to its reader to clean up.
+     */
+    private boolean send(int value) {
+      try {
+        synchronized (out) {
+          out.writeInt(value);
+          out.flush();
+        }
+        return true;
+      } catch (IOException e) {
+        StreamUtil.close(socket);
+        return false;
+      }
+    }
+
+    /**
+     * Sends the final count ahead of {@link TransferProtocol#DONE}, as acknowledgements sent earlier on another
+     * connection may still be on their way.
+     */
+    private void sendDone() {
+      if (send(getHandedOver())) {
+        send(DONE);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE + 8));
+
+        while (true) {
+          int seq = in.readInt();
+
+          lastReadAt = System.currentTimeMillis();
+
+          if (seq == DONE) {
+            onConfirmed();
+            break;
+          }
+
+          if (seq == KEEP_ALIVE) {
+            continue;
+          }
+
+          int     length = in.readInt();
+          boolean acknowledge;
+
+          if (length == END_OF_DATA) {
+            acknowledge = onEnd(seq);
+          } else if (length < 0 || length > CHUNK_SIZE) {
+            throw new IOException("Bad chunk length " + length);
+          } else {
+            byte[] data = new byte[length];
+            in.readFully(data);
+            acknowledge = onChunk(seq, data);
+          }
+
+          if (acknowledge) {
+            send(getHandedOver());
+          }
+        }
+      } catch (SocketTimeoutException e) {
+        Log.w(TAG, "Connection stalled, dropping it");
+      } catch (IOException e) {
+        Log.w(TAG, "Connection closed: " + e.getMessage());
+      } finally {
+        onLost(this);
+      }
+    }
+  }
+
+  private final class ChunkInputStream extends InputStream {
+    private byte[] chunk;
+    private int    position;
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int    read   = read(single, 0, 1);
+
+      return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+
+      while (chunk == null || position == chunk.length) {
+        chunk    = takeChunk();
+        position = 0;
+
+        if (chunk == null) return -1;
+      }
+
+      int count = Math.min(length, chunk.length - position);
+
+      System.arraycopy(chunk, position, buffer, offset, count);
+      position += count;
+
+      return count;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package org.signal.devicetransfer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire constants shared by {@link ClientTransferSession} and {@link ServerTransferSession}.
+ * <p>
+ * Every connection starts with the client sending its kind. The first, {@link #CONNECTION_CONTROL}, goes through the
+ * SAS verification, after which the server hands out a random session id. Further connections, to add streams or to
+ * replace dropped ones, are {@link #CONNECTION_JOIN} followed by that id, which the server answers with
+ * {@link #JOIN_ACCEPTED}. As the id only ever travels over connections to the verified server certificate, holding it
+ * authenticates the client.
+ * <p>
+ * The data is then cut into numbered chunks, spread over all connections. A chunk is sent as its sequence number, its
+ * length and its bytes. A length of {@link #END_OF_DATA} marks the end, its sequence number being the number of chunks.
+ * The server answers with the number of chunks handed to the task so far, freeing them on the client, and once the task
+ * has finished with {@link #DONE}. The client confirms that by sending {@link #DONE} in place of a sequence number.
+ * <p>
+ * Once the end mark is in and every chunk before it handed over, the count acknowledges the end mark as well, being one
+ * past the number of chunks. A chunk or end mark arriving again after it was handed over is answered with the count,
+ * so a lost acknowledgement doesn't hold up the transfer.
+ * <p>
+ * A connection that dies silently is never closed, so both sides watch for it. The client sends {@link #KEEP_ALIVE} in
+ * place of a sequence number on a connection that has had nothing to send for a quarter of {@link #STALL_TIMEOUT}, and
+ * the server drops any that stays silent for the full timeout. The client drops a connection once the oldest chunk not
+ * yet acknowledged went out on it and nothing has been acknowledged for {@link #STALL_TIMEOUT}.
+ */
+final class TransferProtocol {
+
+  static final int CONNECTION_CONTROL = 0x01;
+  static final int CONNECTION_JOIN    = 0x02;
+  static final int JOIN_ACCEPTED      = 0x4a;
+
+  static final int SESSION_ID_LENGTH = 16;
+
+  static final int STREAMS       = 4;
+  static final int CHUNK_SIZE    = 64 * 1024;
+  static final int WINDOW_CHUNKS = 64;
+
+  static final int END_OF_DATA = -1;
+  static final int DONE        = -1;
+  static final int KEEP_ALIVE  = -2;
+
+  /** How long a session waits for any of its connections to come back before giving up. */
+  static final long RESUME_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+  /** How long a connection may go without progress before it's taken for dead, though it was never closed. */
+  static final long STALL_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+  static final long WAIT_MILLIS = 100;
+
+  private TransferProtocol() {}
+}
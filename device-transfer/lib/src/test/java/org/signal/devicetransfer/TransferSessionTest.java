@@ -0,0 +1,305 @@
+package org.signal.devicetransfer;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.StreamUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class TransferSessionTest {
+
+  private static final int  DATA_SIZE     = 4 * 1024 * 1024;
+  private static final long STALL_TIMEOUT = 1000;
+
+  private final List<Socket>  clientSockets = new ArrayList<>();
+  private final List<Relay>   relays        = new ArrayList<>();
+  private final AtomicBoolean stallNext     = new AtomicBoolean();
+
+  private volatile long networkDownUntil;
+
+  private ServerSocket          serverSocket;
+  private ServerSocket          relaySocket;
+  private ServerTransferSession serverSession;
+
+  @Before
+  public void setUp() throws IOException {
+    serverSocket  = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    relaySocket   = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    serverSession = new ServerTransferSession(new byte[TransferProtocol.SESSION_ID_LENGTH], STALL_TIMEOUT);
+
+    Thread acceptThread = new Thread(() -> {
+      try {
+        while (true) {
+          serverSession.addConnection(serverSocket.accept());
+        }
+      } catch (IOException e) {
+        // Closed
+      }
+    });
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    Thread relayThread = new Thread(() -> {
+      try {
+        while (true) {
+          Socket client = relaySocket.accept();
+          Relay  relay  = new Relay(client, new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+
+          synchronized (relays) {
+            relays.add(relay);
+          }
+        }
+      } catch (IOException e) {
+        // Closed
+      }
+    });
+    relayThread.setDaemon(true);
+    relayThread.start();
+  }
+
+  @After
+  public void tearDown() {
+    serverSession.close();
+    StreamUtil.close(serverSocket);
+    StreamUtil.close(relaySocket);
+
+    synchronized (relays) {
+      for (Relay relay : relays) {
+        relay.close();
+      }
+    }
+  }
+
+  @Test
+  public void transfer_allDataArrivesInOrder() throws Exception {
+    byte[] data = randomData();
+
+    assertArrayEquals(data, transfer(data, -1, () -> {}));
+  }
+
+  @Test
+  public void transfer_resumesAfterOneConnectionDrops() throws Exception {
+    byte[] data = randomData();
+
+    assertArrayEquals(data, transfer(data, DATA_SIZE / 4, () -> dropConnections(false)));
+  }
+
+  @Test
+  public void transfer_resumesAfterAllConnectionsDrop() throws Exception {
+    byte[] data = randomData();
+
+    assertArrayEquals(data, transfer(data, DATA_SIZE / 2, () -> dropConnections(true)));
+  }
+
+  /**
+   * Chunks sent over the stalled connection never arrive, so without it being dropped the transfer would hang.
+   */
+  @Test(timeout = 60_000)
+  public void transfer_resumesAfterOneConnectionStallsWithoutClosing() throws Exception {
+    byte[] data = randomData(4 * DATA_SIZE);
+
+    assertArrayEquals(data, transfer(data, DATA_SIZE, this::stallConnection));
+  }
+
+  /**
+   * As when the WiFi Direct network drops: every connection goes, and none can be made for a while.
+   */
+  @Test(timeout = 60_000)
+  public void transfer_resumesAfterNetworkIsGoneForAWhile() throws Exception {
+    byte[] data = randomData();
+
+    assertArrayEquals(data, transfer(data, DATA_SIZE / 2, () -> loseNetwork(3000)));
+  }
+
+  /**
+   * Sends the data through a pair of sessions over loopback, interfering with the connections once the given number of
+   * bytes has been received.
+   */
+  private byte[] transfer(@NonNull byte[] data, int dropAfter, @NonNull Runnable drop) throws Exception {
+    ByteArrayOutputStream      received    = new ByteArrayOutputStream();
+    AtomicReference<Throwable> serverError = new AtomicReference<>();
+
+    Thread serverTask = new Thread(() -> {
+      try {
+        InputStream in     = serverSession.getInputStream();
+        byte[]      buffer = new byte[8192];
+        boolean     killed = false;
+        int         read;
+
+        while ((read = in.read(buffer)) != -1) {
+          received.write(buffer, 0, read);
+
+          if (!killed && dropAfter >= 0 && received.size() >= dropAfter) {
+            drop.run();
+            killed = true;
+          }
+        }
+
+        serverSession.finish();
+      } catch (Throwable t) {
+        serverError.set(t);
+      }
+    });
+    serverTask.start();
+
+    ClientTransferSession clientSession = new ClientTransferSession(connect(), this::connect, STALL_TIMEOUT);
+
+    try {
+      OutputStream out    = clientSession.getOutputStream();
+      Random       random = new Random(1);
+      int          offset = 0;
+
+      while (offset < data.length) {
+        int length = Math.min(data.length - offset, 1 + random.nextInt(100_000));
+        out.write(data, offset, length);
+        offset += length;
+      }
+
+      clientSession.finish();
+    } finally {
+      clientSession.close();
+    }
+
+    serverTask.join();
+    assertNull(serverError.get());
+
+    return received.toByteArray();
+  }
+
+  private @NonNull Socket connect() throws IOException {
+    if (System.currentTimeMillis() < networkDownUntil) {
+      throw new ConnectException("Network is unreachable");
+    }
+
+    Socket socket = new Socket(InetAddress.getLoopbackAddress(), relaySocket.getLocalPort());
+
+    synchronized (clientSockets) {
+      clientSockets.add(socket);
+    }
+
+    return socket;
+  }
+
+  private void dropConnections(boolean all) {
+    synchronized (clientSockets) {
+      for (Socket socket : clientSockets) {
+        if (!socket.isClosed()) {
+          StreamUtil.close(socket);
+          if (!all) return;
+        }
+      }
+    }
+  }
+
+  private void loseNetwork(long millis) {
+    networkDownUntil = System.currentTimeMillis() + millis;
+    dropConnections(true);
+  }
+
+  /**
+   * Stops the next connection a chunk is sent over, in both directions, leaving it open on both ends.
+   */
+  private void stallConnection() {
+    stallNext.set(true);
+  }
+
+  private static byte[] randomData() {
+    return randomData(DATA_SIZE);
+  }
+
+  /**
+   * @param size more than {@link TransferProtocol#WINDOW_CHUNKS} chunks for some of it to still be on its way when
+   *             connections are interfered with.
+   */
+  private static byte[] randomData(int size) {
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Forwards a client connection to the server. Once stalled it stops forwarding without closing either side, as a
+   * connection that died silently would.
+   */
+  private final class Relay {
+    private final Socket client;
+    private final Socket server;
+
+    private volatile boolean stalled;
+
+    private Relay(@NonNull Socket client, @NonNull Socket server) {
+      this.client = client;
+      this.server = server;
+
+      pump(client, server);
+      pump(server, client);
+    }
+
+    private void pump(@NonNull Socket from, @NonNull Socket to) {
+      Thread thread = new Thread(() -> {
+        try {
+          InputStream  in     = from.getInputStream();
+          OutputStream out    = to.getOutputStream();
+          byte[]       buffer = new byte[8192];
+          int          read;
+
+          while ((read = in.read(buffer)) != -1) {
+            if (from == client && stallNext.compareAndSet(true, false)) {
+              stalled = true;
+            }
+
+            while (stalled) {
+              Thread.sleep(10);
+            }
+
+            out.write(buffer, 0, read);
+          }
+        } catch (IOException | InterruptedException e) {
+          // Closed
+        }
+
+        // Only pass the end on, data may still be on its way the other way round
+        if (!stalled) {
+          try {
+            to.shutdownOutput();
+          } catch (IOException e) {
+            // Closed
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void close() {
+      stalled = false;
+      StreamUtil.close(client);
+      StreamUtil.close(server);
+    }
+  }
+}
@@ -16,7 +16,8 @@ import androidx.annotation.NonNull;
  *
  * It's also worth noting that this controller has lifecycle that matches the {@link PagedData} that
  * contains it. When invalidations come in, this class will just swap out the active controller with
- * a new one.
+ * a new one. Keyed changes are patched into the active controller, which falls back to asking for
+ * an invalidation if it can't place them.
  */
 class BufferedPagingController<Key, Data> implements PagingController<Key> {
 
@@ -58,7 +59,7 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
         activeController.onDataInvalidated();
       }
 
-      activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size());
+      activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size(), this::onDataInvalidated);
       activeController.onDataNeededAroundIndex(lastRequestedIndex);
     });
   }
@@ -10,14 +10,20 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
 /**
  * The workhorse of managing page requests.
  *
- * A controller whose life focuses around one invalidation cycle of a data set, and therefore has
- * a fixed size throughout. It assumes that all interface methods are called on a single thread,
- * which allows it to keep track of pending requests in a thread-safe way, while spinning off
- * tasks to fetch data on its own executor.
+ * A controller whose life focuses around one invalidation cycle of a data set. It assumes that all
+ * interface methods are called on a single thread, which allows it to keep track of pending
+ * requests in a thread-safe way, while spinning off tasks to fetch data on its own executor.
+ *
+ * Within that cycle, keyed changes (an item changed or inserted) are patched into the loaded data
+ * in place, loading only the affected item. Patches that queue up behind one another are applied to
+ * a single copy of the data and published together, at least every {@link #MAX_BATCH_SIZE} patches
+ * or {@link #MAX_BATCH_MILLIS} so a steady stream of them can't hold the data back. Should a patch
+ * not fit what is loaded, the controller asks to be replaced through its invalidation callback.
  */
 class FixedSizePagingController<Key, Data> implements PagingController<Key> {
 
@@ -26,27 +32,52 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private static final Executor FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("unfacd-FixedSizePagingController");//AA+
   private static final boolean  DEBUG          = false;
 
+  static final int  MAX_BATCH_SIZE   = 50;
+  static final long MAX_BATCH_MILLIS = 100;
+
   private final PagedDataSource<Key, Data>  dataSource;
   private final PagingConfig                config;
   private final DataStream<Data>            dataStream;
   private final DataStatus                  loadState;
   private final Map<Key, Integer>           keyToPosition;
+  private final Runnable                    invalidationRequest;
+  private final Executor                    fetchExecutor;
 
   private List<Data> data;
 
+  /** Copy of {@link #data} being patched while updates are queued, only touched on {@link #fetchExecutor}. */
+  private List<Data> pendingData;
+  private int        pendingUpdates;
+  private long       pendingSince;
+  private int        queuedUpdates;
+
   private volatile boolean invalidated;
 
   FixedSizePagingController(@NonNull PagedDataSource<Key, Data> dataSource,
                             @NonNull PagingConfig config,
                             @NonNull DataStream<Data> dataStream,
-                            int size)
+                            int size,
+                            @NonNull Runnable invalidationRequest)
+  {
+    this(dataSource, config, dataStream, size, invalidationRequest, FETCH_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  FixedSizePagingController(@NonNull PagedDataSource<Key, Data> dataSource,
+                            @NonNull PagingConfig config,
+                            @NonNull DataStream<Data> dataStream,
+                            int size,
+                            @NonNull Runnable invalidationRequest,
+                            @NonNull Executor fetchExecutor)
   {
-    this.dataSource    = dataSource;
-    this.config        = config;
-    this.dataStream    = dataStream;
-    this.loadState     = DataStatus.obtain(size);
-    this.data          = new CompressedList<>(loadState.size());
-    this.keyToPosition = new HashMap<>();
+    this.dataSource          = dataSource;
+    this.config              = config;
+    this.dataStream          = dataStream;
+    this.loadState           = DataStatus.obtain(size);
+    this.data                = new CompressedList<>(loadState.size());
+    this.keyToPosition       = new HashMap<>();
+    this.invalidationRequest = invalidationRequest;
+    this.fetchExecutor       = fetchExecutor;
 
     if (DEBUG) Log.d(TAG, "[Constructor] Creating with size " + size + " (loadState.size() = " + loadState.size() + ")");
   }
@@ -100,7 +131,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
       if (DEBUG) Log.i(TAG, buildDataNeededLog(aroundIndex, "start: " + loadStart + ", end: " + loadEnd + ", totalSize: " + totalSize));
     }
 
-    FETCH_EXECUTOR.execute(() -> {
+    executeUpdate(() -> {
       if (invalidated) {
         Log.w(TAG, buildDataNeededLog(aroundIndex, "Invalidated! At beginning of load task."));
         return;
@@ -113,18 +144,15 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
         return;
       }
 
-      List<Data> updated = new CompressedList<>(data);
+      List<Data> updated = editableData();
 
-      for (int i = 0, len = Math.min(loaded.size(), data.size() - loadStart); i < len; i++) {
+      for (int i = 0, len = Math.min(loaded.size(), updated.size() - loadStart); i < len; i++) {
         int  position = loadStart + i;
         Data item     = loaded.get(i);
 
         updated.set(position, item);
         keyToPosition.put(dataSource.getKey(item), position);
       }
-
-      data = updated;
-      dataStream.next(updated);
     });
   }
 
@@ -142,7 +170,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   public void onDataItemChanged(Key key) {
     if (DEBUG) Log.d(TAG, buildItemChangedLog(key, ""));
 
-    FETCH_EXECUTOR.execute(() -> {
+    executeUpdate(() -> {
       Integer position = keyToPosition.get(key);
 
       if (position == null) {
@@ -171,13 +199,9 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
         return;
       }
 
-      List<Data> updatedList = new CompressedList<>(data);
-
-      updatedList.set(position, item);
-      data = updatedList;
-      dataStream.next(updatedList);
+      editableData().set(position, item);
 
-      if (DEBUG) Log.d(TAG, buildItemChangedLog(key, "Published updated data"));
+      if (DEBUG) Log.d(TAG, buildItemChangedLog(key, "Patched updated data"));
     });
   }
 
@@ -185,7 +209,7 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   public void onDataItemInserted(Key key, int position) {
     if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, ""));
 
-    FETCH_EXECUTOR.execute(() -> {
+    executeUpdate(() -> {
       if (keyToPosition.containsKey(key)) {
         Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the item already exists!");
         return;
@@ -196,9 +220,9 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
         return;
       }
 
-      synchronized (loadState) {
-        loadState.insertState(position, true);
-        if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Size of loadState updated to " + loadState.size()));
+      if (position < 0 || position > (pendingData != null ? pendingData : data).size()) {
+        requestInvalidation("Notified of key " + key + " being inserted at " + position + ", which is out of range!");
+        return;
       }
 
       Data item = dataSource.load(key);
@@ -213,29 +237,92 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
         return;
       }
 
-      List<Data> updatedList = new CompressedList<>(data);
+      synchronized (loadState) {
+        loadState.insertState(position, true);
+        if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Size of loadState updated to " + loadState.size()));
+      }
+
+      editableData().add(position, item);
+      shiftPositions(position, 1);
+      keyToPosition.put(key, position);
 
-      updatedList.add(position, item);
-      rebuildKeyToPositionMap(keyToPosition, updatedList, dataSource);
+      if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Patched updated data"));
+    });
+  }
 
-      data = updatedList;
-      dataStream.next(updatedList);
+  /**
+   * Runs a change to the data on the fetch executor. Changes queued behind one another are made
+   * to the same copy of the data, which is published once the last of them has run or the batch
+   * has grown too large or too old.
+   */
+  private void executeUpdate(@NonNull Runnable update) {
+    synchronized (this) {
+      queuedUpdates++;
+    }
 
-      if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, position, "Published updated data"));
+    fetchExecutor.execute(() -> {
+      try {
+        update.run();
+      } finally {
+        publishIfDue();
+      }
     });
   }
 
-  private void rebuildKeyToPositionMap(@NonNull Map<Key, Integer> map, @NonNull List<Data> dataList, @NonNull PagedDataSource<Key, Data> dataSource) {
-    map.clear();
+  private @NonNull List<Data> editableData() {
+    if (pendingData == null) {
+      pendingData  = new CompressedList<>(data);
+      pendingSince = System.currentTimeMillis();
+    }
+
+    return pendingData;
+  }
+
+  private void publishIfDue() {
+    boolean idle;
+
+    synchronized (this) {
+      idle = --queuedUpdates == 0;
+    }
+
+    if (pendingData == null) {
+      return;
+    }
+
+    if (invalidated) {
+      pendingData    = null;
+      pendingUpdates = 0;
+      return;
+    }
+
+    if (!idle && ++pendingUpdates < MAX_BATCH_SIZE && System.currentTimeMillis() - pendingSince < MAX_BATCH_MILLIS) {
+      return;
+    }
 
-    for (int i = 0, len = dataList.size(); i < len; i++) {
-      Data item = dataList.get(i);
-      if (item != null) {
-        map.put(dataSource.getKey(item), i);
+    data           = pendingData;
+    pendingData    = null;
+    pendingUpdates = 0;
+    dataStream.next(data);
+  }
+
+  /**
+   * Moves every cached key at or after {@code fromPosition} by {@code delta}. Only loaded items are
+   * in the map, so this is bounded by what has been paged in rather than by the data set.
+   */
+  private void shiftPositions(int fromPosition, int delta) {
+    for (Map.Entry<Key, Integer> entry : keyToPosition.entrySet()) {
+      if (entry.getValue() >= fromPosition) {
+        entry.setValue(entry.getValue() + delta);
       }
     }
   }
 
+  private void requestInvalidation(@NonNull String reason) {
+    Log.w(TAG, reason + " Falling back to a full invalidation.");
+    onDataInvalidated();
+    invalidationRequest.run();
+  }
+
   private String buildDataNeededLog(int aroundIndex, String message) {
     return "[onDataNeededAroundIndex(" + aroundIndex + "), size: " + loadState.size() + "] " + message;
   }
@@ -247,4 +334,4 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemInserted(" + key + "), size: " + loadState.size() + "] " + message;
   }
-}
\ No newline at end of file
+}
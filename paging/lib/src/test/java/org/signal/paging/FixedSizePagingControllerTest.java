@@ -0,0 +1,297 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FixedSizePagingControllerTest {
+
+  private FakeDataSource     dataSource;
+  private List<List<String>> published;
+  private ManualExecutor     executor;
+  private int                invalidationRequests;
+
+  private FixedSizePagingController<Integer, String> subject;
+
+  @Before
+  public void setUp() {
+    Log.initialize(new EmptyLogger());
+
+    dataSource           = new FakeDataSource(10);
+    published            = new ArrayList<>();
+    executor             = new ManualExecutor();
+    invalidationRequests = 0;
+
+    subject = new FixedSizePagingController<>(dataSource,
+                                              new PagingConfig.Builder().setPageSize(5).build(),
+                                              published::add,
+                                              dataSource.size(),
+                                              () -> invalidationRequests++,
+                                              executor);
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_loadsAndPublishesThePage() {
+    subject.onDataNeededAroundIndex(0);
+    executor.runAll();
+
+    assertEquals(1, published.size());
+    assertEquals(Arrays.asList("0:0", "1:0", "2:0", "3:0", "4:0", "5:0", "6:0", "7:0", "8:0", "9:0"), last());
+  }
+
+  @Test
+  public void onDataItemChanged_patchesOnlyThatItem() {
+    loadAll();
+
+    dataSource.change(3);
+    subject.onDataItemChanged(3);
+    executor.runAll();
+
+    assertEquals(2, published.size());
+    assertEquals("3:1", last().get(3));
+    assertEquals("2:0", last().get(2));
+    assertEquals("0:0", published.get(0).get(0));
+    assertEquals("3:0", published.get(0).get(3));
+  }
+
+  @Test
+  public void onDataItemChanged_unknownKey_publishesNothing() {
+    loadAll();
+
+    subject.onDataItemChanged(42);
+    executor.runAll();
+
+    assertEquals(1, published.size());
+  }
+
+  @Test
+  public void onDataItemInserted_atTop_shiftsLoadedItems() {
+    loadAll();
+
+    dataSource.insert(0, 100);
+    subject.onDataItemInserted(100, 0);
+    executor.runAll();
+
+    assertEquals(11, last().size());
+    assertEquals("100:0", last().get(0));
+    assertEquals("0:0", last().get(1));
+    assertEquals("9:0", last().get(10));
+
+    dataSource.change(5);
+    subject.onDataItemChanged(5);
+    executor.runAll();
+
+    assertEquals("5:1", last().get(6));
+    assertEquals("4:0", last().get(5));
+  }
+
+  @Test
+  public void onDataItemInserted_existingKey_publishesNothing() {
+    loadAll();
+
+    subject.onDataItemInserted(3, 0);
+    executor.runAll();
+
+    assertEquals(1, published.size());
+    assertEquals(0, invalidationRequests);
+  }
+
+  @Test
+  public void onDataItemInserted_outOfRange_requestsInvalidation() {
+    loadAll();
+
+    dataSource.insert(10, 100);
+    subject.onDataItemInserted(100, 20);
+    executor.runAll();
+
+    assertEquals(1, published.size());
+    assertEquals(1, invalidationRequests);
+  }
+
+  @Test
+  public void queuedUpdates_arePublishedTogether() {
+    loadAll();
+
+    dataSource.change(1);
+    dataSource.change(2);
+    dataSource.insert(0, 100);
+
+    subject.onDataItemChanged(1);
+    subject.onDataItemChanged(2);
+    subject.onDataItemInserted(100, 0);
+    executor.runAll();
+
+    assertEquals(2, published.size());
+    assertEquals(Arrays.asList("100:0", "0:0", "1:1", "2:1"), last().subList(0, 4));
+  }
+
+  @Test
+  public void steadyStreamOfUpdates_isPublishedEveryMaxBatchSize() {
+    loadAll();
+
+    int updates = FixedSizePagingController.MAX_BATCH_SIZE * 2 + 5;
+
+    for (int i = 0; i < updates; i++) {
+      dataSource.change(i % 10);
+      subject.onDataItemChanged(i % 10);
+    }
+
+    executor.runAll();
+
+    assertEquals(4, published.size());
+    assertEquals("4:" + (updates / 10 + 1), last().get(4));
+    assertEquals("5:" + (updates / 10), last().get(5));
+  }
+
+  @Test
+  public void updatesQueuedBeforeInvalidation_areNotPublished() {
+    loadAll();
+
+    dataSource.change(1);
+    subject.onDataItemChanged(1);
+    subject.onDataInvalidated();
+    executor.runAll();
+
+    assertEquals(1, published.size());
+  }
+
+  @Test
+  public void publishedLists_areNotModifiedByLaterUpdates() {
+    loadAll();
+
+    List<String> first = last();
+
+    dataSource.change(0);
+    subject.onDataItemChanged(0);
+    executor.runAll();
+
+    assertEquals("0:0", first.get(0));
+    assertEquals("0:1", last().get(0));
+    assertTrue(first != last());
+  }
+
+  private void loadAll() {
+    subject.onDataNeededAroundIndex(0);
+    executor.runAll();
+  }
+
+  private List<String> last() {
+    return published.get(published.size() - 1);
+  }
+
+  private static final class FakeDataSource implements PagedDataSource<Integer, String> {
+
+    private final List<Integer>         keys     = new ArrayList<>();
+    private final Map<Integer, Integer> versions = new HashMap<>();
+
+    FakeDataSource(int size) {
+      for (int i = 0; i < size; i++) {
+        keys.add(i);
+        versions.put(i, 0);
+      }
+    }
+
+    void change(int key) {
+      versions.put(key, versions.get(key) + 1);
+    }
+
+    void insert(int position, int key) {
+      keys.add(position, key);
+      versions.put(key, 0);
+    }
+
+    @Override
+    public int size() {
+      return keys.size();
+    }
+
+    @Override
+    public @NonNull List<String> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      List<String> items = new ArrayList<>(length);
+
+      for (int i = start; i < Math.min(start + length, keys.size()); i++) {
+        items.add(load(keys.get(i)));
+      }
+
+      return items;
+    }
+
+    @Override
+    public @Nullable String load(Integer key) {
+      Integer version = versions.get(key);
+
+      return version != null ? key + ":" + version : null;
+    }
+
+    @Override
+    public @NonNull Integer getKey(@NonNull String data) {
+      return Integer.parseInt(data.substring(0, data.indexOf(':')));
+    }
+  }
+
+  private static final class ManualExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new LinkedList<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      Runnable task;
+
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  private static final class EmptyLogger extends Log.Logger {
+    @Override
+    public void v(String tag, String message, Throwable t, boolean keepLonger) { }
+
+    @Override
+    public void d(String tag, String message, Throwable t, boolean keepLonger) { }
+
+    @Override
+    public void i(String tag, String message, Throwable t, boolean keepLonger) { }
+
+    @Override
+    public void w(String tag, String message, Throwable t, boolean keepLonger) { }
+
+    @Override
+    public void e(String tag, String message, Throwable t, boolean keepLonger) { }
+
+    @Override
+    public void v(String tag, @NonNull Supplier<String> message) { }
+
+    @Override
+    public void d(String tag, @NonNull Supplier<String> message) { }
+
+    @Override
+    public void i(String tag, @NonNull Supplier<String> message) { }
+
+    @Override
+    public void w(String tag, @NonNull Supplier<String> message) { }
+
+    @Override
+    public void flush() { }
+  }
+}